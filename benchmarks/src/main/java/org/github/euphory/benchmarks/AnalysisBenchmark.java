@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.benchmarks;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.github.euphory.analysis.Boundary;
+import org.github.euphory.analysis.BoundaryDetector;
+import org.github.euphory.analysis.PcmSource;
+import org.github.euphory.analysis.PeakLevel;
+import org.github.euphory.analysis.WaveformAnalyzer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Waveform pyramid construction and boundary detection on a generated mix
+ * held in memory, without the decoder, so the numbers only move when the
+ * analysis code does. The mix is six tracks of two minutes, crossfaded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class AnalysisBenchmark {
+
+    private static final int TRACKS = 6;
+    private static final double TRACK_SECONDS = 120;
+
+    private PcmSource waveformMix;
+    private PcmSource boundaryMix;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        waveformMix = new Samples(Fixtures.mix(WaveformAnalyzer.DEFAULT_SAMPLE_RATE, TRACKS, TRACK_SECONDS));
+        boundaryMix = new Samples(Fixtures.mix(BoundaryDetector.SAMPLE_RATE, TRACKS, TRACK_SECONDS));
+    }
+
+    @Benchmark
+    public PeakLevel[] buildPyramid() throws IOException {
+        return WaveformAnalyzer.buildLevels(waveformMix);
+    }
+
+    /**
+     * Everything the detector does after decoding, chunk by chunk on the
+     * calling thread.
+     */
+    @Benchmark
+    public List<Boundary> detectBoundaries() throws IOException {
+        return new BoundaryDetector().detect(boundaryMix, null);
+    }
+
+    /**
+     * Samples held in an array.
+     */
+    private static final class Samples implements PcmSource {
+
+        private final float[] samples;
+
+        private Samples(float[] samples) {
+            this.samples = samples;
+        }
+
+        @Override
+        public long getSampleCount() {
+            return samples.length;
+        }
+
+        @Override
+        public int read(long start, float[] destination, int offset, int length) {
+            int count = (int) Math.max(0, Math.min(length, samples.length - start));
+            System.arraycopy(samples, (int) Math.min(start, samples.length), destination, offset, count);
+            return count;
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.github.euphory.analysis.Boundary;
+import org.github.euphory.analysis.BoundaryDetector;
+import org.github.euphory.analysis.DecodedPcm;
+import org.github.euphory.analysis.PcmCache;
+import org.github.euphory.analysis.WaveformAnalyzer;
+import org.github.euphory.analysis.WaveformPyramid;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * The waveform analyzer and the boundary detector from file to result, on a
+ * generated WAV mix, decoder included. Like the application, these need
+ * ffmpeg on the path. The analyzer decodes into a PCM cache of the benchmark
+ * emptied before every invocation, and once more into one kept filled to
+ * measure a file analyzed again.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileAnalysisBenchmark {
+
+    private Path folder;
+    private Path mix;
+    private ForkJoinPool pool;
+    private PcmCache cache;
+    private PcmCache filledCache;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("euphory-benchmark");
+        mix = Fixtures.writeWav(folder.resolve("mix.wav"), Fixtures.mix(BoundaryDetector.SAMPLE_RATE, 6, 120),
+                BoundaryDetector.SAMPLE_RATE);
+        pool = new ForkJoinPool();
+        cache = new PcmCache(folder.resolve("pcm"), PcmCache.DEFAULT_BUDGET, DecodedPcm.Format.PCM_16);
+        filledCache = new PcmCache(folder.resolve("pcm-filled"), PcmCache.DEFAULT_BUDGET, DecodedPcm.Format.PCM_16);
+        analyze(filledCache);
+    }
+
+    @Setup(Level.Invocation)
+    public void clearCache() throws IOException {
+        cache.clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        pool.shutdownNow();
+        Fixtures.delete(folder);
+    }
+
+    @Benchmark
+    public long analyzeWaveform() throws IOException {
+        return analyze(cache);
+    }
+
+    @Benchmark
+    public long analyzeCachedWaveform() throws IOException {
+        return analyze(filledCache);
+    }
+
+    @Benchmark
+    public List<Boundary> detectBoundaries() throws IOException {
+        return new BoundaryDetector().detect(mix.toFile(), null);
+    }
+
+    @Benchmark
+    public List<Boundary> detectBoundariesInParallel() throws IOException {
+        return new BoundaryDetector(pool).detect(mix.toFile(), null);
+    }
+
+    private long analyze(PcmCache pcmCache) throws IOException {
+        try (WaveformPyramid pyramid = new WaveformAnalyzer(pcmCache, WaveformAnalyzer.DEFAULT_SAMPLE_RATE).analyze(mix.toFile(), null)) {
+            return pyramid.getSampleCount();
+        }
+    }
+
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.github.euphory.tags.ID3v2TagManager;
+import org.github.euphory.tags.MP4TagManager;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Generates the files and samples the benchmarks run on. Everything is built
+ * from a fixed seed, so every run measures the same bytes.
+ */
+public final class Fixtures {
+
+    public static final long SEED = 0x45757068L;
+
+    /**
+     * Seconds of the crossfade between two tracks of a generated mix.
+     */
+    private static final double CROSSFADE_SECONDS = 8;
+
+    private Fixtures() {
+    }
+
+    /**
+     * The tags of a typical radio show episode.
+     */
+    public static Map<String, String> tags() {
+        Map<String, String> tags = new LinkedHashMap<>();
+        tags.put("title", "A State of Trance Episode 1000 (Part 3) – Live from Utrecht");
+        tags.put("artist", "Armin van Buuren");
+        tags.put("album", "A State of Trance");
+        tags.put("genre", "Trance");
+        tags.put("year", "2021");
+        tags.put("track", "1000");
+        return tags;
+    }
+
+    /**
+     * Writes an MP4 file holding a short 'mdat' and a trailing 'moov', then
+     * tags it with the application writer so it gets the usual padding.
+     *
+     * @param file The file to write.
+     * @param tags The tags.
+     * @return The file.
+     */
+    public static Path writeMp4(Path file, Map<String, String> tags) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(24);
+        out.writeBytes("ftypM4A ");
+        out.writeInt(0);
+        out.writeBytes("M4A isom");
+        byte[] media = new byte[64 * 1024];
+        new Random(SEED).nextBytes(media);
+        out.writeInt(8 + media.length);
+        out.writeBytes("mdat");
+        out.write(media);
+        out.writeInt(8 + 108);
+        out.writeBytes("moov");
+        writeMvhd(out);
+        out.flush();
+        Files.write(file, bytes.toByteArray());
+        MP4TagManager.writeMP4Tag(file, tags);
+        return file;
+    }
+
+    private static void writeMvhd(DataOutputStream out) throws IOException {
+        out.writeInt(108);
+        out.writeBytes("mvhd");
+        out.writeInt(0); // version and flags
+        out.writeInt(0); // creation time
+        out.writeInt(0); // modification time
+        out.writeInt(44100);
+        out.writeInt(44100 * 3600);
+        out.writeInt(0x00010000); // rate
+        out.writeShort(0x0100); // volume
+        out.write(new byte[10]);
+        int[] matrix = { 0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000 };
+        for (int value : matrix) {
+            out.writeInt(value);
+        }
+        out.write(new byte[24]);
+        out.writeInt(2); // next track id
+    }
+
+    /**
+     * Writes an MP3 file of silent MPEG 1 Layer III frames, then tags it with
+     * the application writer.
+     *
+     * @param file The file to write.
+     * @param tags The tags.
+     * @return The file.
+     */
+    public static Path writeMp3(Path file, Map<String, String> tags) throws IOException {
+        // 128 kbps, 44100 Hz, joint stereo: 417 bytes per frame
+        byte[] frame = new byte[417];
+        frame[0] = (byte) 0xff;
+        frame[1] = (byte) 0xfb;
+        frame[2] = (byte) 0x90;
+        frame[3] = (byte) 0x64;
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (int i = 0; i < 256; i++) {
+                out.write(frame);
+            }
+        }
+        ID3v2TagManager.writeID3v2Tag(file, tags);
+        return file;
+    }
+
+    /**
+     * The payload of an 'ilst' atom: the given tags, then a cover art item.
+     *
+     * @param items      The serialized tag items, as MP4Tag.toBytes gives them.
+     * @param coverBytes The size of the cover art, 0 for none.
+     * @return The payload.
+     */
+    public static byte[] ilst(byte[] items, int coverBytes) {
+        if (coverBytes == 0) {
+            return items;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(items.length + 24 + coverBytes);
+        buffer.put(items);
+        buffer.putInt(24 + coverBytes);
+        buffer.put("covr".getBytes(StandardCharsets.ISO_8859_1));
+        buffer.putInt(16 + coverBytes);
+        buffer.put("data".getBytes(StandardCharsets.ISO_8859_1));
+        buffer.putInt(13); // JPEG
+        buffer.putInt(0);
+        byte[] cover = new byte[coverBytes];
+        new Random(SEED).nextBytes(cover);
+        buffer.put(cover);
+        return buffer.array();
+    }
+
+    /**
+     * Generates a mono mix of synthetic tracks, each with its own chord,
+     * tempo and noise colour, crossfaded into the next one.
+     *
+     * @param sampleRate   The sample rate.
+     * @param tracks       The number of tracks.
+     * @param trackSeconds The length of every track, crossfades included.
+     * @return The samples, between -1 and 1.
+     */
+    public static float[] mix(int sampleRate, int tracks, double trackSeconds) {
+        int trackSamples = (int) (trackSeconds * sampleRate);
+        int fadeSamples = (int) (CROSSFADE_SECONDS * sampleRate);
+        int step = trackSamples - fadeSamples;
+        float[] mix = new float[step * (tracks - 1) + trackSamples];
+        Random random = new Random(SEED);
+        for (int track = 0; track < tracks; track++) {
+            double root = 110 * Math.pow(2, (track * 5 % 12) / 12.0);
+            double[] chord = { root, root * Math.pow(2, (track % 2 == 0 ? 4 : 3) / 12.0), root * 1.5, root * 2 };
+            double beatSamples = sampleRate * 60.0 / (122 + 3 * track);
+            double noiseColour = 0.2 + 0.6 * track / Math.max(1, tracks - 1);
+            double noise = 0;
+            int offset = track * step;
+            for (int i = 0; i < trackSamples; i++) {
+                double t = (double) i / sampleRate;
+                double value = 0;
+                for (double frequency : chord) {
+                    value += 0.1 * Math.sin(2 * Math.PI * frequency * t);
+                }
+                double sinceBeat = (i % beatSamples) / sampleRate;
+                value += 0.4 * Math.exp(-sinceBeat * 18) * Math.sin(2 * Math.PI * 55 * sinceBeat);
+                noise = noiseColour * noise + (1 - noiseColour) * (random.nextDouble() * 2 - 1);
+                value += 0.05 * noise;
+                double gain = 1;
+                if (track > 0 && i < fadeSamples) {
+                    gain = (double) i / fadeSamples;
+                } else if (track < tracks - 1 && i >= trackSamples - fadeSamples) {
+                    gain = (double) (trackSamples - i) / fadeSamples;
+                }
+                mix[offset + i] += (float) (0.8 * gain * value);
+            }
+        }
+        return mix;
+    }
+
+    /**
+     * Writes samples as a 16-bit mono WAV file.
+     *
+     * @param file       The file to write.
+     * @param samples    The samples, between -1 and 1.
+     * @param sampleRate The sample rate.
+     * @return The file.
+     */
+    public static Path writeWav(Path file, float[] samples, int sampleRate) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(44 + samples.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put("RIFF".getBytes(StandardCharsets.ISO_8859_1));
+        buffer.putInt(36 + samples.length * 2);
+        buffer.put("WAVEfmt ".getBytes(StandardCharsets.ISO_8859_1));
+        buffer.putInt(16);
+        buffer.putShort((short) 1); // PCM
+        buffer.putShort((short) 1); // mono
+        buffer.putInt(sampleRate);
+        buffer.putInt(sampleRate * 2);
+        buffer.putShort((short) 2);
+        buffer.putShort((short) 16);
+        buffer.put("data".getBytes(StandardCharsets.ISO_8859_1));
+        buffer.putInt(samples.length * 2);
+        for (float sample : samples) {
+            buffer.putShort((short) Math.round(Math.max(-1, Math.min(1, sample)) * Short.MAX_VALUE));
+        }
+        Files.write(file, buffer.array());
+        return file;
+    }
+
+    /**
+     * Deletes a fixture folder and what is in it.
+     */
+    public static void delete(Path folder) throws IOException {
+        if (folder == null || !Files.exists(folder)) {
+            return;
+        }
+        try (var files = Files.list(folder)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.delete(folder);
+    }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.benchmarks;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.github.euphory.model.FlatTagEditionModel;
+import org.github.euphory.model.MixDataViewModel;
+import org.github.euphory.service.TagService;
+import org.github.euphory.tags.MP4Tag;
+import org.github.euphory.tags.MP4TagManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Tag parsing, reading and writing, on generated MP4 and MP3 files. The
+ * files sit in a temporary folder, so the reads mostly measure the parsing
+ * and the system calls, not the disk. The flat tag model is filled with the
+ * keys of a long show in shuffled order.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TagBenchmark {
+
+    private Path folder;
+    private Path mp4;
+    private Path mp3;
+    private Map<String, String> tags;
+    private TagService tagService;
+    private int writes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("euphory-benchmark");
+        tags = Fixtures.tags();
+        mp4 = Fixtures.writeMp4(folder.resolve("mix.m4a"), tags);
+        mp3 = Fixtures.writeMp3(folder.resolve("mix.mp3"), tags);
+        tagService = new TagService();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.delete(folder);
+    }
+
+    @Benchmark
+    public Map<String, String> parseTagData(Ilst ilst) {
+        return MP4Tag.parseTagData(ilst.payload);
+    }
+
+    @Benchmark
+    public Map<String, String> readMP4Tag() throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(mp4.toFile(), "r")) {
+            return MP4TagManager.readMP4Tag(file);
+        }
+    }
+
+    /**
+     * Writes a title of changing length every time, so the padding grows and
+     * shrinks the way it does while editing.
+     */
+    @Benchmark
+    public void writeMP4Tag() throws IOException {
+        tags.put("title", "Episode " + (writes++ % 1000));
+        MP4TagManager.writeMP4Tag(mp4, tags);
+    }
+
+    @Benchmark
+    public MixDataViewModel populateMp4() {
+        return tagService.populateAlbumDataViewModel(mp4.toString());
+    }
+
+    @Benchmark
+    public MixDataViewModel populateMp3() {
+        return tagService.populateAlbumDataViewModel(mp3.toString());
+    }
+
+    @Benchmark
+    public FlatTagEditionModel putFlatTracks(FlatTracks flat) {
+        return flat.fill();
+    }
+
+    /**
+     * An 'ilst' payload held in memory.
+     */
+    @State(Scope.Benchmark)
+    public static class Ilst {
+
+        /**
+         * Bytes of cover art after the text items, which parsing has to skip.
+         */
+        @Param({ "0", "262144" })
+        public int coverBytes;
+
+        private byte[] payload;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            payload = Fixtures.ilst(MP4Tag.toBytes(Fixtures.tags()), coverBytes);
+        }
+
+    }
+
+    /**
+     * The track keys of a show, in a shuffled but fixed order.
+     */
+    @State(Scope.Benchmark)
+    public static class FlatTracks {
+
+        private static final String[] FIELDS = { "tracknumber", "trackstarttime", "trackartist", "trackname" };
+
+        @Param({ "250" })
+        public int tracks;
+
+        private final List<String> keys = new ArrayList<>();
+
+        /**
+         * Shuffles the keys and checks once that they all read back, so the
+         * benchmark never measures a model that loses values.
+         */
+        @Setup(Level.Trial)
+        public void setUp() {
+            for (int track = 1; track <= tracks; track++) {
+                for (String field : FIELDS) {
+                    keys.add(field + track);
+                }
+            }
+            Collections.shuffle(keys, new Random(42));
+            FlatTagEditionModel model = fill();
+            Map<String, String> all = new HashMap<>(model.getAll());
+            for (String key : keys) {
+                if (!key.equals(all.remove(key))) {
+                    throw new IllegalStateException("Lost " + key + " putting keys out of order");
+                }
+            }
+            if (model.getTrackCount() != tracks || all.size() != model.getAll().size() - keys.size()) {
+                throw new IllegalStateException("Flat model holds " + model.getAll().size() + " keys");
+            }
+        }
+
+        private FlatTagEditionModel fill() {
+            FlatTagEditionModel model = new FlatTagEditionModel();
+            for (String key : keys) {
+                model.put(key, key);
+            }
+            return model;
+        }
+
+    }
+
+}
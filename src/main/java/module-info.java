@@ -18,8 +18,16 @@ module org.github.euphory {
     requires org.kordamp.ikonli.core;
     requires org.kordamp.ikonli.javafx;
     requires org.kordamp.ikonli.fontawesome5;
+    requires be.tarsos.dsp.core;
+    requires be.tarsos.dsp.jvm;
 
     opens org.github.euphory to javafx.fxml;
     exports org.github.euphory;
     exports org.github.euphory.tags;
+    exports org.github.euphory.analysis;
+    exports org.github.euphory.fingerprint;
+    exports org.github.euphory.cli;
+    exports org.github.euphory.library;
+    exports org.github.euphory.search;
+    exports org.github.euphory.cue;
 }
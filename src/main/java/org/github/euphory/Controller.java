@@ -9,33 +9,62 @@
  */
 package org.github.euphory;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 
-import javafx.beans.Observable;
 import javafx.beans.binding.Bindings;
+import javafx.beans.value.ChangeListener;
+import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.scene.canvas.Canvas;
-import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
+import javafx.scene.control.ButtonType;
 import javafx.scene.control.Control;
 import javafx.scene.control.Label;
+import javafx.scene.control.ProgressBar;
 import javafx.scene.control.Slider;
 import javafx.scene.control.TableView;
 import javafx.scene.control.TabPane;
 import javafx.scene.control.TextField;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.KeyCodeCombination;
+import javafx.scene.input.KeyCombination;
+import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.HBox;
-import javafx.scene.media.Media;
-import javafx.scene.paint.Color;
+import javafx.scene.layout.Pane;
 import javafx.util.Duration;
 
+import org.github.euphory.analysis.Boundary;
+import org.github.euphory.analysis.SeekIndex;
+import org.github.euphory.analysis.Spectrogram;
+import org.github.euphory.analysis.WaveformPyramid;
+import org.github.euphory.fingerprint.FingerprintIndex;
+import org.github.euphory.fingerprint.Match;
+import org.github.euphory.model.ChangeJournal;
+import org.github.euphory.model.MixDataViewModel;
 import org.github.euphory.model.Model;
 import org.github.euphory.model.TrackDataViewModel;
+import org.github.euphory.service.BoundaryService;
+import org.github.euphory.service.CoverService;
+import org.github.euphory.service.CueService;
 import org.github.euphory.service.FileService;
+import org.github.euphory.service.FingerprintService;
+import org.github.euphory.service.OpenService;
+import org.github.euphory.service.OpenedMedia;
 import org.github.euphory.service.PlayerService;
+import org.github.euphory.service.SeekIndexService;
+import org.github.euphory.service.SpectrogramService;
+import org.github.euphory.service.TagService;
+import org.github.euphory.service.WaveformService;
 import org.kordamp.ikonli.javafx.FontIcon;
 
 /**
@@ -44,8 +73,58 @@ import org.kordamp.ikonli.javafx.FontIcon;
  */
 public class Controller {
 
+    /**
+     * The closest, in seconds, a detected track can start to a track entered
+     * by hand or read from tags.
+     */
+    private static final int MIN_TRACK_DISTANCE = 20;
+
     private final PlayerService playerService;
 
+    private final WaveformService waveformService;
+
+    private final BoundaryService boundaryService;
+
+    private Task<List<Boundary>> boundaryTask;
+
+    private final FingerprintService fingerprintService;
+
+    private Task<List<Match>> fingerprintTask;
+
+    private final CueService cueService;
+
+    private final TagService tagService;
+
+    private final CoverService coverService;
+
+    private Task<Image> coverTask;
+
+    private final ChangeListener<byte[]> coverListener = (observable, oldValue, newValue) -> showCover(newValue);
+
+    private ChangeJournal journal;
+
+    private Task<Void> saveTask;
+
+    private final OpenService openService;
+
+    private Task<OpenedMedia> openTask;
+
+    private OpenedMedia applied;
+
+    private final SeekIndexService seekIndexService;
+
+    private Task<SeekIndex> seekIndexTask;
+
+    private Task<WaveformPyramid> waveformTask;
+
+    private WaveformPyramid waveform;
+
+    private final SpectrogramService spectrogramService;
+
+    private Task<Spectrogram> spectrogramTask;
+
+    private Spectrogram spectrogram;
+
     @FXML
     private Button openButton;
 
@@ -78,12 +157,30 @@ public class Controller {
 
     @FXML
     private Slider songSlider;
+
+    @FXML
+    private ProgressBar openProgress;
     
     @FXML
     private TabPane tabPane;
 
+    @FXML
+    private Pane waveformsPane;
+
     @FXML
     private Canvas waveFormsCanvas;
+
+    private WaveformRenderer waveformRenderer;
+
+    @FXML
+    private Pane spectrogramPane;
+
+    @FXML
+    private Canvas spectrogramCanvas;
+
+    private SpectrogramRenderer spectrogramRenderer;
+
+    private PlaybackClock clock;
     
     @FXML
     private ImageView coverImageView;
@@ -114,80 +211,444 @@ public class Controller {
 
     public Controller() {
         playerService = new PlayerService();
-        songSlider = new Slider();
+        waveformService = new WaveformService();
+        boundaryService = new BoundaryService();
+        fingerprintService = new FingerprintService();
+        cueService = new CueService();
+        tagService = new TagService();
+        coverService = new CoverService();
+        openService = new OpenService(tagService, coverService);
+        seekIndexService = new SeekIndexService();
+        spectrogramService = new SpectrogramService();
     }
     
+    @FXML
+    private void initialize() throws Exception {
+        clock = new PlaybackClock(songSlider, runTimeLabel, maxTimeLabel, playerService);
+        showCover(null);
+        setControlsEnabled(false);
+        // The canvas follows the pane without taking part in its layout
+        waveFormsCanvas.setManaged(false);
+        waveFormsCanvas.widthProperty().bind(waveformsPane.widthProperty());
+        waveFormsCanvas.heightProperty().bind(waveformsPane.heightProperty());
+        waveformRenderer = new WaveformRenderer(waveFormsCanvas, clock::getSeconds);
+        spectrogramCanvas.setManaged(false);
+        spectrogramCanvas.widthProperty().bind(spectrogramPane.widthProperty());
+        spectrogramCanvas.heightProperty().bind(spectrogramPane.heightProperty());
+        spectrogramRenderer = new SpectrogramRenderer(spectrogramCanvas, clock::getSeconds, spectrogramService);
+        tabPane.sceneProperty().addListener((observable, oldScene, scene) -> {
+            if (scene != null) {
+                scene.getAccelerators().put(new KeyCodeCombination(KeyCode.Z, KeyCombination.SHORTCUT_DOWN), this::undo);
+                scene.getAccelerators().put(new KeyCodeCombination(KeyCode.Y, KeyCombination.SHORTCUT_DOWN), this::redo);
+                scene.getAccelerators().put(new KeyCodeCombination(KeyCode.Z, KeyCombination.SHORTCUT_DOWN,
+                        KeyCombination.SHIFT_DOWN), this::redo);
+                scene.getAccelerators().put(new KeyCodeCombination(KeyCode.ESCAPE), this::cancelOpen);
+            }
+        });
+    }
+
+    @FXML
+    private void openButtonAction(ActionEvent actionEvent) {
+        File file = FileService.chooseMediaFile();
+        if (file != null) {
+            openFile(file);
+        }
+    }
+
     /**
-     * Sets up the listeners for the song slider to handle user interaction and updates to the player's current time.
+     * Opens a media file in the background. The mix shows up and can be
+     * edited as soon as the tags are read, the cover and the player follow,
+     * and a waveform analyzed before is loaded meanwhile.
      */
-    private void setupPlayerListeners() {
-        songSlider.valueChangingProperty().addListener((observable, wasChanging, isChanging) -> {
-            if (!isChanging) {
-                playerService.seek(Duration.seconds(songSlider.getValue()));
-                runTimeLabel.setText(Util.toFormattedTime(playerService.getCurrentTime()));
+    private void openFile(File file) {
+        cancelOpen();
+        if (waveformTask != null) {
+            waveformTask.cancel();
+            waveformTask = null;
+        }
+        if (boundaryTask != null) {
+            boundaryTask.cancel();
+            boundaryTask = null;
+        }
+        if (fingerprintTask != null) {
+            fingerprintTask.cancel();
+            fingerprintTask = null;
+        }
+        closeWaveform();
+        drawWaveform();
+        closeSpectrogram();
+        clock.setPlayer(null);
+        playerService.close();
+        if (journal != null) {
+            journal.close();
+            journal = null;
+            showDirty(false);
+        }
+        Model.setMediaFile(file);
+        applied = null;
+        Task<OpenedMedia> task = openService.open(file);
+        openTask = task;
+        openProgress.progressProperty().bind(task.progressProperty());
+        openProgress.setVisible(true);
+        task.valueProperty().addListener((observable, oldValue, newValue) -> {
+            if (task == openTask && newValue != null) {
+                applyOpened(newValue);
             }
         });
-        songSlider.valueProperty().addListener((observable, oldValue, newValue) -> {
-            if (!songSlider.isValueChanging()) {
-                double currentTime = playerService.getCurrentTime().toSeconds();
-                if (Math.abs(currentTime - newValue.doubleValue()) > 0.5) {
-                    playerService.seek(Duration.seconds(newValue.doubleValue()));
-                    runTimeLabel.setText(Util.toFormattedTime(playerService.getCurrentTime()));
-                }
+        task.setOnSucceeded(event -> endOpen(task));
+        task.setOnCancelled(event -> endOpen(task));
+        task.setOnFailed(event -> {
+            if (task == openTask) {
+                endOpen(task);
+                Main.showAlert(Alert.AlertType.ERROR, "Error", "The file could not be opened",
+                        task.getException().getMessage());
             }
         });
-        playerService.getMediaPlayer().setOnReady(() -> {
-            songSlider.setMin(0);
-            songSlider.setMax(playerService.getTotalDuration().toSeconds());
-            maxTimeLabel.setText(Util.toFormattedTime(playerService.getTotalDuration()));
+        showCachedWaveform(file);
+        loadSeekIndex(file);
+    }
+
+    /**
+     * Loads the seek index in the background, seeks land where the player
+     * estimates them until it is there.
+     */
+    private void loadSeekIndex(File file) {
+        if (seekIndexTask != null) {
+            seekIndexTask.cancel();
+        }
+        Task<SeekIndex> task = seekIndexService.load(file);
+        seekIndexTask = task;
+        task.valueProperty().addListener((observable, oldValue, newValue) -> {
+            if (task == seekIndexTask && newValue != null) {
+                playerService.setSeekIndex(newValue);
+                clock.refresh();
+            }
         });
-        playerService.getMediaPlayer().currentTimeProperty().addListener((Observable observable) -> {
-            if (!songSlider.isValueChanging()) { // Check if the user is not currently dragging the slider
-                songSlider.setValue(playerService.getCurrentTime().toSeconds());
-                runTimeLabel.setText(Util.toFormattedTime(playerService.getCurrentTime()));
+        task.setOnSucceeded(event -> {
+            if (task == seekIndexTask) {
+                seekIndexTask = null;
+            }
+        });
+        task.setOnFailed(event -> {
+            if (task == seekIndexTask) {
+                seekIndexTask = null;
+                // Playing still works, seeks just keep landing where the player estimates them
+                Main.showAlert(Alert.AlertType.WARNING, "Warning", "The file could not be indexed, seeking may be inexact",
+                        task.getException().getMessage());
             }
         });
     }
 
-    @FXML
-    private void initialize() throws Exception {
-        songSlider.setMin(0);
-        Image image = new Image("none.png");
-        coverImageView.setImage(image);
-        setControlsEnabled(false);
+    /**
+     * Shows what the open task has read since the last time, each stage
+     * once.
+     */
+    private void applyOpened(OpenedMedia opened) {
+        OpenedMedia.Stage done = applied != null ? applied.getStage() : null;
+        applied = opened;
+        if (opened.isReached(OpenedMedia.Stage.TAGS_READ) && isBefore(done, OpenedMedia.Stage.TAGS_READ)) {
+            showMix(opened.getMix());
+        }
+        if (opened.isReached(OpenedMedia.Stage.COVER_READ) && isBefore(done, OpenedMedia.Stage.COVER_READ)) {
+            MixDataViewModel mix = opened.getMix();
+            // The user may have chosen a cover already, that one wins
+            if (mix.coverDataProperty().get() == null && opened.getCover() != null) {
+                journal.ignore(() -> mix.coverDataProperty().set(opened.getCover()));
+            }
+        }
+        if (opened.isReached(OpenedMedia.Stage.PLAYER_READY) && isBefore(done, OpenedMedia.Stage.PLAYER_READY)) {
+            playerService.setMediaPlayer(opened.getPlayer());
+            clock.setPlayer(opened.getPlayer());
+        }
     }
 
-    @FXML
-    private void openButtonAction(ActionEvent actionEvent) {
-        Media media = FileService.openMediaFile();
-        if (media == null) {
+    private static boolean isBefore(OpenedMedia.Stage done, OpenedMedia.Stage stage) {
+        return done == null || done.compareTo(stage) < 0;
+    }
+
+    private void showMix(MixDataViewModel mix) {
+        MixDataViewModel oldMix = Model.getCurrentMix();
+        Bindings.unbindBidirectional(mixAuthor.textProperty(), oldMix.mixAuthorProperty());
+        Bindings.unbindBidirectional(mixName.textProperty(), oldMix.mixNameProperty());
+        Bindings.unbindBidirectional(mixDate.textProperty(), oldMix.mixDateProperty());
+        Bindings.unbindBidirectional(mixEpisode.textProperty(), oldMix.mixEpisodeProperty());
+        oldMix.coverDataProperty().removeListener(coverListener);
+        Model.setCurrentMix(mix);
+        appendFileNameToTitle(Model.getFileName());
+        setupModelUIBindings();
+        setupChangeListeners();
+        showCover(mix.coverDataProperty().get());
+        setControlsEnabled(true);
+    }
+
+    private void endOpen(Task<OpenedMedia> task) {
+        if (task != openTask) {
             return;
-        } else {
-            playerService.setMedia(media);
-            appendFileNameToTitle(Model.getFileName());
-            setupPlayerListeners();
-            // playerService.loadMetaData();
-            setupModelUIBindings();
-            setupChangeListeners();
         }
+        openTask = null;
+        openProgress.progressProperty().unbind();
+        openProgress.setVisible(false);
+    }
+
+    private void cancelOpen() {
+        if (openTask != null) {
+            Task<OpenedMedia> task = openTask;
+            endOpen(task);
+            task.cancel();
+        }
+    }
+
+    /**
+     * Shows the waveform of a file analyzed before, straight from the
+     * analysis cache.
+     */
+    private void showCachedWaveform(File file) {
+        Task<WaveformPyramid> task = waveformService.loadCached(file);
+        waveformTask = task;
+        task.setOnSucceeded(event -> {
+            if (task != waveformTask) {
+                if (task.getValue() != null) {
+                    closeQuietly(task.getValue());
+                }
+                return;
+            }
+            waveform = task.getValue();
+            drawWaveform();
+        });
+        task.setOnFailed(event -> {
+            if (task == waveformTask) {
+                Main.showAlert(Alert.AlertType.WARNING, "Warning", "The cached waveform could not be read, analyze the file again",
+                        task.getException().getMessage());
+            }
+        });
     }
     
+    /**
+     * Decodes a cover in the background, at the size it is shown at.
+     */
+    private void showCover(byte[] cover) {
+        if (coverTask != null) {
+            coverTask.cancel();
+            coverTask = null;
+        }
+        if (cover == null) {
+            coverImageView.setImage(new Image("none.png"));
+            Model.getCurrentMix().coverImageProperty().set(null);
+            return;
+        }
+        double scale = Main.getStage() != null ? Main.getStage().getOutputScaleX() : 1;
+        Task<Image> task = coverService.decode(cover, coverImageView.getFitWidth() * scale,
+                coverImageView.getFitHeight() * scale);
+        coverTask = task;
+        task.setOnSucceeded(event -> {
+            if (task != coverTask) {
+                return;
+            }
+            coverTask = null;
+            Image image = task.getValue();
+            coverImageView.setImage(image != null ? image : new Image("none.png"));
+            Model.getCurrentMix().coverImageProperty().set(image);
+        });
+        task.setOnFailed(event -> {
+            if (task != coverTask) {
+                return;
+            }
+            coverTask = null;
+            coverImageView.setImage(new Image("none.png"));
+            Model.getCurrentMix().coverImageProperty().set(null);
+            Main.showAlert(Alert.AlertType.ERROR, "Error", "The cover could not be shown",
+                    task.getException().getMessage());
+        });
+    }
+
+    @FXML
+    private void coverClickedAction(MouseEvent mouseEvent) {
+        File file = Model.getMediaFile();
+        if (file == null) {
+            return;
+        }
+        File imageFile = FileService.chooseCoverFile(file);
+        if (imageFile == null) {
+            return;
+        }
+        try {
+            Model.getCurrentMix().coverDataProperty().set(Files.readAllBytes(imageFile.toPath()));
+        } catch (IOException e) {
+            Main.showAlert(Alert.AlertType.ERROR, "Error", "The image could not be read", e.getMessage());
+        }
+    }
+
     @FXML
     private void analyzeButtonAction(ActionEvent actionEvent) {
         File file = Model.getMediaFile();
         if (file != null) {
-            GraphicsContext gc = waveFormsCanvas.getGraphicsContext2D();
-            gc.setFill(Color.BLUE);
-            gc.fillRect(50, 50, 100, 100); // Draw a blue rectangle on the canvas
+            analyzeWaveform(file);
         } else {
             Main.showAlert(Alert.AlertType.INFORMATION, "Info", "Open a media file first", "");
         }
     }
+
+    /**
+     * Computes the waveform in the background, drawing it as it grows.
+     */
+    private void analyzeWaveform(File file) {
+        if (waveformTask != null) {
+            waveformTask.cancel();
+        }
+        closeWaveform();
+        double duration = playerService.getTotalDuration().toSeconds();
+        Task<WaveformPyramid> task = waveformService.analyze(file, Double.isNaN(duration) ? 0 : duration);
+        waveformTask = task;
+        task.valueProperty().addListener((observable, oldValue, newValue) -> {
+            if (task != waveformTask) {
+                // A replaced analysis that still finished owns its samples
+                if (newValue != null && newValue.isComplete()) {
+                    closeQuietly(newValue);
+                }
+                return;
+            }
+            waveform = newValue;
+            drawWaveform();
+        });
+        task.setOnFailed(event -> {
+            if (task == waveformTask) {
+                Main.showAlert(Alert.AlertType.ERROR, "Error", "The waveform could not be computed",
+                        task.getException().getMessage());
+            }
+        });
+        openSpectrogram(file);
+    }
+
+    /**
+     * Opens the spectrogram in the background, from the samples the waveform
+     * analysis decodes meanwhile.
+     */
+    private void openSpectrogram(File file) {
+        closeSpectrogram();
+        Task<Spectrogram> task = spectrogramService.open(file);
+        spectrogramTask = task;
+        task.setOnSucceeded(event -> {
+            if (task != spectrogramTask) {
+                closeQuietly(task.getValue());
+                return;
+            }
+            spectrogramTask = null;
+            spectrogram = task.getValue();
+            spectrogramRenderer.setSpectrogram(spectrogram, playerService.getTotalDuration().toSeconds());
+        });
+        task.setOnFailed(event -> {
+            if (task == spectrogramTask) {
+                spectrogramTask = null;
+                Main.showAlert(Alert.AlertType.ERROR, "Error", "The spectrogram could not be computed",
+                        task.getException().getMessage());
+            }
+        });
+    }
+
+    private void closeSpectrogram() {
+        if (spectrogramTask != null) {
+            spectrogramTask.cancel();
+            spectrogramTask = null;
+        }
+        spectrogramRenderer.setSpectrogram(null, 0);
+        if (spectrogram != null) {
+            closeQuietly(spectrogram);
+            spectrogram = null;
+        }
+    }
+
+    @FXML
+    private void detectButtonAction(ActionEvent actionEvent) {
+        File file = Model.getMediaFile();
+        if (file == null) {
+            Main.showAlert(Alert.AlertType.INFORMATION, "Info", "Open a media file first", "");
+            return;
+        }
+        if (boundaryTask != null) {
+            boundaryTask.cancel();
+        }
+        double duration = playerService.getTotalDuration().toSeconds();
+        Task<List<Boundary>> task = boundaryService.detect(file, Double.isNaN(duration) ? 0 : duration);
+        boundaryTask = task;
+        task.setOnSucceeded(event -> {
+            if (task != boundaryTask) {
+                return;
+            }
+            boundaryTask = null;
+            Model.getCurrentMix().setDetectedTracks(BoundaryService.toTracks(task.getValue()), MIN_TRACK_DISTANCE);
+        });
+        task.setOnFailed(event -> {
+            if (task == boundaryTask) {
+                boundaryTask = null;
+                Main.showAlert(Alert.AlertType.ERROR, "Error", "The tracks could not be detected",
+                        task.getException().getMessage());
+            }
+        });
+    }
+
+    @FXML
+    private void identifyButtonAction(ActionEvent actionEvent) {
+        File file = Model.getMediaFile();
+        if (file == null) {
+            Main.showAlert(Alert.AlertType.INFORMATION, "Info", "Open a media file first", "");
+            return;
+        }
+        if (!fingerprintService.isIndexAvailable()) {
+            Main.showAlert(Alert.AlertType.INFORMATION, "Info", "There is no fingerprint index",
+                    "Build one from your collection to " + FingerprintIndex.getDefaultPath());
+            return;
+        }
+        if (fingerprintTask != null) {
+            fingerprintTask.cancel();
+        }
+        // The matches belong to the tracks as they are now
+        List<TrackDataViewModel> tracks = new ArrayList<>(Model.getCurrentMix().getMixTracks());
+        tracks.sort(Comparator.comparingInt(track -> track.startTimeProperty().get()));
+        double duration = playerService.getTotalDuration().toSeconds();
+        Task<List<Match>> task = fingerprintService.identify(file, FingerprintService.toStartTimes(tracks),
+                Double.isNaN(duration) ? 0 : duration);
+        fingerprintTask = task;
+        task.setOnSucceeded(event -> {
+            if (task != fingerprintTask) {
+                return;
+            }
+            fingerprintTask = null;
+            FingerprintService.applyMatches(tracks, task.getValue());
+        });
+        task.setOnFailed(event -> {
+            if (task == fingerprintTask) {
+                fingerprintTask = null;
+                Main.showAlert(Alert.AlertType.ERROR, "Error", "The tracks could not be identified",
+                        task.getException().getMessage());
+            }
+        });
+    }
+
+    /**
+     * Shows the current waveform, or clears the canvas if there is none.
+     */
+    private void drawWaveform() {
+        waveformRenderer.setWaveform(waveform, playerService.getTotalDuration().toSeconds());
+    }
+
+    private void closeWaveform() {
+        if (waveform != null) {
+            closeQuietly(waveform);
+            waveform = null;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
     
     @FXML
     private void rewindButtonAction(ActionEvent actionEvent) {
-        playerService.seek(Duration.seconds(songSlider.getValue() - 5));
-        runTimeLabel.setText(Util.toFormattedTime(playerService.getCurrentTime()));
+        clock.seek(clock.getSeconds() - 5);
     }
 
     @FXML
@@ -207,31 +668,98 @@ public class Controller {
 
     @FXML
     private void forwardButtonAction(ActionEvent actionEvent) {
-        playerService.seek(Duration.seconds(songSlider.getValue() + 5));
-        runTimeLabel.setText(Util.toFormattedTime(playerService.getCurrentTime()));
+        clock.seek(clock.getSeconds() + 5);
     }
 
     @FXML
     private void saveButtonAction(ActionEvent actionEvent) {
         saveAll();
-        onContentSaved();
     }
     
+    /**
+     * Writes what changed since the last save, as told by the journal, off
+     * the JavaFX application thread. The edits made while the file is
+     * written stay unsaved.
+     */
     private void saveAll() {
-        
+        File file = Model.getMediaFile();
+        if (file == null || journal == null || !journal.isDirty() || saveTask != null) {
+            return;
+        }
+        double duration = playerService.getTotalDuration().toSeconds();
+        ChangeJournal saved = journal;
+        Object savePoint = saved.getSavePoint();
+        Task<Void> task = tagService.save(file.getPath(), Model.getCurrentMix(), saved.getDirtyFields(),
+                Double.isNaN(duration) ? 0 : (long) (duration * 1000));
+        saveTask = task;
+        task.setOnSucceeded(event -> {
+            saveTask = null;
+            if (saved == journal) {
+                saved.markSaved(savePoint);
+            }
+        });
+        task.setOnFailed(event -> {
+            saveTask = null;
+            Main.showAlert(Alert.AlertType.ERROR, "Error", "The changes could not be saved",
+                    task.getException().getMessage());
+        });
     }
-    
-    private void onContentEdited() {
-        saveIcon.getStyleClass().add("font-icon-red");
+
+    private void undo() {
+        if (journal != null) {
+            journal.undo();
+        }
     }
 
-    private void onContentSaved() {
+    private void redo() {
+        if (journal != null) {
+            journal.redo();
+        }
+    }
+
+    private void showDirty(boolean dirty) {
         saveIcon.getStyleClass().remove("font-icon-red");
+        if (dirty) {
+            saveIcon.getStyleClass().add("font-icon-red");
+        }
     }
 
     @FXML
     private void cueButtonAction(ActionEvent actionEvent) {
-        //
+        File file = Model.getMediaFile();
+        if (file == null) {
+            Main.showAlert(Alert.AlertType.INFORMATION, "Info", "Open a media file first", "");
+            return;
+        }
+        ButtonType importButton = new ButtonType("Import");
+        ButtonType exportButton = new ButtonType("Export");
+        Alert alert = new Alert(Alert.AlertType.CONFIRMATION, "", importButton, exportButton, ButtonType.CANCEL);
+        alert.setTitle("CUE Sheet");
+        alert.setHeaderText("Import the tracks from a CUE sheet, or export them to one?");
+        alert.setContentText("Importing replaces the tracks of the mix.");
+        alert.initOwner(Main.getStage());
+        ButtonType choice = alert.showAndWait().orElse(ButtonType.CANCEL);
+        if (choice == importButton) {
+            File cueFile = FileService.chooseCueFile(file, false);
+            if (cueFile == null) {
+                return;
+            }
+            try {
+                cueService.importCue(cueFile, Model.getCurrentMix());
+            } catch (IOException e) {
+                Main.showAlert(Alert.AlertType.ERROR, "Error", "The CUE sheet could not be read", e.getMessage());
+            }
+        } else if (choice == exportButton) {
+            File cueFile = FileService.chooseCueFile(file, true);
+            if (cueFile == null) {
+                return;
+            }
+            try {
+                cueService.exportCue(cueFile, Model.getCurrentMix(), file);
+            } catch (IOException e) {
+                Main.showAlert(Alert.AlertType.ERROR, "Error", "The CUE sheet could not be written", e.getMessage());
+            }
+        }
     }
 
     @FXML
@@ -268,24 +796,22 @@ public class Controller {
         Bindings.bindBidirectional(mixName.textProperty(), Model.getCurrentMix().mixNameProperty());
         Bindings.bindBidirectional(mixDate.textProperty(), Model.getCurrentMix().mixDateProperty());
         Bindings.bindBidirectional(mixEpisode.textProperty(), Model.getCurrentMix().mixEpisodeProperty());
-        // Bindings.bindContentBidirectional(dataTableView.getItems(), viewModel.getAlbumTracks());
-        // Bindings.bindBidirectional(coverImageView.imageProperty(), viewModel.coverImageProperty());
+        dataTableView.setItems(Model.getCurrentMix().getMixTracks());
+        Model.getCurrentMix().coverDataProperty().removeListener(coverListener);
+        Model.getCurrentMix().coverDataProperty().addListener(coverListener);
     }
 
+    /**
+     * Starts a new journal for the mix just opened, the edits of the last
+     * one are forgotten.
+     */
     private void setupChangeListeners() {
-
-        coverImageView.imageProperty().addListener((observable, oldValue, newValue) -> onContentEdited());
-
-        mixAuthor.textProperty().addListener((observable, oldValue, newValue) -> onContentEdited());
-        mixName.textProperty().addListener((observable, oldValue, newValue) -> onContentEdited());
-        mixDate.textProperty().addListener((observable, oldValue, newValue) -> onContentEdited());
-        mixEpisode.textProperty().addListener((observable, oldValue, newValue) -> onContentEdited());
-
-        trackArtist.textProperty().addListener((observable, oldValue, newValue) -> onContentEdited());
-        trackTitle.textProperty().addListener((observable, oldValue, newValue) -> onContentEdited());
-        trackNumber.textProperty().addListener((observable, oldValue, newValue) -> onContentEdited());
-        startTime.textProperty().addListener((observable, oldValue, newValue) -> onContentEdited());
-
+        if (journal != null) {
+            journal.close();
+        }
+        journal = new ChangeJournal(Model.getCurrentMix());
+        journal.dirtyProperty().addListener((observable, wasDirty, isDirty) -> showDirty(isDirty));
+        showDirty(false);
     }
 
     public static void appendFileNameToTitle(String fileName) {
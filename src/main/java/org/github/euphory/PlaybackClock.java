@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory;
+
+import javafx.animation.AnimationTimer;
+import javafx.beans.InvalidationListener;
+import javafx.scene.control.Label;
+import javafx.scene.control.Slider;
+import javafx.scene.media.MediaPlayer;
+import javafx.util.Duration;
+
+import org.github.euphory.service.PlayerService;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Shows the playback time on the song slider and the time labels. The player
+ * is sampled once per pulse by an animation timer, and only while it plays,
+ * instead of listening to every time change it reports. The labels are only
+ * set when the second shown changes, formatted into a reused buffer, and the
+ * slider is only moved when its thumb would move. Moves of the slider made
+ * by the clock are told apart from the user's, so they never seek.
+ */
+public final class PlaybackClock {
+
+    /**
+     * Pulses sampled after the player changes state, to catch up with a stop
+     * or a seek reported late.
+     */
+    private static final int SETTLE_PULSES = 10;
+
+    /**
+     * The time a seek is given to show in the player time, in nanoseconds.
+     */
+    private static final long SEEK_NANOS = 250_000_000L;
+
+    /**
+     * Slider moves closer than this to the time shown are not seeks, in seconds.
+     */
+    private static final double SEEK_TOLERANCE = 0.5;
+
+    private final Slider slider;
+    private final Label timeLabel;
+    private final Label durationLabel;
+    private final PlayerService playerService;
+    private final char[] text = new char[Util.MAX_TIME_LENGTH];
+    private final AnimationTimer timer = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            pulse(now);
+        }
+    };
+    private final InvalidationListener statusListener = observable -> settlePulses = SETTLE_PULSES;
+    private final InvalidationListener durationListener = observable -> showDuration();
+
+    private MediaPlayer player;
+    private double seconds = Double.NaN;
+    private double durationSeconds;
+    private long shownSecond = -1;
+    private long shownDuration = -1;
+    private int settlePulses;
+    private double seekTarget = Double.NaN;
+    private long seekTime;
+    private boolean moving;
+
+    /**
+     * Creates a clock for a slider and its labels.
+     *
+     * @param slider        The song slider, in seconds.
+     * @param timeLabel     The label of the current time.
+     * @param durationLabel The label of the media duration.
+     * @param playerService Seeks the player and corrects its time.
+     */
+    public PlaybackClock(Slider slider, Label timeLabel, Label durationLabel, PlayerService playerService) {
+        this.slider = slider;
+        this.timeLabel = timeLabel;
+        this.durationLabel = durationLabel;
+        this.playerService = playerService;
+        slider.setMin(0);
+        slider.valueChangingProperty().addListener((observable, wasChanging, isChanging) -> {
+            if (!isChanging) {
+                seek(slider.getValue());
+            }
+        });
+        slider.valueProperty().addListener((observable, oldValue, newValue) -> {
+            if (moving) {
+                return;
+            }
+            if (slider.isValueChanging()) {
+                // Dragging only shows where playback would go
+                showTime(newValue.doubleValue());
+            } else {
+                seek(newValue.doubleValue());
+            }
+        });
+    }
+
+    /**
+     * Starts following a player, or stops when there is none.
+     *
+     * @param player The player, ready or not.
+     */
+    public void setPlayer(MediaPlayer player) {
+        if (this.player != null) {
+            this.player.statusProperty().removeListener(statusListener);
+            this.player.totalDurationProperty().removeListener(durationListener);
+        }
+        this.player = player;
+        seekTarget = Double.NaN;
+        shownSecond = -1;
+        shownDuration = -1;
+        if (player == null) {
+            timer.stop();
+            seconds = Double.NaN;
+            durationSeconds = 0;
+            moveSlider(0);
+            showTime(0);
+            showDuration();
+            return;
+        }
+        seconds = 0;
+        player.statusProperty().addListener(statusListener);
+        player.totalDurationProperty().addListener(durationListener);
+        showDuration();
+        moveSlider(0);
+        showTime(0);
+        settlePulses = SETTLE_PULSES;
+        timer.start();
+    }
+
+    /**
+     * Shows the duration again and catches up with the player time, after
+     * the player service changed how it tells them.
+     */
+    public void refresh() {
+        if (player != null) {
+            showDuration();
+            settlePulses = SETTLE_PULSES;
+        }
+    }
+
+    /**
+     * @return The playback time in seconds as of the last pulse, NaN if there
+     *         is no player.
+     */
+    public double getSeconds() {
+        return seconds;
+    }
+
+    /**
+     * Seeks the player, unless it already is close to the time.
+     *
+     * @param target The time in seconds, kept within the media.
+     */
+    public void seek(double target) {
+        if (player == null) {
+            return;
+        }
+        if (durationSeconds > 0) {
+            target = Math.min(target, durationSeconds);
+        }
+        target = Math.max(0, target);
+        if (Math.abs(target - seconds) <= SEEK_TOLERANCE) {
+            return;
+        }
+        playerService.seek(target);
+        seconds = target;
+        seekTarget = target;
+        seekTime = System.nanoTime();
+        settlePulses = SETTLE_PULSES;
+        if (!slider.isValueChanging()) {
+            moveSlider(target);
+        }
+        showTime(target);
+    }
+
+    private void pulse(long now) {
+        if (player.getStatus() != MediaPlayer.Status.PLAYING) {
+            if (settlePulses == 0) {
+                return;
+            }
+            settlePulses--;
+        }
+        double time = playerService.getCurrentSeconds();
+        if (!Double.isNaN(seekTarget)) {
+            // The player may go on reporting the time before the seek for a while
+            if (Math.abs(time - seekTarget) > 1 && now - seekTime < SEEK_NANOS) {
+                return;
+            }
+            seekTarget = Double.NaN;
+        }
+        if (Double.isNaN(time) || time == seconds) {
+            return;
+        }
+        seconds = time;
+        if (!slider.isValueChanging()) {
+            moveSlider(time);
+            showTime(time);
+        }
+    }
+
+    /**
+     * Moves the slider thumb, when it would move at least one pixel.
+     */
+    private void moveSlider(double time) {
+        double range = slider.getMax() - slider.getMin();
+        double step = range / Math.max(1, slider.getWidth());
+        if (Math.abs(slider.getValue() - time) < step) {
+            return;
+        }
+        moving = true;
+        try {
+            slider.setValue(time);
+        } finally {
+            moving = false;
+        }
+    }
+
+    private void showTime(double time) {
+        long second = (long) time;
+        if (second != shownSecond) {
+            shownSecond = second;
+            timeLabel.setText(new String(text, 0, Util.formatTime(second, text)));
+        }
+    }
+
+    private void showDuration() {
+        Duration duration = player != null ? playerService.getTotalDuration() : null;
+        double total = duration != null ? duration.toSeconds() : 0;
+        durationSeconds = Double.isNaN(total) || Double.isInfinite(total) ? 0 : total;
+        moving = true;
+        try {
+            slider.setMax(durationSeconds);
+        } finally {
+            moving = false;
+        }
+        long second = (long) durationSeconds;
+        if (second != shownDuration) {
+            shownDuration = second;
+            durationLabel.setText(new String(text, 0, Util.formatTime(second, text)));
+        }
+    }
+
+}
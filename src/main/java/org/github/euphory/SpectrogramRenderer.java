@@ -0,0 +1,396 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.DoubleSupplier;
+
+import javafx.animation.AnimationTimer;
+import javafx.concurrent.Task;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.input.ScrollEvent;
+import javafx.scene.paint.Color;
+
+import org.github.euphory.analysis.Spectrogram;
+import org.github.euphory.service.SpectrogramService;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Draws a spectrogram on a canvas, only the part in view, the same way the
+ * waveform renderer draws a waveform. Tiles of quantized levels are computed
+ * in the background for the tiles in view, tasks for tiles scrolled away
+ * before they start are cancelled, and both the levels and the images
+ * rendered from them are kept in bounded LRUs, so the memory used does not
+ * depend on the length of the mix. Zoom goes by powers of two samples per
+ * pixel, low frequencies at the bottom.
+ */
+public final class SpectrogramRenderer {
+
+    private static final int TILE_WIDTH = Spectrogram.TILE_WIDTH;
+    private static final int MAX_TILES = 64;
+
+    /**
+     * Levels kept for tiles that are not rendered, 64 KB each.
+     */
+    private static final int MAX_LEVELS = 256;
+
+    private static final int MIN_ZOOM = 6;
+    private static final int MAX_ZOOM = 30;
+
+    private static final int[] PALETTE = createPalette();
+    private static final Color PLAYHEAD_COLOR = Color.WHITE;
+
+    private final Canvas canvas;
+    private final DoubleSupplier playheadSeconds;
+    private final SpectrogramService spectrogramService;
+    private final Map<Long, WritableImage> tiles = new LinkedHashMap<>(MAX_TILES * 2, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, WritableImage> eldest) {
+            if (size() > MAX_TILES) {
+                spareImage = eldest.getValue();
+                return true;
+            }
+            return false;
+        }
+    };
+    private final Map<Long, byte[]> levels = new LinkedHashMap<>(MAX_LEVELS * 2, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+            return size() > MAX_LEVELS;
+        }
+    };
+    private final Map<Long, Task<byte[]>> pending = new HashMap<>();
+    private final Set<Long> visible = new HashSet<>();
+    private final AnimationTimer timer = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            pulse();
+        }
+    };
+
+    private Spectrogram spectrogram;
+    private double durationSeconds;
+    private int zoom = MAX_ZOOM;
+    private long scroll;
+    private boolean fitted;
+    private int tileHeight;
+    private int[] bandOfRow = new int[0];
+    private WritableImage spareImage;
+    private int[] pixels = new int[0];
+
+    private boolean dirty = true;
+    private int playheadX = -1;
+    private double dragX;
+
+    /**
+     * Creates a renderer for a canvas and starts repainting it on every pulse.
+     *
+     * @param canvas             The canvas to draw on, sized by its parent.
+     * @param playheadSeconds    The current playback time, polled once per pulse.
+     * @param spectrogramService The service tiles are computed by.
+     */
+    public SpectrogramRenderer(Canvas canvas, DoubleSupplier playheadSeconds, SpectrogramService spectrogramService) {
+        this.canvas = canvas;
+        this.playheadSeconds = playheadSeconds;
+        this.spectrogramService = spectrogramService;
+        canvas.widthProperty().addListener((observable, oldValue, newValue) -> invalidate());
+        canvas.heightProperty().addListener((observable, oldValue, newValue) -> invalidate());
+        canvas.setOnScroll(this::onScroll);
+        canvas.setOnMousePressed(event -> dragX = event.getX());
+        canvas.setOnMouseDragged(this::onMouseDragged);
+        timer.start();
+    }
+
+    /**
+     * Shows a spectrogram, resetting the view to fit the whole duration.
+     *
+     * @param spectrogram     The spectrogram, or null to clear the canvas.
+     * @param durationSeconds The media duration, 0 if unknown.
+     */
+    public void setSpectrogram(Spectrogram spectrogram, double durationSeconds) {
+        for (Task<byte[]> task : pending.values()) {
+            task.cancel();
+        }
+        pending.clear();
+        levels.clear();
+        tiles.clear();
+        fitted = false;
+        this.spectrogram = spectrogram;
+        this.durationSeconds = Double.isNaN(durationSeconds) ? 0 : durationSeconds;
+        invalidate();
+    }
+
+    /**
+     * Marks the whole canvas for a redraw on the next pulse.
+     */
+    public void invalidate() {
+        dirty = true;
+    }
+
+    private void pulse() {
+        int width = (int) canvas.getWidth();
+        int height = (int) canvas.getHeight();
+        if (height != tileHeight) {
+            tiles.clear();
+            spareImage = null;
+            tileHeight = height;
+            bandOfRow = new int[Math.max(0, height)];
+            for (int y = 0; y < height; y++) {
+                bandOfRow[y] = Math.min(Spectrogram.BANDS - 1, (height - 1 - y) * Spectrogram.BANDS / height);
+            }
+            dirty = true;
+        }
+        if (spectrogram != null && !fitted && width > 0) {
+            fitToWidth(width);
+        }
+        int x = spectrogram != null ? toPlayheadX() : -1;
+        if (x != playheadX && !dirty && playheadX >= 0 && playheadX < width && x >= width) {
+            // Page forward when playback leaves the view
+            scroll += x;
+            x = 0;
+            dirty = true;
+        }
+        GraphicsContext gc = canvas.getGraphicsContext2D();
+        if (dirty) {
+            dirty = false;
+            playheadX = x;
+            visible.clear();
+            drawColumns(gc, 0, width, height);
+            cancelHidden();
+            drawPlayhead(gc, height);
+        } else if (x != playheadX) {
+            drawColumns(gc, playheadX - 1, playheadX + 2, height);
+            playheadX = x;
+            drawPlayhead(gc, height);
+        }
+    }
+
+    private int toPlayheadX() {
+        double seconds = playheadSeconds.getAsDouble();
+        if (Double.isNaN(seconds)) {
+            return -1;
+        }
+        long column = (long) (seconds * spectrogram.getSampleRate()) >> zoom;
+        return (int) Math.max(-1, Math.min(Integer.MAX_VALUE, column - scroll));
+    }
+
+    private void drawPlayhead(GraphicsContext gc, int height) {
+        if (playheadX >= 0 && playheadX < canvas.getWidth()) {
+            gc.setStroke(PLAYHEAD_COLOR);
+            gc.strokeLine(playheadX + 0.5, 0, playheadX + 0.5, height);
+        }
+    }
+
+    /**
+     * Repaints a strip of canvas columns from the tiles that cover it, asking
+     * for the tiles not computed yet.
+     */
+    private void drawColumns(GraphicsContext gc, int from, int to, int height) {
+        from = Math.max(0, from);
+        to = Math.min(to, (int) canvas.getWidth());
+        if (from >= to) {
+            return;
+        }
+        gc.clearRect(from, 0, to - from, height);
+        if (spectrogram == null || height < 1) {
+            return;
+        }
+        long lastColumn = (getTotalSamples() - 1) >> zoom;
+        long column = scroll + from;
+        long end = Math.min(scroll + to, lastColumn + 1);
+        while (column < end) {
+            long index = Math.floorDiv(column, TILE_WIDTH);
+            int offset = (int) (column - index * TILE_WIDTH);
+            int length = (int) Math.min(TILE_WIDTH - offset, end - column);
+            if (index >= 0) {
+                long key = ((long) zoom << 48) | index;
+                visible.add(key);
+                WritableImage image = getTile(key, index, height);
+                if (image != null) {
+                    gc.drawImage(image, offset, 0, length, height, column - scroll, 0, length, height);
+                }
+            }
+            column += length;
+        }
+    }
+
+    /**
+     * Gets the image of a tile, rendering it from its levels, or null while
+     * its levels are computed.
+     */
+    private WritableImage getTile(long key, long index, int height) {
+        WritableImage image = tiles.get(key);
+        if (image != null) {
+            return image;
+        }
+        byte[] tile = levels.get(key);
+        if (tile == null) {
+            requestLevels(key, index);
+            return null;
+        }
+        image = renderTile(tile, height);
+        tiles.put(key, image);
+        return image;
+    }
+
+    private void requestLevels(long key, long index) {
+        if (pending.containsKey(key)) {
+            return;
+        }
+        Spectrogram shown = spectrogram;
+        Task<byte[]> task = spectrogramService.computeTile(shown, zoom, index);
+        pending.put(key, task);
+        task.setOnSucceeded(event -> {
+            if (pending.get(key) != task) {
+                return;
+            }
+            pending.remove(key);
+            if (spectrogram == shown) {
+                levels.put(key, task.getValue());
+                invalidate();
+            }
+        });
+        task.setOnFailed(event -> {
+            if (pending.get(key) == task) {
+                pending.remove(key);
+            }
+            task.getException().printStackTrace();
+        });
+    }
+
+    /**
+     * Cancels the tasks of the tiles that were not drawn, most of them have
+     * not started yet.
+     */
+    private void cancelHidden() {
+        Iterator<Map.Entry<Long, Task<byte[]>>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, Task<byte[]>> entry = iterator.next();
+            if (!visible.contains(entry.getKey())) {
+                entry.getValue().cancel();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Renders the levels of a tile into an image through the palette.
+     */
+    private WritableImage renderTile(byte[] tile, int height) {
+        if (pixels.length != TILE_WIDTH * height) {
+            pixels = new int[TILE_WIDTH * height];
+        }
+        for (int y = 0; y < height; y++) {
+            int band = bandOfRow[y];
+            int row = y * TILE_WIDTH;
+            for (int x = 0; x < TILE_WIDTH; x++) {
+                pixels[row + x] = PALETTE[tile[x * Spectrogram.BANDS + band] & 0xff];
+            }
+        }
+        WritableImage image = spareImage != null ? spareImage : new WritableImage(TILE_WIDTH, height);
+        spareImage = null;
+        image.getPixelWriter().setPixels(0, 0, TILE_WIDTH, height, PixelFormat.getIntArgbInstance(), pixels, 0, TILE_WIDTH);
+        return image;
+    }
+
+    private long getTotalSamples() {
+        return Math.max(1, Math.max(spectrogram.getSampleCount(), (long) (durationSeconds * spectrogram.getSampleRate())));
+    }
+
+    private void fitToWidth(int width) {
+        int fit = 64 - Long.numberOfLeadingZeros((getTotalSamples() - 1) / width);
+        zoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, fit));
+        scroll = 0;
+        fitted = true;
+    }
+
+    /**
+     * Zooms by one power of two, keeping the sample under a column in place.
+     *
+     * @param in     True to zoom in, false to zoom out.
+     * @param anchor The canvas column to keep in place.
+     */
+    public void zoom(boolean in, double anchor) {
+        int newZoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom + (in ? -1 : 1)));
+        if (spectrogram == null || newZoom == zoom) {
+            return;
+        }
+        long anchorSample = (scroll + (long) anchor) << zoom;
+        zoom = newZoom;
+        scrollTo((anchorSample >> zoom) - (long) anchor);
+        invalidate();
+    }
+
+    /**
+     * Scrolls the view, keeping at least one column of spectrogram in it.
+     *
+     * @param column The spectrogram column drawn at the left edge of the canvas.
+     */
+    public void scrollTo(long column) {
+        if (spectrogram == null) {
+            return;
+        }
+        long lastColumn = (getTotalSamples() - 1) >> zoom;
+        long newScroll = Math.max(0, Math.min(column, lastColumn));
+        if (newScroll != scroll) {
+            scroll = newScroll;
+            invalidate();
+        }
+    }
+
+    private void onScroll(ScrollEvent event) {
+        if (event.getDeltaY() != 0 && !event.isShiftDown()) {
+            zoom(event.getDeltaY() > 0, event.getX());
+        } else {
+            double delta = event.getDeltaX() != 0 ? event.getDeltaX() : event.getDeltaY();
+            scrollTo(scroll - (long) delta);
+        }
+        event.consume();
+    }
+
+    private void onMouseDragged(MouseEvent event) {
+        long delta = (long) (event.getX() - dragX);
+        if (delta != 0) {
+            scrollTo(scroll - delta);
+            dragX += delta;
+        }
+    }
+
+    /**
+     * A black to white ramp through blue, magenta, red and yellow, so quiet
+     * bands fade into the background.
+     */
+    private static int[] createPalette() {
+        Color[] stops = {Color.BLACK, Color.rgb(40, 0, 120), Color.rgb(180, 0, 150), Color.rgb(240, 60, 40),
+                Color.rgb(255, 200, 0), Color.WHITE};
+        int[] palette = new int[256];
+        for (int i = 0; i < palette.length; i++) {
+            double position = i * (stops.length - 1) / 255.0;
+            int stop = Math.min(stops.length - 2, (int) position);
+            Color color = stops[stop].interpolate(stops[stop + 1], position - stop);
+            palette[i] = 0xff000000
+                    | (int) Math.round(color.getRed() * 255) << 16
+                    | (int) Math.round(color.getGreen() * 255) << 8
+                    | (int) Math.round(color.getBlue() * 255);
+        }
+        return palette;
+    }
+
+}
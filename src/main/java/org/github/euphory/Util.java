@@ -17,11 +17,56 @@ import javafx.util.Duration;
  */
 public class Util {
     
+    /**
+     * The longest text written by {@link #formatTime(long, char[])}.
+     */
+    public static final int MAX_TIME_LENGTH = 26;
+
     public static String toFormattedTime(Duration duration) {
-        return String.format("%02d:%02d:%02d",
-                            (long)duration.toHours(),
-                            (long)(duration.toMinutes() % 60),
-                            (long)(duration.toSeconds() % 60));
+        char[] buffer = new char[MAX_TIME_LENGTH];
+        int length = formatTime((long) duration.toSeconds(), buffer);
+        return new String(buffer, 0, length);
+    }
+
+    /**
+     * Formats a time as hh:mm:ss into a buffer, without allocating.
+     *
+     * @param seconds The time in whole seconds, negative times are taken as 0.
+     * @param buffer  The buffer, at least {@link #MAX_TIME_LENGTH} long.
+     * @return The number of chars written.
+     */
+    public static int formatTime(long seconds, char[] buffer) {
+        seconds = Math.max(0, seconds);
+        long hours = seconds / 3600;
+        int length = 0;
+        if (hours < 10) {
+            buffer[length++] = '0';
+        }
+        length = writeDigits(hours, buffer, length);
+        buffer[length++] = ':';
+        length = writeTwoDigits((int) (seconds / 60 % 60), buffer, length);
+        buffer[length++] = ':';
+        return writeTwoDigits((int) (seconds % 60), buffer, length);
+    }
+
+    private static int writeTwoDigits(int value, char[] buffer, int offset) {
+        buffer[offset] = (char) ('0' + value / 10);
+        buffer[offset + 1] = (char) ('0' + value % 10);
+        return offset + 2;
+    }
+
+    private static int writeDigits(long value, char[] buffer, int offset) {
+        int end = offset;
+        long rest = value;
+        do {
+            end++;
+            rest /= 10;
+        } while (rest > 0);
+        for (int i = end - 1; i >= offset; i--) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return end;
     }
     
 }
@@ -0,0 +1,388 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+
+import javafx.animation.AnimationTimer;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.input.ScrollEvent;
+import javafx.scene.paint.Color;
+
+import org.github.euphory.analysis.PeakLevel;
+import org.github.euphory.analysis.WaveformPyramid;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Draws a waveform on a canvas, only the part in view. The waveform is cut in
+ * tiles of a fixed number of pixel columns, rendered once per zoom from the
+ * peak level with one peak per column and kept in a bounded LRU of images.
+ * Zoom goes by powers of two samples per pixel so tiles line up with the
+ * peaks. Changes only mark the canvas dirty, an animation timer redraws it
+ * at most once per pulse, and a moving playhead only repaints the columns it
+ * leaves and enters.
+ */
+public final class WaveformRenderer {
+
+    private static final int TILE_WIDTH = 256;
+    private static final int MAX_TILES = 64;
+    private static final int BASE_ZOOM = 8;
+    private static final int MAX_ZOOM = 30;
+
+    private static final int PEAK_COLOR = toArgb(Color.STEELBLUE);
+    private static final int RMS_COLOR = toArgb(Color.LIGHTSKYBLUE);
+    private static final Color PLAYHEAD_COLOR = Color.CRIMSON;
+
+    private final Canvas canvas;
+    private final DoubleSupplier playheadSeconds;
+    private final Map<Long, Tile> tiles = new LinkedHashMap<>(MAX_TILES * 2, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Tile> eldest) {
+            if (size() > MAX_TILES) {
+                spareImage = eldest.getValue().image;
+                return true;
+            }
+            return false;
+        }
+    };
+    private final AnimationTimer timer = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            pulse();
+        }
+    };
+
+    private WaveformPyramid waveform;
+    private double durationSeconds;
+    private int zoom = MAX_ZOOM;
+    private long scroll;
+    private boolean fitted;
+    private int tileHeight;
+    private WritableImage spareImage;
+    private int[] pixels = new int[0];
+    private float[] samples = new float[0];
+
+    private boolean dirty = true;
+    private int playheadX = -1;
+    private double dragX;
+
+    /**
+     * Creates a renderer for a canvas and starts repainting it on every pulse.
+     *
+     * @param canvas          The canvas to draw on, sized by its parent.
+     * @param playheadSeconds The current playback time, polled once per pulse.
+     */
+    public WaveformRenderer(Canvas canvas, DoubleSupplier playheadSeconds) {
+        this.canvas = canvas;
+        this.playheadSeconds = playheadSeconds;
+        canvas.widthProperty().addListener((observable, oldValue, newValue) -> invalidate());
+        canvas.heightProperty().addListener((observable, oldValue, newValue) -> invalidate());
+        canvas.setOnScroll(this::onScroll);
+        canvas.setOnMousePressed(event -> dragX = event.getX());
+        canvas.setOnMouseDragged(this::onMouseDragged);
+        timer.start();
+    }
+
+    /**
+     * Shows a waveform. A newer snapshot of the waveform already shown keeps
+     * the tiles that were complete and the current zoom, anything else resets
+     * the view to fit the whole duration.
+     *
+     * @param pyramid         The waveform, or null to clear the canvas.
+     * @param durationSeconds The media duration, so a growing waveform keeps its scale, 0 if unknown.
+     */
+    public void setWaveform(WaveformPyramid pyramid, double durationSeconds) {
+        boolean growing = waveform != null && pyramid != null && !waveform.isComplete()
+                && pyramid.getSampleRate() == waveform.getSampleRate()
+                && pyramid.getSampleCount() >= waveform.getSampleCount();
+        if (growing) {
+            tiles.values().removeIf(tile -> !tile.complete);
+        } else {
+            tiles.clear();
+            fitted = false;
+        }
+        this.waveform = pyramid;
+        this.durationSeconds = Double.isNaN(durationSeconds) ? 0 : durationSeconds;
+        invalidate();
+    }
+
+    /**
+     * Marks the whole canvas for a redraw on the next pulse.
+     */
+    public void invalidate() {
+        dirty = true;
+    }
+
+    private void pulse() {
+        int width = (int) canvas.getWidth();
+        int height = (int) canvas.getHeight();
+        if (height != tileHeight) {
+            tiles.clear();
+            spareImage = null;
+            tileHeight = height;
+            dirty = true;
+        }
+        if (waveform != null && !fitted && width > 0) {
+            fitToWidth(width);
+        }
+        int x = waveform != null ? toPlayheadX() : -1;
+        if (x != playheadX && !dirty && playheadX >= 0 && playheadX < width && x >= width) {
+            // Page forward when playback leaves the view
+            scroll += x;
+            x = 0;
+            dirty = true;
+        }
+        GraphicsContext gc = canvas.getGraphicsContext2D();
+        if (dirty) {
+            dirty = false;
+            playheadX = x;
+            drawColumns(gc, 0, width, height);
+            drawPlayhead(gc, height);
+        } else if (x != playheadX) {
+            drawColumns(gc, playheadX - 1, playheadX + 2, height);
+            playheadX = x;
+            drawPlayhead(gc, height);
+        }
+    }
+
+    private int toPlayheadX() {
+        double seconds = playheadSeconds.getAsDouble();
+        if (Double.isNaN(seconds)) {
+            return -1;
+        }
+        long column = (long) (seconds * waveform.getSampleRate()) >> zoom;
+        return (int) Math.max(-1, Math.min(Integer.MAX_VALUE, column - scroll));
+    }
+
+    private void drawPlayhead(GraphicsContext gc, int height) {
+        if (playheadX >= 0 && playheadX < canvas.getWidth()) {
+            gc.setStroke(PLAYHEAD_COLOR);
+            gc.strokeLine(playheadX + 0.5, 0, playheadX + 0.5, height);
+        }
+    }
+
+    /**
+     * Repaints a strip of canvas columns from the tiles that cover it.
+     */
+    private void drawColumns(GraphicsContext gc, int from, int to, int height) {
+        from = Math.max(0, from);
+        to = Math.min(to, (int) canvas.getWidth());
+        if (from >= to) {
+            return;
+        }
+        gc.clearRect(from, 0, to - from, height);
+        if (waveform == null || height < 1) {
+            return;
+        }
+        long lastColumn = (getTotalSamples() - 1) >> zoom;
+        long column = scroll + from;
+        long end = Math.min(scroll + to, lastColumn + 1);
+        while (column < end) {
+            long index = Math.floorDiv(column, TILE_WIDTH);
+            int offset = (int) (column - index * TILE_WIDTH);
+            int length = (int) Math.min(TILE_WIDTH - offset, end - column);
+            if (index >= 0) {
+                Tile tile = getTile(index, height);
+                gc.drawImage(tile.image, offset, 0, length, height, column - scroll, 0, length, height);
+            }
+            column += length;
+        }
+    }
+
+    private Tile getTile(long index, int height) {
+        long key = ((long) zoom << 48) | index;
+        Tile tile = tiles.get(key);
+        if (tile == null) {
+            tile = renderTile(index, height);
+            tiles.put(key, tile);
+        }
+        return tile;
+    }
+
+    /**
+     * Renders the min/max and RMS of every column of a tile into an image,
+     * from peaks or, below the finest peak level, from decoded samples.
+     */
+    private Tile renderTile(long index, int height) {
+        if (pixels.length != TILE_WIDTH * height) {
+            pixels = new int[TILE_WIDTH * height];
+        }
+        Arrays.fill(pixels, 0);
+        long samplesPerPixel = 1L << zoom;
+        long firstSample = index * TILE_WIDTH * samplesPerPixel;
+        long endSample = firstSample + TILE_WIDTH * samplesPerPixel;
+        PeakLevel level = waveform.getLevelFor(samplesPerPixel);
+        boolean complete;
+        if (level != null) {
+            int peaksPerPixel = (int) (samplesPerPixel / level.getSamplesPerPeak());
+            long firstPeak = firstSample / level.getSamplesPerPeak();
+            for (int x = 0; x < TILE_WIDTH; x++) {
+                long first = firstPeak + (long) x * peaksPerPixel;
+                int last = (int) Math.min(level.size(), first + peaksPerPixel);
+                if (first >= last) {
+                    break;
+                }
+                int low = Short.MAX_VALUE;
+                int high = Short.MIN_VALUE;
+                int loudness = 0;
+                for (int i = (int) first; i < last; i++) {
+                    low = Math.min(low, level.getMinValue(i));
+                    high = Math.max(high, level.getMaxValue(i));
+                    loudness = Math.max(loudness, level.getRmsValue(i));
+                }
+                drawColumn(x, height, low / (float) Short.MAX_VALUE, high / (float) Short.MAX_VALUE,
+                        loudness / (float) Short.MAX_VALUE);
+            }
+            complete = waveform.isComplete() || endSample <= (long) level.size() * level.getSamplesPerPeak();
+        } else {
+            int count = TILE_WIDTH << zoom;
+            if (samples.length < count) {
+                samples = new float[count];
+            }
+            int read;
+            try {
+                read = waveform.readSamples(firstSample, samples, 0, count);
+                complete = waveform.isComplete() || endSample <= waveform.getSampleCount();
+            } catch (IOException e) {
+                e.printStackTrace();
+                read = 0;
+                complete = false;
+            }
+            int perPixel = 1 << zoom;
+            for (int x = 0; x * perPixel < read; x++) {
+                int first = x * perPixel;
+                int last = Math.min(read, first + perPixel);
+                float low = Float.MAX_VALUE;
+                float high = -Float.MAX_VALUE;
+                double sumSquares = 0;
+                for (int i = first; i < last; i++) {
+                    low = Math.min(low, samples[i]);
+                    high = Math.max(high, samples[i]);
+                    sumSquares += samples[i] * samples[i];
+                }
+                drawColumn(x, height, low, high, (float) Math.sqrt(sumSquares / (last - first)));
+            }
+        }
+        WritableImage image = spareImage != null ? spareImage : new WritableImage(TILE_WIDTH, height);
+        spareImage = null;
+        image.getPixelWriter().setPixels(0, 0, TILE_WIDTH, height, PixelFormat.getIntArgbInstance(), pixels, 0, TILE_WIDTH);
+        return new Tile(image, complete);
+    }
+
+    private void drawColumn(int x, int height, float low, float high, float loudness) {
+        float middle = height / 2f;
+        fillColumn(x, height, middle - high * middle, middle - low * middle, PEAK_COLOR);
+        fillColumn(x, height, middle - loudness * middle, middle + loudness * middle, RMS_COLOR);
+    }
+
+    private void fillColumn(int x, int height, float top, float bottom, int color) {
+        int first = Math.max(0, (int) top);
+        int last = Math.min(height - 1, (int) bottom);
+        for (int y = first; y <= last; y++) {
+            pixels[y * TILE_WIDTH + x] = color;
+        }
+    }
+
+    private long getTotalSamples() {
+        return Math.max(1, Math.max(waveform.getSampleCount(), (long) (durationSeconds * waveform.getSampleRate())));
+    }
+
+    private int getMinZoom() {
+        return waveform != null && waveform.hasSamples() ? 0 : BASE_ZOOM;
+    }
+
+    private void fitToWidth(int width) {
+        int fit = 64 - Long.numberOfLeadingZeros((getTotalSamples() - 1) / width);
+        zoom = Math.max(getMinZoom(), Math.min(MAX_ZOOM, fit));
+        scroll = 0;
+        fitted = true;
+    }
+
+    /**
+     * Zooms by one power of two, keeping the sample under a column in place.
+     *
+     * @param in     True to zoom in, false to zoom out.
+     * @param anchor The canvas column to keep in place.
+     */
+    public void zoom(boolean in, double anchor) {
+        int newZoom = Math.max(getMinZoom(), Math.min(MAX_ZOOM, zoom + (in ? -1 : 1)));
+        if (waveform == null || newZoom == zoom) {
+            return;
+        }
+        long anchorSample = (scroll + (long) anchor) << zoom;
+        zoom = newZoom;
+        scrollTo((anchorSample >> zoom) - (long) anchor);
+        invalidate();
+    }
+
+    /**
+     * Scrolls the view, keeping at least one column of waveform in it.
+     *
+     * @param column The waveform column drawn at the left edge of the canvas.
+     */
+    public void scrollTo(long column) {
+        if (waveform == null) {
+            return;
+        }
+        long lastColumn = (getTotalSamples() - 1) >> zoom;
+        long newScroll = Math.max(0, Math.min(column, lastColumn));
+        if (newScroll != scroll) {
+            scroll = newScroll;
+            invalidate();
+        }
+    }
+
+    private void onScroll(ScrollEvent event) {
+        if (event.getDeltaY() != 0 && !event.isShiftDown()) {
+            zoom(event.getDeltaY() > 0, event.getX());
+        } else {
+            double delta = event.getDeltaX() != 0 ? event.getDeltaX() : event.getDeltaY();
+            scrollTo(scroll - (long) delta);
+        }
+        event.consume();
+    }
+
+    private void onMouseDragged(MouseEvent event) {
+        long delta = (long) (event.getX() - dragX);
+        if (delta != 0) {
+            scrollTo(scroll - delta);
+            dragX += delta;
+        }
+    }
+
+    private static int toArgb(Color color) {
+        return (int) Math.round(color.getOpacity() * 255) << 24
+                | (int) Math.round(color.getRed() * 255) << 16
+                | (int) Math.round(color.getGreen() * 255) << 8
+                | (int) Math.round(color.getBlue() * 255);
+    }
+
+    private static final class Tile {
+
+        private final WritableImage image;
+        private final boolean complete;
+
+        private Tile(WritableImage image, boolean complete) {
+            this.image = image;
+            this.complete = complete;
+        }
+
+    }
+
+}
@@ -0,0 +1,611 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.analysis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * On-disk cache of analysis results, one file per audio payload in a cache
+ * directory. An entry is a fixed header, a section directory and the section
+ * data, all big-endian and 8-byte aligned, so it is mapped and used in place
+ * without parsing. Entries are never rewritten while they may be mapped: a
+ * store writes a new generation of the entry, named hash.generation.analysis,
+ * and the older ones are deleted once nothing maps them. The least recently
+ * used entries are deleted when the entries outgrow the byte budget.
+ *
+ * <pre>
+ * 0   int    magic 'EUAC'
+ * 4   int    version
+ * 8   long   media file size
+ * 16  long   media file modification time
+ * 24  byte[32] audio payload hash
+ * 56  int    section count
+ * 60  int    reserved
+ * 64  section directory, 24 bytes per section: int type, int parameter,
+ *     long offset, long length
+ * </pre>
+ */
+public final class AnalysisCache {
+
+    /**
+     * The sample rate and sample count of a waveform: int, long.
+     */
+    public static final int WAVEFORM_INFO = 1;
+
+    /**
+     * A waveform peak level, the parameter is its samples per peak: the
+     * minimums, the maximums and the RMS values as shorts.
+     */
+    public static final int WAVEFORM_LEVEL = 2;
+
+    /**
+     * The properties of a seek index: int timescale, int flags, long frame
+     * ticks, long end ticks, long data length, double estimated seconds, int
+     * entry count, int reserved and the 100 bytes of a Xing table of contents.
+     */
+    public static final int SEEK_INFO = 3;
+
+    /**
+     * The offsets of the entries of a seek index, as longs.
+     */
+    public static final int SEEK_OFFSETS = 4;
+
+    /**
+     * The start times of the entries of a seek index as longs, empty when
+     * frames do not differ in length.
+     */
+    public static final int SEEK_TIMES = 5;
+
+    public static final long DEFAULT_BUDGET = 512L * 1024 * 1024;
+
+    private static final int MAGIC = 0x45554143; // 'EUAC'
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SECTION_SIZE = 24;
+    private static final String SUFFIX = ".analysis";
+
+    private static final int SEEK_EXACT = 1;
+    private static final int SEEK_TIMED = 2;
+    private static final int SEEK_TOC = 4;
+    private static final int SEEK_INFO_SIZE = 48;
+    private static final int TOC_SIZE = 100;
+
+    private static AnalysisCache defaultCache;
+
+    private final Path directory;
+    private final long budget;
+
+    /**
+     * The newest generation known of every entry, by payload hash.
+     */
+    private final Map<String, Path> generations = new HashMap<>();
+
+    /**
+     * A section to store.
+     */
+    public static final class Section {
+
+        private final int type;
+        private final int parameter;
+        private final ByteBuffer data;
+
+        /**
+         * Constructs a new Section.
+         *
+         * @param type      The section type.
+         * @param parameter A value telling sections of the same type apart.
+         * @param data      The data, from its position to its limit.
+         */
+        public Section(int type, int parameter, ByteBuffer data) {
+            this.type = type;
+            this.parameter = parameter;
+            this.data = data;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        public int getParameter() {
+            return parameter;
+        }
+
+        public ByteBuffer getData() {
+            return data.duplicate();
+        }
+
+    }
+
+    /**
+     * Constructs a new AnalysisCache.
+     *
+     * @param directory The cache directory, created when needed.
+     * @param budget    The maximum total size of the entries in bytes.
+     */
+    public AnalysisCache(Path directory, long budget) {
+        this.directory = directory;
+        this.budget = budget;
+    }
+
+    /**
+     * Gets the cache shared by the application, in the directory named by the
+     * "euphory.cache.dir" system property or in ~/.euphory/cache.
+     *
+     * @return The cache.
+     */
+    public static synchronized AnalysisCache getDefault() {
+        if (defaultCache == null) {
+            String directory = System.getProperty("euphory.cache.dir");
+            Path path = directory != null ? Paths.get(directory) : Paths.get(System.getProperty("user.home"), ".euphory", "cache");
+            defaultCache = new AnalysisCache(path, Long.getLong("euphory.cache.budget", DEFAULT_BUDGET));
+        }
+        return defaultCache;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Maps the entry of a media file and marks it as recently used. An entry
+     * found by its payload hash with another file size or modification time
+     * belongs to the same audio with edited tags, its header is updated when
+     * the file can be written.
+     *
+     * @param key The key of the media file.
+     * @return The mapped entry, or null if there is none or it is damaged.
+     * @throws IOException If the entry cannot be read.
+     */
+    public synchronized ByteBuffer open(CacheKey key) throws IOException {
+        Path file = findEntryFile(key);
+        if (file == null) {
+            return null;
+        }
+        MappedByteBuffer entry;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            entry = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (!isValid(entry, key)) {
+                return null;
+            }
+        } catch (NoSuchFileException e) {
+            generations.remove(key.toHex());
+            return null;
+        }
+        if (entry.getLong(8) != key.getFileSize() || entry.getLong(16) != key.getLastModified()) {
+            refreshHeader(file, key);
+        }
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // Only the eviction order suffers
+        }
+        return entry;
+    }
+
+    /**
+     * Writes the file size and modification time of a key over those of its
+     * entry. An entry left with the old ones is still found by its hash, so a
+     * failure is ignored.
+     */
+    private static void refreshHeader(Path file, CacheKey key) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            writeFully(channel, ByteBuffer.allocate(16).putLong(0, key.getFileSize()).putLong(8, key.getLastModified()), 8);
+        } catch (IOException e) {
+            // Read-only cache or entry just evicted
+        }
+    }
+
+    /**
+     * Finds the newest generation of the entry of a key, deleting the older
+     * ones that are not mapped anymore.
+     *
+     * @return The entry file, or null if there is none.
+     */
+    private Path findEntryFile(CacheKey key) throws IOException {
+        String name = key.toHex();
+        Path known = generations.get(name);
+        if (known != null && Files.exists(known)) {
+            return known;
+        }
+        generations.remove(name);
+        List<Path> files = listGenerations(name);
+        if (files.isEmpty()) {
+            return null;
+        }
+        Path newest = files.get(files.size() - 1);
+        deleteQuietly(files.subList(0, files.size() - 1));
+        generations.put(name, newest);
+        return newest;
+    }
+
+    /**
+     * Lists the generations of an entry, oldest first.
+     */
+    private List<Path> listGenerations(String name) throws IOException {
+        List<Path> files = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return files;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, name + ".*" + SUFFIX)) {
+            for (Path file : stream) {
+                if (getGeneration(file) >= 0) {
+                    files.add(file);
+                }
+            }
+        }
+        files.sort(Comparator.comparingLong(AnalysisCache::getGeneration));
+        return files;
+    }
+
+    private static long getGeneration(Path file) {
+        String name = file.getFileName().toString();
+        int end = name.length() - SUFFIX.length();
+        try {
+            return Long.parseLong(name.substring(name.lastIndexOf('.', end - 1) + 1, end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void deleteQuietly(List<Path> files) {
+        for (Path file : files) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // Still mapped on Windows, deleted by a later open or eviction
+            }
+        }
+    }
+
+    private static boolean isValid(ByteBuffer entry, CacheKey key) {
+        if (entry.getInt(0) != MAGIC || entry.getInt(4) != VERSION) {
+            return false;
+        }
+        byte[] hash = new byte[CacheKey.HASH_SIZE];
+        entry.duplicate().position(24).get(hash);
+        if (!Arrays.equals(hash, key.getHash())) {
+            return false;
+        }
+        long sections = entry.getInt(56) & 0xffffffffL;
+        if (HEADER_SIZE + sections * SECTION_SIZE > entry.limit()) {
+            return false;
+        }
+        for (int i = 0; i < sections; i++) {
+            int position = HEADER_SIZE + i * SECTION_SIZE;
+            long offset = entry.getLong(position + 8);
+            long length = entry.getLong(position + 16);
+            if (offset < 0 || length < 0 || offset + length > entry.limit()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets a section of a mapped entry, without copying it.
+     *
+     * @param entry     The entry returned by {@link #open(CacheKey)}.
+     * @param type      The section type.
+     * @param parameter The section parameter.
+     * @return A view of the section data, or null if the entry has no such section.
+     */
+    public static ByteBuffer getSection(ByteBuffer entry, int type, int parameter) {
+        int sections = entry.getInt(56);
+        for (int i = 0; i < sections; i++) {
+            int position = HEADER_SIZE + i * SECTION_SIZE;
+            if (entry.getInt(position) == type && entry.getInt(position + 4) == parameter) {
+                return slice(entry, entry.getLong(position + 8), entry.getLong(position + 16));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the sections of a type of a mapped entry, without copying them.
+     *
+     * @param entry The entry returned by {@link #open(CacheKey)}.
+     * @param type  The section type.
+     * @return The sections, in the order they were stored.
+     */
+    public static List<Section> getSections(ByteBuffer entry, int type) {
+        List<Section> found = new ArrayList<>();
+        int sections = entry.getInt(56);
+        for (int i = 0; i < sections; i++) {
+            int position = HEADER_SIZE + i * SECTION_SIZE;
+            if (entry.getInt(position) == type) {
+                found.add(new Section(type, entry.getInt(position + 4),
+                        slice(entry, entry.getLong(position + 8), entry.getLong(position + 16))));
+            }
+        }
+        return found;
+    }
+
+    private static ByteBuffer slice(ByteBuffer entry, long offset, long length) {
+        ByteBuffer view = entry.duplicate();
+        view.position((int) offset).limit((int) (offset + length));
+        return view.slice();
+    }
+
+    /**
+     * Stores sections for a media file. Existing sections of the same types
+     * are replaced, sections of other types are kept. The entry is written to
+     * a temporary file first, so readers never see half of it, and moved in
+     * as a new generation, so the entry it replaces can stay mapped.
+     *
+     * @param key      The key of the media file.
+     * @param sections The sections to store.
+     * @throws IOException If the entry cannot be written.
+     */
+    public synchronized void store(CacheKey key, List<Section> sections) throws IOException {
+        List<Section> all = new ArrayList<>();
+        ByteBuffer old = open(key);
+        if (old != null) {
+            int count = old.getInt(56);
+            for (int i = 0; i < count; i++) {
+                int type = old.getInt(HEADER_SIZE + i * SECTION_SIZE);
+                if (sections.stream().noneMatch(section -> section.getType() == type)) {
+                    all.add(new Section(type, old.getInt(HEADER_SIZE + i * SECTION_SIZE + 4), slice(old,
+                            old.getLong(HEADER_SIZE + i * SECTION_SIZE + 8), old.getLong(HEADER_SIZE + i * SECTION_SIZE + 16))));
+                }
+            }
+        }
+        all.addAll(sections);
+
+        long size = align(HEADER_SIZE + (long) all.size() * SECTION_SIZE);
+        for (Section section : all) {
+            size += align(section.data.remaining());
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Analysis of " + size + " bytes is too big to cache");
+        }
+        ByteBuffer header = ByteBuffer.allocate((int) align(HEADER_SIZE + (long) all.size() * SECTION_SIZE));
+        header.putInt(MAGIC).putInt(VERSION).putLong(key.getFileSize()).putLong(key.getLastModified());
+        header.put(key.getHash()).putInt(all.size()).putInt(0);
+        long offset = header.capacity();
+        for (Section section : all) {
+            header.putInt(section.type).putInt(section.parameter).putLong(offset).putLong(section.data.remaining());
+            offset += align(section.data.remaining());
+        }
+        header.clear();
+
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, ".entry", ".tmp");
+        Path file;
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                long position = writeFully(channel, header, 0);
+                for (Section section : all) {
+                    writeFully(channel, section.getData(), position);
+                    position += align(section.data.remaining());
+                }
+                channel.truncate(size);
+                if (channel.size() < size) {
+                    writeFully(channel, ByteBuffer.allocate((int) (size - channel.size())), channel.size());
+                }
+            }
+            // Another process may have stored a newer generation than the one read
+            List<Path> older = listGenerations(key.toHex());
+            long generation = older.isEmpty() ? 0 : getGeneration(older.get(older.size() - 1)) + 1;
+            file = directory.resolve(key.toHex() + "." + generation + SUFFIX);
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file);
+            }
+            generations.put(key.toHex(), file);
+            deleteQuietly(older);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        evict(file);
+    }
+
+    /**
+     * Deletes the least recently used entries until the budget is met. The
+     * entry just written is kept even if it is over budget by itself, and
+     * entries that cannot be deleted, for example while mapped on Windows, are
+     * skipped.
+     */
+    private void evict(Path keep) throws IOException {
+        List<Path> entries = new ArrayList<>();
+        List<BasicFileAttributes> attributes = new ArrayList<>();
+        long total = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path entry : stream) {
+                BasicFileAttributes attribute = Files.readAttributes(entry, BasicFileAttributes.class);
+                entries.add(entry);
+                attributes.add(attribute);
+                total += attribute.size();
+            }
+        }
+        Integer[] order = new Integer[entries.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing(i -> attributes.get(i).lastModifiedTime()));
+        for (int i = 0; i < order.length && total > budget; i++) {
+            Path entry = entries.get(order[i]);
+            if (entry.equals(keep)) {
+                continue;
+            }
+            try {
+                Files.deleteIfExists(entry);
+                total -= attributes.get(order[i]).size();
+            } catch (IOException e) {
+                // Still in use, try the next one
+            }
+        }
+    }
+
+    /**
+     * Loads a cached waveform. Its levels are views of the mapped entry.
+     *
+     * @param key The key of the media file.
+     * @return The waveform, without decoded samples, or null if it is not cached.
+     * @throws IOException If the entry cannot be read.
+     */
+    public WaveformPyramid loadWaveform(CacheKey key) throws IOException {
+        ByteBuffer entry = open(key);
+        ByteBuffer info = entry != null ? getSection(entry, WAVEFORM_INFO, 0) : null;
+        if (info == null || info.remaining() < 12) {
+            return null;
+        }
+        List<Section> sections = getSections(entry, WAVEFORM_LEVEL);
+        PeakLevel[] levels = new PeakLevel[sections.size()];
+        for (int i = 0; i < levels.length; i++) {
+            ByteBuffer data = sections.get(i).getData();
+            int size = data.remaining() / 6;
+            levels[i] = new PeakLevel(sections.get(i).getParameter(), slice(data, 0, size * 2).asShortBuffer(),
+                    slice(data, size * 2, size * 2).asShortBuffer(), slice(data, size * 4, size * 2).asShortBuffer(), size);
+        }
+        return new WaveformPyramid(info.getInt(0), levels, info.getLong(4), true, null);
+    }
+
+    /**
+     * Stores a complete waveform, without its decoded samples.
+     *
+     * @param key     The key of the media file.
+     * @param pyramid The waveform.
+     * @throws IOException If the entry cannot be written.
+     */
+    public void storeWaveform(CacheKey key, WaveformPyramid pyramid) throws IOException {
+        List<Section> sections = new ArrayList<>();
+        ByteBuffer info = ByteBuffer.allocate(12).putInt(0, pyramid.getSampleRate()).putLong(4, pyramid.getSampleCount());
+        sections.add(new Section(WAVEFORM_INFO, 0, info));
+        for (int i = 0; i < pyramid.getLevelCount(); i++) {
+            PeakLevel level = pyramid.getLevel(i);
+            int size = level.size();
+            ByteBuffer data = ByteBuffer.allocate(size * 6);
+            data.asShortBuffer().put(level.getMinBuffer().duplicate().position(0).limit(size))
+                    .put(level.getMaxBuffer().duplicate().position(0).limit(size))
+                    .put(level.getRmsBuffer().duplicate().position(0).limit(size));
+            sections.add(new Section(WAVEFORM_LEVEL, level.getSamplesPerPeak(), data));
+        }
+        store(key, sections);
+    }
+
+    /**
+     * Loads a cached seek index. Its offsets are counted from the start of
+     * the audio, so it holds after the tags in front of the audio grow.
+     *
+     * @param key   The key of the media file.
+     * @param start The file offset of the start of the audio.
+     * @return The index, or null if it is not cached.
+     * @throws IOException If the entry cannot be read.
+     */
+    public SeekIndex loadSeekIndex(CacheKey key, long start) throws IOException {
+        ByteBuffer entry = start >= 0 ? open(key) : null;
+        ByteBuffer info = entry != null ? getSection(entry, SEEK_INFO, 0) : null;
+        if (info == null || info.remaining() < SEEK_INFO_SIZE) {
+            return null;
+        }
+        int flags = info.getInt(4);
+        int count = info.getInt(40);
+        ByteBuffer offsetData = getSection(entry, SEEK_OFFSETS, 0);
+        ByteBuffer timeData = getSection(entry, SEEK_TIMES, 0);
+        boolean timed = (flags & SEEK_TIMED) != 0;
+        if (count <= 0 || offsetData == null || offsetData.remaining() < count * 8L
+                || (timed && (timeData == null || timeData.remaining() < count * 8L))
+                || ((flags & SEEK_TOC) != 0 && info.remaining() < SEEK_INFO_SIZE + TOC_SIZE)) {
+            return null;
+        }
+        long[] offsets = new long[count];
+        offsetData.asLongBuffer().get(offsets);
+        long[] times = null;
+        if (timed) {
+            times = new long[count];
+            timeData.asLongBuffer().get(times);
+        }
+        byte[] toc = null;
+        if ((flags & SEEK_TOC) != 0) {
+            toc = new byte[TOC_SIZE];
+            info.position(SEEK_INFO_SIZE);
+            info.get(toc);
+        }
+        try {
+            return new SeekIndex(info.getInt(0), info.getLong(8), times, offsets, count, info.getLong(16), start,
+                    info.getLong(24), (flags & SEEK_EXACT) != 0, info.getDouble(32), toc);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stores a seek index.
+     *
+     * @param key   The key of the media file.
+     * @param index The index.
+     * @throws IOException If the entry cannot be written.
+     */
+    public void storeSeekIndex(CacheKey key, SeekIndex index) throws IOException {
+        long[] times = index.getTimes();
+        byte[] toc = index.getToc();
+        int flags = (index.isExact() ? SEEK_EXACT : 0) | (times != null ? SEEK_TIMED : 0) | (toc != null ? SEEK_TOC : 0);
+        ByteBuffer info = ByteBuffer.allocate(SEEK_INFO_SIZE + (toc != null ? TOC_SIZE : 0));
+        info.putInt(index.getTimescale()).putInt(flags).putLong(index.getFrameTicks()).putLong(index.getEndTicks())
+                .putLong(index.getDataLength()).putDouble(index.getEstimatedSeconds()).putInt(index.size()).putInt(0);
+        if (toc != null) {
+            info.put(toc);
+        }
+        info.flip();
+        ByteBuffer offsets = ByteBuffer.allocate(index.size() * 8);
+        offsets.asLongBuffer().put(index.getOffsets(), 0, index.size());
+        // An index without times still replaces the times of an older one
+        ByteBuffer timeData = ByteBuffer.allocate(times != null ? index.size() * 8 : 0);
+        if (times != null) {
+            timeData.asLongBuffer().put(times, 0, index.size());
+        }
+        List<Section> sections = new ArrayList<>();
+        sections.add(new Section(SEEK_INFO, 0, info));
+        sections.add(new Section(SEEK_OFFSETS, 0, offsets));
+        sections.add(new Section(SEEK_TIMES, 0, timeData));
+        store(key, sections);
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    private static long writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return position;
+    }
+
+}
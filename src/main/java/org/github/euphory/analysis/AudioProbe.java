@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.analysis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.github.euphory.tags.ID3v2Tag;
+import org.github.euphory.tags.ID3v2TagManager;
+import org.github.euphory.tags.MP4Atom;
+import org.github.euphory.tags.MP4AtomWalker;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Finds the duration of a media file from its headers, without decoding it
+ * or starting a media player: the 'mvhd' atom of an MP4 file, or the first
+ * frame of an MP3 file with its Xing, Info or VBRI header, falling back to
+ * the bitrate of a constant bitrate stream.
+ */
+public final class AudioProbe {
+
+    private static final int MVHD = 0x6d766864; // 'mvhd'
+    static final int XING = 0x58696e67; // 'Xing'
+    static final int INFO = 0x496e666f; // 'Info'
+    static final int VBRI = 0x56425249; // 'VBRI'
+
+    /**
+     * How far past the ID3v2 tag the first frame is looked for.
+     */
+    static final int SYNC_SEARCH = 64 * 1024;
+
+    static final int[] MPEG1_BITRATES = {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320};
+    static final int[] MPEG2_BITRATES = {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160};
+    static final int[] MPEG1_SAMPLE_RATES = {44100, 48000, 32000};
+
+    private AudioProbe() {
+    }
+
+    /**
+     * Gets the duration of a media file.
+     *
+     * @param file The file.
+     * @return The duration in seconds, NaN if the headers do not tell it.
+     * @throws IOException If the file cannot be read.
+     */
+    public static double getDurationSeconds(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MP4AtomWalker walker = new MP4AtomWalker(channel);
+            if (walker.isMP4()) {
+                MP4Atom[] path = walker.findPath(MP4AtomWalker.MOOV, MVHD);
+                if (path == null) {
+                    return Double.NaN;
+                }
+                ByteBuffer mvhd = walker.readData(path[path.length - 1]);
+                boolean version1 = mvhd.get(0) == 1;
+                long timescale = mvhd.getInt(version1 ? 20 : 12) & 0xffffffffL;
+                long duration = version1 ? mvhd.getLong(24) : mvhd.getInt(16) & 0xffffffffL;
+                return timescale > 0 ? (double) duration / timescale : Double.NaN;
+            }
+            return getMP3DurationSeconds(channel);
+        }
+    }
+
+    private static double getMP3DurationSeconds(FileChannel channel) throws IOException {
+        ID3v2Tag tag = ID3v2TagManager.readTag(channel);
+        long start = tag != null ? tag.getTagSize() : 0;
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(SYNC_SEARCH, Math.max(0, channel.size() - start)));
+        while (buffer.hasRemaining() && channel.read(buffer, start + buffer.position()) > 0) {
+            // Keep reading until the buffer is full or the file ends
+        }
+        buffer.flip();
+        for (int offset = 0; offset + 4 <= buffer.limit(); offset++) {
+            int header = buffer.getInt(offset);
+            if ((header & 0xffe00000) != 0xffe00000) {
+                continue;
+            }
+            int version = (header >>> 19) & 3; // 3 = MPEG 1, 2 = MPEG 2, 0 = MPEG 2.5
+            int layer = (header >>> 17) & 3; // 1 = layer III
+            int bitrateIndex = (header >>> 12) & 15;
+            int sampleRateIndex = (header >>> 10) & 3;
+            if (version == 1 || layer != 1 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) {
+                continue;
+            }
+            boolean mpeg1 = version == 3;
+            int sampleRate = MPEG1_SAMPLE_RATES[sampleRateIndex] >> (mpeg1 ? 0 : version == 2 ? 1 : 2);
+            int samplesPerFrame = mpeg1 ? 1152 : 576;
+            boolean mono = ((header >>> 6) & 3) == 3;
+            int sideInfo = mpeg1 ? (mono ? 17 : 32) : (mono ? 9 : 17);
+
+            long frames = -1;
+            int xing = offset + 4 + sideInfo;
+            int vbri = offset + 4 + 32;
+            if (xing + 12 <= buffer.limit() && (buffer.getInt(xing) == XING || buffer.getInt(xing) == INFO)) {
+                if ((buffer.getInt(xing + 4) & 1) != 0) {
+                    frames = buffer.getInt(xing + 8) & 0xffffffffL;
+                }
+            } else if (vbri + 18 <= buffer.limit() && buffer.getInt(vbri) == VBRI) {
+                frames = buffer.getInt(vbri + 14) & 0xffffffffL;
+            }
+            if (frames >= 0) {
+                return (double) frames * samplesPerFrame / sampleRate;
+            }
+            int bitrate = (mpeg1 ? MPEG1_BITRATES : MPEG2_BITRATES)[bitrateIndex] * 1000;
+            long end = channel.size();
+            if (end - (start + offset) >= 128) {
+                ByteBuffer trailer = ByteBuffer.allocate(3);
+                channel.read(trailer, end - 128);
+                if (trailer.get(0) == 'T' && trailer.get(1) == 'A' && trailer.get(2) == 'G') {
+                    end -= 128;
+                }
+            }
+            return (end - start - offset) * 8.0 / bitrate;
+        }
+        return Double.NaN;
+    }
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.analysis;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * A candidate track start found by the boundary detector.
+ */
+public final class Boundary {
+
+    private final double seconds;
+    private final double confidence;
+
+    public Boundary(double seconds, double confidence) {
+        this.seconds = seconds;
+        this.confidence = confidence;
+    }
+
+    /**
+     * Gets the time the new track starts at.
+     *
+     * @return The start time in seconds.
+     */
+    public double getSeconds() {
+        return seconds;
+    }
+
+    /**
+     * Gets how sure the detector is about this boundary.
+     *
+     * @return A value from 0 to 1.
+     */
+    public double getConfidence() {
+        return confidence;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%.1fs (%.2f)", seconds, confidence);
+    }
+
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.analysis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import be.tarsos.dsp.AudioDispatcher;
+import be.tarsos.dsp.AudioEvent;
+import be.tarsos.dsp.AudioProcessor;
+import be.tarsos.dsp.io.jvm.AudioDispatcherFactory;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Finds where tracks change in a DJ mix, in a single decode pass. Features
+ * are summed into blocks of about a second, a novelty curve is computed over
+ * their self-similarity and its peaks become candidate track starts, each
+ * with a confidence from how high and how prominent its peak is. Audio is
+ * decoded at a low sample rate, boundaries are found as the decoding goes
+ * and the memory used does not depend on the length of the mix, apart from
+ * the novelty curve with one value per block. Like the waveform analyzer,
+ * it runs on the calling thread and knows nothing about JavaFX.
+ */
+public final class BoundaryDetector {
+
+    public static final int SAMPLE_RATE = 22050;
+
+    private static final int FRAME_SIZE = 4096;
+    private static final int HOP_SIZE = 2048;
+
+    /**
+     * Frames per block, about one second.
+     */
+    private static final int FRAMES_PER_BLOCK = 11;
+
+    /**
+     * Blocks on each side of a boundary compared by the novelty kernel, about
+     * half a minute, the shortest stretch a track is expected to play alone.
+     */
+    private static final int KERNEL_HALF_WIDTH = 32;
+
+    /**
+     * A boundary must be the highest novelty within this many blocks on each
+     * side, which is also the shortest track that can be found.
+     */
+    private static final int PEAK_DISTANCE = 45;
+
+    /**
+     * Novelty at which a clean peak gets a confidence of about 0.63, the
+     * crossfade between two unrelated tracks peaks at around twice this.
+     */
+    private static final double NOVELTY_SCALE = 0.05;
+
+    /**
+     * Peaks below this confidence are not reported.
+     */
+    private static final double MIN_CONFIDENCE = 0.1;
+
+    /**
+     * Blocks per chunk, a bit more than four minutes.
+     */
+    private static final int CHUNK_BLOCKS = 256;
+
+    /**
+     * Frames decoded before a chunk to settle the onset detection, the
+     * running flux mean forgets all but about 1% of its start in that time.
+     */
+    private static final int WARM_UP_FRAMES = 88;
+
+    /**
+     * Receives the results of a running detection, on the detecting thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called as soon as a boundary is certain to be a peak.
+         *
+         * @param boundary The boundary.
+         */
+        void boundaryFound(Boundary boundary);
+
+        /**
+         * Called about every ten seconds of decoded audio.
+         *
+         * @param seconds The audio decoded so far.
+         */
+        default void progressed(double seconds) {
+        }
+
+    }
+
+    private final ForkJoinPool pool;
+    private final Set<AudioDispatcher> dispatchers = ConcurrentHashMap.newKeySet();
+    private volatile boolean cancelled;
+    private SeekIndex seekIndex;
+    private DecodedPcm samples;
+
+    /**
+     * Constructs a new BoundaryDetector analyzing the chunks of a mix one
+     * after the other on the calling thread.
+     */
+    public BoundaryDetector() {
+        this(null);
+    }
+
+    /**
+     * Constructs a new BoundaryDetector.
+     *
+     * @param pool The pool chunks are analyzed on, null to analyze them on the calling thread.
+     */
+    public BoundaryDetector(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Sets the seek index of the mix, so every chunk is decoded from the
+     * frame of its start instead of where the decoder estimates it.
+     *
+     * @param seekIndex The index, or null to seek by the decoder's estimate.
+     */
+    public void setSeekIndex(SeekIndex seekIndex) {
+        this.seekIndex = seekIndex;
+    }
+
+    /**
+     * Sets the decoded samples of the mix, so chunks are read from them
+     * instead of decoded.
+     *
+     * @param samples The samples at {@link #SAMPLE_RATE}, or null to decode chunks.
+     * @throws IllegalArgumentException If the samples are at another rate.
+     */
+    public void setSamples(DecodedPcm samples) {
+        if (samples != null && samples.getSampleRate() != SAMPLE_RATE) {
+            throw new IllegalArgumentException("Samples at " + samples.getSampleRate() + " Hz instead of " + SAMPLE_RATE);
+        }
+        this.samples = samples;
+    }
+
+    /**
+     * Detects the track boundaries of a mix. The mix is cut into chunks of
+     * whole blocks, every chunk is decoded on its own, starting a few frames
+     * early to warm up the onset detection, and the blocks are stitched in
+     * order. The cuts only depend on the duration of the mix, so the result
+     * is the same whatever the pool and the number of threads.
+     *
+     * @param file     The mix.
+     * @param listener Receives boundaries as they are found, may be null.
+     * @return The boundaries in time order, the start of the mix is not one.
+     * @throws IOException If nothing could be decoded.
+     * @throws InterruptedIOException If the detection was cancelled.
+     */
+    public List<Boundary> detect(File file, Listener listener) throws IOException {
+        return detect(file, samples, listener);
+    }
+
+    /**
+     * Detects the track boundaries of a mix decoded already, cutting it in
+     * chunks the same way as {@link #detect(File, Listener)}.
+     *
+     * @param pcm      The samples of the mix at {@link #SAMPLE_RATE}.
+     * @param listener Receives boundaries as they are found, may be null.
+     * @return The boundaries in time order, the start of the mix is not one.
+     * @throws IOException If the samples cannot be read or there are none.
+     * @throws InterruptedIOException If the detection was cancelled.
+     */
+    public List<Boundary> detect(PcmSource pcm, Listener listener) throws IOException {
+        return detect(null, pcm, listener);
+    }
+
+    private List<Boundary> detect(File file, PcmSource pcm, Listener listener) throws IOException {
+        double blockSeconds = (double) FRAMES_PER_BLOCK * HOP_SIZE / SAMPLE_RATE;
+        double duration = pcm != null ? (double) pcm.getSampleCount() / SAMPLE_RATE
+                : AudioProbe.getDurationSeconds(file.toPath());
+        int chunks = Double.isNaN(duration) ? 1 : Math.max(1, (int) Math.ceil(duration / (CHUNK_BLOCKS * blockSeconds)));
+        NoveltyCurve curve = new NoveltyCurve(KERNEL_HALF_WIDTH);
+        List<Boundary> boundaries = new ArrayList<>();
+
+        // Chunks run at most two per thread ahead of the one being stitched
+        int ahead = pool != null ? 2 * pool.getParallelism() : 0;
+        Deque<ForkJoinTask<List<FeatureBlock>>> pending = new ArrayDeque<>();
+        int submitted = 0;
+        int blocks = 0;
+        try {
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                List<FeatureBlock> chunkBlocks;
+                if (pool == null) {
+                    chunkBlocks = analyzeChunk(file, pcm, chunk, chunks);
+                } else {
+                    while (submitted < chunks && submitted <= chunk + ahead) {
+                        int index = submitted++;
+                        pending.add(pool.submit(() -> analyzeChunk(file, pcm, index, chunks)));
+                    }
+                    chunkBlocks = join(pending.removeFirst());
+                }
+                for (FeatureBlock block : chunkBlocks) {
+                    curve.add(block);
+                    pickPeaks(curve, curve.size() - 1 - PEAK_DISTANCE, curve.size() - 1 - PEAK_DISTANCE, blockSeconds, boundaries, listener);
+                    if (listener != null && ++blocks % 10 == 0) {
+                        listener.progressed(blocks * blockSeconds);
+                    }
+                }
+            }
+        } finally {
+            if (!pending.isEmpty()) {
+                cancel();
+                for (ForkJoinTask<?> task : pending) {
+                    task.cancel(false);
+                }
+            }
+        }
+
+        int known = curve.size();
+        curve.finish();
+        if (curve.size() == 0) {
+            throw new IOException("No audio could be decoded from " + (file != null ? file : "the samples"));
+        }
+        // The peaks not yet confirmed by enough blocks after them
+        pickPeaks(curve, Math.max(0, known - PEAK_DISTANCE), curve.size() - 1, blockSeconds, boundaries, listener);
+        return boundaries;
+    }
+
+    /**
+     * Decodes one chunk of a mix into feature blocks, or reads it from the
+     * decoded samples. The last chunk runs to the end of the file, whatever
+     * the probed duration said.
+     */
+    private List<FeatureBlock> analyzeChunk(File file, PcmSource pcm, int chunk, int chunks) throws IOException {
+        if (cancelled) {
+            throw new InterruptedIOException("Boundary detection cancelled");
+        }
+        SpectralFeatures features = new SpectralFeatures(SAMPLE_RATE, FRAME_SIZE, HOP_SIZE, FRAMES_PER_BLOCK);
+        long firstFrame = (long) chunk * CHUNK_BLOCKS * FRAMES_PER_BLOCK;
+        int warmUp = (int) Math.min(WARM_UP_FRAMES, firstFrame);
+        long frames = warmUp + (long) CHUNK_BLOCKS * FRAMES_PER_BLOCK;
+        long firstSample = (firstFrame - warmUp) * HOP_SIZE;
+        long length = (frames - 1) * HOP_SIZE + FRAME_SIZE;
+        boolean last = chunk == chunks - 1;
+        AudioDispatcher audioDispatcher;
+        if (pcm instanceof DecodedPcm) {
+            audioDispatcher = ((DecodedPcm) pcm).dispatch(firstSample, last ? Long.MAX_VALUE : length, FRAME_SIZE,
+                    FRAME_SIZE - HOP_SIZE);
+        } else if (pcm != null) {
+            audioDispatcher = new AudioDispatcher(new PcmWindow(pcm, SAMPLE_RATE, firstSample, last ? Long.MAX_VALUE : length),
+                    FRAME_SIZE, FRAME_SIZE - HOP_SIZE);
+        } else {
+            double start = (double) firstSample / SAMPLE_RATE;
+            SeekIndex index = seekIndex;
+            if (index != null) {
+                start = index.toStreamSeconds(start);
+            }
+            audioDispatcher = last
+                    ? AudioDispatcherFactory.fromPipe(file.getAbsolutePath(), SAMPLE_RATE, FRAME_SIZE, FRAME_SIZE - HOP_SIZE, start)
+                    : AudioDispatcherFactory.fromPipe(file.getAbsolutePath(), SAMPLE_RATE, FRAME_SIZE, FRAME_SIZE - HOP_SIZE, start,
+                            (double) length / SAMPLE_RATE);
+        }
+        List<FeatureBlock> blocks = new ArrayList<>(CHUNK_BLOCKS + 1);
+        FeatureBlock block = new FeatureBlock();
+        audioDispatcher.addAudioProcessor(new AudioProcessor() {
+
+            private int frame;
+
+            @Override
+            public boolean process(AudioEvent audioEvent) {
+                if (frame++ < warmUp) {
+                    features.skipFrame(audioEvent.getFloatBuffer());
+                } else if (blocks.size() < CHUNK_BLOCKS || last) {
+                    if (features.addFrame(audioEvent.getFloatBuffer(), block)) {
+                        FeatureBlock copy = new FeatureBlock();
+                        copy.copyFrom(block);
+                        blocks.add(copy);
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public void processingFinished() {
+            }
+
+        });
+        dispatchers.add(audioDispatcher);
+        try {
+            if (cancelled) {
+                throw new InterruptedIOException("Boundary detection cancelled");
+            }
+            audioDispatcher.run();
+            if (cancelled) {
+                throw new InterruptedIOException("Boundary detection cancelled");
+            }
+        } finally {
+            dispatchers.remove(audioDispatcher);
+        }
+        if (last && features.flush(block)) {
+            blocks.add(block);
+        }
+        return blocks;
+    }
+
+    private static List<FeatureBlock> join(ForkJoinTask<List<FeatureBlock>> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Boundary detection interrupted");
+        } catch (ExecutionException e) {
+            // The pool may wrap the exception of the chunk, or rethrow a copy of it
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Checks the blocks from first to last, inclusive, for novelty peaks.
+     * A block is a peak if no block within the peak distance before it has
+     * as much novelty and none after it has more.
+     */
+    private static void pickPeaks(NoveltyCurve curve, int first, int last, double blockSeconds,
+            List<Boundary> boundaries, Listener listener) {
+        int size = curve.size();
+        for (int center = Math.max(curve.getHalfWidth(), first); center <= last; center++) {
+            float value = curve.get(center);
+            if (value <= 0 || !isPeak(curve, center, size)) {
+                continue;
+            }
+            // Prominence: how far the peak rises above the deeper of the
+            // valleys that separate it from higher ground on either side
+            float leftMin = value;
+            for (int i = Math.max(0, center - PEAK_DISTANCE); i < center; i++) {
+                leftMin = Math.min(leftMin, curve.get(i));
+            }
+            float rightMin = value;
+            for (int i = center + 1; i <= Math.min(size - 1, center + PEAK_DISTANCE); i++) {
+                rightMin = Math.min(rightMin, curve.get(i));
+            }
+            double prominence = value - Math.max(leftMin, rightMin);
+            double confidence = (1 - Math.exp(-value / NOVELTY_SCALE)) * prominence / value;
+            if (confidence < MIN_CONFIDENCE) {
+                continue;
+            }
+            Boundary boundary = new Boundary(center * blockSeconds, confidence);
+            boundaries.add(boundary);
+            if (listener != null) {
+                listener.boundaryFound(boundary);
+            }
+        }
+    }
+
+    private static boolean isPeak(NoveltyCurve curve, int center, int size) {
+        float value = curve.get(center);
+        for (int i = Math.max(0, center - PEAK_DISTANCE); i < center; i++) {
+            if (curve.get(i) >= value) {
+                return false;
+            }
+        }
+        for (int i = center + 1; i <= Math.min(size - 1, center + PEAK_DISTANCE); i++) {
+            if (curve.get(i) > value) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops a running detection, from any thread. The detecting thread then
+     * throws an InterruptedIOException.
+     */
+    public void cancel() {
+        cancelled = true;
+        for (AudioDispatcher audioDispatcher : dispatchers) {
+            audioDispatcher.stop();
+        }
+    }
+
+}
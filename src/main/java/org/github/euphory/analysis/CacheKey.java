@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.analysis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.github.euphory.tags.ID3v2Tag;
+import org.github.euphory.tags.ID3v2TagManager;
+import org.github.euphory.tags.MP4Atom;
+import org.github.euphory.tags.MP4AtomWalker;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Identifies the audio of a media file for the analysis cache: its size, its
+ * modification time and a SHA-256 hash of its audio payload. Only the audio
+ * is hashed, tags are left out, so editing tags keeps the cached analysis.
+ * The payload of big files is sampled at evenly spread windows instead of
+ * being read whole.
+ */
+public final class CacheKey {
+
+    static final int HASH_SIZE = 32;
+
+    private static final int SAMPLE_WINDOWS = 32;
+    private static final int WINDOW_SIZE = 32 * 1024;
+
+    private final long fileSize;
+    private final long lastModified;
+    private final byte[] hash;
+
+    CacheKey(long fileSize, long lastModified, byte[] hash) {
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        this.hash = hash;
+    }
+
+    /**
+     * Computes the key of a media file.
+     *
+     * @param file The file.
+     * @return The key.
+     * @throws IOException If the file cannot be read.
+     */
+    public static CacheKey of(Path file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long[] payload = locatePayload(channel);
+            long start = payload[0];
+            long length = payload[1] - payload[0];
+            digest.update(ByteBuffer.allocate(8).putLong(0, length));
+            ByteBuffer window = ByteBuffer.allocate(WINDOW_SIZE);
+            if (length <= (long) SAMPLE_WINDOWS * WINDOW_SIZE) {
+                hashRange(channel, start, length, window, digest);
+            } else {
+                long step = (length - WINDOW_SIZE) / (SAMPLE_WINDOWS - 1);
+                for (int i = 0; i < SAMPLE_WINDOWS; i++) {
+                    hashRange(channel, start + i * step, WINDOW_SIZE, window, digest);
+                }
+            }
+        }
+        return new CacheKey(attributes.size(), attributes.lastModifiedTime().toMillis(), digest.digest());
+    }
+
+    /**
+     * Finds the audio of a file: the biggest 'mdat' atom of an MP4 file, or
+     * what lies between the ID3v2 tag and an ID3v1 tag otherwise.
+     *
+     * @return The start and end offsets.
+     */
+    private static long[] locatePayload(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        MP4AtomWalker walker = new MP4AtomWalker(channel);
+        if (walker.isMP4()) {
+            MP4Atom biggest = null;
+            for (MP4Atom atom : walker.getChildren(null)) {
+                if (atom.getType() == MP4AtomWalker.MDAT && (biggest == null || atom.getDataSize() > biggest.getDataSize())) {
+                    biggest = atom;
+                }
+            }
+            if (biggest != null) {
+                return new long[] {biggest.getDataOffset(), biggest.getEnd()};
+            }
+            return new long[] {0, fileSize};
+        }
+        ID3v2Tag tag = ID3v2TagManager.readTag(channel);
+        long start = tag != null ? tag.getTagSize() : 0;
+        long end = fileSize;
+        if (end - start >= 128) {
+            ByteBuffer trailer = ByteBuffer.allocate(3);
+            channel.read(trailer, end - 128);
+            if (trailer.get(0) == 'T' && trailer.get(1) == 'A' && trailer.get(2) == 'G') {
+                end -= 128;
+            }
+        }
+        return new long[] {start, Math.max(start, end)};
+    }
+
+    private static void hashRange(FileChannel channel, long position, long length, ByteBuffer window, MessageDigest digest) throws IOException {
+        long end = position + length;
+        while (position < end) {
+            window.clear();
+            window.limit((int) Math.min(window.capacity(), end - position));
+            int read = channel.read(window, position);
+            if (read < 0) {
+                break;
+            }
+            window.flip();
+            digest.update(window);
+            position += read;
+        }
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    byte[] getHash() {
+        return hash;
+    }
+
+    /**
+     * Gets the name of the cache entry, the hash in hexadecimal.
+     *
+     * @return The hexadecimal hash.
+     */
+    public String toHex() {
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof CacheKey)) {
+            return false;
+        }
+        CacheKey key = (CacheKey) other;
+        return fileSize == key.fileSize && lastModified == key.lastModified && Arrays.equals(hash, key.hash);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(hash);
+    }
+
+    @Override
+    public String toString() {
+        return toHex() + " (" + fileSize + " bytes, modified " + lastModified + ")";
+    }
+
+}
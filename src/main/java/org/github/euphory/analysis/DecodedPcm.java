@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.analysis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import be.tarsos.dsp.AudioDispatcher;
+import be.tarsos.dsp.io.TarsosDSPAudioFormat;
+import be.tarsos.dsp.io.TarsosDSPAudioInputStream;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * The decoded samples of a media file from the PCM cache, mapped in memory.
+ * The file is mapped in segments so it may be bigger than 2 GB, and every
+ * segment is seen through a read-only ShortBuffer or FloatBuffer without
+ * copying. Reads use absolute positions only, so any number of threads can
+ * read at once. Analyzers built on TarsosDSP read a window of the samples
+ * through a dispatcher instead of decoding the file again.
+ */
+public final class DecodedPcm implements PcmSource {
+
+    /**
+     * How the samples are stored, little-endian.
+     */
+    public enum Format {
+
+        /**
+         * 16-bit signed integers, half the disk of floats.
+         */
+        PCM_16(2),
+
+        /**
+         * 32-bit floats from -1 to 1, as decoded.
+         */
+        FLOAT(4);
+
+        private final int bytesPerSample;
+
+        Format(int bytesPerSample) {
+            this.bytesPerSample = bytesPerSample;
+        }
+
+        public int getBytesPerSample() {
+            return bytesPerSample;
+        }
+
+    }
+
+    /**
+     * The samples in a segment, a power of two so a sample is found by
+     * shifting: 256 MB of 16-bit samples, 512 MB of floats.
+     */
+    public static final int SEGMENT_SAMPLES = 1 << 27;
+
+    private static final int SEGMENT_SHIFT = 27;
+
+    private final PcmCache cache;
+    private final Path file;
+    private final int sampleRate;
+    private final Format format;
+    private final long sampleCount;
+    private final ByteBuffer[] segments;
+    private final ShortBuffer[] shortViews;
+    private final FloatBuffer[] floatViews;
+    private final PcmSpool writer;
+    private boolean closed;
+
+    DecodedPcm(PcmCache cache, Path file, int sampleRate, Format format, PcmSpool writer) throws IOException {
+        this.cache = cache;
+        this.file = file;
+        this.sampleRate = sampleRate;
+        this.format = format;
+        this.writer = writer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            sampleCount = channel.size() / format.getBytesPerSample();
+            int count = (int) ((sampleCount + SEGMENT_SAMPLES - 1) >> SEGMENT_SHIFT);
+            segments = new ByteBuffer[count];
+            shortViews = new ShortBuffer[format == Format.PCM_16 ? count : 0];
+            floatViews = new FloatBuffer[format == Format.FLOAT ? count : 0];
+            for (int i = 0; i < count; i++) {
+                long first = (long) i << SEGMENT_SHIFT;
+                long samples = Math.min(SEGMENT_SAMPLES, sampleCount - first);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, first * format.getBytesPerSample(),
+                        samples * format.getBytesPerSample()).order(ByteOrder.LITTLE_ENDIAN);
+                if (format == Format.PCM_16) {
+                    shortViews[i] = segments[i].asShortBuffer();
+                } else {
+                    floatViews[i] = segments[i].asFloatBuffer();
+                }
+            }
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    @Override
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    public double getDurationSeconds() {
+        return (double) sampleCount / sampleRate;
+    }
+
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * Gets a segment of 16-bit samples, full scale being Short.MAX_VALUE.
+     *
+     * @param segment The segment, starting at sample segment * SEGMENT_SAMPLES.
+     * @return A read-only view of the mapped samples.
+     * @throws IllegalStateException If the samples are floats.
+     */
+    public ShortBuffer getShortView(int segment) {
+        if (format != Format.PCM_16) {
+            throw new IllegalStateException("The samples are " + format);
+        }
+        return shortViews[segment].asReadOnlyBuffer();
+    }
+
+    /**
+     * Gets a segment of float samples.
+     *
+     * @param segment The segment, starting at sample segment * SEGMENT_SAMPLES.
+     * @return A read-only view of the mapped samples.
+     * @throws IllegalStateException If the samples are 16-bit.
+     */
+    public FloatBuffer getFloatView(int segment) {
+        if (format != Format.FLOAT) {
+            throw new IllegalStateException("The samples are " + format);
+        }
+        return floatViews[segment].asReadOnlyBuffer();
+    }
+
+    /**
+     * Gets one sample.
+     *
+     * @param index The sample.
+     * @return Its value from -1 to 1.
+     */
+    public float get(long index) {
+        int segment = (int) (index >> SEGMENT_SHIFT);
+        int position = (int) (index & (SEGMENT_SAMPLES - 1));
+        return format == Format.FLOAT ? floatViews[segment].get(position) : shortViews[segment].get(position) / PeakLevel.SCALE;
+    }
+
+    @Override
+    public int read(long start, float[] destination, int offset, int length) {
+        int count = (int) Math.max(0, Math.min(length, sampleCount - start));
+        int done = 0;
+        while (done < count) {
+            long index = start + done;
+            int segment = (int) (index >> SEGMENT_SHIFT);
+            int position = (int) (index & (SEGMENT_SAMPLES - 1));
+            int run = Math.min(count - done, SEGMENT_SAMPLES - position);
+            if (format == Format.FLOAT) {
+                FloatBuffer view = floatViews[segment];
+                for (int i = 0; i < run; i++) {
+                    destination[offset + done + i] = view.get(position + i);
+                }
+            } else {
+                ShortBuffer view = shortViews[segment];
+                for (int i = 0; i < run; i++) {
+                    destination[offset + done + i] = view.get(position + i) / PeakLevel.SCALE;
+                }
+            }
+            done += run;
+        }
+        return count;
+    }
+
+    /**
+     * Creates a dispatcher reading a window of the samples, as TarsosDSP
+     * would read them decoded from the media file.
+     *
+     * @param start         The first sample.
+     * @param length        The number of samples, cut at the end.
+     * @param bufferSize    The size of the buffers handed to processors.
+     * @param bufferOverlap The samples shared by two consecutive buffers.
+     * @return The dispatcher, to be run on the caller's thread.
+     */
+    public AudioDispatcher dispatch(long start, long length, int bufferSize, int bufferOverlap) {
+        long first = Math.max(0, Math.min(start, sampleCount));
+        long end = first + Math.max(0, Math.min(length, sampleCount - first));
+        return new AudioDispatcher(new Window(first, end), bufferSize, bufferOverlap);
+    }
+
+    /**
+     * Releases the samples. The mapped file stays in the cache for the next
+     * analysis.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (writer != null) {
+            writer.close();
+        }
+        cache.release(file);
+    }
+
+    static short quantize(float sample) {
+        return (short) Math.round(Math.max(-1f, Math.min(1f, sample)) * PeakLevel.SCALE);
+    }
+
+    /**
+     * A window of the samples as a TarsosDSP stream of bytes, each stream
+     * with its own positions in the shared segments.
+     */
+    private final class Window implements TarsosDSPAudioInputStream {
+
+        private final TarsosDSPAudioFormat audioFormat;
+        private final ByteBuffer[] views = new ByteBuffer[segments.length];
+        private final long end;
+        private long position;
+
+        private Window(long start, long end) {
+            this.position = start;
+            this.end = end;
+            this.audioFormat = format == Format.FLOAT
+                    ? new TarsosDSPAudioFormat(TarsosDSPAudioFormat.Encoding.PCM_FLOAT, sampleRate, 32, 1, 4, sampleRate, false)
+                    : new TarsosDSPAudioFormat(sampleRate, 16, 1, true, false);
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            int size = format.getBytesPerSample();
+            long samples = Math.min(end - position, length / size);
+            if (samples <= 0) {
+                return -1;
+            }
+            int done = 0;
+            while (done < samples) {
+                int segment = (int) (position >> SEGMENT_SHIFT);
+                int index = (int) (position & (SEGMENT_SAMPLES - 1));
+                int run = (int) Math.min(samples - done, SEGMENT_SAMPLES - index);
+                if (views[segment] == null) {
+                    views[segment] = segments[segment].duplicate();
+                }
+                ByteBuffer view = views[segment];
+                view.position(index * size);
+                view.get(bytes, offset + done * size, run * size);
+                done += run;
+                position += run;
+            }
+            return done * size;
+        }
+
+        @Override
+        public long skip(long bytes) {
+            long samples = Math.min(end - position, bytes / format.getBytesPerSample());
+            position += samples;
+            return samples * format.getBytesPerSample();
+        }
+
+        @Override
+        public void close() {
+            position = end;
+        }
+
+        @Override
+        public TarsosDSPAudioFormat getFormat() {
+            return audioFormat;
+        }
+
+        @Override
+        public long getFrameLength() {
+            return end - position;
+        }
+
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.analysis;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * The features of about one second of audio: the shape of its spectrum in
+ * log-spaced bands, its chroma, its loudness and how often notes start.
+ * Vectors are stored centred and normalized, so comparing two blocks only
+ * takes dot products. Blocks are mutable and reused.
+ */
+final class FeatureBlock {
+
+    static final int BANDS = 24;
+    static final int PITCH_CLASSES = 12;
+
+    private static final float TIMBRE_WEIGHT = 0.4f;
+    private static final float CHROMA_WEIGHT = 0.3f;
+    private static final float ENERGY_WEIGHT = 0.15f;
+    private static final float ONSET_WEIGHT = 0.15f;
+
+    /**
+     * Loudness difference, in dB, at which blocks are 1/e as similar.
+     */
+    private static final float ENERGY_SCALE = 6f;
+
+    /**
+     * Onset rate difference, in onsets per second, at which blocks are 1/e as similar.
+     */
+    private static final float ONSET_SCALE = 2f;
+
+    final float[] timbre = new float[BANDS];
+    final float[] chroma = new float[PITCH_CLASSES];
+    float energy;
+    float onsetRate;
+
+    void copyFrom(FeatureBlock other) {
+        System.arraycopy(other.timbre, 0, timbre, 0, BANDS);
+        System.arraycopy(other.chroma, 0, chroma, 0, PITCH_CLASSES);
+        energy = other.energy;
+        onsetRate = other.onsetRate;
+    }
+
+    /**
+     * Centres and normalizes the vectors once they are filled.
+     */
+    void normalize() {
+        float mean = 0;
+        for (float value : timbre) {
+            mean += value;
+        }
+        mean /= BANDS;
+        for (int i = 0; i < BANDS; i++) {
+            timbre[i] -= mean;
+        }
+        scaleToUnit(timbre);
+        scaleToUnit(chroma);
+    }
+
+    /**
+     * Compares two blocks.
+     *
+     * @return 1 for identical blocks, down to about -0.7 for opposite ones.
+     */
+    static float similarity(FeatureBlock a, FeatureBlock b) {
+        return TIMBRE_WEIGHT * dot(a.timbre, b.timbre)
+                + CHROMA_WEIGHT * dot(a.chroma, b.chroma)
+                + ENERGY_WEIGHT * (float) Math.exp(-Math.abs(a.energy - b.energy) / ENERGY_SCALE)
+                + ONSET_WEIGHT * (float) Math.exp(-Math.abs(a.onsetRate - b.onsetRate) / ONSET_SCALE);
+    }
+
+    private static float dot(float[] a, float[] b) {
+        float sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    private static void scaleToUnit(float[] vector) {
+        float norm = (float) Math.sqrt(dot(vector, vector));
+        if (norm > 1e-9f) {
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] /= norm;
+            }
+        }
+    }
+
+}
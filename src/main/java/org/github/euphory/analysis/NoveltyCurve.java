@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.analysis;
+
+import java.util.Arrays;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Computes a novelty curve by sliding a Gaussian-tapered checkerboard kernel
+ * along the diagonal of the self-similarity matrix of feature blocks. Only
+ * the band of the matrix under the kernel is ever needed, so the last
+ * kernel-width blocks and their similarities are kept in rings, and every new
+ * block costs one row of similarities plus one kernel product. The curve
+ * itself, one value per block, is the only thing that grows.
+ */
+final class NoveltyCurve {
+
+    private final int halfWidth;
+    private final int width;
+    private final float[][] kernel;
+    private final FeatureBlock[] blocks;
+    private final float[][] similarity;
+    private int blockCount;
+
+    private float[] novelty = new float[1024];
+    private int size;
+
+    /**
+     * @param halfWidth The blocks on each side of a boundary compared by the kernel.
+     */
+    NoveltyCurve(int halfWidth) {
+        this.halfWidth = halfWidth;
+        this.width = 2 * halfWidth;
+        this.kernel = createKernel(halfWidth);
+        this.blocks = new FeatureBlock[width];
+        for (int i = 0; i < width; i++) {
+            blocks[i] = new FeatureBlock();
+        }
+        this.similarity = new float[width][width];
+    }
+
+    /**
+     * Builds the checkerboard kernel, positive where both blocks are on the
+     * same side of the centre, normalized so novelty stays between -1 and 1.
+     */
+    private static float[][] createKernel(int halfWidth) {
+        int width = 2 * halfWidth;
+        float[] taper = new float[width];
+        for (int i = 0; i < width; i++) {
+            double distance = (i - halfWidth + 0.5) / (halfWidth * 0.5);
+            taper[i] = (float) Math.exp(-0.5 * distance * distance);
+        }
+        float[][] kernel = new float[width][width];
+        float total = 0;
+        for (int i = 0; i < width; i++) {
+            for (int j = 0; j < width; j++) {
+                float sign = (i < halfWidth) == (j < halfWidth) ? 1 : -1;
+                kernel[i][j] = sign * taper[i] * taper[j];
+                total += Math.abs(kernel[i][j]);
+            }
+        }
+        for (float[] row : kernel) {
+            for (int j = 0; j < width; j++) {
+                row[j] /= total;
+            }
+        }
+        return kernel;
+    }
+
+    /**
+     * Adds the next block. Once the window is full this sets the novelty of
+     * the block halfWidth blocks back, blocks too close to the start get 0.
+     *
+     * @param block The block, copied.
+     */
+    void add(FeatureBlock block) {
+        int slot = blockCount % width;
+        blocks[slot].copyFrom(block);
+        int known = Math.min(blockCount, width - 1);
+        for (int back = 1; back <= known; back++) {
+            int other = (blockCount - back) % width;
+            float value = FeatureBlock.similarity(blocks[slot], blocks[other]);
+            similarity[slot][other] = value;
+            similarity[other][slot] = value;
+        }
+        similarity[slot][slot] = FeatureBlock.similarity(blocks[slot], blocks[slot]);
+        blockCount++;
+        if (blockCount >= width) {
+            append(computeNovelty());
+        } else if (blockCount >= halfWidth) {
+            append(0);
+        }
+    }
+
+    /**
+     * Ends the curve, giving 0 to the last blocks the kernel could not centre on.
+     */
+    void finish() {
+        while (size < blockCount) {
+            append(0);
+        }
+    }
+
+    private float computeNovelty() {
+        int first = blockCount - width;
+        float sum = 0;
+        for (int i = 0; i < width; i++) {
+            float[] row = similarity[(first + i) % width];
+            float[] kernelRow = kernel[i];
+            for (int j = 0; j < width; j++) {
+                sum += kernelRow[j] * row[(first + j) % width];
+            }
+        }
+        return sum;
+    }
+
+    private void append(float value) {
+        if (size == novelty.length) {
+            novelty = Arrays.copyOf(novelty, size * 2);
+        }
+        novelty[size++] = value;
+    }
+
+    /**
+     * Gets the number of blocks with a known novelty.
+     */
+    int size() {
+        return size;
+    }
+
+    float get(int block) {
+        return novelty[block];
+    }
+
+    int getHalfWidth() {
+        return halfWidth;
+    }
+
+}
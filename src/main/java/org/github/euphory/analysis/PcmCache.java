@@ -0,0 +1,431 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.analysis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import be.tarsos.dsp.AudioDispatcher;
+import be.tarsos.dsp.AudioEvent;
+import be.tarsos.dsp.AudioProcessor;
+import be.tarsos.dsp.io.jvm.AudioDispatcherFactory;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * On-disk cache of decoded audio, so the analyses of a media file share one
+ * decode. A file is decoded once at the base sample rate, downmixed to mono,
+ * and every lower rate that divides the base rate is derived from it by
+ * decimation instead of decoding again. Each file of samples is named by the
+ * audio payload hash, the sample rate and the sample format, and is mapped
+ * in memory by the analyses that read it. The least recently used files are
+ * deleted when the cache outgrows its byte budget, except those still open.
+ */
+public final class PcmCache {
+
+    public static final int BASE_SAMPLE_RATE = 44100;
+
+    /**
+     * About 12 hours of 16-bit audio at the base sample rate.
+     */
+    public static final long DEFAULT_BUDGET = 4L * 1024 * 1024 * 1024;
+
+    private static final String SUFFIX = ".pcm";
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Taps of the decimation filter on each side of its center, per unit of
+     * the decimation factor.
+     */
+    private static final int HALF_TAPS_PER_FACTOR = 8;
+
+    /**
+     * The filter passes up to this fraction of the new Nyquist frequency.
+     */
+    private static final double PASS_BAND = 0.9;
+
+    private static PcmCache defaultCache;
+
+    private final Path directory;
+    private final long budget;
+    private final DecodedPcm.Format format;
+    private final Map<Path, Integer> users = new HashMap<>();
+    private final Map<String, Object> locks = new HashMap<>();
+
+    /**
+     * Receives the samples of a media file while they are decoded, or
+     * derived from those of another sample rate, on the calling thread.
+     */
+    public interface DecodeListener {
+
+        /**
+         * Called with every buffer written to the cache.
+         *
+         * @param samples The mono samples, from -1 to 1.
+         * @param length  The number of samples in the buffer.
+         * @param written The samples written so far, which can already be read.
+         * @throws IOException If the listener failed, which stops the decoding.
+         */
+        default void decoded(float[] samples, int length, PcmSource written) throws IOException {
+        }
+
+        /**
+         * Tells whether the decoding should stop, checked with every buffer.
+         *
+         * @return True to stop it and throw an InterruptedIOException.
+         */
+        default boolean isCancelled() {
+            return false;
+        }
+
+    }
+
+    /**
+     * Constructs a new PcmCache.
+     *
+     * @param directory The cache directory, created when needed.
+     * @param budget    The maximum total size of the files in bytes.
+     * @param format    The format new files are written in.
+     */
+    public PcmCache(Path directory, long budget, DecodedPcm.Format format) {
+        this.directory = directory;
+        this.budget = budget;
+        this.format = format;
+    }
+
+    /**
+     * Gets the cache shared by the application, in the directory named by the
+     * "euphory.pcm.dir" system property or in ~/.euphory/pcm, with the budget
+     * of the "euphory.pcm.budget" property and the format of the
+     * "euphory.pcm.format" one, PCM_16 or FLOAT. Decodes left over by an
+     * earlier run are deleted.
+     *
+     * @return The cache.
+     */
+    public static synchronized PcmCache getDefault() {
+        if (defaultCache == null) {
+            String directory = System.getProperty("euphory.pcm.dir");
+            Path path = directory != null ? Paths.get(directory) : Paths.get(System.getProperty("user.home"), ".euphory", "pcm");
+            DecodedPcm.Format format = DecodedPcm.Format.valueOf(System.getProperty("euphory.pcm.format", DecodedPcm.Format.PCM_16.name()));
+            defaultCache = new PcmCache(path, Long.getLong("euphory.pcm.budget", DEFAULT_BUDGET), format);
+            try {
+                defaultCache.deleteLeftovers();
+            } catch (IOException e) {
+                // They will count against the budget until the next run
+                e.printStackTrace();
+            }
+        }
+        return defaultCache;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public DecodedPcm.Format getFormat() {
+        return format;
+    }
+
+    /**
+     * Opens the decoded samples of a media file, decoding it if they are not
+     * cached yet.
+     *
+     * @param file       The media file.
+     * @param sampleRate The sample rate of the samples.
+     * @return The samples, to be closed by the caller.
+     * @throws IOException If nothing could be decoded or the samples cannot be stored.
+     */
+    public DecodedPcm open(File file, int sampleRate) throws IOException {
+        return open(file, sampleRate, null);
+    }
+
+    /**
+     * Opens the decoded samples of a media file, decoding it if they are not
+     * cached yet. Threads opening the same samples wait for one decode.
+     *
+     * @param file       The media file.
+     * @param sampleRate The sample rate of the samples.
+     * @param listener   Receives the samples if they are decoded, may be null.
+     * @return The samples, to be closed by the caller.
+     * @throws IOException If nothing could be decoded or the samples cannot be stored.
+     * @throws InterruptedIOException If the listener cancelled the decoding.
+     */
+    public DecodedPcm open(File file, int sampleRate, DecodeListener listener) throws IOException {
+        CacheKey key = CacheKey.of(file.toPath());
+        String name = key.toHex() + "-" + sampleRate + (format == DecodedPcm.Format.FLOAT ? "f" : "s") + SUFFIX;
+        Path target = directory.resolve(name);
+        synchronized (lockFor(name)) {
+            if (Files.isRegularFile(target)) {
+                Files.setLastModifiedTime(target, FileTime.fromMillis(System.currentTimeMillis()));
+                return map(target, sampleRate, null);
+            }
+            Files.createDirectories(directory);
+            Path temp = Files.createTempFile(directory, ".decode", ".tmp");
+            PcmSpool spool = null;
+            try {
+                spool = PcmSpool.create(temp, format);
+                if (sampleRate != BASE_SAMPLE_RATE && BASE_SAMPLE_RATE % sampleRate == 0) {
+                    try (DecodedPcm base = open(file, BASE_SAMPLE_RATE, cancelledBy(listener))) {
+                        decimate(base, BASE_SAMPLE_RATE / sampleRate, spool, listener);
+                    }
+                } else {
+                    decode(file, sampleRate, spool, listener);
+                }
+                spool.flush();
+                if (spool.getSampleCount() == 0) {
+                    throw new IOException("No audio could be decoded from " + file);
+                }
+                try {
+                    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+                // The spool stays open, the snapshots handed to the listener read from it
+                DecodedPcm pcm = map(target, sampleRate, spool);
+                spool = null;
+                evict();
+                return pcm;
+            } finally {
+                if (spool != null) {
+                    spool.close();
+                }
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     * Deletes every file of the cache that is not open.
+     *
+     * @throws IOException If the directory cannot be listed.
+     */
+    public void clear() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path entry : stream) {
+                if (!isInUse(entry)) {
+                    try {
+                        Files.deleteIfExists(entry);
+                    } catch (IOException e) {
+                        // Still mapped by a closed but not yet collected buffer
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes a media file through a TarsosDSP dispatcher.
+     */
+    private static void decode(File file, int sampleRate, PcmSpool spool, DecodeListener listener) throws IOException {
+        AudioDispatcher audioDispatcher = AudioDispatcherFactory.fromPipe(file.getAbsolutePath(), sampleRate, BUFFER_SIZE, 0);
+        audioDispatcher.setZeroPadLastBuffer(false);
+        audioDispatcher.addAudioProcessor(new AudioProcessor() {
+
+            @Override
+            public boolean process(AudioEvent audioEvent) {
+                if (listener != null && listener.isCancelled()) {
+                    audioDispatcher.stop();
+                    return false;
+                }
+                float[] buffer = audioEvent.getFloatBuffer();
+                try {
+                    spool.write(buffer, 0, buffer.length);
+                    if (listener != null) {
+                        listener.decoded(buffer, buffer.length, spool);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return true;
+            }
+
+            @Override
+            public void processingFinished() {
+            }
+
+        });
+        try {
+            audioDispatcher.run();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (listener != null && listener.isCancelled()) {
+            throw new InterruptedIOException("Decoding cancelled");
+        }
+    }
+
+    /**
+     * Lowers the sample rate of samples by an integer factor, through a
+     * Blackman windowed sinc low-pass filter so nothing above the new Nyquist
+     * frequency folds back.
+     */
+    private static void decimate(DecodedPcm source, int factor, PcmSpool spool, DecodeListener listener) throws IOException {
+        int halfTaps = HALF_TAPS_PER_FACTOR * factor;
+        double[] shape = new double[2 * halfTaps + 1];
+        float[] taps = new float[shape.length];
+        double cutoff = PASS_BAND / factor;
+        double sum = 0;
+        for (int i = 0; i < taps.length; i++) {
+            int n = i - halfTaps;
+            double sinc = n == 0 ? cutoff : Math.sin(Math.PI * cutoff * n) / (Math.PI * n);
+            double window = 0.42 - 0.5 * Math.cos(2 * Math.PI * i / (taps.length - 1)) + 0.08 * Math.cos(4 * Math.PI * i / (taps.length - 1));
+            shape[i] = sinc * window;
+            sum += shape[i];
+        }
+        for (int i = 0; i < taps.length; i++) {
+            taps[i] = (float) (shape[i] / sum);
+        }
+
+        long count = source.getSampleCount();
+        float[] input = new float[BUFFER_SIZE * factor + taps.length];
+        float[] output = new float[BUFFER_SIZE];
+        for (long first = 0; first * factor < count; first += BUFFER_SIZE) {
+            if (listener != null && listener.isCancelled()) {
+                throw new InterruptedIOException("Decoding cancelled");
+            }
+            int length = (int) Math.min(BUFFER_SIZE, (count - first * factor + factor - 1) / factor);
+            // The input around the outputs, zeros before the start and past the end
+            long from = first * factor - halfTaps;
+            Arrays.fill(input, 0);
+            long readFrom = Math.max(0, from);
+            source.read(readFrom, input, (int) (readFrom - from), (int) Math.min(input.length - (readFrom - from), count - readFrom));
+            for (int i = 0; i < length; i++) {
+                int center = i * factor;
+                float value = 0;
+                for (int t = 0; t < taps.length; t++) {
+                    value += taps[t] * input[center + t];
+                }
+                output[i] = value;
+            }
+            spool.write(output, 0, length);
+            if (listener != null) {
+                listener.decoded(output, length, spool);
+            }
+        }
+    }
+
+    /**
+     * A listener that only passes on the cancellation of another.
+     */
+    private static DecodeListener cancelledBy(DecodeListener listener) {
+        if (listener == null) {
+            return null;
+        }
+        return new DecodeListener() {
+            @Override
+            public boolean isCancelled() {
+                return listener.isCancelled();
+            }
+        };
+    }
+
+    private DecodedPcm map(Path file, int sampleRate, PcmSpool writer) throws IOException {
+        synchronized (users) {
+            users.merge(file, 1, Integer::sum);
+        }
+        try {
+            return new DecodedPcm(this, file, sampleRate, format, writer);
+        } catch (IOException | RuntimeException e) {
+            release(file);
+            throw e;
+        }
+    }
+
+    /**
+     * Called when decoded samples are closed.
+     */
+    void release(Path file) {
+        synchronized (users) {
+            users.computeIfPresent(file, (path, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+
+    private boolean isInUse(Path file) {
+        synchronized (users) {
+            return users.containsKey(file);
+        }
+    }
+
+    private Object lockFor(String name) {
+        synchronized (locks) {
+            return locks.computeIfAbsent(name, n -> new Object());
+        }
+    }
+
+    /**
+     * Deletes the least recently used files until the budget is met, skipping
+     * those that are open or cannot be deleted.
+     */
+    private void evict() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        List<BasicFileAttributes> attributes = new ArrayList<>();
+        long total = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path entry : stream) {
+                BasicFileAttributes attribute = Files.readAttributes(entry, BasicFileAttributes.class);
+                entries.add(entry);
+                attributes.add(attribute);
+                total += attribute.size();
+            }
+        }
+        Integer[] order = new Integer[entries.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing(i -> attributes.get(i).lastModifiedTime()));
+        for (int i = 0; i < order.length && total > budget; i++) {
+            Path entry = entries.get(order[i]);
+            if (isInUse(entry)) {
+                continue;
+            }
+            try {
+                Files.deleteIfExists(entry);
+                total -= attributes.get(order[i]).size();
+            } catch (IOException e) {
+                // Still mapped, try the next one
+            }
+        }
+    }
+
+    private void deleteLeftovers() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, ".decode*.tmp")) {
+            for (Path entry : stream) {
+                Files.deleteIfExists(entry);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.analysis;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Decoded mono samples that can be read back, while they are being written
+ * or once they are complete.
+ */
+public interface PcmSource extends Closeable {
+
+    /**
+     * Gets the number of samples that can be read.
+     */
+    long getSampleCount();
+
+    /**
+     * Reads samples, from any thread.
+     *
+     * @return The number of samples read, less than asked at the end.
+     */
+    int read(long start, float[] destination, int offset, int length) throws IOException;
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.analysis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Writes decoded samples to a file of the PCM cache, as mono little-endian
+ * 16-bit or float PCM. The samples written so far can be read back while
+ * the decoding goes on, so the waveform can be zoomed into before the whole
+ * file is decoded.
+ */
+final class PcmSpool implements PcmSource {
+
+    private static final int BUFFER_SAMPLES = 32 * 1024;
+
+    private final FileChannel channel;
+    private final DecodedPcm.Format format;
+    private final ByteBuffer writeBuffer;
+    private final float[] pending = new float[BUFFER_SAMPLES];
+    private int buffered;
+    private volatile long flushedSamples;
+
+    private PcmSpool(FileChannel channel, DecodedPcm.Format format) {
+        this.channel = channel;
+        this.format = format;
+        this.writeBuffer = ByteBuffer.allocateDirect(BUFFER_SAMPLES * format.getBytesPerSample()).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Opens a file to write samples to, emptying it.
+     */
+    static PcmSpool create(Path file, DecodedPcm.Format format) throws IOException {
+        return new PcmSpool(FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING), format);
+    }
+
+    /**
+     * Appends samples, only called by the decoding thread.
+     */
+    void write(float[] samples, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            if (buffered == BUFFER_SAMPLES) {
+                flush();
+            }
+            pending[buffered++] = samples[i];
+        }
+    }
+
+    void flush() throws IOException {
+        writeBuffer.clear();
+        if (format == DecodedPcm.Format.FLOAT) {
+            writeBuffer.asFloatBuffer().put(pending, 0, buffered);
+        } else {
+            for (int i = 0; i < buffered; i++) {
+                writeBuffer.putShort(i * 2, DecodedPcm.quantize(pending[i]));
+            }
+        }
+        writeBuffer.limit(buffered * format.getBytesPerSample());
+        buffered = 0;
+        long position = flushedSamples * format.getBytesPerSample();
+        while (writeBuffer.hasRemaining()) {
+            position += channel.write(writeBuffer, position);
+        }
+        flushedSamples = position / format.getBytesPerSample();
+    }
+
+    @Override
+    public long getSampleCount() {
+        return flushedSamples;
+    }
+
+    @Override
+    public int read(long start, float[] destination, int offset, int length) throws IOException {
+        int size = format.getBytesPerSample();
+        int count = (int) Math.max(0, Math.min(length, flushedSamples - start));
+        ByteBuffer buffer = ByteBuffer.allocate(count * size).order(ByteOrder.LITTLE_ENDIAN);
+        long position = start * size;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        int samples = buffer.remaining() / size;
+        for (int i = 0; i < samples; i++) {
+            destination[offset + i] = size == 2 ? buffer.getShort() / PeakLevel.SCALE : buffer.getFloat();
+        }
+        return samples;
+    }
+
+    /**
+     * Closes the file, which is kept. The samples can still be read from it
+     * after the cache moved it.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
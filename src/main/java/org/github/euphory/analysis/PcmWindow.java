@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.analysis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import be.tarsos.dsp.io.TarsosDSPAudioFormat;
+import be.tarsos.dsp.io.TarsosDSPAudioInputStream;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * A window of the samples of any {@link PcmSource} as a TarsosDSP stream of
+ * 32-bit floats, so a dispatcher frames them as it frames decoded audio.
+ * {@link DecodedPcm} has its own window over its mapped segments.
+ */
+final class PcmWindow implements TarsosDSPAudioInputStream {
+
+    private static final int BYTES_PER_SAMPLE = 4;
+
+    private final PcmSource source;
+    private final TarsosDSPAudioFormat audioFormat;
+    private final long end;
+    private long position;
+    private float[] buffer = new float[0];
+
+    /**
+     * Constructs a new PcmWindow.
+     *
+     * @param source     The samples.
+     * @param sampleRate Their sample rate.
+     * @param start      The first sample.
+     * @param length     The number of samples, cut at the end.
+     */
+    PcmWindow(PcmSource source, int sampleRate, long start, long length) {
+        long count = source.getSampleCount();
+        this.source = source;
+        this.position = Math.max(0, Math.min(start, count));
+        this.end = position + Math.max(0, Math.min(length, count - position));
+        this.audioFormat = new TarsosDSPAudioFormat(TarsosDSPAudioFormat.Encoding.PCM_FLOAT, sampleRate, 32, 1,
+                BYTES_PER_SAMPLE, sampleRate, false);
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        int samples = (int) Math.min(end - position, length / BYTES_PER_SAMPLE);
+        if (samples <= 0) {
+            return -1;
+        }
+        if (buffer.length < samples) {
+            buffer = new float[samples];
+        }
+        int read = source.read(position, buffer, 0, samples);
+        if (read <= 0) {
+            return -1;
+        }
+        ByteBuffer.wrap(bytes, offset, read * BYTES_PER_SAMPLE).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer()
+                .put(buffer, 0, read);
+        position += read;
+        return read * BYTES_PER_SAMPLE;
+    }
+
+    @Override
+    public long skip(long bytes) {
+        long samples = Math.min(end - position, bytes / BYTES_PER_SAMPLE);
+        position += samples;
+        return samples * BYTES_PER_SAMPLE;
+    }
+
+    @Override
+    public void close() {
+        position = end;
+    }
+
+    @Override
+    public TarsosDSPAudioFormat getFormat() {
+        return audioFormat;
+    }
+
+    @Override
+    public long getFrameLength() {
+        return end - position;
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.analysis;
+
+import java.nio.ShortBuffer;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * One zoom level of a waveform: the minimum, maximum and RMS of every block
+ * of samplesPerPeak samples, quantized to 16 bits. A level is a read-only
+ * view over buffers that wrap the arrays of a running analysis or map a cache
+ * entry, only absolute reads are used so it can be shared between threads.
+ */
+public final class PeakLevel {
+
+    static final float SCALE = Short.MAX_VALUE;
+
+    private final int samplesPerPeak;
+    private final ShortBuffer min;
+    private final ShortBuffer max;
+    private final ShortBuffer rms;
+    private final int size;
+
+    PeakLevel(int samplesPerPeak, ShortBuffer min, ShortBuffer max, ShortBuffer rms, int size) {
+        this.samplesPerPeak = samplesPerPeak;
+        this.min = min;
+        this.max = max;
+        this.rms = rms;
+        this.size = size;
+    }
+
+    /**
+     * Gets the number of samples summarized by each peak, a power of two.
+     *
+     * @return The samples per peak.
+     */
+    public int getSamplesPerPeak() {
+        return samplesPerPeak;
+    }
+
+    /**
+     * Gets the number of peaks available.
+     *
+     * @return The number of peaks.
+     */
+    public int size() {
+        return size;
+    }
+
+    public float getMin(int index) {
+        return getMinValue(index) / SCALE;
+    }
+
+    public float getMax(int index) {
+        return getMaxValue(index) / SCALE;
+    }
+
+    public float getRms(int index) {
+        return getRmsValue(index) / SCALE;
+    }
+
+    /**
+     * Gets a raw minimum, for renderers that walk many peaks.
+     *
+     * @param index The peak index.
+     * @return The minimum, scaled to the range of a short.
+     */
+    public short getMinValue(int index) {
+        return min.get(checkIndex(index));
+    }
+
+    /**
+     * @param index The peak index.
+     * @return The maximum, see {@link #getMinValue(int)}.
+     */
+    public short getMaxValue(int index) {
+        return max.get(checkIndex(index));
+    }
+
+    /**
+     * @param index The peak index.
+     * @return The RMS value, see {@link #getMinValue(int)}.
+     */
+    public short getRmsValue(int index) {
+        return rms.get(checkIndex(index));
+    }
+
+    ShortBuffer getMinBuffer() {
+        return min;
+    }
+
+    ShortBuffer getMaxBuffer() {
+        return max;
+    }
+
+    ShortBuffer getRmsBuffer() {
+        return rms;
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Peak " + index + " of " + size);
+        }
+        return index;
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.analysis;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Accumulates one level of the peak pyramid. Every completed peak is also
+ * fed to the next, twice coarser, level, so all levels are built in a single
+ * pass over the samples. Arrays only grow by doubling, earlier snapshots keep
+ * pointing at the old arrays, which are never written past their size.
+ */
+final class PeakLevelBuilder {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final int samplesPerPeak;
+    private final PeakLevelBuilder next;
+    private short[] min = new short[INITIAL_CAPACITY];
+    private short[] max = new short[INITIAL_CAPACITY];
+    private short[] rms = new short[INITIAL_CAPACITY];
+    private int size;
+
+    private float blockMin = Float.MAX_VALUE;
+    private float blockMax = -Float.MAX_VALUE;
+    private double blockSumSquares;
+    private int blockSamples;
+
+    private PeakLevelBuilder(int samplesPerPeak, PeakLevelBuilder next) {
+        this.samplesPerPeak = samplesPerPeak;
+        this.next = next;
+    }
+
+    /**
+     * Creates the builders of a whole pyramid.
+     *
+     * @param baseSamplesPerPeak The samples per peak of the finest level.
+     * @param levels             The number of levels.
+     * @return The builder of the finest level, linked to the coarser ones.
+     */
+    static PeakLevelBuilder create(int baseSamplesPerPeak, int levels) {
+        PeakLevelBuilder builder = null;
+        for (int level = levels - 1; level >= 0; level--) {
+            builder = new PeakLevelBuilder(baseSamplesPerPeak << level, builder);
+        }
+        return builder;
+    }
+
+    /**
+     * Adds decoded samples to the finest level.
+     */
+    void addSamples(float[] samples, int offset, int length) {
+        float blockMin = this.blockMin;
+        float blockMax = this.blockMax;
+        double blockSumSquares = this.blockSumSquares;
+        int blockSamples = this.blockSamples;
+        for (int i = offset; i < offset + length; i++) {
+            float sample = samples[i];
+            blockMin = Math.min(blockMin, sample);
+            blockMax = Math.max(blockMax, sample);
+            blockSumSquares += sample * sample;
+            if (++blockSamples == samplesPerPeak) {
+                append(blockMin, blockMax, blockSumSquares, blockSamples);
+                blockMin = Float.MAX_VALUE;
+                blockMax = -Float.MAX_VALUE;
+                blockSumSquares = 0;
+                blockSamples = 0;
+            }
+        }
+        this.blockMin = blockMin;
+        this.blockMax = blockMax;
+        this.blockSumSquares = blockSumSquares;
+        this.blockSamples = blockSamples;
+    }
+
+    private void addPeak(float peakMin, float peakMax, double sumSquares, int samples) {
+        blockMin = Math.min(blockMin, peakMin);
+        blockMax = Math.max(blockMax, peakMax);
+        blockSumSquares += sumSquares;
+        blockSamples += samples;
+        if (blockSamples == samplesPerPeak) {
+            append(blockMin, blockMax, blockSumSquares, blockSamples);
+            resetBlock();
+        }
+    }
+
+    /**
+     * Closes the partial block of every level, at the end of the stream.
+     */
+    void finish() {
+        if (blockSamples > 0) {
+            append(blockMin, blockMax, blockSumSquares, blockSamples);
+            resetBlock();
+        }
+        if (next != null) {
+            next.finish();
+        }
+    }
+
+    private void append(float peakMin, float peakMax, double sumSquares, int samples) {
+        if (size == min.length) {
+            min = Arrays.copyOf(min, size * 2);
+            max = Arrays.copyOf(max, size * 2);
+            rms = Arrays.copyOf(rms, size * 2);
+        }
+        min[size] = quantize(peakMin);
+        max[size] = quantize(peakMax);
+        rms[size] = quantize((float) Math.sqrt(sumSquares / samples));
+        size++;
+        if (next != null) {
+            next.addPeak(peakMin, peakMax, sumSquares, samples);
+        }
+    }
+
+    private void resetBlock() {
+        blockMin = Float.MAX_VALUE;
+        blockMax = -Float.MAX_VALUE;
+        blockSumSquares = 0;
+        blockSamples = 0;
+    }
+
+    /**
+     * Gets the number of completed peaks of the finest level.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Takes a read-only view of every level as it is now.
+     */
+    PeakLevel[] snapshot() {
+        int levels = 0;
+        for (PeakLevelBuilder builder = this; builder != null; builder = builder.next) {
+            levels++;
+        }
+        PeakLevel[] snapshot = new PeakLevel[levels];
+        PeakLevelBuilder builder = this;
+        for (int level = 0; level < levels; level++, builder = builder.next) {
+            snapshot[level] = new PeakLevel(builder.samplesPerPeak, ShortBuffer.wrap(builder.min),
+                    ShortBuffer.wrap(builder.max), ShortBuffer.wrap(builder.rms), builder.size);
+        }
+        return snapshot;
+    }
+
+    private static short quantize(float value) {
+        return (short) Math.round(Math.max(-1f, Math.min(1f, value)) * PeakLevel.SCALE);
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.analysis;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Power spectrum of real frames through an iterative radix-2 FFT. A frame of
+ * n samples is packed into n / 2 complex values, transformed in place and
+ * split into the n / 2 + 1 bins of the real transform. The bit reversal and
+ * twiddle tables are computed once and no buffer is allocated per frame, so
+ * an instance must only be used by one thread at a time.
+ */
+final class RealFft {
+
+    private final int size;
+    private final int half;
+    private final int[] reversed;
+    private final double[] cos;
+    private final double[] sin;
+    private final double[] splitCos;
+    private final double[] splitSin;
+    private final double[] re;
+    private final double[] im;
+
+    /**
+     * @param size The frame size, a power of two of at least 4.
+     */
+    RealFft(int size) {
+        if (size < 4 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("FFT size " + size + " is not a power of two");
+        }
+        this.size = size;
+        this.half = size / 2;
+        this.reversed = new int[half];
+        int bits = Integer.numberOfTrailingZeros(half);
+        for (int i = 0; i < half; i++) {
+            reversed[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+        this.cos = new double[half / 2];
+        this.sin = new double[half / 2];
+        for (int i = 0; i < half / 2; i++) {
+            cos[i] = Math.cos(2 * Math.PI * i / half);
+            sin[i] = Math.sin(2 * Math.PI * i / half);
+        }
+        this.splitCos = new double[half];
+        this.splitSin = new double[half];
+        for (int i = 0; i < half; i++) {
+            splitCos[i] = Math.cos(2 * Math.PI * i / size);
+            splitSin[i] = Math.sin(2 * Math.PI * i / size);
+        }
+        this.re = new double[half];
+        this.im = new double[half];
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * Computes the power of every bin of a frame.
+     *
+     * @param frame The samples, already windowed.
+     * @param power Receives the squared magnitudes of bins 0 to size / 2.
+     */
+    void powerSpectrum(float[] frame, double[] power) {
+        for (int i = 0; i < half; i++) {
+            int j = reversed[i];
+            re[j] = frame[2 * i];
+            im[j] = frame[2 * i + 1];
+        }
+        for (int length = 2; length <= half; length <<= 1) {
+            int span = length / 2;
+            int step = half / length;
+            for (int start = 0; start < half; start += length) {
+                for (int k = 0; k < span; k++) {
+                    double wr = cos[k * step];
+                    double wi = -sin[k * step];
+                    int a = start + k;
+                    int b = a + span;
+                    double tr = wr * re[b] - wi * im[b];
+                    double ti = wr * im[b] + wi * re[b];
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+        // The even and odd samples were transformed together, split them
+        power[0] = (re[0] + im[0]) * (re[0] + im[0]);
+        power[half] = (re[0] - im[0]) * (re[0] - im[0]);
+        for (int k = 1; k < half; k++) {
+            double a = re[k];
+            double b = im[k];
+            double c = re[half - k];
+            double d = im[half - k];
+            double evenRe = (a + c) / 2;
+            double evenIm = (b - d) / 2;
+            double oddRe = (b + d) / 2;
+            double oddIm = (c - a) / 2;
+            double wr = splitCos[k];
+            double wi = -splitSin[k];
+            double xr = evenRe + wr * oddRe - wi * oddIm;
+            double xi = evenIm + wr * oddIm + wi * oddRe;
+            power[k] = xr * xr + xi * xi;
+        }
+    }
+
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.analysis;
+
+import java.util.Arrays;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Maps the time of a media file to the byte offsets of its audio frames: the
+ * frames of an MP3 stream, or the samples of an MP4 audio track. Entries are
+ * kept in primitive arrays, the start times only when frames differ in
+ * length, and are found in O(log n). Offsets are kept relative to the start
+ * of the audio, so an index still holds after the tags in front of it grow.
+ * <p>
+ * Demuxers do not seek an MP3 stream by its frames but by estimating the
+ * byte of a time from the Xing table of contents or the bitrate, which lands
+ * seconds off in long variable bitrate files. The index also keeps what
+ * they estimate from, to tell which time to ask them for to land on a frame.
+ */
+public final class SeekIndex {
+
+    private static final int TOC_SIZE = 100;
+
+    private final int timescale;
+    private final long frameTicks;
+    private final long[] times;
+    private final long[] offsets;
+    private final int count;
+    private final long endTicks;
+    private final long start;
+    private final long dataLength;
+    private final boolean exact;
+    private final double estimatedSeconds;
+    private final byte[] toc;
+
+    /**
+     * Constructs a new SeekIndex.
+     *
+     * @param timescale        The ticks per second of the times.
+     * @param frameTicks       The length of every frame in ticks, or 0 when they differ.
+     * @param times            The start time of every entry in ticks, null when frames do not differ.
+     * @param offsets          The offset of every entry, from the start of the audio.
+     * @param count            The number of entries.
+     * @param endTicks         The end time of the last entry in ticks.
+     * @param start            The file offset of the start of the audio.
+     * @param dataLength       The length of the audio in bytes.
+     * @param exact            True when every frame has an entry.
+     * @param estimatedSeconds The duration demuxers estimate the byte of a time from, NaN
+     *                         when they seek by the frames.
+     * @param toc              The Xing table of contents demuxers estimate the byte of a time
+     *                         from, null if there is none.
+     */
+    public SeekIndex(int timescale, long frameTicks, long[] times, long[] offsets, int count, long endTicks,
+                     long start, long dataLength, boolean exact, double estimatedSeconds, byte[] toc) {
+        if (timescale <= 0 || (times == null && frameTicks <= 0) || count <= 0 || count > offsets.length
+                || (times != null && count > times.length) || (toc != null && toc.length != TOC_SIZE)) {
+            throw new IllegalArgumentException("Invalid seek index");
+        }
+        this.timescale = timescale;
+        this.frameTicks = times == null ? frameTicks : 0;
+        this.times = times;
+        this.offsets = offsets;
+        this.count = count;
+        this.endTicks = endTicks;
+        this.start = start;
+        this.dataLength = dataLength;
+        this.exact = exact;
+        this.estimatedSeconds = estimatedSeconds;
+        this.toc = toc;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int getTimescale() {
+        return timescale;
+    }
+
+    /**
+     * @return The length of every frame in ticks, 0 when they differ.
+     */
+    public long getFrameTicks() {
+        return frameTicks;
+    }
+
+    /**
+     * @return True when every frame has an entry, false for an index read from
+     *         a table of contents.
+     */
+    public boolean isExact() {
+        return exact;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getDataLength() {
+        return dataLength;
+    }
+
+    public long getEndTicks() {
+        return endTicks;
+    }
+
+    public double getEstimatedSeconds() {
+        return estimatedSeconds;
+    }
+
+    public double getDurationSeconds() {
+        return (double) endTicks / timescale;
+    }
+
+    /**
+     * Finds the entry holding a time.
+     *
+     * @param seconds The time.
+     * @return The index of the last entry starting at or before the time, 0 before the first.
+     */
+    public int indexOf(double seconds) {
+        long ticks = (long) Math.floor(seconds * timescale);
+        if (times == null) {
+            return (int) Math.max(0, Math.min(count - 1, ticks / frameTicks));
+        }
+        int found = Arrays.binarySearch(times, 0, count, ticks);
+        return Math.max(0, found >= 0 ? found : -found - 2);
+    }
+
+    /**
+     * Finds the entry holding a byte.
+     *
+     * @param offset The file offset.
+     * @return The index of the last entry starting at or before the offset, 0 before the first.
+     */
+    public int indexOfOffset(long offset) {
+        int found = Arrays.binarySearch(offsets, 0, count, offset - start);
+        return Math.max(0, found >= 0 ? found : -found - 2);
+    }
+
+    public long getTicks(int index) {
+        return times != null ? times[index] : index * frameTicks;
+    }
+
+    public double getSeconds(int index) {
+        return (double) getTicks(index) / timescale;
+    }
+
+    /**
+     * @param index The index of the entry.
+     * @return The file offset of the entry.
+     */
+    public long getOffset(int index) {
+        return start + offsets[index];
+    }
+
+    /**
+     * Gets the time to ask a demuxer to seek to, so it lands on the frame
+     * holding a time.
+     *
+     * @param seconds The time.
+     * @return The time in the demuxer's estimate.
+     */
+    public double toStreamSeconds(double seconds) {
+        if (Double.isNaN(estimatedSeconds) || dataLength <= 0) {
+            return seconds;
+        }
+        int index = indexOf(seconds);
+        double fraction = toFraction(offsets[index]);
+        return fraction * estimatedSeconds + Math.max(0, seconds - getSeconds(index));
+    }
+
+    /**
+     * The fraction of the duration a demuxer gives to a byte of the audio.
+     */
+    private double toFraction(long offset) {
+        if (toc == null) {
+            return Math.min(1, (double) offset / dataLength);
+        }
+        double position = (double) offset / dataLength * 256;
+        int point = 0;
+        while (point + 1 < TOC_SIZE && (toc[point + 1] & 0xff) <= position) {
+            point++;
+        }
+        double from = toc[point] & 0xff;
+        double to = point + 1 < TOC_SIZE ? toc[point + 1] & 0xff : 256;
+        double within = to > from ? (position - from) / (to - from) : 0;
+        return Math.min(1, (point + Math.max(0, Math.min(1, within))) / TOC_SIZE);
+    }
+
+    long[] getTimes() {
+        return times;
+    }
+
+    long[] getOffsets() {
+        return offsets;
+    }
+
+    byte[] getToc() {
+        return toc;
+    }
+
+}
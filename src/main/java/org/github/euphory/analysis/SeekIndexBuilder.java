@@ -0,0 +1,535 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.analysis;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.github.euphory.tags.ID3v2Tag;
+import org.github.euphory.tags.ID3v2TagManager;
+import org.github.euphory.tags.MP4Atom;
+import org.github.euphory.tags.MP4AtomWalker;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Builds the seek index of a media file. An MP4 index comes straight from
+ * the 'stts', 'stsz', 'stsc' and 'stco' sample tables of the audio track. An
+ * MP3 index takes one pass over the frame headers, jumping from one to the
+ * next without reading the audio between them; the Xing or VBRI table of
+ * contents gives a coarse index meanwhile.
+ */
+public final class SeekIndexBuilder {
+
+    private static final int TRAK = 0x7472616b; // 'trak'
+    private static final int MDIA = 0x6d646961; // 'mdia'
+    private static final int MDHD = 0x6d646864; // 'mdhd'
+    private static final int MINF = 0x6d696e66; // 'minf'
+    private static final int STBL = 0x7374626c; // 'stbl'
+    private static final int STTS = 0x73747473; // 'stts'
+    private static final int STSC = 0x73747363; // 'stsc'
+    private static final int STSZ = 0x7374737a; // 'stsz'
+    private static final int STCO = 0x7374636f; // 'stco'
+    private static final int CO64 = 0x636f3634; // 'co64'
+    private static final int SOUN = 0x736f756e; // 'soun'
+
+    private static final int XING_FRAMES = 1;
+    private static final int XING_BYTES = 2;
+    private static final int XING_TOC = 4;
+    private static final int TOC_SIZE = 100;
+
+    private static final int READ_SIZE = 256 * 1024;
+
+    private SeekIndexBuilder() {
+    }
+
+    /**
+     * Gets the seek index of a media file from the analysis cache, or builds
+     * and stores it.
+     *
+     * @param file  The media file.
+     * @param cache The cache.
+     * @return The index, or null if the file has no audio this class knows.
+     * @throws IOException If the file cannot be read.
+     */
+    public static SeekIndex load(Path file, AnalysisCache cache) throws IOException {
+        CacheKey key = CacheKey.of(file);
+        SeekIndex index = cache.loadSeekIndex(key, locateStart(file));
+        if (index != null) {
+            return index;
+        }
+        index = build(file);
+        if (index != null) {
+            try {
+                cache.storeSeekIndex(key, index);
+            } catch (IOException e) {
+                // The index is still good, it will just be built again next time
+                e.printStackTrace();
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Builds the exact index of a media file.
+     *
+     * @param file The media file.
+     * @return The index, or null if the file has no audio this class knows.
+     * @throws IOException If the file cannot be read.
+     * @throws InterruptedIOException If the thread was interrupted.
+     */
+    public static SeekIndex build(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MP4AtomWalker walker = new MP4AtomWalker(channel);
+            if (walker.isMP4()) {
+                return buildMP4(walker);
+            }
+            return new FrameScanner(channel).scan();
+        }
+    }
+
+    /**
+     * Reads the index a media file tells in its headers, without scanning it:
+     * the sample tables of an MP4 file, or the Xing or VBRI table of contents
+     * of an MP3 file.
+     *
+     * @param file The media file.
+     * @return The index, or null if the headers tell none.
+     * @throws IOException If the file cannot be read.
+     */
+    public static SeekIndex readTableOfContents(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MP4AtomWalker walker = new MP4AtomWalker(channel);
+            if (walker.isMP4()) {
+                return buildMP4(walker);
+            }
+            FrameScanner scanner = new FrameScanner(channel);
+            return scanner.findFirstFrame() ? scanner.readTableOfContents() : null;
+        }
+    }
+
+    /**
+     * Finds where the audio of a media file starts, as the offsets of its
+     * index are counted from there.
+     *
+     * @param file The media file.
+     * @return The offset, -1 if there is no audio this class knows.
+     * @throws IOException If the file cannot be read.
+     */
+    public static long locateStart(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MP4AtomWalker walker = new MP4AtomWalker(channel);
+            if (walker.isMP4()) {
+                MP4Atom mdat = findPayload(walker);
+                return mdat != null ? mdat.getDataOffset() : -1;
+            }
+            FrameScanner scanner = new FrameScanner(channel);
+            return scanner.findFirstFrame() ? scanner.start : -1;
+        }
+    }
+
+    private static MP4Atom findPayload(MP4AtomWalker walker) throws IOException {
+        // The same 'mdat' as the cache key hashes
+        MP4Atom biggest = null;
+        for (MP4Atom atom : walker.getChildren(null)) {
+            if (atom.getType() == MP4AtomWalker.MDAT && (biggest == null || atom.getDataSize() > biggest.getDataSize())) {
+                biggest = atom;
+            }
+        }
+        return biggest;
+    }
+
+    private static SeekIndex buildMP4(MP4AtomWalker walker) throws IOException {
+        MP4Atom[] moov = walker.findPath(MP4AtomWalker.MOOV);
+        MP4Atom mdat = findPayload(walker);
+        if (moov == null || mdat == null) {
+            return null;
+        }
+        for (MP4Atom trak : walker.getChildren(moov[0])) {
+            MP4Atom mdia = trak.getType() == TRAK ? walker.findChild(trak, MDIA) : null;
+            MP4Atom hdlr = mdia != null ? walker.findChild(mdia, MP4AtomWalker.HDLR) : null;
+            if (hdlr == null || hdlr.getDataSize() < 12 || walker.readFully(hdlr.getDataOffset() + 8, 4).getInt(0) != SOUN) {
+                continue;
+            }
+            MP4Atom mdhd = walker.findChild(mdia, MDHD);
+            MP4Atom minf = walker.findChild(mdia, MINF);
+            MP4Atom stbl = minf != null ? walker.findChild(minf, STBL) : null;
+            if (mdhd == null || stbl == null) {
+                continue;
+            }
+            ByteBuffer header = readTable(walker, mdhd);
+            long timescale = header.getInt(header.get(0) == 1 ? 20 : 12) & 0xffffffffL;
+            MP4Atom stts = walker.findChild(stbl, STTS);
+            MP4Atom stsc = walker.findChild(stbl, STSC);
+            MP4Atom stsz = walker.findChild(stbl, STSZ);
+            MP4Atom stco = walker.findChild(stbl, STCO);
+            MP4Atom co64 = stco == null ? walker.findChild(stbl, CO64) : null;
+            if (stts == null || stsc == null || stsz == null || (stco == null && co64 == null)
+                    || timescale <= 0 || timescale > Integer.MAX_VALUE) {
+                continue;
+            }
+            return buildMP4(readTable(walker, stts), readTable(walker, stsc), readTable(walker, stsz),
+                    readTable(walker, stco != null ? stco : co64), co64 != null, (int) timescale, mdat);
+        }
+        return null;
+    }
+
+    private static SeekIndex buildMP4(ByteBuffer stts, ByteBuffer stsc, ByteBuffer stsz, ByteBuffer chunkOffsets,
+                                      boolean wideOffsets, int timescale, MP4Atom mdat) throws IOException {
+        if (stsz.limit() < 12 || stts.limit() < 8 || stsc.limit() < 8 || chunkOffsets.limit() < 8) {
+            throw new IOException("Truncated sample table");
+        }
+        int sampleSize = stsz.getInt(4);
+        int sampleCount = stsz.getInt(8);
+        int chunkCount = chunkOffsets.getInt(4);
+        int chunkEntries = stsc.getInt(4);
+        int timeEntries = stts.getInt(4);
+        if (sampleCount <= 0 || (sampleSize == 0 && stsz.limit() < 12 + 4L * sampleCount)
+                || chunkCount < 0 || chunkOffsets.limit() < 8 + (long) chunkCount * (wideOffsets ? 8 : 4)
+                || chunkEntries < 0 || stsc.limit() < 8 + 12L * chunkEntries
+                || timeEntries < 0 || stts.limit() < 8 + 8L * timeEntries) {
+            throw new IOException("Truncated sample table");
+        }
+
+        long start = mdat.getDataOffset();
+        long[] offsets = new long[sampleCount];
+        int sample = 0;
+        for (int entry = 0; entry < chunkEntries && sample < sampleCount; entry++) {
+            int firstChunk = stsc.getInt(8 + entry * 12) - 1;
+            int lastChunk = entry + 1 < chunkEntries ? stsc.getInt(8 + (entry + 1) * 12) - 1 : chunkCount;
+            int samplesPerChunk = stsc.getInt(12 + entry * 12);
+            for (int chunk = Math.max(0, firstChunk); chunk < Math.min(lastChunk, chunkCount) && sample < sampleCount; chunk++) {
+                long offset = wideOffsets ? chunkOffsets.getLong(8 + chunk * 8) : chunkOffsets.getInt(8 + chunk * 4) & 0xffffffffL;
+                for (int i = 0; i < samplesPerChunk && sample < sampleCount; i++, sample++) {
+                    offsets[sample] = offset - start;
+                    offset += sampleSize != 0 ? sampleSize : stsz.getInt(12 + sample * 4) & 0xffffffffL;
+                }
+            }
+        }
+        if (sample < sampleCount) {
+            throw new IOException("The sample table misses " + (sampleCount - sample) + " samples");
+        }
+
+        long[] times = timeEntries > 1 ? new long[sampleCount] : null;
+        long ticks = 0;
+        long frameTicks = timeEntries > 0 ? stts.getInt(12) & 0xffffffffL : 0;
+        sample = 0;
+        for (int entry = 0; entry < timeEntries; entry++) {
+            long count = stts.getInt(8 + entry * 8) & 0xffffffffL;
+            long delta = stts.getInt(12 + entry * 8) & 0xffffffffL;
+            if (times != null) {
+                for (long i = 0; i < count && sample < sampleCount; i++, sample++) {
+                    times[sample] = ticks;
+                    ticks += delta;
+                }
+            } else {
+                ticks += count * delta;
+            }
+        }
+        if (times != null) {
+            while (sample < sampleCount) {
+                times[sample++] = ticks;
+            }
+        } else if (frameTicks <= 0) {
+            throw new IOException("Samples without a duration");
+        }
+        return new SeekIndex(timescale, frameTicks, times, offsets, sampleCount, ticks, start, mdat.getDataSize(),
+                true, Double.NaN, null);
+    }
+
+    private static ByteBuffer readTable(MP4AtomWalker walker, MP4Atom atom) throws IOException {
+        // Small payloads come in the walker's reused buffer
+        ByteBuffer data = walker.readData(atom);
+        ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data).flip();
+        return copy;
+    }
+
+    /**
+     * Walks the frames of an MP3 stream, through a buffer refilled as it goes.
+     */
+    private static final class FrameScanner {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+        private long bufferStart = -1;
+        private long end;
+
+        // The first frame, the stream properties and the table of contents
+        private long start;
+        private int firstHeader;
+        private int sampleRate;
+        private int samplesPerFrame;
+        private boolean infoFrame;
+        private long frames = -1;
+        private long bytes = -1;
+        private byte[] toc;
+        private int[] vbriSizes;
+        private int vbriFramesPerEntry;
+
+        private FrameScanner(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        private boolean findFirstFrame() throws IOException {
+            ID3v2Tag tag = ID3v2TagManager.readTag(channel);
+            long from = tag != null ? tag.getTagSize() : 0;
+            end = channel.size();
+            if (end - from >= 128 && getInt(end - 128) >>> 8 == 0x544147) { // 'TAG'
+                end -= 128;
+            }
+            for (long position = from; position + 4 <= Math.min(end, from + AudioProbe.SYNC_SEARCH); position++) {
+                int header = getInt(position);
+                int length = frameLength(header);
+                if (length > 0 && (position + length + 4 > end || matches(header, getInt(position + length)))) {
+                    start = position;
+                    firstHeader = header;
+                    boolean mpeg1 = ((header >>> 19) & 3) == 3;
+                    sampleRate = sampleRate(header);
+                    samplesPerFrame = mpeg1 ? 1152 : 576;
+                    readInfoFrame(position, header, length);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Reads the Xing, Info or VBRI header the first frame may hold
+         * instead of audio.
+         */
+        private void readInfoFrame(long position, int header, int length) throws IOException {
+            boolean mpeg1 = ((header >>> 19) & 3) == 3;
+            boolean mono = ((header >>> 6) & 3) == 3;
+            int sideInfo = mpeg1 ? (mono ? 17 : 32) : (mono ? 9 : 17);
+            long xing = position + 4 + sideInfo;
+            long vbri = position + 4 + 32;
+            if (xing + 8 <= position + length && (getInt(xing) == AudioProbe.XING || getInt(xing) == AudioProbe.INFO)) {
+                infoFrame = true;
+                int flags = getInt(xing + 4);
+                long field = xing + 8;
+                if ((flags & XING_FRAMES) != 0) {
+                    frames = getInt(field) & 0xffffffffL;
+                    field += 4;
+                }
+                if ((flags & XING_BYTES) != 0) {
+                    bytes = getInt(field) & 0xffffffffL;
+                    field += 4;
+                }
+                if ((flags & XING_TOC) != 0 && field + TOC_SIZE <= position + length) {
+                    toc = new byte[TOC_SIZE];
+                    for (int i = 0; i < TOC_SIZE; i++) {
+                        toc[i] = getByte(field + i);
+                    }
+                }
+            } else if (vbri + 26 <= position + length && getInt(vbri) == AudioProbe.VBRI) {
+                infoFrame = true;
+                bytes = getInt(vbri + 10) & 0xffffffffL;
+                frames = getInt(vbri + 14) & 0xffffffffL;
+                int entries = getShort(vbri + 18);
+                int scale = getShort(vbri + 20);
+                int entrySize = getShort(vbri + 22);
+                vbriFramesPerEntry = getShort(vbri + 24);
+                if (entries > 0 && entrySize >= 1 && entrySize <= 4 && vbriFramesPerEntry > 0
+                        && vbri + 26 + (long) entries * entrySize <= end) {
+                    vbriSizes = new int[entries];
+                    for (int i = 0; i < entries; i++) {
+                        int size = 0;
+                        for (int b = 0; b < entrySize; b++) {
+                            size = size << 8 | getByte(vbri + 26 + (long) i * entrySize + b) & 0xff;
+                        }
+                        vbriSizes[i] = size * scale;
+                    }
+                }
+            }
+        }
+
+        private SeekIndex readTableOfContents() throws IOException {
+            if (frames <= 0) {
+                return null;
+            }
+            long dataLength = getDataLength();
+            long endTicks = frames * samplesPerFrame;
+            if (toc != null) {
+                long[] times = new long[TOC_SIZE];
+                long[] offsets = new long[TOC_SIZE];
+                for (int i = 0; i < TOC_SIZE; i++) {
+                    times[i] = frames * i / TOC_SIZE * samplesPerFrame;
+                    offsets[i] = (long) ((toc[i] & 0xff) / 256.0 * dataLength);
+                }
+                return new SeekIndex(sampleRate, 0, times, offsets, TOC_SIZE, endTicks, start, dataLength, false,
+                        getEstimatedSeconds(dataLength), toc);
+            }
+            if (vbriSizes != null) {
+                long[] times = new long[vbriSizes.length + 1];
+                long[] offsets = new long[vbriSizes.length + 1];
+                // The table counts from the end of the VBRI frame
+                offsets[0] = frameLength(firstHeader);
+                for (int i = 0; i < vbriSizes.length; i++) {
+                    times[i + 1] = Math.min(frames, (long) (i + 1) * vbriFramesPerEntry) * samplesPerFrame;
+                    offsets[i + 1] = offsets[i] + vbriSizes[i];
+                }
+                return new SeekIndex(sampleRate, 0, times, offsets, times.length, endTicks, start, dataLength, false,
+                        getEstimatedSeconds(dataLength), null);
+            }
+            return null;
+        }
+
+        private SeekIndex scan() throws IOException {
+            if (!findFirstFrame()) {
+                return null;
+            }
+            long[] offsets = new long[1024];
+            int count = 0;
+            long position = start;
+            int length = frameLength(firstHeader);
+            if (infoFrame) {
+                position += length;
+            }
+            while (position + 4 <= end) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Frame scan interrupted");
+                }
+                int header = getInt(position);
+                length = matches(firstHeader, header) ? frameLength(header) : -1;
+                if (length <= 0) {
+                    position = resync(position + 1);
+                    if (position < 0) {
+                        break;
+                    }
+                    continue;
+                }
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                }
+                offsets[count++] = position - start;
+                position += length;
+            }
+            if (count == 0) {
+                return null;
+            }
+            long dataLength = getDataLength();
+            return new SeekIndex(sampleRate, samplesPerFrame, null, Arrays.copyOf(offsets, count), count,
+                    (long) count * samplesPerFrame, start, dataLength, true, getEstimatedSeconds(dataLength), toc);
+        }
+
+        /**
+         * Finds the next frame after garbage, one followed by another frame.
+         *
+         * @return Its offset, or -1 if there is none close enough.
+         */
+        private long resync(long from) throws IOException {
+            long limit = Math.min(end, from + AudioProbe.SYNC_SEARCH);
+            for (long position = from; position + 4 <= limit; position++) {
+                int header = getInt(position);
+                if ((header & 0xffe00000) != 0xffe00000 || !matches(firstHeader, header)) {
+                    continue;
+                }
+                int length = frameLength(header);
+                if (length > 0 && (position + length + 4 > end || matches(firstHeader, getInt(position + length)))) {
+                    return position;
+                }
+            }
+            return -1;
+        }
+
+        private long getDataLength() {
+            return bytes > 0 ? Math.min(bytes, end - start) : end - start;
+        }
+
+        /**
+         * The duration demuxers seek by: the frame count of the info frame, or
+         * the bitrate of the first frame.
+         */
+        private double getEstimatedSeconds(long dataLength) {
+            if (frames > 0) {
+                return (double) frames * samplesPerFrame / sampleRate;
+            }
+            boolean mpeg1 = ((firstHeader >>> 19) & 3) == 3;
+            int bitrate = (mpeg1 ? AudioProbe.MPEG1_BITRATES : AudioProbe.MPEG2_BITRATES)[(firstHeader >>> 12) & 15] * 1000;
+            return dataLength * 8.0 / bitrate;
+        }
+
+        private int getInt(long position) throws IOException {
+            fill(position, 4);
+            return buffer.getInt((int) (position - bufferStart));
+        }
+
+        private int getShort(long position) throws IOException {
+            fill(position, 2);
+            return buffer.getShort((int) (position - bufferStart)) & 0xffff;
+        }
+
+        private byte getByte(long position) throws IOException {
+            fill(position, 1);
+            return buffer.get((int) (position - bufferStart));
+        }
+
+        private void fill(long position, int length) throws IOException {
+            if (bufferStart >= 0 && position >= bufferStart && position + length <= bufferStart + buffer.limit()) {
+                return;
+            }
+            buffer.clear();
+            while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+                // Read a whole buffer unless the file ends
+            }
+            buffer.flip();
+            bufferStart = position;
+            if (buffer.limit() < length) {
+                // Past the end, read as zeros which are never a frame header
+                buffer.clear();
+                Arrays.fill(buffer.array(), (byte) 0);
+                bufferStart = position;
+            }
+        }
+
+    }
+
+    /**
+     * Tells whether a header belongs to the same stream as the first one.
+     */
+    private static boolean matches(int first, int header) {
+        // Sync, version, layer and sample rate never change within a stream
+        return (header & 0xfffe0c00) == (first & 0xfffe0c00) && frameLength(header) > 0;
+    }
+
+    private static int sampleRate(int header) {
+        int version = (header >>> 19) & 3;
+        return AudioProbe.MPEG1_SAMPLE_RATES[(header >>> 10) & 3] >> (version == 3 ? 0 : version == 2 ? 1 : 2);
+    }
+
+    /**
+     * Gets the length of a layer III frame.
+     *
+     * @return The length in bytes, -1 if the header is not one of a frame.
+     */
+    private static int frameLength(int header) {
+        if ((header & 0xffe00000) != 0xffe00000) {
+            return -1;
+        }
+        int version = (header >>> 19) & 3;
+        int layer = (header >>> 17) & 3;
+        int bitrateIndex = (header >>> 12) & 15;
+        int sampleRateIndex = (header >>> 10) & 3;
+        if (version == 1 || layer != 1 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) {
+            return -1;
+        }
+        boolean mpeg1 = version == 3;
+        int bitrate = (mpeg1 ? AudioProbe.MPEG1_BITRATES : AudioProbe.MPEG2_BITRATES)[bitrateIndex] * 1000;
+        int padding = (header >>> 9) & 1;
+        return (mpeg1 ? 144 : 72) * bitrate / sampleRate(header) + padding;
+    }
+
+}
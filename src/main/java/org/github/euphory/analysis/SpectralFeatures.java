@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.analysis;
+
+import java.util.Arrays;
+
+import be.tarsos.dsp.util.fft.FFT;
+import be.tarsos.dsp.util.fft.HannWindow;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Turns overlapping frames of samples into feature blocks. Every frame goes
+ * through one FFT, from which the band energies, the chroma and the spectral
+ * flux are taken; flux peaks are counted as onsets. Frames are summed into a
+ * block until it is full. All buffers are allocated once.
+ */
+final class SpectralFeatures {
+
+    private static final float MIN_BAND_FREQUENCY = 60f;
+    private static final float MAX_BAND_FREQUENCY = 10000f;
+    private static final float MIN_CHROMA_FREQUENCY = 55f;
+    private static final float MAX_CHROMA_FREQUENCY = 5000f;
+
+    /**
+     * Smoothing of the running flux mean onsets are compared with.
+     */
+    private static final float FLUX_SMOOTHING = 0.05f;
+
+    /**
+     * How far above the running mean a flux peak must be to count as an onset.
+     */
+    private static final float ONSET_THRESHOLD = 1.3f;
+
+    private final int framesPerBlock;
+    private final float blockSeconds;
+    private final FFT fft;
+    private final float[] transform;
+    private final float[] magnitudes;
+    private final float[] previousLog;
+    private final int[] bandOf;
+    private final int[] pitchClassOf;
+
+    private final float[] bandEnergy = new float[FeatureBlock.BANDS];
+    private final float[] bandSum = new float[FeatureBlock.BANDS];
+    private final float[] chromaSum = new float[FeatureBlock.PITCH_CLASSES];
+    private float energySum;
+    private int onsets;
+    private int frames;
+
+    private float fluxMean;
+    private float previousFlux;
+    private float olderFlux;
+    private boolean firstFrame = true;
+
+    /**
+     * @param sampleRate     The sample rate of the frames.
+     * @param frameSize      The frame size, a power of two.
+     * @param hopSize        The samples between the starts of two frames.
+     * @param framesPerBlock The frames summed into one block.
+     */
+    SpectralFeatures(int sampleRate, int frameSize, int hopSize, int framesPerBlock) {
+        this.framesPerBlock = framesPerBlock;
+        this.blockSeconds = (float) framesPerBlock * hopSize / sampleRate;
+        this.fft = new FFT(frameSize, new HannWindow());
+        this.transform = new float[frameSize];
+        this.magnitudes = new float[frameSize / 2];
+        this.previousLog = new float[frameSize / 2];
+        this.bandOf = new int[frameSize / 2];
+        this.pitchClassOf = new int[frameSize / 2];
+        double bandScale = FeatureBlock.BANDS / Math.log(MAX_BAND_FREQUENCY / MIN_BAND_FREQUENCY);
+        for (int bin = 0; bin < frameSize / 2; bin++) {
+            double frequency = (double) bin * sampleRate / frameSize;
+            bandOf[bin] = frequency >= MIN_BAND_FREQUENCY && frequency < MAX_BAND_FREQUENCY
+                    ? (int) (Math.log(frequency / MIN_BAND_FREQUENCY) * bandScale) : -1;
+            pitchClassOf[bin] = frequency >= MIN_CHROMA_FREQUENCY && frequency < MAX_CHROMA_FREQUENCY
+                    ? Math.floorMod((int) Math.round(12 * Math.log(frequency / 440) / Math.log(2)) + 9, 12) : -1;
+        }
+    }
+
+    float getBlockSeconds() {
+        return blockSeconds;
+    }
+
+    /**
+     * Adds a frame.
+     *
+     * @param frame The samples, left untouched.
+     * @param block Filled when this frame completes a block.
+     * @return True if the block was filled.
+     */
+    boolean addFrame(float[] frame, FeatureBlock block) {
+        analyzeFrame(frame, true);
+        if (++frames < framesPerBlock) {
+            return false;
+        }
+        fillBlock(block);
+        return true;
+    }
+
+    /**
+     * Runs a frame through the spectral flux and onset state without adding
+     * it to any block, to warm up on the audio before a chunk.
+     *
+     * @param frame The samples, left untouched.
+     */
+    void skipFrame(float[] frame) {
+        analyzeFrame(frame, false);
+    }
+
+    private void analyzeFrame(float[] frame, boolean accumulate) {
+        double sumSquares = 0;
+        for (int i = 0; i < transform.length; i++) {
+            float sample = i < frame.length ? frame[i] : 0;
+            transform[i] = sample;
+            sumSquares += sample * sample;
+        }
+        if (accumulate) {
+            energySum += (float) (10 * Math.log10(sumSquares / transform.length + 1e-10));
+        }
+
+        fft.forwardTransform(transform);
+        fft.modulus(transform, magnitudes);
+        Arrays.fill(bandEnergy, 0);
+        float flux = 0;
+        for (int bin = 0; bin < magnitudes.length; bin++) {
+            float magnitude = magnitudes[bin];
+            float power = magnitude * magnitude;
+            if (bandOf[bin] >= 0) {
+                bandEnergy[bandOf[bin]] += power;
+            }
+            if (accumulate && pitchClassOf[bin] >= 0) {
+                chromaSum[pitchClassOf[bin]] += power;
+            }
+            float log = (float) Math.log1p(magnitude);
+            flux += Math.max(0, log - previousLog[bin]);
+            previousLog[bin] = log;
+        }
+        if (accumulate) {
+            for (int band = 0; band < FeatureBlock.BANDS; band++) {
+                bandSum[band] += (float) Math.log(bandEnergy[band] + 1e-10);
+            }
+        }
+        if (firstFrame) {
+            // The first frame rises from silence everywhere
+            flux = 0;
+            firstFrame = false;
+        }
+        if (accumulate && previousFlux > olderFlux && previousFlux >= flux && previousFlux > fluxMean * ONSET_THRESHOLD) {
+            onsets++;
+        }
+        fluxMean += FLUX_SMOOTHING * (flux - fluxMean);
+        olderFlux = previousFlux;
+        previousFlux = flux;
+    }
+
+    /**
+     * Fills a block with what the frames since the last block add up to.
+     *
+     * @return True if there was at least one frame.
+     */
+    boolean flush(FeatureBlock block) {
+        if (frames == 0) {
+            return false;
+        }
+        fillBlock(block);
+        return true;
+    }
+
+    private void fillBlock(FeatureBlock block) {
+        for (int band = 0; band < FeatureBlock.BANDS; band++) {
+            block.timbre[band] = bandSum[band] / frames;
+        }
+        System.arraycopy(chromaSum, 0, block.chroma, 0, FeatureBlock.PITCH_CLASSES);
+        block.energy = energySum / frames;
+        block.onsetRate = onsets / (blockSeconds * frames / framesPerBlock);
+        block.normalize();
+        Arrays.fill(bandSum, 0);
+        Arrays.fill(chromaSum, 0);
+        energySum = 0;
+        onsets = 0;
+        frames = 0;
+    }
+
+}
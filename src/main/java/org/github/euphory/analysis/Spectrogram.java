@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.analysis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Computes the spectrogram of decoded samples in tiles of a fixed number of
+ * columns, one tile at a time and from any number of threads. A column
+ * covers a power of two of samples: its spectrum is the power of one FFT
+ * frame centered in it, or the average of a few frames spread over it when
+ * the column is wider than a frame. Bins are gathered into bands spaced
+ * evenly in pitch and every band is quantized to a byte of decibels, so a
+ * tile takes {@link #TILE_WIDTH} * {@link #BANDS} bytes whatever the zoom.
+ * This class knows nothing about JavaFX.
+ */
+public final class Spectrogram implements Closeable {
+
+    /**
+     * The sample rate the samples are read at, the one the boundary detector
+     * decodes at so both share the same cached samples.
+     */
+    public static final int SAMPLE_RATE = BoundaryDetector.SAMPLE_RATE;
+
+    public static final int TILE_WIDTH = 256;
+
+    /**
+     * The bands of a column, from the lowest frequency up.
+     */
+    public static final int BANDS = 256;
+
+    /**
+     * The level of a band quantized to 0, full scale is 255.
+     */
+    public static final float FLOOR_DB = -96f;
+
+    private static final int FRAME_SIZE = 2048;
+    private static final double MIN_FREQUENCY = 30;
+
+    /**
+     * The most frames averaged into a column, wider columns skip samples.
+     */
+    private static final int MAX_FRAMES_PER_COLUMN = 4;
+
+    private static final ThreadLocal<Worker> WORKERS = ThreadLocal.withInitial(Worker::new);
+
+    private final DecodedPcm samples;
+    private final int[] firstBin = new int[BANDS];
+    private final int[] lastBin = new int[BANDS];
+    private final float[] window = new float[FRAME_SIZE];
+    private final double fullScale;
+
+    /**
+     * Constructs a new Spectrogram.
+     *
+     * @param samples The samples at {@link #SAMPLE_RATE}, closed with the spectrogram.
+     * @throws IllegalArgumentException If the samples are at another rate.
+     */
+    public Spectrogram(DecodedPcm samples) {
+        if (samples.getSampleRate() != SAMPLE_RATE) {
+            throw new IllegalArgumentException("Samples at " + samples.getSampleRate() + " Hz instead of " + SAMPLE_RATE);
+        }
+        this.samples = samples;
+        double windowSum = 0;
+        for (int i = 0; i < FRAME_SIZE; i++) {
+            window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / FRAME_SIZE));
+            windowSum += window[i];
+        }
+        // A full scale sine peaks at half the window sum
+        fullScale = windowSum * windowSum / 4;
+        double binWidth = (double) SAMPLE_RATE / FRAME_SIZE;
+        double ratio = Math.log(SAMPLE_RATE / 2.0 / MIN_FREQUENCY);
+        for (int band = 0; band < BANDS; band++) {
+            double low = MIN_FREQUENCY * Math.exp(ratio * band / BANDS);
+            double high = MIN_FREQUENCY * Math.exp(ratio * (band + 1) / BANDS);
+            firstBin[band] = (int) Math.min(FRAME_SIZE / 2, Math.round(low / binWidth));
+            // A band narrower than a bin takes the bin it falls in
+            lastBin[band] = (int) Math.max(firstBin[band], Math.min(FRAME_SIZE / 2, Math.round(high / binWidth) - 1));
+        }
+    }
+
+    public int getSampleRate() {
+        return SAMPLE_RATE;
+    }
+
+    public long getSampleCount() {
+        return samples.getSampleCount();
+    }
+
+    /**
+     * Gets the frequency a band starts at.
+     *
+     * @param band The band, 0 being the lowest.
+     * @return The frequency in Hz.
+     */
+    public static double getBandFrequency(int band) {
+        return MIN_FREQUENCY * Math.exp(Math.log(SAMPLE_RATE / 2.0 / MIN_FREQUENCY) * band / BANDS);
+    }
+
+    /**
+     * Computes a tile, on the calling thread.
+     *
+     * @param zoom  The samples per column, as a power of two.
+     * @param index The tile, starting at column index * TILE_WIDTH.
+     * @return The levels, BANDS per column from the lowest band up, 0 past the end.
+     */
+    public byte[] computeTile(int zoom, long index) {
+        Worker worker = WORKERS.get();
+        byte[] tile = new byte[TILE_WIDTH * BANDS];
+        long count = samples.getSampleCount();
+        long width = 1L << zoom;
+        int frames = (int) Math.max(1, Math.min(MAX_FRAMES_PER_COLUMN, width / FRAME_SIZE));
+        for (int x = 0; x < TILE_WIDTH; x++) {
+            long first = (index * TILE_WIDTH + x) << zoom;
+            if (first >= count) {
+                break;
+            }
+            Arrays.fill(worker.sum, 0);
+            for (int f = 0; f < frames; f++) {
+                long center = first + (width * (2 * f + 1)) / (2 * frames);
+                worker.transform(samples, window, center - FRAME_SIZE / 2);
+                for (int bin = 0; bin <= FRAME_SIZE / 2; bin++) {
+                    worker.sum[bin] += worker.power[bin];
+                }
+            }
+            double scale = 1 / (fullScale * frames);
+            for (int band = 0; band < BANDS; band++) {
+                double peak = 0;
+                for (int bin = firstBin[band]; bin <= lastBin[band]; bin++) {
+                    peak = Math.max(peak, worker.sum[bin]);
+                }
+                double db = 10 * Math.log10(Math.max(peak * scale, 1e-12));
+                int level = (int) Math.round((db - FLOOR_DB) * 255 / -FLOOR_DB);
+                tile[x * BANDS + band] = (byte) Math.max(0, Math.min(255, level));
+            }
+        }
+        return tile;
+    }
+
+    /**
+     * Releases the samples.
+     */
+    @Override
+    public void close() throws IOException {
+        samples.close();
+    }
+
+    /**
+     * The buffers of one computing thread, shared by every spectrogram.
+     */
+    private static final class Worker {
+
+        private final RealFft fft = new RealFft(FRAME_SIZE);
+        private final float[] frame = new float[FRAME_SIZE];
+        private final double[] power = new double[FRAME_SIZE / 2 + 1];
+        private final double[] sum = new double[FRAME_SIZE / 2 + 1];
+
+        /**
+         * Windows the frame starting at a sample, zeros outside the samples,
+         * and computes its power spectrum.
+         */
+        private void transform(DecodedPcm samples, float[] window, long start) {
+            Arrays.fill(frame, 0);
+            long from = Math.max(0, start);
+            samples.read(from, frame, (int) (from - start), (int) (FRAME_SIZE - (from - start)));
+            for (int i = 0; i < FRAME_SIZE; i++) {
+                frame[i] *= window[i];
+            }
+            fft.powerSpectrum(frame, power);
+        }
+
+    }
+
+}
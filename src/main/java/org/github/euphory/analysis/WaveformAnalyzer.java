@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.analysis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Builds the waveform peak pyramid of a media file from its samples in the
+ * PCM cache, as they are decoded or from an earlier decode. The analysis runs
+ * on the calling thread, which is expected to be a background one, and
+ * publishes snapshots as it goes so a viewer can draw the part already
+ * decoded. This class knows nothing about JavaFX.
+ */
+public final class WaveformAnalyzer {
+
+    public static final int DEFAULT_SAMPLE_RATE = PcmCache.BASE_SAMPLE_RATE;
+
+    /**
+     * The samples per peak of the finest level, below it samples are read
+     * back from the decoded PCM.
+     */
+    public static final int BASE_SAMPLES_PER_PEAK = 256;
+
+    /**
+     * The number of levels, the coarsest one summarizes about three minutes
+     * per peak at the default sample rate.
+     */
+    public static final int LEVELS = 16;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Finest level peaks between two published snapshots, about six seconds
+     * of audio at the default sample rate.
+     */
+    private static final int PUBLISH_INTERVAL = 1024;
+
+    /**
+     * Receives the snapshots of a running analysis.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the analysis thread with more peaks available.
+         *
+         * @param pyramid The latest snapshot.
+         */
+        void levelsUpdated(WaveformPyramid pyramid);
+
+    }
+
+    private final PcmCache cache;
+    private final int sampleRate;
+    private volatile boolean cancelled;
+
+    /**
+     * Constructs a new WaveformAnalyzer decoding at the default sample rate
+     * into the default PCM cache.
+     */
+    public WaveformAnalyzer() {
+        this(PcmCache.getDefault(), DEFAULT_SAMPLE_RATE);
+    }
+
+    /**
+     * Constructs a new WaveformAnalyzer.
+     *
+     * @param cache      The cache the decoded samples are kept in.
+     * @param sampleRate The sample rate to decode at.
+     */
+    public WaveformAnalyzer(PcmCache cache, int sampleRate) {
+        this.cache = cache;
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Analyzes a media file. Its samples come from the PCM cache, where they
+     * are decoded unless another analysis already did.
+     *
+     * @param file     The file to analyze.
+     * @param listener Receives snapshots as levels grow, may be null.
+     * @return The complete pyramid, to be closed by the caller.
+     * @throws IOException If nothing could be decoded or the decoded samples
+     *                     cannot be stored.
+     * @throws InterruptedIOException If the analysis was cancelled.
+     */
+    public WaveformPyramid analyze(File file, Listener listener) throws IOException {
+        PeakLevelBuilder levels = PeakLevelBuilder.create(BASE_SAMPLES_PER_PEAK, LEVELS);
+        Publisher publisher = new Publisher(levels, listener);
+        DecodedPcm pcm = cache.open(file, sampleRate, publisher);
+        try {
+            if (levels.size() == 0) {
+                // The samples were cached, the peaks are built from them
+                addSamples(pcm, publisher);
+            }
+            levels.finish();
+            WaveformPyramid pyramid = new WaveformPyramid(sampleRate, levels.snapshot(), pcm.getSampleCount(), true, pcm);
+            if (listener != null) {
+                listener.levelsUpdated(pyramid);
+            }
+            return pyramid;
+        } catch (IOException | RuntimeException e) {
+            pcm.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Builds the peak levels of samples decoded already, the way
+     * {@link #analyze(File, Listener)} builds them from cached samples.
+     *
+     * @param pcm The samples.
+     * @return The levels, the finest first.
+     * @throws IOException If the samples cannot be read.
+     */
+    public static PeakLevel[] buildLevels(PcmSource pcm) throws IOException {
+        PeakLevelBuilder levels = PeakLevelBuilder.create(BASE_SAMPLES_PER_PEAK, LEVELS);
+        addSamples(pcm, new PcmCache.DecodeListener() {
+            @Override
+            public void decoded(float[] samples, int length, PcmSource written) {
+                levels.addSamples(samples, 0, length);
+            }
+        });
+        levels.finish();
+        return levels.snapshot();
+    }
+
+    /**
+     * Reads samples decoded already in buffers, as the decoder hands them.
+     */
+    private static void addSamples(PcmSource pcm, PcmCache.DecodeListener listener) throws IOException {
+        float[] buffer = new float[BUFFER_SIZE];
+        for (long start = 0; start < pcm.getSampleCount(); start += BUFFER_SIZE) {
+            if (listener.isCancelled()) {
+                throw new InterruptedIOException("Waveform analysis cancelled");
+            }
+            int length = pcm.read(start, buffer, 0, BUFFER_SIZE);
+            listener.decoded(buffer, length, pcm);
+        }
+    }
+
+    /**
+     * Stops a running analysis, from any thread. The analyzing thread then
+     * throws an InterruptedIOException.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Adds the samples to the levels and publishes a snapshot now and then.
+     */
+    private final class Publisher implements PcmCache.DecodeListener {
+
+        private final PeakLevelBuilder levels;
+        private final Listener listener;
+        private int published;
+
+        private Publisher(PeakLevelBuilder levels, Listener listener) {
+            this.levels = levels;
+            this.listener = listener;
+        }
+
+        @Override
+        public void decoded(float[] samples, int length, PcmSource written) {
+            levels.addSamples(samples, 0, length);
+            if (listener != null && levels.size() - published >= PUBLISH_INTERVAL) {
+                published = levels.size();
+                listener.levelsUpdated(new WaveformPyramid(sampleRate, levels.snapshot(), written.getSampleCount(), false, written));
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.analysis;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * A snapshot of the waveform of a media file: peak levels at power-of-two
+ * zoom levels, plus the decoded samples for zooming below the finest level
+ * when they are at hand. While the analysis runs new snapshots are published
+ * with more peaks, all of them share the same decoded samples.
+ */
+public final class WaveformPyramid implements Closeable {
+
+    private final int sampleRate;
+    private final PeakLevel[] levels;
+    private final long sampleCount;
+    private final boolean complete;
+    private final PcmSource samples;
+
+    WaveformPyramid(int sampleRate, PeakLevel[] levels, long sampleCount, boolean complete, PcmSource samples) {
+        this.sampleRate = sampleRate;
+        this.levels = levels;
+        this.sampleCount = sampleCount;
+        this.complete = complete;
+        this.samples = samples;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Gets the number of samples analyzed so far.
+     *
+     * @return The number of mono samples.
+     */
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Tells whether the whole file was analyzed.
+     *
+     * @return True if no more peaks will be added.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public int getLevelCount() {
+        return levels.length;
+    }
+
+    /**
+     * Gets a level, level 0 being the finest.
+     *
+     * @param level The level index.
+     * @return The level.
+     */
+    public PeakLevel getLevel(int level) {
+        return levels[level];
+    }
+
+    /**
+     * Gets the coarsest level that still has at least one peak per pixel.
+     *
+     * @param samplesPerPixel The number of samples drawn in one pixel.
+     * @return The level, or null if samples should be drawn instead of peaks.
+     */
+    public PeakLevel getLevelFor(double samplesPerPixel) {
+        PeakLevel best = null;
+        for (PeakLevel level : levels) {
+            if (level.getSamplesPerPeak() > samplesPerPixel) {
+                break;
+            }
+            best = level;
+        }
+        return best;
+    }
+
+    /**
+     * Tells whether decoded samples can be read, a waveform loaded from the
+     * analysis cache has only its peaks.
+     *
+     * @return True if {@link #readSamples} can read samples.
+     */
+    public boolean hasSamples() {
+        return samples != null;
+    }
+
+    /**
+     * Reads decoded samples, for zoom levels finer than the finest peaks.
+     *
+     * @param start       The first sample.
+     * @param destination The array to fill, with values from -1 to 1.
+     * @param offset      The first index to fill.
+     * @param length      The number of samples to read.
+     * @return The number of samples read, less than asked past the end, 0 without samples.
+     * @throws IOException If the samples cannot be read.
+     */
+    public int readSamples(long start, float[] destination, int offset, int length) throws IOException {
+        if (samples == null) {
+            return 0;
+        }
+        return samples.read(start, destination, offset, Math.min(length, (int) Math.min(Integer.MAX_VALUE, sampleCount - start)));
+    }
+
+    /**
+     * Releases the decoded samples shared by every snapshot of this waveform.
+     */
+    @Override
+    public void close() throws IOException {
+        if (samples != null) {
+            samples.close();
+        }
+    }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.cli;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.github.euphory.analysis.AnalysisCache;
+import org.github.euphory.analysis.AudioProbe;
+import org.github.euphory.analysis.Boundary;
+import org.github.euphory.analysis.BoundaryDetector;
+import org.github.euphory.analysis.CacheKey;
+import org.github.euphory.analysis.DecodedPcm;
+import org.github.euphory.analysis.PcmCache;
+import org.github.euphory.analysis.WaveformAnalyzer;
+import org.github.euphory.analysis.WaveformPyramid;
+import org.github.euphory.cue.CueSheet;
+import org.github.euphory.fingerprint.FingerprintIndexBuilder;
+import org.github.euphory.service.CueService;
+import org.github.euphory.service.TagService;
+import org.github.euphory.tags.Chapter;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * The read, analyze and write pipeline run on every file of a batch. A job
+ * holds no state of its own file, so one job serves all the workers.
+ */
+final class BatchJob {
+
+    private final BatchOptions options;
+    private final TagService tagService = new TagService();
+    private final AnalysisCache cache;
+    private final FingerprintIndexBuilder fingerprints;
+
+    /**
+     * Constructs a new BatchJob.
+     *
+     * @param options      The selected steps.
+     * @param cache        The cache the waveforms go to.
+     * @param fingerprints The index the files are added to, null if not building one.
+     */
+    BatchJob(BatchOptions options, AnalysisCache cache, FingerprintIndexBuilder fingerprints) {
+        this.options = options;
+        this.cache = cache;
+        this.fingerprints = fingerprints;
+    }
+
+    /**
+     * The outcome of a file.
+     */
+    static final class Result {
+
+        final String line;
+        final boolean ok;
+
+        private Result(String line, boolean ok) {
+            this.line = line;
+            this.ok = ok;
+        }
+
+    }
+
+    /**
+     * Processes a file, never throwing: failures are reported in the result.
+     *
+     * @param file  The file.
+     * @param sheet The CUE sheet matched with the file, null if there is none.
+     * @return The result, with its JSON line.
+     */
+    Result process(Path file, CueSheet sheet) {
+        long started = System.nanoTime();
+        JsonLine result = new JsonLine().field("file", file.toString());
+        List<String> written = new ArrayList<>();
+        boolean ok = false;
+        try {
+            // Read
+            String filePath = file.toString();
+            Map<String, String> tags = tagService.readTags(filePath);
+            List<Chapter> chapters = tagService.readChapters(filePath);
+            double duration = AudioProbe.getDurationSeconds(file);
+            result.field("duration", duration).field("tags", tags).field("chapters", chapters.size());
+            if (sheet != null) {
+                result.field("cueTracks", sheet.getTracks().size());
+            }
+
+            // Analyze
+            if (options.waveform) {
+                result.field("waveform", computeWaveform(file) ? "computed" : "cached");
+            }
+            List<Boundary> boundaries = null;
+            if (options.detect) {
+                try (DecodedPcm samples = PcmCache.getDefault().open(file.toFile(), BoundaryDetector.SAMPLE_RATE)) {
+                    BoundaryDetector detector = new BoundaryDetector();
+                    detector.setSamples(samples);
+                    boundaries = detector.detect(file.toFile(), null);
+                }
+                result.beginArray("boundaries");
+                for (Boundary boundary : boundaries) {
+                    result.beginObject()
+                            .field("seconds", boundary.getSeconds())
+                            .field("confidence", boundary.getConfidence())
+                            .endObject();
+                }
+                result.endArray();
+            }
+
+            // Write
+            if (!options.tags.isEmpty()) {
+                tags.putAll(options.tags);
+                tagService.writeTags(filePath, tags);
+                written.add("tags");
+            }
+            if (chapters.isEmpty() && sheet != null && !sheet.getTracks().isEmpty()) {
+                // A sheet was written by someone who listened, it wins over the detector
+                long durationMillis = Double.isNaN(duration) ? 0 : (long) (duration * 1000);
+                tagService.writeChapters(filePath, CueService.toChapters(sheet, durationMillis));
+                written.add("chapters");
+            } else if (options.writeChapters && chapters.isEmpty() && boundaries != null && !boundaries.isEmpty()) {
+                tagService.writeChapters(filePath, toChapters(boundaries, duration));
+                written.add("chapters");
+            }
+            if (fingerprints != null) {
+                String title = tags.getOrDefault("title", "");
+                int trackId = fingerprints.addTrack(file.toFile(), tags.getOrDefault("artist", ""),
+                        title.isEmpty() ? file.getFileName().toString() : title);
+                result.field("fingerprintId", trackId);
+            }
+            result.field("status", "ok");
+            ok = true;
+        } catch (IOException | RuntimeException e) {
+            result.field("status", "error").field("error", e.getMessage() != null ? e.getMessage() : e.toString());
+        }
+        result.beginArray("written");
+        for (String step : written) {
+            result.value(step);
+        }
+        result.endArray();
+        return new Result(result.field("millis", (System.nanoTime() - started) / 1_000_000).toString(), ok);
+    }
+
+    /**
+     * Computes the waveform of a file into the cache, unless it is there.
+     *
+     * @return True if it had to be computed.
+     */
+    private boolean computeWaveform(Path file) throws IOException {
+        CacheKey key = CacheKey.of(file);
+        WaveformPyramid cached = cache.loadWaveform(key);
+        if (cached != null) {
+            cached.close();
+            return false;
+        }
+        try (WaveformPyramid pyramid = new WaveformAnalyzer().analyze(file.toFile(), null)) {
+            cache.storeWaveform(key, pyramid);
+        }
+        return true;
+    }
+
+    /**
+     * Turns boundaries into untitled chapters, the first one starting with
+     * the mix and the last one ending with it.
+     */
+    static List<Chapter> toChapters(List<Boundary> boundaries, double durationSeconds) {
+        List<Chapter> chapters = new ArrayList<>(boundaries.size() + 1);
+        long start = 0;
+        for (Boundary boundary : boundaries) {
+            long end = Math.round(boundary.getSeconds() * 1000);
+            chapters.add(new Chapter(start, end, "", ""));
+            start = end;
+        }
+        long end = Double.isNaN(durationSeconds) ? start : Math.max(start, Math.round(durationSeconds * 1000));
+        chapters.add(new Chapter(start, end, "", ""));
+        return chapters;
+    }
+
+}
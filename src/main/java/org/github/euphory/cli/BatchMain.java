@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.cli;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.github.euphory.analysis.AnalysisCache;
+import org.github.euphory.cue.CueMatcher;
+import org.github.euphory.cue.CueParser;
+import org.github.euphory.cue.CueSheet;
+import org.github.euphory.fingerprint.FingerprintIndexBuilder;
+import org.github.euphory.library.LibraryScanner;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Headless entry point: tags and analyzes whole directory trees with a pool
+ * of workers, printing one JSON line per file to the standard output and a
+ * summary to the standard error. Nothing here touches the JavaFX toolkit,
+ * so it runs on servers without a display. It is not reached through
+ * {@code Main}, as the Java launcher starts the toolkit for any subclass of
+ * {@code Application} before its main method runs.
+ */
+public final class BatchMain {
+
+    private static final int EXIT_FAILURES = 1;
+    private static final int EXIT_USAGE = 2;
+
+    /**
+     * Files queued per worker, so walking a big tree does not get ahead of
+     * the workers by more than this.
+     */
+    private static final int QUEUE_PER_WORKER = 4;
+
+    private final BatchOptions options;
+    private final PrintWriter out;
+    private final ExecutorService executor;
+    private final Semaphore queued;
+    private final BatchJob job;
+    private final FingerprintIndexBuilder fingerprints;
+    private final AtomicInteger processed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private BatchMain(BatchOptions options, PrintWriter out) throws IOException {
+        this.options = options;
+        this.out = out;
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(options.workers, runnable -> {
+            Thread thread = new Thread(runnable, "euphory-batch-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.queued = new Semaphore(options.workers * QUEUE_PER_WORKER);
+        this.fingerprints = options.fingerprintIndex != null ? new FingerprintIndexBuilder(options.fingerprintIndex) : null;
+        this.job = new BatchJob(options, AnalysisCache.getDefault(), fingerprints);
+    }
+
+    public static void main(String[] args) {
+        BatchOptions options;
+        try {
+            options = BatchOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(BatchOptions.USAGE);
+            System.exit(EXIT_USAGE);
+            return;
+        }
+        if (options.help) {
+            System.out.println(BatchOptions.USAGE);
+            return;
+        }
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+        int failures;
+        try {
+            failures = new BatchMain(options, out).run();
+        } catch (IOException e) {
+            out.flush();
+            System.err.println("Batch failed: " + e.getMessage());
+            System.exit(EXIT_FAILURES);
+            return;
+        }
+        System.exit(failures > 0 ? EXIT_FAILURES : 0);
+    }
+
+    /**
+     * Processes every input and waits for the workers.
+     *
+     * @return The number of files that failed.
+     * @throws IOException If the fingerprint index cannot be written.
+     */
+    private int run() throws IOException {
+        long started = System.nanoTime();
+        try {
+            for (Path input : options.inputs) {
+                if (Files.isDirectory(input) && options.importCue) {
+                    walkWithCues(input);
+                } else if (Files.isDirectory(input)) {
+                    walk(input);
+                } else {
+                    submit(input, options.importCue ? readSiblingCue(input) : null);
+                }
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                // Keep waiting, a nightly run can take hours
+            }
+            if (fingerprints != null) {
+                fingerprints.finish();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+            throw new IOException("Interrupted", e);
+        } finally {
+            out.flush();
+            if (fingerprints != null) {
+                fingerprints.close();
+            }
+        }
+        System.err.println(String.format(Locale.ROOT, "%d files, %d failed, %.1f s", processed.get(), failed.get(),
+                (System.nanoTime() - started) / 1e9));
+        return failed.get();
+    }
+
+    private void walk(Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (attributes.isRegularFile() && LibraryScanner.isMediaFile(file)) {
+                    submit(file, null);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                report(new JsonLine().field("file", file.toString()).field("status", "error")
+                        .field("error", "Cannot be read: " + e.getMessage()).toString(), false);
+                return FileVisitResult.CONTINUE;
+            }
+
+        });
+    }
+
+    /**
+     * Walks a directory once for both its media files and its CUE sheets,
+     * then processes every media file with its sheet.
+     */
+    private void walkWithCues(Path directory) throws IOException {
+        CueMatcher.Result cues = CueMatcher.match(directory);
+        for (Map.Entry<Path, String> failure : cues.getFailed().entrySet()) {
+            report(new JsonLine().field("file", failure.getKey().toString()).field("status", "error")
+                    .field("error", "Cannot be read: " + failure.getValue()).toString(), false);
+        }
+        for (Path cue : cues.getUnmatched()) {
+            report(new JsonLine().field("file", cue.toString()).field("status", "unmatched").toString(), true);
+        }
+        for (Path file : cues.getAudioFiles()) {
+            submit(file, cues.getSheet(file));
+        }
+    }
+
+    /**
+     * Reads the sheet with the same name as a media file, next to it. A sheet
+     * that cannot be read is reported, and the file processed without it.
+     */
+    private CueSheet readSiblingCue(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        Path cue = file.resolveSibling((dot > 0 ? name.substring(0, dot) : name) + ".cue");
+        if (!Files.isRegularFile(cue)) {
+            return null;
+        }
+        try {
+            return CueParser.parse(cue);
+        } catch (IOException e) {
+            report(new JsonLine().field("file", cue.toString()).field("status", "error")
+                    .field("error", "Cannot be read: " + e.getMessage()).toString(), false);
+            return null;
+        }
+    }
+
+    private void submit(Path file, CueSheet sheet) {
+        queued.acquireUninterruptibly();
+        try {
+            executor.execute(() -> {
+                try {
+                    BatchJob.Result result = job.process(file, sheet);
+                    report(result.line, result.ok);
+                } finally {
+                    queued.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            queued.release();
+            throw e;
+        }
+    }
+
+    private void report(String line, boolean ok) {
+        processed.incrementAndGet();
+        if (!ok) {
+            failed.incrementAndGet();
+        }
+        synchronized (out) {
+            out.println(line);
+            out.flush();
+        }
+    }
+
+}
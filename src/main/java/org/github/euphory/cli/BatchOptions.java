@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.cli;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * The command line of the batch mode.
+ */
+final class BatchOptions {
+
+    static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: BatchMain [options] <file or directory>...",
+            "",
+            "Reads the tags of every MP3 and MP4 file found, runs the selected analyses",
+            "and writes the results, printing one JSON line per file.",
+            "",
+            "Options:",
+            "  --workers <n>            Files processed at once, the processor count by default",
+            "  --waveform               Compute the waveform of every file into the analysis cache",
+            "  --detect                 Detect the track boundaries of every file",
+            "  --write-chapters         Write the detected boundaries as chapters to files with none",
+            "  --import-cue             Write the tracks of the CUE sheet matching each file as chapters",
+            "                           to files with none, sheets are matched by folder and name",
+            "  --tag <key>=<value>      Set a tag on every file, can be repeated",
+            "  --fingerprint <index>    Build a fingerprint index of the files, by their artist and title",
+            "  --help                   Show this help");
+
+    int workers = Runtime.getRuntime().availableProcessors();
+    boolean waveform;
+    boolean detect;
+    boolean writeChapters;
+    boolean importCue;
+    final Map<String, String> tags = new LinkedHashMap<>();
+    Path fingerprintIndex;
+    boolean help;
+    final List<Path> inputs = new ArrayList<>();
+
+    private BatchOptions() {
+    }
+
+    /**
+     * Parses a command line.
+     *
+     * @param args The arguments.
+     * @return The options.
+     * @throws IllegalArgumentException If the command line is not valid.
+     */
+    static BatchOptions parse(String[] args) {
+        BatchOptions options = new BatchOptions();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--workers":
+                    try {
+                        options.workers = Integer.parseInt(value(args, ++i, arg));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Not a number of workers: " + args[i]);
+                    }
+                    if (options.workers < 1) {
+                        throw new IllegalArgumentException("There must be at least one worker");
+                    }
+                    break;
+                case "--waveform":
+                    options.waveform = true;
+                    break;
+                case "--detect":
+                    options.detect = true;
+                    break;
+                case "--write-chapters":
+                    options.detect = true;
+                    options.writeChapters = true;
+                    break;
+                case "--import-cue":
+                    options.importCue = true;
+                    break;
+                case "--tag":
+                    String tag = value(args, ++i, arg);
+                    int equals = tag.indexOf('=');
+                    if (equals <= 0) {
+                        throw new IllegalArgumentException("Tags must be given as key=value: " + tag);
+                    }
+                    options.tags.put(tag.substring(0, equals), tag.substring(equals + 1));
+                    break;
+                case "--fingerprint":
+                    options.fingerprintIndex = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--help":
+                    options.help = true;
+                    break;
+                default:
+                    if (arg.startsWith("--")) {
+                        throw new IllegalArgumentException("Unknown option: " + arg);
+                    }
+                    options.inputs.add(Paths.get(arg));
+            }
+        }
+        if (options.inputs.isEmpty() && !options.help) {
+            throw new IllegalArgumentException("No file or directory given");
+        }
+        return options;
+    }
+
+    private static String value(String[] args, int index, String option) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + option);
+        }
+        return args[index];
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.cli;
+
+import java.util.Map;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Writes one JSON object on a single line, fields in the order they are
+ * added. Only what the batch reports need: strings, numbers, booleans,
+ * string maps and arrays of objects.
+ */
+final class JsonLine {
+
+    private final StringBuilder builder = new StringBuilder(256);
+
+    /**
+     * Whether the current object or array has a member yet, one bit per
+     * nesting level.
+     */
+    private long nonEmpty;
+    private int depth;
+
+    JsonLine() {
+        open('{');
+    }
+
+    JsonLine field(String name, String value) {
+        name(name);
+        string(value);
+        return this;
+    }
+
+    JsonLine field(String name, long value) {
+        name(name);
+        builder.append(value);
+        return this;
+    }
+
+    JsonLine field(String name, double value) {
+        name(name);
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            builder.append("null");
+        } else {
+            builder.append(value);
+        }
+        return this;
+    }
+
+    JsonLine field(String name, boolean value) {
+        name(name);
+        builder.append(value);
+        return this;
+    }
+
+    JsonLine field(String name, Map<String, String> values) {
+        name(name);
+        open('{');
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            field(entry.getKey(), entry.getValue());
+        }
+        close('}');
+        return this;
+    }
+
+    JsonLine beginArray(String name) {
+        name(name);
+        open('[');
+        return this;
+    }
+
+    JsonLine endArray() {
+        close(']');
+        return this;
+    }
+
+    JsonLine beginObject() {
+        separate();
+        open('{');
+        return this;
+    }
+
+    JsonLine endObject() {
+        close('}');
+        return this;
+    }
+
+    JsonLine value(String value) {
+        separate();
+        string(value);
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder line = new StringBuilder(builder);
+        for (int level = depth; level > 0; level--) {
+            line.append('}');
+        }
+        return line.toString();
+    }
+
+    private void name(String name) {
+        separate();
+        string(name);
+        builder.append(':');
+    }
+
+    private void separate() {
+        long bit = 1L << depth;
+        if ((nonEmpty & bit) != 0) {
+            builder.append(',');
+        }
+        nonEmpty |= bit;
+    }
+
+    private void open(char bracket) {
+        builder.append(bracket);
+        depth++;
+        nonEmpty &= ~(1L << depth);
+    }
+
+    private void close(char bracket) {
+        builder.append(bracket);
+        depth--;
+    }
+
+    private void string(String value) {
+        if (value == null) {
+            builder.append("null");
+            return;
+        }
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        builder.append('"');
+    }
+
+}
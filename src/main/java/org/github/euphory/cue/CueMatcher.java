@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.cue;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.github.euphory.library.LibraryScanner;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Pairs the CUE sheets of a directory tree with the audio files they
+ * describe, in a single walk. Audio files are indexed by folder as the tree
+ * is walked, then every sheet is parsed once and looked up in the folder it
+ * sits in: first by the name on its FILE line, whatever the extension,
+ * since sheets often name the WAV the mix was cut from; then by its own
+ * name; and last, if the folder holds a single audio file and a single
+ * sheet, the two go together.
+ */
+public final class CueMatcher {
+
+    /**
+     * The outcome of a match.
+     */
+    public static final class Result {
+
+        private final List<Path> audioFiles = new ArrayList<>();
+        private final Map<Path, CueSheet> sheets = new LinkedHashMap<>();
+        private final Map<Path, Path> cueFiles = new HashMap<>();
+        private final List<Path> unmatched = new ArrayList<>();
+        private final Map<Path, String> failed = new LinkedHashMap<>();
+
+        /**
+         * @return Every audio file found, matched or not, in walk order.
+         */
+        public List<Path> getAudioFiles() {
+            return Collections.unmodifiableList(audioFiles);
+        }
+
+        /**
+         * @return The sheets by the audio file they describe.
+         */
+        public Map<Path, CueSheet> getSheets() {
+            return Collections.unmodifiableMap(sheets);
+        }
+
+        /**
+         * @param audioFile An audio file.
+         * @return The sheet of the file, or null if it has none.
+         */
+        public CueSheet getSheet(Path audioFile) {
+            return sheets.get(audioFile);
+        }
+
+        /**
+         * @param audioFile An audio file.
+         * @return The sheet file the audio file was matched with, or null.
+         */
+        public Path getCueFile(Path audioFile) {
+            return cueFiles.get(audioFile);
+        }
+
+        /**
+         * @return The sheets no audio file was found for.
+         */
+        public List<Path> getUnmatched() {
+            return Collections.unmodifiableList(unmatched);
+        }
+
+        /**
+         * @return The sheets that could not be read, with the reason.
+         */
+        public Map<Path, String> getFailed() {
+            return Collections.unmodifiableMap(failed);
+        }
+
+    }
+
+    private CueMatcher() {
+    }
+
+    /**
+     * Matches the sheets of a directory tree with its audio files.
+     *
+     * @param root The directory.
+     * @return The matches.
+     * @throws IOException If the directory cannot be walked.
+     */
+    public static Result match(Path root) throws IOException {
+        Result result = new Result();
+        Map<Path, List<Path>> audioByFolder = new HashMap<>();
+        Map<Path, List<Path>> cuesByFolder = new LinkedHashMap<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (!attributes.isRegularFile()) {
+                    return FileVisitResult.CONTINUE;
+                }
+                if (LibraryScanner.isMediaFile(file)) {
+                    result.audioFiles.add(file);
+                    audioByFolder.computeIfAbsent(file.getParent(), folder -> new ArrayList<>()).add(file);
+                } else if (isCueFile(file)) {
+                    cuesByFolder.computeIfAbsent(file.getParent(), folder -> new ArrayList<>()).add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                if (isCueFile(file)) {
+                    result.failed.put(file, e.getMessage());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+        });
+
+        for (Map.Entry<Path, List<Path>> folder : cuesByFolder.entrySet()) {
+            List<Path> audio = audioByFolder.getOrDefault(folder.getKey(), Collections.emptyList());
+            for (Path cue : folder.getValue()) {
+                CueSheet sheet;
+                try {
+                    sheet = CueParser.parse(cue);
+                } catch (IOException e) {
+                    result.failed.put(cue, e.getMessage());
+                    continue;
+                }
+                Path match = find(baseName(fileName(sheet.getFileName())), audio);
+                if (match == null) {
+                    match = find(baseName(cue.getFileName().toString()), audio);
+                }
+                if (match == null && audio.size() == 1 && folder.getValue().size() == 1) {
+                    match = audio.get(0);
+                }
+                if (match == null || result.sheets.containsKey(match)) {
+                    result.unmatched.add(cue);
+                } else {
+                    result.sheets.put(match, sheet);
+                    result.cueFiles.put(match, cue);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Tells a CUE sheet by its extension.
+     */
+    public static boolean isCueFile(Path file) {
+        return file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".cue");
+    }
+
+    private static Path find(String baseName, List<Path> audio) {
+        if (baseName.isEmpty()) {
+            return null;
+        }
+        for (Path file : audio) {
+            if (baseName(file.getFileName().toString()).equalsIgnoreCase(baseName)) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The last part of a FILE name, which may be a path written on any system.
+     */
+    private static String fileName(String name) {
+        return name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+    }
+
+    private static String baseName(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot > 0 ? fileName.substring(0, dot) : fileName;
+    }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.cue;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Reads CUE sheets as written by real tools, in whatever encoding they came
+ * in. The encoding is told by a byte order mark, otherwise the sheet is read
+ * as strict UTF-8, and read again as windows-1252 if it is not valid UTF-8,
+ * the encoding of most sheets written on Windows. Unknown commands and bad
+ * lines are skipped.
+ * <p>
+ * Only the tracks of the first FILE are kept: a mix is a single file, and a
+ * sheet with one file per track does not describe one.
+ */
+public final class CueParser {
+
+    public static final Charset FALLBACK_CHARSET = Charset.forName("windows-1252");
+
+    private CueParser() {
+    }
+
+    /**
+     * Parses a CUE sheet file.
+     *
+     * @param file The sheet.
+     * @return The sheet.
+     * @throws IOException If the file cannot be read.
+     */
+    public static CueSheet parse(Path file) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            Charset bomCharset = readBom(in);
+            if (bomCharset != null) {
+                return parse(new InputStreamReader(in, bomCharset));
+            }
+            try {
+                return parse(new InputStreamReader(in, StandardCharsets.UTF_8.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPORT)
+                        .onUnmappableCharacter(CodingErrorAction.REPORT)));
+            } catch (CharacterCodingException e) {
+                // Not UTF-8, read it again from the start
+            }
+        }
+        try (Reader reader = new InputStreamReader(new BufferedInputStream(Files.newInputStream(file)), FALLBACK_CHARSET)) {
+            return parse(reader);
+        }
+    }
+
+    /**
+     * Reads a byte order mark, leaving the stream after it, or at the start
+     * if there is none.
+     */
+    private static Charset readBom(InputStream in) throws IOException {
+        in.mark(3);
+        int b0 = in.read();
+        int b1 = in.read();
+        if (b0 == 0xfe && b1 == 0xff) {
+            return StandardCharsets.UTF_16BE;
+        }
+        if (b0 == 0xff && b1 == 0xfe) {
+            return StandardCharsets.UTF_16LE;
+        }
+        if (b0 == 0xef && b1 == 0xbb && in.read() == 0xbf) {
+            return StandardCharsets.UTF_8;
+        }
+        in.reset();
+        return null;
+    }
+
+    /**
+     * Parses a CUE sheet as it is read.
+     *
+     * @param reader The sheet, not closed.
+     * @return The sheet.
+     * @throws IOException If the sheet cannot be read or decoded.
+     */
+    public static CueSheet parse(Reader reader) throws IOException {
+        CueTokenizer tokenizer = new CueTokenizer(reader);
+        String title = "";
+        String performer = "";
+        String fileName = null;
+        Map<String, String> remarks = new LinkedHashMap<>();
+        List<CueTrack> tracks = new ArrayList<>();
+
+        // The track being read
+        int number = -1;
+        String trackPerformer = "";
+        String trackTitle = "";
+        long start = -1;
+        boolean otherFile = false;
+
+        while (tokenizer.next()) {
+            String keyword = tokenizer.getKeyword();
+            int arguments = tokenizer.getArgumentCount();
+            switch (keyword) {
+                case "FILE":
+                    if (arguments == 0) {
+                        break;
+                    }
+                    // The type is the last word, a name with spaces may be unquoted
+                    String name = arguments == 1 || tokenizer.isQuoted(0) ? tokenizer.getArgument(0)
+                            : tokenizer.getText(0, arguments - 2);
+                    if (fileName == null) {
+                        fileName = name;
+                    } else if (!fileName.equals(name)) {
+                        otherFile = true;
+                    }
+                    break;
+                case "TRACK":
+                    if (number >= 0 && start >= 0) {
+                        tracks.add(new CueTrack(number, trackPerformer, trackTitle, start));
+                    }
+                    number = -1;
+                    if (otherFile) {
+                        break;
+                    }
+                    number = arguments > 0 ? parseNumber(tokenizer.getArgument(0)) : -1;
+                    trackPerformer = "";
+                    trackTitle = "";
+                    start = -1;
+                    break;
+                case "INDEX":
+                    if (number >= 0 && arguments >= 2 && parseNumber(tokenizer.getArgument(0)) == 1) {
+                        start = CueTrack.parseTime(tokenizer.getArgument(1));
+                    }
+                    break;
+                case "TITLE":
+                case "PERFORMER":
+                    if (arguments == 0) {
+                        break;
+                    }
+                    String value = tokenizer.isQuoted(0) ? tokenizer.getArgument(0) : tokenizer.getText(0, arguments - 1);
+                    if (number >= 0) {
+                        if (keyword.equals("TITLE")) {
+                            trackTitle = value;
+                        } else {
+                            trackPerformer = value;
+                        }
+                    } else if (tracks.isEmpty() && !otherFile) {
+                        if (keyword.equals("TITLE")) {
+                            title = value;
+                        } else {
+                            performer = value;
+                        }
+                    }
+                    break;
+                case "REM":
+                    if (arguments >= 2 && tracks.isEmpty() && number < 0) {
+                        String remark = tokenizer.isQuoted(1) ? tokenizer.getArgument(1) : tokenizer.getText(1, arguments - 1);
+                        remarks.put(tokenizer.getArgument(0).toUpperCase(Locale.ROOT), remark);
+                    }
+                    break;
+                default:
+                    // CATALOG, FLAGS, ISRC, PREGAP, SONGWRITER and anything unknown
+            }
+        }
+        if (number >= 0 && start >= 0) {
+            tracks.add(new CueTrack(number, trackPerformer, trackTitle, start));
+        }
+        tracks.sort((a, b) -> Long.compare(a.getStartFrames(), b.getStartFrames()));
+        return new CueSheet(title, performer, fileName != null ? fileName : "", remarks, tracks);
+    }
+
+    private static int parseNumber(String text) {
+        try {
+            int number = Integer.parseInt(text);
+            return number >= 0 ? number : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+}
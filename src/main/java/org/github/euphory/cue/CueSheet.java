@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.cue;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * The parts of a CUE sheet that describe a mix: its title and performer,
+ * the audio file, the REM lines, and the tracks of that file in playing
+ * order.
+ */
+public final class CueSheet {
+
+    private final String title;
+    private final String performer;
+    private final String fileName;
+    private final Map<String, String> remarks;
+    private final List<CueTrack> tracks;
+
+    /**
+     * Constructs a new CueSheet.
+     *
+     * @param title     The title, may be empty.
+     * @param performer The performer, may be empty.
+     * @param fileName  The audio file as the FILE line names it, may be empty.
+     * @param remarks   The REM lines by upper case keyword, like DATE or GENRE.
+     * @param tracks    The tracks, in playing order.
+     */
+    public CueSheet(String title, String performer, String fileName, Map<String, String> remarks, List<CueTrack> tracks) {
+        this.title = title;
+        this.performer = performer;
+        this.fileName = fileName;
+        this.remarks = Collections.unmodifiableMap(new LinkedHashMap<>(remarks));
+        this.tracks = Collections.unmodifiableList(tracks);
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getPerformer() {
+        return performer;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public Map<String, String> getRemarks() {
+        return remarks;
+    }
+
+    /**
+     * @param keyword The REM keyword, upper case.
+     * @return The value of the REM line, or an empty string if there is none.
+     */
+    public String getRemark(String keyword) {
+        return remarks.getOrDefault(keyword, "");
+    }
+
+    public List<CueTrack> getTracks() {
+        return tracks;
+    }
+
+    @Override
+    public String toString() {
+        return "CueSheet [title=" + title + ", performer=" + performer + ", fileName=" + fileName + ", tracks="
+                + tracks.size() + "]";
+    }
+
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.cue;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Splits a CUE sheet into commands, one per line, as it is read. A command
+ * is a keyword followed by arguments, either bare words or quoted strings.
+ * Real sheets are not always well formed: titles hold unescaped quotes, so
+ * a string is closed by the last quote of the line that whitespace or the
+ * end of the line follows, no command having two quoted arguments; and the
+ * raw rest of a line is kept for values that should have been quoted but
+ * were not.
+ */
+final class CueTokenizer {
+
+    private final Reader reader;
+    private final char[] buffer = new char[8192];
+    private int bufferLength;
+    private int bufferPosition;
+
+    private char[] line = new char[256];
+    private int lineLength;
+    private int[] starts = new int[8];
+    private int[] ends = new int[8];
+    private boolean[] quoted = new boolean[8];
+    private int count;
+
+    CueTokenizer(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Reads the next command, skipping blank lines.
+     *
+     * @return False at the end of the sheet.
+     * @throws IOException If the sheet cannot be read.
+     */
+    boolean next() throws IOException {
+        while (readLine()) {
+            split();
+            if (count > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The keyword of the command, upper case.
+     */
+    String getKeyword() {
+        return new String(line, starts[0], ends[0] - starts[0]).toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * @return The number of arguments after the keyword.
+     */
+    int getArgumentCount() {
+        return count - 1;
+    }
+
+    /**
+     * @param index The index of the argument, 0 for the first one after the keyword.
+     * @return The argument, without its quotes.
+     */
+    String getArgument(int index) {
+        return new String(line, starts[index + 1], ends[index + 1] - starts[index + 1]);
+    }
+
+    boolean isQuoted(int index) {
+        return quoted[index + 1];
+    }
+
+    /**
+     * Gets the line from an argument to the last one, as written.
+     *
+     * @param first The index of the first argument.
+     * @param last  The index of the last argument, inclusive.
+     * @return The text, quotes included.
+     */
+    String getText(int first, int last) {
+        int start = starts[first + 1] - (quoted[first + 1] ? 1 : 0);
+        int end = ends[last + 1] + (quoted[last + 1] && ends[last + 1] < lineLength ? 1 : 0);
+        return new String(line, start, end - start);
+    }
+
+    private boolean readLine() throws IOException {
+        lineLength = 0;
+        boolean any = false;
+        while (true) {
+            if (bufferPosition == bufferLength) {
+                bufferLength = reader.read(buffer, 0, buffer.length);
+                bufferPosition = 0;
+                if (bufferLength <= 0) {
+                    bufferLength = 0;
+                    return any;
+                }
+            }
+            char c = buffer[bufferPosition++];
+            any = true;
+            if (c == '\n') {
+                return true;
+            }
+            if (c == '\r') {
+                // A lone CR ends a line too, a CRLF is skipped as one
+                if (bufferPosition == bufferLength) {
+                    bufferLength = reader.read(buffer, 0, buffer.length);
+                    bufferPosition = 0;
+                    if (bufferLength < 0) {
+                        bufferLength = 0;
+                    }
+                }
+                if (bufferPosition < bufferLength && buffer[bufferPosition] == '\n') {
+                    bufferPosition++;
+                }
+                return true;
+            }
+            if (lineLength == line.length) {
+                line = Arrays.copyOf(line, lineLength * 2);
+            }
+            line[lineLength++] = c;
+        }
+    }
+
+    private void split() {
+        count = 0;
+        int i = 0;
+        while (true) {
+            while (i < lineLength && isSpace(line[i])) {
+                i++;
+            }
+            if (i == lineLength) {
+                return;
+            }
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+                quoted = Arrays.copyOf(quoted, count * 2);
+            }
+            if (line[i] == '"') {
+                int start = ++i;
+                int end = lineLength;
+                for (int j = lineLength - 1; j >= start; j--) {
+                    if (line[j] == '"' && (j + 1 == lineLength || isSpace(line[j + 1]))) {
+                        end = j;
+                        break;
+                    }
+                }
+                add(start, end, true);
+                i = Math.min(end + 1, lineLength);
+            } else {
+                int start = i;
+                while (i < lineLength && !isSpace(line[i])) {
+                    i++;
+                }
+                add(start, i, false);
+            }
+        }
+    }
+
+    private void add(int start, int end, boolean isQuoted) {
+        starts[count] = start;
+        ends[count] = end;
+        quoted[count++] = isQuoted;
+    }
+
+    private static boolean isSpace(char c) {
+        // The BOM of a sheet decoded without looking for it counts as space
+        return c == ' ' || c == '\t' || c == '\f' || c == '\u000b' || c == '\ufeff';
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.cue;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * A track of a CUE sheet. The start is its INDEX 01, in CD frames of 1/75
+ * of a second, the finest time a sheet can hold.
+ */
+public final class CueTrack {
+
+    public static final int FRAMES_PER_SECOND = 75;
+
+    private final int number;
+    private final String performer;
+    private final String title;
+    private final long startFrames;
+
+    /**
+     * Constructs a new CueTrack.
+     *
+     * @param number      The track number.
+     * @param performer   The performer, may be empty.
+     * @param title       The title, may be empty.
+     * @param startFrames The start in frames from the start of the file.
+     */
+    public CueTrack(int number, String performer, String title, long startFrames) {
+        this.number = number;
+        this.performer = performer;
+        this.title = title;
+        this.startFrames = startFrames;
+    }
+
+    public int getNumber() {
+        return number;
+    }
+
+    public String getPerformer() {
+        return performer;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public long getStartFrames() {
+        return startFrames;
+    }
+
+    public long getStartMillis() {
+        return startFrames * 1000 / FRAMES_PER_SECOND;
+    }
+
+    /**
+     * Formats a time as a CUE sheet does, mm:ss:ff, minutes going past 99
+     * for long mixes.
+     *
+     * @param frames The time in frames.
+     * @return The formatted time.
+     */
+    public static String formatTime(long frames) {
+        long minutes = frames / (60 * FRAMES_PER_SECOND);
+        int seconds = (int) (frames / FRAMES_PER_SECOND % 60);
+        int rest = (int) (frames % FRAMES_PER_SECOND);
+        StringBuilder sb = new StringBuilder(8);
+        if (minutes < 10) {
+            sb.append('0');
+        }
+        sb.append(minutes).append(':');
+        if (seconds < 10) {
+            sb.append('0');
+        }
+        sb.append(seconds).append(':');
+        if (rest < 10) {
+            sb.append('0');
+        }
+        return sb.append(rest).toString();
+    }
+
+    /**
+     * Parses a CUE sheet time, mm:ss:ff, or mm:ss as some tools write it.
+     *
+     * @param time The time.
+     * @return The time in frames, or -1 if it is not a valid time.
+     */
+    public static long parseTime(String time) {
+        long[] fields = new long[3];
+        int field = 0;
+        int digits = 0;
+        for (int i = 0; i < time.length(); i++) {
+            char c = time.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (++digits > 9) {
+                    return -1;
+                }
+                fields[field] = fields[field] * 10 + (c - '0');
+            } else if (c == ':' && digits > 0 && field < 2) {
+                field++;
+                digits = 0;
+            } else {
+                return -1;
+            }
+        }
+        if (digits == 0 || field == 0 || fields[1] >= 60 || fields[2] >= FRAMES_PER_SECOND) {
+            return -1;
+        }
+        return (fields[0] * 60 + fields[1]) * FRAMES_PER_SECOND + fields[2];
+    }
+
+    @Override
+    public String toString() {
+        return "CueTrack [number=" + number + ", start=" + formatTime(startFrames) + ", performer=" + performer
+                + ", title=" + title + "]";
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.cue;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Writes CUE sheets, in UTF-8 without a byte order mark, which old players
+ * choke on. CUE sheets cannot escape quotes, so double quotes in values are
+ * written as single ones.
+ */
+public final class CueWriter {
+
+    private CueWriter() {
+    }
+
+    /**
+     * Writes a CUE sheet file, replacing it if it exists.
+     *
+     * @param sheet The sheet.
+     * @param file  The file to write.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(CueSheet sheet, Path file) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            write(sheet, writer);
+        }
+    }
+
+    /**
+     * Writes a CUE sheet.
+     *
+     * @param sheet  The sheet.
+     * @param writer The writer, not closed.
+     * @throws IOException If the sheet cannot be written.
+     */
+    public static void write(CueSheet sheet, Writer writer) throws IOException {
+        for (Map.Entry<String, String> remark : sheet.getRemarks().entrySet()) {
+            if (!remark.getValue().isEmpty()) {
+                writer.write("REM " + remark.getKey() + " " + quoteIfNeeded(remark.getValue()) + "\r\n");
+            }
+        }
+        writeValue(writer, "", "PERFORMER", sheet.getPerformer());
+        writeValue(writer, "", "TITLE", sheet.getTitle());
+        writer.write("FILE " + quote(sheet.getFileName()) + " " + fileType(sheet.getFileName()) + "\r\n");
+        for (CueTrack track : sheet.getTracks()) {
+            writer.write(String.format(Locale.ROOT, "  TRACK %02d AUDIO\r\n", track.getNumber()));
+            writeValue(writer, "    ", "TITLE", track.getTitle());
+            writeValue(writer, "    ", "PERFORMER", track.getPerformer());
+            writer.write("    INDEX 01 " + CueTrack.formatTime(track.getStartFrames()) + "\r\n");
+        }
+    }
+
+    private static void writeValue(Writer writer, String indent, String keyword, String value) throws IOException {
+        if (value != null && !value.isEmpty()) {
+            writer.write(indent + keyword + " " + quote(value) + "\r\n");
+        }
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace('"', '\'').replace('\r', ' ').replace('\n', ' ') + "\"";
+    }
+
+    private static String quoteIfNeeded(String value) {
+        return value.indexOf(' ') >= 0 || value.indexOf('\t') >= 0 ? quote(value) : value;
+    }
+
+    /**
+     * The file type, WAVE for anything that is not MP3, as most tools
+     * expect for compressed formats other than MP3.
+     */
+    private static String fileType(String fileName) {
+        return fileName.toLowerCase(Locale.ROOT).endsWith(".mp3") ? "MP3" : "WAVE";
+    }
+
+}
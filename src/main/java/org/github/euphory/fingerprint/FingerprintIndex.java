@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.fingerprint;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * An inverted index from landmark hashes to the tracks and frames they were
+ * found at, memory-mapped from a single file:
+ * <ul>
+ * <li>a 64 byte header: magic 'EUFP', version, track count, posting count
+ * and the offset of the track table;</li>
+ * <li>a dense directory of 2^24 + 1 longs, the first posting of every hash,
+ * the last one being the posting count;</li>
+ * <li>the postings, 5 bytes each, 20 bits of track id and 20 bits of frame,
+ * sorted by hash, track and frame, followed by 8 bytes of padding;</li>
+ * <li>the track table: the count, then artist, title and path of every
+ * track in modified UTF-8.</li>
+ * </ul>
+ * Postings are mapped in segments, as a single mapping cannot exceed 2 GB,
+ * and read with absolute gets, so there is no object per posting and the
+ * index can be queried from many threads. Only the track table lives on the
+ * heap.
+ */
+public final class FingerprintIndex implements Closeable {
+
+    static final int MAGIC = 0x45554650; // 'EUFP'
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final long DIRECTORY_OFFSET = HEADER_SIZE;
+    static final int DIRECTORY_SIZE = (1 << LandmarkExtractor.HASH_BITS) + 1;
+    static final long POSTINGS_OFFSET = DIRECTORY_OFFSET + (long) DIRECTORY_SIZE * Long.BYTES;
+    static final int POSTING_BYTES = 5;
+
+    static final int MAX_TRACK_ID = (1 << 20) - 1;
+    static final int MAX_FRAME = (1 << 20) - 1;
+
+    /**
+     * Postings per mapped segment, the segments overlap by the padding so a
+     * posting near the end of one can still be read as a long.
+     */
+    private static final long SEGMENT_POSTINGS = 1L << 28;
+    private static final long SEGMENT_BYTES = SEGMENT_POSTINGS * POSTING_BYTES;
+
+    /**
+     * Hashes with more postings than this are too common to tell tracks
+     * apart and are skipped by queries.
+     */
+    private static final long MAX_POSTINGS_PER_HASH = 20000;
+
+    private final FileChannel channel;
+    private final LongBuffer directory;
+    private final MappedByteBuffer[] segments;
+    private final long postingCount;
+    private final String[] artists;
+    private final String[] titles;
+    private final String[] paths;
+
+    private FingerprintIndex(FileChannel channel, LongBuffer directory, MappedByteBuffer[] segments, long postingCount,
+            String[] artists, String[] titles, String[] paths) {
+        this.channel = channel;
+        this.directory = directory;
+        this.segments = segments;
+        this.postingCount = postingCount;
+        this.artists = artists;
+        this.titles = titles;
+        this.paths = paths;
+    }
+
+    /**
+     * Gets the index shared by the application, at the path given by the
+     * {@code euphory.fingerprint.index} system property, or in the Euphory
+     * folder of the user home.
+     *
+     * @return The index path, the file may not exist.
+     */
+    public static Path getDefaultPath() {
+        String path = System.getProperty("euphory.fingerprint.index");
+        if (path != null && !path.isBlank()) {
+            return Paths.get(path);
+        }
+        return Paths.get(System.getProperty("user.home"), ".euphory", "fingerprints.index");
+    }
+
+    /**
+     * Opens an index.
+     *
+     * @param file The index file.
+     * @return The index, to be closed after use.
+     * @throws IOException If the file is not a valid index.
+     */
+    public static FingerprintIndex open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+                // Keep reading until the header is complete
+            }
+            if (header.hasRemaining() || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException("Not a fingerprint index: " + file);
+            }
+            int trackCount = header.getInt(8);
+            long postingCount = header.getLong(12);
+            long tracksOffset = header.getLong(20);
+            if (tracksOffset != POSTINGS_OFFSET + postingCount * POSTING_BYTES + Long.BYTES || tracksOffset > channel.size()) {
+                throw new IOException("Corrupt fingerprint index: " + file);
+            }
+            LongBuffer directory = channel.map(FileChannel.MapMode.READ_ONLY, DIRECTORY_OFFSET, (long) DIRECTORY_SIZE * Long.BYTES)
+                    .asLongBuffer();
+            if (directory.get(DIRECTORY_SIZE - 1) != postingCount) {
+                throw new IOException("Corrupt fingerprint index: " + file);
+            }
+            long postingsEnd = tracksOffset;
+            int segmentCount = (int) Math.max(1, (postingCount + SEGMENT_POSTINGS - 1) / SEGMENT_POSTINGS);
+            MappedByteBuffer[] segments = new MappedByteBuffer[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                long start = POSTINGS_OFFSET + i * SEGMENT_BYTES;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_BYTES + Long.BYTES, postingsEnd - start));
+            }
+
+            String[] artists = new String[trackCount];
+            String[] titles = new String[trackCount];
+            String[] paths = new String[trackCount];
+            DataInputStream data = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(tracksOffset))));
+            if (data.readInt() != trackCount) {
+                throw new IOException("Corrupt fingerprint index: " + file);
+            }
+            for (int i = 0; i < trackCount; i++) {
+                artists[i] = data.readUTF();
+                titles[i] = data.readUTF();
+                paths[i] = data.readUTF();
+            }
+            return new FingerprintIndex(channel, directory, segments, postingCount, artists, titles, paths);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    static long pack(int hash, int trackId, int frame) {
+        // The sign bit is flipped so that signed order is hash order
+        return ((long) hash << 40 | (long) trackId << 20 | frame) ^ Long.MIN_VALUE;
+    }
+
+    static int hashOf(long entry) {
+        return (int) ((entry ^ Long.MIN_VALUE) >>> 40);
+    }
+
+    static long postingOf(long entry) {
+        return entry & 0xffffffffffL;
+    }
+
+    public int getTrackCount() {
+        return artists.length;
+    }
+
+    public long getPostingCount() {
+        return postingCount;
+    }
+
+    public String getArtist(int trackId) {
+        return artists[trackId];
+    }
+
+    public String getTitle(int trackId) {
+        return titles[trackId];
+    }
+
+    public String getPath(int trackId) {
+        return paths[trackId];
+    }
+
+    /**
+     * Finds the track that best matches a set of landmarks: every posting of
+     * every hash votes for its track and for the offset between its frame
+     * and the frame of the landmark, and the most voted pair wins.
+     *
+     * @param hashes The landmark hashes.
+     * @param frames The landmark frames.
+     * @param count  The number of landmarks.
+     * @return The best match, or null if no posting was found.
+     */
+    public Match query(int[] hashes, int[] frames, int count) {
+        VoteCounter votes = new VoteCounter(Math.max(1024, count * 8));
+        for (int i = 0; i < count; i++) {
+            long first = directory.get(hashes[i]);
+            long end = directory.get(hashes[i] + 1);
+            if (end - first > MAX_POSTINGS_PER_HASH) {
+                continue;
+            }
+            for (long posting = first; posting < end; posting++) {
+                long value = readPosting(posting);
+                int trackId = (int) (value >>> 20);
+                int frame = (int) (value & MAX_FRAME);
+                votes.add((long) trackId << 21 | (frame - frames[i] + (1 << 20)));
+            }
+        }
+        long best = votes.getBestKey();
+        if (best < 0) {
+            return null;
+        }
+        int trackId = (int) (best >>> 21);
+        int offset = (int) (best & ((1 << 21) - 1)) - (1 << 20);
+        return new Match(trackId, artists[trackId], titles[trackId], votes.getBestCount(), count,
+                (double) offset * LandmarkExtractor.HOP_SIZE / LandmarkExtractor.SAMPLE_RATE);
+    }
+
+    /**
+     * Finds the track that best matches a set of landmarks.
+     *
+     * @param landmarks The landmarks.
+     * @return The best match, or null if no posting was found.
+     */
+    public Match query(Landmarks landmarks) {
+        return query(landmarks.getHashes(), landmarks.getFrames(), landmarks.size());
+    }
+
+    /**
+     * Identifies the track playing in a part of a mix.
+     *
+     * @param mix     The mix.
+     * @param start   The first second of the window.
+     * @param seconds The length of the window.
+     * @return The best match, or null if no posting was found.
+     * @throws IOException If the mix cannot be decoded.
+     */
+    public Match identify(File mix, double start, double seconds) throws IOException {
+        Landmarks landmarks = new Landmarks();
+        new LandmarkExtractor().extract(mix, start, seconds, landmarks);
+        return query(landmarks);
+    }
+
+    private long readPosting(long posting) {
+        MappedByteBuffer segment = segments[(int) (posting / SEGMENT_POSTINGS)];
+        int position = (int) ((posting % SEGMENT_POSTINGS) * POSTING_BYTES);
+        return segment.getLong(position) >>> 24;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Counts votes in an open addressing table of primitive keys, growing
+     * by doubling.
+     */
+    private static final class VoteCounter {
+
+        private long[] keys;
+        private int[] counts;
+        private int size;
+        private long bestKey = -1;
+        private int bestCount;
+
+        private VoteCounter(int expected) {
+            int capacity = Integer.highestOneBit(Math.max(16, expected) * 2 - 1);
+            keys = new long[capacity];
+            counts = new int[capacity];
+            Arrays.fill(keys, -1);
+        }
+
+        private void add(long key) {
+            int mask = keys.length - 1;
+            int slot = mix(key) & mask;
+            while (keys[slot] != -1 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (keys[slot] == -1) {
+                keys[slot] = key;
+                if (++size * 2 > keys.length) {
+                    grow();
+                    add(key);
+                    size--;
+                    return;
+                }
+            }
+            int count = ++counts[slot];
+            if (count > bestCount || (count == bestCount && key < bestKey)) {
+                bestCount = count;
+                bestKey = key;
+            }
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldCounts = counts;
+            keys = new long[oldKeys.length * 2];
+            counts = new int[oldKeys.length * 2];
+            Arrays.fill(keys, -1);
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != -1 && oldCounts[i] > 0) {
+                    int slot = mix(oldKeys[i]) & mask;
+                    while (keys[slot] != -1) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    counts[slot] = oldCounts[i];
+                }
+            }
+        }
+
+        private static int mix(long key) {
+            long h = key * 0x9e3779b97f4a7c15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        private long getBestKey() {
+            return bestKey;
+        }
+
+        private int getBestCount() {
+            return bestCount;
+        }
+
+    }
+
+}
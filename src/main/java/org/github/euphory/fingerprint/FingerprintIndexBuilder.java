@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.fingerprint;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Builds a fingerprint index from reference tracks. Every landmark becomes
+ * one long, hash, track and frame packed so that sorting the longs sorts
+ * the postings. Longs are gathered in a fixed buffer that is sorted and
+ * spilled to a run file when full, and the runs are merged into the index at
+ * the end, so the collection can be much bigger than the memory.
+ */
+public final class FingerprintIndexBuilder implements Closeable {
+
+    private static final int DEFAULT_RUN_SIZE = 8 * 1024 * 1024;
+    private static final int MERGE_BUFFER_SIZE = 64 * 1024;
+
+    private final Path indexFile;
+    private final Path tempDirectory;
+    private final long[] run;
+    private int runSize;
+    private final List<Path> runs = new ArrayList<>();
+    private final List<String[]> tracks = new ArrayList<>();
+
+    /**
+     * Constructs a new FingerprintIndexBuilder.
+     *
+     * @param indexFile The index to write, replaced when the build finishes.
+     * @throws IOException If the run files cannot be created.
+     */
+    public FingerprintIndexBuilder(Path indexFile) throws IOException {
+        this(indexFile, DEFAULT_RUN_SIZE);
+    }
+
+    /**
+     * Constructs a new FingerprintIndexBuilder.
+     *
+     * @param indexFile The index to write, replaced when the build finishes.
+     * @param runSize   The postings sorted in memory at once, 8 bytes each.
+     * @throws IOException If the run files cannot be created.
+     */
+    public FingerprintIndexBuilder(Path indexFile, int runSize) throws IOException {
+        this.indexFile = indexFile.toAbsolutePath();
+        Files.createDirectories(this.indexFile.getParent());
+        this.tempDirectory = Files.createTempDirectory(this.indexFile.getParent(), "fingerprints");
+        this.run = new long[runSize];
+    }
+
+    /**
+     * Fingerprints a reference track and adds it to the index. Tracks can be
+     * added from several threads, they are decoded at the same time and only
+     * their postings are added one track at a time.
+     *
+     * @param file   The track.
+     * @param artist The artist reported when the track is found.
+     * @param title  The title reported when the track is found.
+     * @return The track id.
+     * @throws IOException If the track cannot be decoded or the run cannot be spilled.
+     */
+    public int addTrack(File file, String artist, String title) throws IOException {
+        Landmarks landmarks = new Landmarks();
+        new LandmarkExtractor().extract(file, 0, 0, landmarks);
+        synchronized (this) {
+            int trackId = tracks.size();
+            if (trackId > FingerprintIndex.MAX_TRACK_ID) {
+                throw new IOException("The index is full with " + trackId + " tracks");
+            }
+            tracks.add(new String[] {nullToEmpty(artist), nullToEmpty(title), file.getPath()});
+            for (int i = 0; i < landmarks.size(); i++) {
+                int frame = landmarks.getFrame(i);
+                if (frame > FingerprintIndex.MAX_FRAME) {
+                    continue;
+                }
+                run[runSize++] = FingerprintIndex.pack(landmarks.getHash(i), trackId, frame);
+                if (runSize == run.length) {
+                    spill();
+                }
+            }
+            return trackId;
+        }
+    }
+
+    private void spill() throws IOException {
+        Arrays.sort(run, 0, runSize);
+        Path file = tempDirectory.resolve("run" + runs.size());
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(MERGE_BUFFER_SIZE);
+            for (int i = 0; i < runSize; i++) {
+                if (!buffer.hasRemaining()) {
+                    writeFully(channel, buffer);
+                }
+                buffer.putLong(run[i]);
+            }
+            writeFully(channel, buffer);
+        }
+        runs.add(file);
+        runSize = 0;
+    }
+
+    /**
+     * Merges the runs into the index file, replacing it atomically. The
+     * directory is mapped and filled while the postings stream past it.
+     *
+     * @throws IOException If the index cannot be written.
+     */
+    public synchronized void finish() throws IOException {
+        if (runSize > 0) {
+            spill();
+        }
+        Path temp = tempDirectory.resolve("index");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer directoryBytes = channel.map(FileChannel.MapMode.READ_WRITE, FingerprintIndex.DIRECTORY_OFFSET,
+                    (long) FingerprintIndex.DIRECTORY_SIZE * Long.BYTES);
+            LongBuffer directory = directoryBytes.asLongBuffer();
+
+            RunReader[] readers = new RunReader[runs.size()];
+            for (int i = 0; i < readers.length; i++) {
+                readers[i] = new RunReader(runs.get(i));
+            }
+            long count = 0;
+            int nextHash = 0;
+            ByteBuffer out = ByteBuffer.allocate(MERGE_BUFFER_SIZE);
+            long position = FingerprintIndex.POSTINGS_OFFSET;
+            try {
+                MergeHeap heap = new MergeHeap(readers);
+                while (!heap.isEmpty()) {
+                    long entry = heap.pop();
+                    int hash = FingerprintIndex.hashOf(entry);
+                    while (nextHash <= hash) {
+                        directory.put(nextHash++, count);
+                    }
+                    if (out.remaining() < FingerprintIndex.POSTING_BYTES) {
+                        position += writeFully(channel, out, position);
+                    }
+                    long posting = FingerprintIndex.postingOf(entry);
+                    out.put((byte) (posting >>> 32)).putInt((int) posting);
+                    count++;
+                }
+            } finally {
+                for (RunReader reader : readers) {
+                    reader.close();
+                }
+            }
+            while (nextHash < FingerprintIndex.DIRECTORY_SIZE) {
+                directory.put(nextHash++, count);
+            }
+            directoryBytes.force();
+            position += writeFully(channel, out, position);
+            // Padding, so every posting can be read as a long
+            out.put(new byte[Long.BYTES]);
+            position += writeFully(channel, out, position);
+
+            long tracksOffset = position;
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(channel.position(tracksOffset))));
+            data.writeInt(tracks.size());
+            for (String[] track : tracks) {
+                data.writeUTF(track[0]);
+                data.writeUTF(track[1]);
+                data.writeUTF(track[2]);
+            }
+            data.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(FingerprintIndex.HEADER_SIZE);
+            header.putInt(FingerprintIndex.MAGIC).putInt(FingerprintIndex.VERSION).putInt(tracks.size())
+                    .putLong(count).putLong(tracksOffset);
+            header.position(header.capacity());
+            writeFully(channel, header, 0);
+            channel.force(true);
+        }
+        Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Deletes the run files, the index itself is only left if finished.
+     */
+    @Override
+    public void close() throws IOException {
+        try (var files = Files.list(tempDirectory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(tempDirectory);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+        buffer.clear();
+        return written;
+    }
+
+    private static String nullToEmpty(String value) {
+        return value != null ? value : "";
+    }
+
+    /**
+     * Streams the longs of a run file.
+     */
+    private static final class RunReader implements Closeable {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(MERGE_BUFFER_SIZE);
+
+        private RunReader(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            buffer.flip();
+        }
+
+        private boolean hasNext() throws IOException {
+            if (buffer.remaining() >= Long.BYTES) {
+                return true;
+            }
+            buffer.compact();
+            while (buffer.position() < Long.BYTES && channel.read(buffer) > 0) {
+                // Read until a whole long is there or the run ends
+            }
+            buffer.flip();
+            return buffer.remaining() >= Long.BYTES;
+        }
+
+        private long next() {
+            return buffer.getLong();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+    }
+
+    /**
+     * A binary heap of the current heads of the runs, primitive all along.
+     */
+    private static final class MergeHeap {
+
+        private final RunReader[] readers;
+        private final long[] heads;
+        private final int[] order;
+        private int size;
+
+        private MergeHeap(RunReader[] readers) throws IOException {
+            this.readers = readers;
+            this.heads = new long[readers.length];
+            this.order = new int[readers.length];
+            for (int i = 0; i < readers.length; i++) {
+                if (readers[i].hasNext()) {
+                    heads[i] = readers[i].next();
+                    order[size] = i;
+                    siftUp(size++);
+                }
+            }
+        }
+
+        private boolean isEmpty() {
+            return size == 0;
+        }
+
+        private long pop() throws IOException {
+            int reader = order[0];
+            long value = heads[reader];
+            if (readers[reader].hasNext()) {
+                heads[reader] = readers[reader].next();
+            } else {
+                order[0] = order[--size];
+            }
+            siftDown(0);
+            return value;
+        }
+
+        private void siftUp(int index) {
+            while (index > 0) {
+                int parent = (index - 1) / 2;
+                if (Long.compare(heads[order[parent]], heads[order[index]]) <= 0) {
+                    break;
+                }
+                swap(parent, index);
+                index = parent;
+            }
+        }
+
+        private void siftDown(int index) {
+            while (true) {
+                int smallest = index;
+                for (int child = 2 * index + 1; child <= 2 * index + 2 && child < size; child++) {
+                    if (Long.compare(heads[order[child]], heads[order[smallest]]) < 0) {
+                        smallest = child;
+                    }
+                }
+                if (smallest == index) {
+                    return;
+                }
+                swap(index, smallest);
+                index = smallest;
+            }
+        }
+
+        private void swap(int a, int b) {
+            int temp = order[a];
+            order[a] = order[b];
+            order[b] = temp;
+        }
+
+    }
+
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.fingerprint;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+
+import be.tarsos.dsp.AudioDispatcher;
+import be.tarsos.dsp.AudioEvent;
+import be.tarsos.dsp.AudioProcessor;
+import be.tarsos.dsp.io.jvm.AudioDispatcherFactory;
+import be.tarsos.dsp.util.fft.FFT;
+import be.tarsos.dsp.util.fft.HannWindow;
+
+import org.github.euphory.analysis.DecodedPcm;
+import org.github.euphory.analysis.SeekIndex;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Extracts landmarks from audio: pairs of spectral peaks hashed from the
+ * frequency of the first peak, the frequency step to the second one and the
+ * time between them. Peaks must be the loudest point of their neighbourhood
+ * in the spectrogram, so they survive mixing, equalization and encoding.
+ * Only a few frames of spectrogram and of peaks are kept, any length of
+ * audio is processed in constant memory.
+ */
+public final class LandmarkExtractor {
+
+    public static final int SAMPLE_RATE = 11025;
+    public static final int FRAME_SIZE = 2048;
+    public static final int HOP_SIZE = 512;
+
+    /**
+     * Landmark hashes have 10 bits of frequency, 8 of frequency step and 6
+     * of time step.
+     */
+    public static final int HASH_BITS = 24;
+
+    private static final int BINS = FRAME_SIZE / 2;
+    private static final int MAX_DELTA_BINS = 127;
+    private static final int MAX_DELTA_FRAMES = 63;
+
+    /**
+     * A peak is the loudest bin within this many bins in its frame.
+     */
+    private static final int FREQUENCY_NEIGHBOURHOOD = 12;
+
+    /**
+     * And the loudest within this many frames and two bins around it.
+     */
+    private static final int TIME_NEIGHBOURHOOD = 5;
+
+    private static final int MAX_PEAKS_PER_FRAME = 5;
+    private static final int FAN_OUT = 5;
+
+    /**
+     * How far above the mean log magnitude of its frame a peak must be.
+     */
+    private static final float PEAK_THRESHOLD = 2.5f;
+
+    /**
+     * Receives the landmarks in the order they are found.
+     */
+    public interface Sink {
+
+        /**
+         * @param hash  The landmark hash, {@link #HASH_BITS} bits.
+         * @param frame The frame of the first peak, from the start of the audio.
+         */
+        void landmark(int hash, int frame);
+
+    }
+
+    private final FFT fft = new FFT(FRAME_SIZE, new HannWindow());
+    private final float[] transform = new float[FRAME_SIZE];
+    private final float[] magnitudes = new float[BINS];
+
+    private final int spectrumFrames = 2 * TIME_NEIGHBOURHOOD + 1;
+    private final float[][] spectrum = new float[spectrumFrames][BINS];
+    private final int[][] candidates = new int[spectrumFrames][MAX_PEAKS_PER_FRAME];
+    private final int[] candidateCounts = new int[spectrumFrames];
+
+    private final int peakFrames = MAX_DELTA_FRAMES + 1;
+    private final int[][] peaks = new int[peakFrames][MAX_PEAKS_PER_FRAME];
+    private final int[][] fanOut = new int[peakFrames][MAX_PEAKS_PER_FRAME];
+    private final int[] peakCounts = new int[peakFrames];
+
+    private int frame;
+    private Sink sink;
+    private volatile AudioDispatcher dispatcher;
+    private volatile boolean cancelled;
+    private SeekIndex seekIndex;
+    private DecodedPcm samples;
+
+    /**
+     * Sets the seek index of the media file, so parts are decoded from the
+     * frame of their start instead of where the decoder estimates it.
+     *
+     * @param seekIndex The index, or null to seek by the decoder's estimate.
+     */
+    public void setSeekIndex(SeekIndex seekIndex) {
+        this.seekIndex = seekIndex;
+    }
+
+    /**
+     * Sets the decoded samples of the media file, so parts are read from them
+     * instead of decoded.
+     *
+     * @param samples The samples at {@link #SAMPLE_RATE}, or null to decode parts.
+     * @throws IllegalArgumentException If the samples are at another rate.
+     */
+    public void setSamples(DecodedPcm samples) {
+        if (samples != null && samples.getSampleRate() != SAMPLE_RATE) {
+            throw new IllegalArgumentException("Samples at " + samples.getSampleRate() + " Hz instead of " + SAMPLE_RATE);
+        }
+        this.samples = samples;
+    }
+
+    /**
+     * Extracts the landmarks of a part of a media file, on the calling thread.
+     *
+     * @param file    The media file.
+     * @param start   The first second to decode.
+     * @param seconds The seconds to decode, 0 to decode to the end.
+     * @param sink    Receives the landmarks, frames counted from start.
+     * @throws IOException If the file cannot be decoded.
+     * @throws InterruptedIOException If the extraction was cancelled.
+     */
+    public void extract(File file, double start, double seconds, Sink sink) throws IOException {
+        AudioDispatcher audioDispatcher;
+        if (samples != null) {
+            audioDispatcher = samples.dispatch(Math.round(start * SAMPLE_RATE),
+                    seconds > 0 ? Math.round(seconds * SAMPLE_RATE) : Long.MAX_VALUE, FRAME_SIZE, FRAME_SIZE - HOP_SIZE);
+        } else {
+            if (seekIndex != null) {
+                start = seekIndex.toStreamSeconds(start);
+            }
+            audioDispatcher = seconds > 0
+                    ? AudioDispatcherFactory.fromPipe(file.getAbsolutePath(), SAMPLE_RATE, FRAME_SIZE, FRAME_SIZE - HOP_SIZE, start, seconds)
+                    : AudioDispatcherFactory.fromPipe(file.getAbsolutePath(), SAMPLE_RATE, FRAME_SIZE, FRAME_SIZE - HOP_SIZE, start);
+        }
+        audioDispatcher.addAudioProcessor(new AudioProcessor() {
+
+            @Override
+            public boolean process(AudioEvent audioEvent) {
+                addFrame(audioEvent.getFloatBuffer());
+                return true;
+            }
+
+            @Override
+            public void processingFinished() {
+            }
+
+        });
+        reset(sink);
+        dispatcher = audioDispatcher;
+        try {
+            if (cancelled) {
+                throw new InterruptedIOException("Landmark extraction cancelled");
+            }
+            audioDispatcher.run();
+            if (cancelled) {
+                throw new InterruptedIOException("Landmark extraction cancelled");
+            }
+            finish();
+        } finally {
+            dispatcher = null;
+            this.sink = null;
+        }
+    }
+
+    /**
+     * Stops a running extraction, from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+        AudioDispatcher audioDispatcher = dispatcher;
+        if (audioDispatcher != null) {
+            audioDispatcher.stop();
+        }
+    }
+
+    void reset(Sink sink) {
+        this.sink = sink;
+        frame = 0;
+        Arrays.fill(candidateCounts, 0);
+        Arrays.fill(peakCounts, 0);
+    }
+
+    /**
+     * Adds the next frame of samples, confirming the peaks of the frame
+     * {@link #TIME_NEIGHBOURHOOD} frames back.
+     */
+    void addFrame(float[] samples) {
+        System.arraycopy(samples, 0, transform, 0, Math.min(samples.length, FRAME_SIZE));
+        for (int i = samples.length; i < FRAME_SIZE; i++) {
+            transform[i] = 0;
+        }
+        fft.forwardTransform(transform);
+        fft.modulus(transform, magnitudes);
+
+        int slot = frame % spectrumFrames;
+        float[] logs = spectrum[slot];
+        float mean = 0;
+        for (int bin = 0; bin < BINS; bin++) {
+            logs[bin] = (float) Math.log(magnitudes[bin] + 1e-6f);
+            mean += logs[bin];
+        }
+        mean /= BINS;
+        findCandidates(logs, mean + PEAK_THRESHOLD, candidates[slot], slot);
+
+        if (frame >= TIME_NEIGHBOURHOOD) {
+            confirmPeaks(frame - TIME_NEIGHBOURHOOD, frame);
+        }
+        frame++;
+    }
+
+    /**
+     * Confirms the peaks of the last frames, with only the frames after them
+     * that exist.
+     */
+    void finish() {
+        for (int center = Math.max(0, frame - TIME_NEIGHBOURHOOD); center < frame; center++) {
+            confirmPeaks(center, frame - 1);
+        }
+    }
+
+    /**
+     * Keeps the loudest bins that are the maximum of their frequency
+     * neighbourhood and above the threshold.
+     */
+    private void findCandidates(float[] logs, float threshold, int[] bins, int slot) {
+        int count = 0;
+        for (int bin = 1; bin < BINS - 1; bin++) {
+            float value = logs[bin];
+            if (value < threshold) {
+                continue;
+            }
+            boolean peak = true;
+            for (int other = Math.max(0, bin - FREQUENCY_NEIGHBOURHOOD); other <= Math.min(BINS - 1, bin + FREQUENCY_NEIGHBOURHOOD) && peak; other++) {
+                peak = other == bin || logs[other] < value || (logs[other] == value && other > bin);
+            }
+            if (!peak) {
+                continue;
+            }
+            // Insert sorted by loudness, dropping the quietest when full
+            int position;
+            if (count < MAX_PEAKS_PER_FRAME) {
+                position = count++;
+            } else if (value > logs[bins[MAX_PEAKS_PER_FRAME - 1]]) {
+                position = MAX_PEAKS_PER_FRAME - 1;
+            } else {
+                continue;
+            }
+            while (position > 0 && logs[bins[position - 1]] < value) {
+                bins[position] = bins[position - 1];
+                position--;
+            }
+            bins[position] = bin;
+        }
+        candidateCounts[slot] = count;
+    }
+
+    private void confirmPeaks(int center, int last) {
+        int slot = center % spectrumFrames;
+        float[] logs = spectrum[slot];
+        int peakSlot = center % peakFrames;
+        int confirmed = 0;
+        for (int i = 0; i < candidateCounts[slot]; i++) {
+            int bin = candidates[slot][i];
+            float value = logs[bin];
+            boolean peak = true;
+            for (int t = Math.max(0, center - TIME_NEIGHBOURHOOD); t <= last && peak; t++) {
+                if (t == center) {
+                    continue;
+                }
+                float[] other = spectrum[t % spectrumFrames];
+                for (int b = Math.max(0, bin - 2); b <= Math.min(BINS - 1, bin + 2) && peak; b++) {
+                    peak = other[b] < value || (other[b] == value && t > center);
+                }
+            }
+            if (peak) {
+                peaks[peakSlot][confirmed] = bin;
+                fanOut[peakSlot][confirmed] = 0;
+                confirmed++;
+            }
+        }
+        peakCounts[peakSlot] = confirmed;
+        candidateCounts[slot] = 0;
+
+        // Pair the new peaks, as targets, with the anchors before them
+        for (int i = 0; i < confirmed; i++) {
+            int bin = peaks[peakSlot][i];
+            for (int anchor = Math.max(0, center - MAX_DELTA_FRAMES); anchor < center; anchor++) {
+                int anchorSlot = anchor % peakFrames;
+                for (int j = 0; j < peakCounts[anchorSlot]; j++) {
+                    int anchorBin = peaks[anchorSlot][j];
+                    int deltaBins = bin - anchorBin;
+                    if (fanOut[anchorSlot][j] < FAN_OUT && Math.abs(deltaBins) <= MAX_DELTA_BINS) {
+                        fanOut[anchorSlot][j]++;
+                        sink.landmark(hash(anchorBin, deltaBins, center - anchor), anchor);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Packs a landmark: 10 bits of anchor bin, 8 bits of bin step, 6 bits
+     * of frame step.
+     */
+    static int hash(int anchorBin, int deltaBins, int deltaFrames) {
+        return (anchorBin << 14) | ((deltaBins + 128) & 0xff) << 6 | deltaFrames;
+    }
+
+}
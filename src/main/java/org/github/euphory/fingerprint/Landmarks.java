@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.fingerprint;
+
+import java.util.Arrays;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Gathers landmarks in growing primitive arrays, that can be cleared and
+ * reused from one extraction to the next.
+ */
+public final class Landmarks implements LandmarkExtractor.Sink {
+
+    private int[] hashes = new int[4096];
+    private int[] frames = new int[4096];
+    private int size;
+
+    @Override
+    public void landmark(int hash, int frame) {
+        if (size == hashes.length) {
+            hashes = Arrays.copyOf(hashes, size * 2);
+            frames = Arrays.copyOf(frames, size * 2);
+        }
+        hashes[size] = hash;
+        frames[size] = frame;
+        size++;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getHash(int index) {
+        return hashes[index];
+    }
+
+    public int getFrame(int index) {
+        return frames[index];
+    }
+
+    int[] getHashes() {
+        return hashes;
+    }
+
+    int[] getFrames() {
+        return frames;
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.fingerprint;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * A reference track found in a fingerprint index.
+ */
+public final class Match {
+
+    private final int trackId;
+    private final String artist;
+    private final String title;
+    private final int votes;
+    private final int landmarks;
+    private final double offsetSeconds;
+
+    Match(int trackId, String artist, String title, int votes, int landmarks, double offsetSeconds) {
+        this.trackId = trackId;
+        this.artist = artist;
+        this.title = title;
+        this.votes = votes;
+        this.landmarks = landmarks;
+        this.offsetSeconds = offsetSeconds;
+    }
+
+    public int getTrackId() {
+        return trackId;
+    }
+
+    public String getArtist() {
+        return artist;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * @return The landmarks that agree on the track and the offset.
+     */
+    public int getVotes() {
+        return votes;
+    }
+
+    /**
+     * @return The landmarks of the query.
+     */
+    public int getLandmarks() {
+        return landmarks;
+    }
+
+    /**
+     * @return Where the query starts in the reference track, in seconds.
+     */
+    public double getOffsetSeconds() {
+        return offsetSeconds;
+    }
+
+    @Override
+    public String toString() {
+        return "Match [artist=" + artist + ", title=" + title + ", votes=" + votes + "/" + landmarks
+                + ", offset=" + offsetSeconds + "]";
+    }
+
+}
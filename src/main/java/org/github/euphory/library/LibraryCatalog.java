@@ -0,0 +1,385 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.library;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import org.github.euphory.tags.Chapter;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * The library catalog, an append-only log of entries kept in a single file.
+ * Every change appends one record, the last record of a path wins, so a
+ * rescan writes only what changed. The whole log is read sequentially when
+ * the catalog is opened, without touching any media file.
+ * <p>
+ * The file starts with a 16 byte header: magic 'EULC', version and 8
+ * reserved bytes. Every record is its length, the CRC32 of its payload and
+ * the payload: an operation byte and the path, followed for puts by size,
+ * modification time, audio hash, the tags and the chapters, strings in
+ * modified UTF-8. A record torn by a crash fails its CRC and is cut off
+ * with everything after it. When the log holds many more records than
+ * entries it is rewritten with only the live ones. A catalog of another
+ * version is started afresh, the next scan reads the files again.
+ */
+public final class LibraryCatalog implements Closeable {
+
+    private static final int MAGIC = 0x45554c43; // 'EULC'
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Longer texts, lyrics and the like, are cut to fit a record.
+     */
+    private static final int MAX_TAG_LENGTH = 8192;
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    /**
+     * The log is compacted when it holds this many times more records than
+     * entries, and at least {@link #COMPACT_MIN_GARBAGE} stale ones.
+     */
+    private static final int COMPACT_RATIO = 2;
+    private static final int COMPACT_MIN_GARBAGE = 1024;
+
+    private final Path file;
+    private final Map<String, LibraryEntry> entries = new ConcurrentHashMap<>();
+    private FileChannel channel;
+    private DataOutputStream out;
+    private long records;
+
+    private LibraryCatalog(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Gets the catalog path shared by the application, given by the
+     * {@code euphory.library.catalog} system property, or in the Euphory
+     * folder of the user home.
+     *
+     * @return The catalog path, the file may not exist.
+     */
+    public static Path getDefaultPath() {
+        String path = System.getProperty("euphory.library.catalog");
+        if (path != null && !path.isBlank()) {
+            return Paths.get(path);
+        }
+        return Paths.get(System.getProperty("user.home"), ".euphory", "library.catalog");
+    }
+
+    /**
+     * Opens a catalog, creating it if it does not exist.
+     *
+     * @param file The catalog file.
+     * @return The catalog, to be closed after use.
+     * @throws IOException If the file cannot be read or is not a catalog.
+     */
+    public static LibraryCatalog open(Path file) throws IOException {
+        LibraryCatalog catalog = new LibraryCatalog(file.toAbsolutePath());
+        catalog.load();
+        return catalog;
+    }
+
+    private void load() throws IOException {
+        Files.createDirectories(file.getParent());
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() == 0) {
+                writeHeader(channel);
+            }
+            long valid = read();
+            if (valid < channel.size()) {
+                // A torn or corrupt tail, the records before it are good
+                channel.truncate(valid);
+            }
+            channel.position(valid);
+            out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            if (needsCompaction()) {
+                compact();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the log into the entries.
+     *
+     * @return The offset after the last valid record.
+     */
+    private long read() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0)), 64 * 1024));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a library catalog: " + file);
+        }
+        if (in.readInt() != VERSION) {
+            channel.truncate(0);
+            writeHeader(channel);
+            return HEADER_SIZE;
+        }
+        in.readLong();
+        long valid = HEADER_SIZE;
+        // Tag keys repeat in every entry, keep one copy of each
+        Map<String, String> keys = new HashMap<>();
+        CRC32 crc = new CRC32();
+        byte[] payload = new byte[1024];
+        while (true) {
+            int length;
+            int checksum;
+            try {
+                length = in.readInt();
+                checksum = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_SIZE) {
+                    break;
+                }
+                if (payload.length < length) {
+                    payload = new byte[Math.max(length, payload.length * 2)];
+                }
+                in.readFully(payload, 0, length);
+            } catch (EOFException e) {
+                break;
+            }
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            apply(new DataInputStream(new ByteArrayInputStream(payload, 0, length)), keys);
+            valid += RECORD_HEADER_SIZE + length;
+            records++;
+        }
+        return valid;
+    }
+
+    private void apply(DataInputStream record, Map<String, String> keys) throws IOException {
+        byte operation = record.readByte();
+        String path = record.readUTF();
+        if (operation == REMOVE) {
+            entries.remove(path);
+            return;
+        }
+        long size = record.readLong();
+        long lastModified = record.readLong();
+        String audioHash = record.readUTF();
+        int tagCount = record.readUnsignedShort();
+        Map<String, String> tags = new LinkedHashMap<>(tagCount * 2);
+        for (int i = 0; i < tagCount; i++) {
+            String key = record.readUTF();
+            tags.put(keys.computeIfAbsent(key, k -> k), record.readUTF());
+        }
+        int chapterCount = record.readInt();
+        List<Chapter> chapters = new ArrayList<>(chapterCount);
+        for (int i = 0; i < chapterCount; i++) {
+            chapters.add(new Chapter(record.readLong(), record.readLong(), record.readUTF(), record.readUTF()));
+        }
+        entries.put(path, new LibraryEntry(path, size, lastModified, audioHash, tags, chapters));
+    }
+
+    /**
+     * Gets the entry of a file.
+     *
+     * @param path The file.
+     * @return The entry, or null if the file is not in the catalog.
+     */
+    public LibraryEntry get(Path path) {
+        return entries.get(key(path));
+    }
+
+    /**
+     * Gets all the entries, a live view that can be read from any thread.
+     *
+     * @return The entries.
+     */
+    public Collection<LibraryEntry> getEntries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Adds or replaces an entry, appending it to the log.
+     *
+     * @param entry The entry.
+     * @throws IOException If the record cannot be written.
+     */
+    public synchronized void put(LibraryEntry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeByte(PUT);
+        record.writeUTF(entry.getPath());
+        record.writeLong(entry.getSize());
+        record.writeLong(entry.getLastModified());
+        record.writeUTF(entry.getAudioHash());
+        record.writeShort(Math.min(entry.getTags().size(), 0xffff));
+        int written = 0;
+        for (Map.Entry<String, String> tag : entry.getTags().entrySet()) {
+            if (written++ == 0xffff) {
+                break;
+            }
+            record.writeUTF(tag.getKey());
+            writeText(record, tag.getValue());
+        }
+        record.writeInt(entry.getChapterCount());
+        for (Chapter chapter : entry.getChapters()) {
+            record.writeLong(chapter.getStartMillis());
+            record.writeLong(chapter.getEndMillis());
+            writeText(record, chapter.getArtist());
+            writeText(record, chapter.getTitle());
+        }
+        append(bytes);
+        entries.put(entry.getPath(), entry);
+    }
+
+    /**
+     * Removes the entry of a file, appending the removal to the log.
+     *
+     * @param path The file.
+     * @return True if there was an entry.
+     * @throws IOException If the record cannot be written.
+     */
+    public synchronized boolean remove(Path path) throws IOException {
+        String key = key(path);
+        if (!entries.containsKey(key)) {
+            return false;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeByte(REMOVE);
+        record.writeUTF(key);
+        append(bytes);
+        entries.remove(key);
+        return true;
+    }
+
+    private static void writeText(DataOutputStream record, String text) throws IOException {
+        String value = text != null ? text : "";
+        record.writeUTF(value.length() > MAX_TAG_LENGTH ? value.substring(0, MAX_TAG_LENGTH) : value);
+    }
+
+    private void append(ByteArrayOutputStream bytes) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt(bytes.size());
+        out.writeInt((int) crc.getValue());
+        bytes.writeTo(out);
+        records++;
+    }
+
+    /**
+     * Writes the appended records to the file, compacting it if most of it
+     * is stale.
+     *
+     * @throws IOException If the file cannot be written.
+     */
+    public synchronized void flush() throws IOException {
+        out.flush();
+        if (needsCompaction()) {
+            compact();
+        }
+    }
+
+    private boolean needsCompaction() {
+        long garbage = records - entries.size();
+        return garbage >= COMPACT_MIN_GARBAGE && records > (long) COMPACT_RATIO * entries.size();
+    }
+
+    /**
+     * Rewrites the log with one record per entry, replacing the file
+     * atomically.
+     *
+     * @throws IOException If the file cannot be written.
+     */
+    public synchronized void compact() throws IOException {
+        out.flush();
+        Path temp = Files.createTempFile(file.getParent(), "library", ".catalog");
+        try {
+            try (FileChannel compacted = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                writeHeader(compacted);
+                out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(compacted.position(HEADER_SIZE))));
+                records = 0;
+                for (LibraryEntry entry : entries.values()) {
+                    put(entry);
+                }
+                out.flush();
+                compacted.force(true);
+            }
+            channel.close();
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+            if (!channel.isOpen()) {
+                channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            channel.position(channel.size());
+            out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+        }
+    }
+
+    /**
+     * Flushes and closes the catalog.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            out.flush();
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static void writeHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).putLong(0);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+    }
+
+    /**
+     * The key of a file, its absolute normalized path.
+     */
+    static String key(Path path) {
+        return path.toAbsolutePath().normalize().toString();
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.library;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.github.euphory.tags.Chapter;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * What the library knows of a media file, as read at its last scan.
+ */
+public final class LibraryEntry {
+
+    private final String path;
+    private final long size;
+    private final long lastModified;
+    private final String audioHash;
+    private final Map<String, String> tags;
+    private final List<Chapter> chapters;
+
+    /**
+     * Constructs a new LibraryEntry.
+     *
+     * @param path         The absolute, normalized path of the file.
+     * @param size         The file size in bytes.
+     * @param lastModified The modification time in milliseconds.
+     * @param audioHash    The hash of the audio, tags left out, in hexadecimal.
+     * @param tags         The tags, kept as given.
+     * @param chapters     The chapters, in playing order.
+     */
+    public LibraryEntry(String path, long size, long lastModified, String audioHash, Map<String, String> tags, List<Chapter> chapters) {
+        this.path = path;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.audioHash = audioHash;
+        this.tags = Collections.unmodifiableMap(tags);
+        this.chapters = Collections.unmodifiableList(chapters);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public Path toPath() {
+        return Paths.get(path);
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public String getAudioHash() {
+        return audioHash;
+    }
+
+    public Map<String, String> getTags() {
+        return tags;
+    }
+
+    public List<Chapter> getChapters() {
+        return chapters;
+    }
+
+    public int getChapterCount() {
+        return chapters.size();
+    }
+
+    /**
+     * Checks whether the file may have changed since this entry was read.
+     *
+     * @param size         The current file size.
+     * @param lastModified The current modification time in milliseconds.
+     * @return True if neither changed.
+     */
+    public boolean isUpToDate(long size, long lastModified) {
+        return this.size == size && this.lastModified == lastModified;
+    }
+
+    @Override
+    public String toString() {
+        return "LibraryEntry [path=" + path + ", size=" + size + ", lastModified=" + lastModified + ", audioHash="
+                + audioHash + ", tags=" + tags + ", chapters=" + chapters.size() + "]";
+    }
+
+}
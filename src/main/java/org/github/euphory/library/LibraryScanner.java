@@ -0,0 +1,361 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.library;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.github.euphory.analysis.CacheKey;
+import org.github.euphory.service.TagService;
+import org.github.euphory.tags.Chapter;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Scans music folders into a library catalog. Directory trees are walked on
+ * the calling thread, which only compares the size and modification time
+ * the walk reports anyway against the catalog, and the files that changed
+ * are read by a fixed number of workers, bounding the I/O in flight. Files
+ * that disappeared from a scanned folder leave the catalog.
+ */
+public final class LibraryScanner {
+
+    /**
+     * Receives the changes of a scan, on the worker threads.
+     */
+    public interface Listener {
+
+        default void entryUpdated(LibraryEntry entry) {
+        }
+
+        default void entryRemoved(Path file) {
+        }
+
+        default void scanFailed(Path file, IOException e) {
+        }
+
+    }
+
+    /**
+     * What a scan did.
+     */
+    public static final class Result {
+
+        private final int added;
+        private final int updated;
+        private final int removed;
+        private final int unchanged;
+        private final int failed;
+
+        private Result(int added, int updated, int removed, int unchanged, int failed) {
+            this.added = added;
+            this.updated = updated;
+            this.removed = removed;
+            this.unchanged = unchanged;
+            this.failed = failed;
+        }
+
+        public int getAdded() {
+            return added;
+        }
+
+        public int getUpdated() {
+            return updated;
+        }
+
+        public int getRemoved() {
+            return removed;
+        }
+
+        public int getUnchanged() {
+            return unchanged;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        @Override
+        public String toString() {
+            return "Result [added=" + added + ", updated=" + updated + ", removed=" + removed + ", unchanged="
+                    + unchanged + ", failed=" + failed + "]";
+        }
+
+    }
+
+    private static final Listener NO_LISTENER = new Listener() {
+    };
+
+    private final LibraryCatalog catalog;
+    private final TagService tagService;
+    private final int ioConcurrency;
+    private volatile boolean cancelled;
+
+    /**
+     * Constructs a new LibraryScanner reading at most four files at once.
+     *
+     * @param catalog The catalog to update.
+     */
+    public LibraryScanner(LibraryCatalog catalog) {
+        this(catalog, new TagService(), Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Constructs a new LibraryScanner.
+     *
+     * @param catalog       The catalog to update.
+     * @param tagService    Reads the tags and chapters.
+     * @param ioConcurrency The most files read at once.
+     */
+    public LibraryScanner(LibraryCatalog catalog, TagService tagService, int ioConcurrency) {
+        if (ioConcurrency < 1) {
+            throw new IllegalArgumentException("At least one file must be read at once: " + ioConcurrency);
+        }
+        this.catalog = catalog;
+        this.tagService = tagService;
+        this.ioConcurrency = ioConcurrency;
+    }
+
+    public LibraryCatalog getCatalog() {
+        return catalog;
+    }
+
+    /**
+     * Scans folders, reading only the files that are new or changed since
+     * the last scan.
+     *
+     * @param roots    The folders, or single files.
+     * @param listener Receives the changes, may be null.
+     * @return What the scan did.
+     * @throws IOException If the catalog cannot be written.
+     * @throws InterruptedIOException If the scan was cancelled.
+     */
+    public Result scan(List<Path> roots, Listener listener) throws IOException {
+        Listener changes = listener != null ? listener : NO_LISTENER;
+        cancelled = false;
+        AtomicInteger threads = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(ioConcurrency, runnable -> {
+            Thread thread = new Thread(runnable, "euphory-library-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        Semaphore queued = new Semaphore(ioConcurrency * 4);
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+        AtomicInteger added = new AtomicInteger();
+        AtomicInteger updated = new AtomicInteger();
+        AtomicInteger unchanged = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicReference<IOException> catalogError = new AtomicReference<>();
+        List<String> scannedRoots = new ArrayList<>();
+        try {
+            for (Path root : roots) {
+                scannedRoots.add(LibraryCatalog.key(root));
+                Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                        if (cancelled) {
+                            return FileVisitResult.TERMINATE;
+                        }
+                        if (!attributes.isRegularFile() || !isMediaFile(file)) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                        seen.add(LibraryCatalog.key(file));
+                        long size = attributes.size();
+                        long lastModified = attributes.lastModifiedTime().toMillis();
+                        LibraryEntry old = catalog.get(file);
+                        if (old != null && old.isUpToDate(size, lastModified)) {
+                            unchanged.incrementAndGet();
+                            return FileVisitResult.CONTINUE;
+                        }
+                        queued.acquireUninterruptibly();
+                        workers.execute(() -> {
+                            try {
+                                LibraryEntry entry;
+                                try {
+                                    entry = read(file, size, lastModified);
+                                } catch (IOException e) {
+                                    failed.incrementAndGet();
+                                    changes.scanFailed(file, e);
+                                    return;
+                                }
+                                try {
+                                    catalog.put(entry);
+                                } catch (IOException e) {
+                                    // Without a catalog there is no point in going on
+                                    catalogError.compareAndSet(null, e);
+                                    cancelled = true;
+                                    return;
+                                }
+                                (old == null ? added : updated).incrementAndGet();
+                                changes.entryUpdated(entry);
+                            } finally {
+                                queued.release();
+                            }
+                        });
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e) {
+                        if (!(e instanceof NoSuchFileException)) {
+                            failed.incrementAndGet();
+                            changes.scanFailed(file, e);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                });
+            }
+        } finally {
+            workers.shutdown();
+            try {
+                while (!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+                    // Keep waiting for the files being read
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                workers.shutdownNow();
+            }
+        }
+        if (catalogError.get() != null) {
+            throw catalogError.get();
+        }
+        if (cancelled) {
+            catalog.flush();
+            throw new InterruptedIOException("Library scan cancelled");
+        }
+
+        // Whatever was under a scanned root and was not walked is gone
+        int removed = 0;
+        for (LibraryEntry entry : catalog.getEntries()) {
+            String path = entry.getPath();
+            if (!seen.contains(path) && isUnder(path, scannedRoots)) {
+                catalog.remove(entry.toPath());
+                changes.entryRemoved(entry.toPath());
+                removed++;
+            }
+        }
+        catalog.flush();
+        return new Result(added.get(), updated.get(), removed, unchanged.get(), failed.get());
+    }
+
+    /**
+     * Updates the entry of a single file, reading it only if it changed, or
+     * removing it if it no longer exists.
+     *
+     * @param file The file.
+     * @return The entry, or null if the file is gone or not a media file.
+     * @throws IOException If the file or the catalog cannot be read or written.
+     */
+    public LibraryEntry scanFile(Path file) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            catalog.remove(file);
+            return null;
+        }
+        if (!attributes.isRegularFile() || !isMediaFile(file)) {
+            return null;
+        }
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        LibraryEntry old = catalog.get(file);
+        if (old != null && old.isUpToDate(size, lastModified)) {
+            return old;
+        }
+        LibraryEntry entry = read(file, size, lastModified);
+        catalog.put(entry);
+        return entry;
+    }
+
+    /**
+     * Removes a file, or every file under a folder, from the catalog.
+     *
+     * @param path The file or folder.
+     * @return The number of entries removed.
+     * @throws IOException If the catalog cannot be written.
+     */
+    public int remove(Path path) throws IOException {
+        List<String> prefix = List.of(LibraryCatalog.key(path));
+        int removed = 0;
+        for (LibraryEntry entry : catalog.getEntries()) {
+            if (isUnder(entry.getPath(), prefix)) {
+                catalog.remove(entry.toPath());
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Stops a running scan, from any thread. The files being read are
+     * finished and kept.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    private LibraryEntry read(Path file, long size, long lastModified) throws IOException {
+        String filePath = file.toString();
+        // MP4 items are read by the tag reader of this worker, the map is the one the entry keeps
+        Map<String, String> tags = tagService.readTags(filePath);
+        List<Chapter> chapters = tagService.readChapters(filePath);
+        String audioHash = CacheKey.of(file).toHex();
+        return new LibraryEntry(LibraryCatalog.key(file), size, lastModified, audioHash, tags, chapters);
+    }
+
+    private static boolean isUnder(String path, List<String> roots) {
+        for (String root : roots) {
+            if (path.equals(root) || (path.startsWith(root)
+                    && (root.endsWith(File.separator) || path.charAt(root.length()) == File.separatorChar))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether a file is one of the media files Euphory handles, by
+     * its extension.
+     *
+     * @param file The file.
+     * @return True for MP3 and MP4 audio files.
+     */
+    public static boolean isMediaFile(Path file) {
+        Path name = file.getFileName();
+        if (name == null) {
+            return false;
+        }
+        String lower = name.toString().toLowerCase(Locale.ROOT);
+        return lower.endsWith(".mp3") || lower.endsWith(".m4a") || lower.endsWith(".m4b") || lower.endsWith(".mp4");
+    }
+
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.library;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Keeps a library catalog up to date while it is open, watching every folder
+ * under the scanned roots. A file being copied or tagged raises many events,
+ * so files are only scanned once they have been quiet for a moment. New
+ * folders are watched and scanned, and when the system drops events the
+ * roots are scanned again, which only reads what changed.
+ */
+public final class LibraryWatcher implements Closeable {
+
+    /**
+     * How long a file must go without events before it is scanned.
+     */
+    private static final long QUIET_MILLIS = 1000;
+
+    private final LibraryScanner scanner;
+    private final List<Path> roots;
+    private final LibraryScanner.Listener listener;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+    private final Map<Path, Long> pending = new LinkedHashMap<>();
+    private final Thread thread;
+
+    /**
+     * Starts watching, the roots should have been scanned first.
+     *
+     * @param scanner  The scanner that updates the catalog.
+     * @param roots    The folders to watch.
+     * @param listener Receives the changes, on the watching thread, may be null.
+     * @throws IOException If the folders cannot be watched.
+     */
+    public LibraryWatcher(LibraryScanner scanner, List<Path> roots, LibraryScanner.Listener listener) throws IOException {
+        this.scanner = scanner;
+        this.roots = List.copyOf(roots);
+        this.listener = listener;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        try {
+            for (Path root : this.roots) {
+                if (Files.isDirectory(root)) {
+                    register(root);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            watchService.close();
+            throw e;
+        }
+        thread = new Thread(this::watch, "euphory-library-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void register(Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                directories.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+
+        });
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = pending.isEmpty() ? watchService.take() : watchService.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    handle(key);
+                }
+                scanQuietFiles();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed
+        }
+    }
+
+    private void handle(WatchKey key) {
+        Path directory = directories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                rescan(roots);
+                continue;
+            }
+            if (directory == null) {
+                continue;
+            }
+            Path path = directory.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                pending.remove(path);
+                try {
+                    // A file or a whole folder
+                    scanner.remove(path);
+                    if (listener != null) {
+                        listener.entryRemoved(path);
+                    }
+                } catch (IOException e) {
+                    failed(path, e);
+                }
+            } else if (Files.isDirectory(path)) {
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    try {
+                        register(path);
+                    } catch (IOException e) {
+                        failed(path, e);
+                    }
+                    rescan(List.of(path));
+                }
+            } else if (LibraryScanner.isMediaFile(path)) {
+                pending.put(path, System.currentTimeMillis() + QUIET_MILLIS);
+            }
+        }
+        if (!key.reset()) {
+            directories.remove(key);
+        }
+    }
+
+    private void scanQuietFiles() {
+        long now = System.currentTimeMillis();
+        boolean scanned = false;
+        for (Iterator<Map.Entry<Path, Long>> i = pending.entrySet().iterator(); i.hasNext();) {
+            Map.Entry<Path, Long> file = i.next();
+            if (file.getValue() > now) {
+                continue;
+            }
+            i.remove();
+            try {
+                LibraryEntry entry = scanner.scanFile(file.getKey());
+                if (listener != null && entry != null) {
+                    listener.entryUpdated(entry);
+                }
+                scanned = true;
+            } catch (IOException e) {
+                failed(file.getKey(), e);
+            }
+        }
+        if (scanned) {
+            try {
+                scanner.getCatalog().flush();
+            } catch (IOException e) {
+                failed(null, e);
+            }
+        }
+    }
+
+    private void rescan(List<Path> paths) {
+        try {
+            scanner.scan(new ArrayList<>(paths), listener);
+        } catch (IOException e) {
+            failed(null, e);
+        }
+    }
+
+    private void failed(Path path, IOException e) {
+        if (listener != null) {
+            listener.scanFailed(path, e);
+        } else {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops watching.
+     */
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        thread.interrupt();
+    }
+
+}
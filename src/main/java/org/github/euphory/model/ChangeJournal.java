@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.model;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import javafx.beans.property.Property;
+import javafx.beans.property.ReadOnlyBooleanProperty;
+import javafx.beans.property.ReadOnlyBooleanWrapper;
+import javafx.beans.value.ChangeListener;
+import javafx.collections.ListChangeListener;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Records the edits made to a mix, to undo and redo them and to know which
+ * fields changed since the last save. Edits are recorded from the properties
+ * of the mix and of its tracks, whoever makes them: the user interface, the
+ * boundary detector or a CUE import. Typing in a field records one edit, not
+ * one per key.
+ * <p>
+ * The fields that differ from the saved file are those touched by the edits
+ * between the save point and the current position, so undoing back to the
+ * save point leaves nothing to write.
+ */
+public final class ChangeJournal {
+
+    /**
+     * The parts of a mix that are saved separately.
+     */
+    public enum Field {
+        NAME, AUTHOR, EPISODE, DATE, COVER, TRACKS
+    }
+
+    /**
+     * Edits of the same property closer than this are merged.
+     */
+    private static final long MERGE_NANOS = 1_000_000_000L;
+
+    /**
+     * The most edits kept, the oldest ones are dropped.
+     */
+    private static final int MAX_EDITS = 1000;
+
+    /**
+     * The save point before any edit.
+     */
+    private static final Object START = new Object();
+
+    private final MixDataViewModel mix;
+
+    // The edits done come before the position, the undone ones after it
+    private final List<Edit> edits = new ArrayList<>();
+    private int position;
+
+    // The position of the last save, and the fields changed by dropped edits
+    // between the save and that position
+    private int savedPosition;
+    private final EnumSet<Field> lost = EnumSet.noneOf(Field.class);
+
+    private final ReadOnlyBooleanWrapper dirty = new ReadOnlyBooleanWrapper();
+    private final ReadOnlyBooleanWrapper undoable = new ReadOnlyBooleanWrapper();
+    private final ReadOnlyBooleanWrapper redoable = new ReadOnlyBooleanWrapper();
+
+    private boolean applying;
+    private long lastEditTime;
+
+    private List<TrackDataViewModel> tracks;
+
+    private final ChangeListener<String> nameListener = (observable, oldValue, newValue) ->
+            record(Field.NAME, observable, oldValue, newValue);
+    private final ChangeListener<String> authorListener = (observable, oldValue, newValue) ->
+            record(Field.AUTHOR, observable, oldValue, newValue);
+    private final ChangeListener<String> episodeListener = (observable, oldValue, newValue) ->
+            record(Field.EPISODE, observable, oldValue, newValue);
+    private final ChangeListener<String> dateListener = (observable, oldValue, newValue) ->
+            record(Field.DATE, observable, oldValue, newValue);
+    private final ChangeListener<Object> coverListener = (observable, oldValue, newValue) ->
+            record(Field.COVER, observable, oldValue, newValue);
+    private final ChangeListener<Object> trackListener = (observable, oldValue, newValue) ->
+            record(Field.TRACKS, observable, oldValue, newValue);
+    private final ListChangeListener<TrackDataViewModel> tracksListener = this::onTracksChanged;
+
+    /**
+     * Constructs a new ChangeJournal, starting to record the edits of a mix
+     * as it is now, which is taken as saved.
+     *
+     * @param mix The mix.
+     */
+    public ChangeJournal(MixDataViewModel mix) {
+        this.mix = mix;
+        mix.mixNameProperty().addListener(nameListener);
+        mix.mixAuthorProperty().addListener(authorListener);
+        mix.mixEpisodeProperty().addListener(episodeListener);
+        mix.mixDateProperty().addListener(dateListener);
+        mix.coverDataProperty().addListener(coverListener);
+        mix.getMixTracks().addListener(tracksListener);
+        tracks = new ArrayList<>(mix.getMixTracks());
+        for (TrackDataViewModel track : tracks) {
+            watch(track);
+        }
+    }
+
+    /**
+     * Stops recording. The journal cannot be used afterwards.
+     */
+    public void close() {
+        mix.mixNameProperty().removeListener(nameListener);
+        mix.mixAuthorProperty().removeListener(authorListener);
+        mix.mixEpisodeProperty().removeListener(episodeListener);
+        mix.mixDateProperty().removeListener(dateListener);
+        mix.coverDataProperty().removeListener(coverListener);
+        mix.getMixTracks().removeListener(tracksListener);
+        for (TrackDataViewModel track : tracks) {
+            unwatch(track);
+        }
+        edits.clear();
+        position = 0;
+        savedPosition = 0;
+        lost.clear();
+        update();
+    }
+
+    /**
+     * @return True when there are changes since the last save.
+     */
+    public ReadOnlyBooleanProperty dirtyProperty() {
+        return dirty.getReadOnlyProperty();
+    }
+
+    public boolean isDirty() {
+        return dirty.get();
+    }
+
+    public ReadOnlyBooleanProperty undoableProperty() {
+        return undoable.getReadOnlyProperty();
+    }
+
+    public ReadOnlyBooleanProperty redoableProperty() {
+        return redoable.getReadOnlyProperty();
+    }
+
+    /**
+     * Gets the fields that changed since the last save.
+     *
+     * @return The fields, a copy.
+     */
+    public Set<Field> getDirtyFields() {
+        EnumSet<Field> fields = EnumSet.copyOf(lost);
+        for (int i = Math.min(savedPosition, position); i < Math.max(savedPosition, position); i++) {
+            fields.add(edits.get(i).field);
+        }
+        return fields;
+    }
+
+    /**
+     * Takes the mix as it is now as saved.
+     */
+    public void markSaved() {
+        savedPosition = position;
+        lost.clear();
+        // A save point ends the edit being typed
+        lastEditTime = 0;
+        update();
+    }
+
+    /**
+     * Gets a point for the mix as it is now, for a save that runs while the
+     * mix can still be edited. The edit being typed ends here, so what comes
+     * after the point is never merged into what is saved.
+     *
+     * @return The point, to pass to {@link #markSaved(Object)} once written.
+     */
+    public Object getSavePoint() {
+        lastEditTime = 0;
+        return position > 0 ? edits.get(position - 1) : START;
+    }
+
+    /**
+     * Takes the mix as it was at a save point as saved, leaving the edits
+     * made since dirty. Nothing changes if the edits up to the point were
+     * undone and replaced or dropped meanwhile, as the saved mix cannot be
+     * reached again.
+     *
+     * @param savePoint A point from {@link #getSavePoint()}.
+     */
+    public void markSaved(Object savePoint) {
+        int index = savePoint == START ? 0 : indexOf(savePoint) + 1;
+        if (index == 0 && savePoint != START) {
+            return;
+        }
+        savedPosition = index;
+        lost.clear();
+        update();
+    }
+
+    private int indexOf(Object edit) {
+        for (int i = 0; i < edits.size(); i++) {
+            if (edits.get(i) == edit) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Makes a change without recording it, for values of the file that are
+     * read after the journal started.
+     *
+     * @param change The change.
+     */
+    public void ignore(Runnable change) {
+        applying = true;
+        try {
+            change.run();
+        } finally {
+            applying = false;
+        }
+    }
+
+    /**
+     * Undoes the last edit, if any.
+     */
+    public void undo() {
+        if (position > 0) {
+            apply(edits.get(--position), true);
+        }
+    }
+
+    /**
+     * Redoes the last undone edit, if any.
+     */
+    public void redo() {
+        if (position < edits.size()) {
+            apply(edits.get(position++), false);
+        }
+    }
+
+    private void apply(Edit edit, boolean undo) {
+        applying = true;
+        try {
+            edit.apply(undo);
+        } finally {
+            applying = false;
+        }
+        lastEditTime = 0;
+        update();
+    }
+
+    private void record(Field field, Object observable, Object oldValue, Object newValue) {
+        if (applying || !(observable instanceof Property)) {
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        Property<Object> property = (Property<Object>) observable;
+        long now = System.nanoTime();
+        if (position == edits.size() && position > 0 && position != savedPosition
+                && now - lastEditTime < MERGE_NANOS) {
+            Edit last = edits.get(position - 1);
+            if (last.property == property) {
+                last.newValue = newValue;
+                lastEditTime = now;
+                return;
+            }
+        }
+        Edit edit = new Edit(field, property);
+        edit.oldValue = oldValue;
+        edit.newValue = newValue;
+        add(edit, now);
+    }
+
+    private void onTracksChanged(ListChangeListener.Change<? extends TrackDataViewModel> change) {
+        while (change.next()) {
+            for (TrackDataViewModel track : change.getRemoved()) {
+                unwatch(track);
+            }
+            for (TrackDataViewModel track : change.getAddedSubList()) {
+                watch(track);
+            }
+        }
+        List<TrackDataViewModel> oldTracks = tracks;
+        tracks = new ArrayList<>(mix.getMixTracks());
+        if (!applying) {
+            Edit edit = new Edit(Field.TRACKS, null);
+            edit.oldValue = oldTracks;
+            edit.newValue = tracks;
+            add(edit, 0);
+        }
+    }
+
+    private void add(Edit edit, long now) {
+        // A new edit drops the undone ones
+        if (savedPosition > position) {
+            addFields(position, savedPosition);
+            savedPosition = position;
+        }
+        edits.subList(position, edits.size()).clear();
+        edits.add(edit);
+        position++;
+        if (edits.size() > MAX_EDITS) {
+            int dropped = edits.size() - MAX_EDITS;
+            if (savedPosition < dropped) {
+                addFields(savedPosition, dropped);
+                savedPosition = dropped;
+            }
+            edits.subList(0, dropped).clear();
+            position -= dropped;
+            savedPosition -= dropped;
+        }
+        lastEditTime = now;
+        update();
+    }
+
+    private void addFields(int from, int to) {
+        for (int i = from; i < to; i++) {
+            lost.add(edits.get(i).field);
+        }
+    }
+
+    private void update() {
+        dirty.set(!lost.isEmpty() || position != savedPosition);
+        undoable.set(position > 0);
+        redoable.set(position < edits.size());
+    }
+
+    private void watch(TrackDataViewModel track) {
+        track.trackNumberProperty().addListener(trackListener);
+        track.startTimeProperty().addListener(trackListener);
+        track.trackArtistProperty().addListener(trackListener);
+        track.trackTitleProperty().addListener(trackListener);
+    }
+
+    private void unwatch(TrackDataViewModel track) {
+        track.trackNumberProperty().removeListener(trackListener);
+        track.startTimeProperty().removeListener(trackListener);
+        track.trackArtistProperty().removeListener(trackListener);
+        track.trackTitleProperty().removeListener(trackListener);
+    }
+
+    /**
+     * A change of a property, or of the track list when there is no
+     * property.
+     */
+    private final class Edit {
+
+        private final Field field;
+        private final Property<Object> property;
+        private Object oldValue;
+        private Object newValue;
+
+        private Edit(Field field, Property<Object> property) {
+            this.field = field;
+            this.property = property;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void apply(boolean undo) {
+            Object value = undo ? oldValue : newValue;
+            if (property == null) {
+                mix.getMixTracks().setAll((List<TrackDataViewModel>) value);
+            } else if (!Objects.equals(property.getValue(), value)) {
+                property.setValue(value);
+            }
+        }
+
+    }
+
+}
@@ -9,22 +9,61 @@
  */
 package org.github.euphory.model;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
 
+/**
+ * @author Daniel Toffetti
+ *
+ * The tags of a mix as flat keys, the global ones like "title" and the track
+ * ones numbered from 1 like "trackname3". Track fields are stored by column,
+ * one array per field, in slots that never move: the playing order is an
+ * array of slot numbers, so inserting, removing or moving a track shifts a
+ * few ints and no strings, and removed slots are reused. The flat keys are
+ * only made when {@link #getAll()} is iterated. Values put for tracks past
+ * the one after the last are held by track number until that track is
+ * added, so keys can be put in any order.
+ */
 public class FlatTagEditionModel {
 
-    // Stores all metadata in a flat key-value structure
-    private final Map<String, String> metadata = new LinkedHashMap<>();
-
     // Define which fields repeat per track
     private static final List<String> TRACK_FIELDS = Arrays.asList(
         "tracknumber", "trackstarttime", "trackartist", "trackname"
     );
 
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Global (non-repeating) fields, in insertion order
+    private final Map<String, String> metadata = new LinkedHashMap<>();
+
+    // Track values by field, then by slot
+    private final String[][] columns = new String[TRACK_FIELDS.size()][INITIAL_CAPACITY];
+
+    // The slot of every track, in playing order
+    private int[] order = new int[INITIAL_CAPACITY];
+    private int trackCount;
+
+    // Slots freed by removed tracks, and the first never used
+    private int[] freeSlots = new int[INITIAL_CAPACITY];
+    private int freeCount;
+    private int nextSlot;
+
+    // Values of tracks not added yet, by track number less the shift
+    private final TreeMap<Integer, String[]> pending = new TreeMap<>();
+    private int pendingShift;
+    private int pendingCount;
+
+    private final Map<String, String> view = new FlatView();
+
     public FlatTagEditionModel() {
         // Example of initializing global (non-repeating) fields
         metadata.put("title", "");
@@ -33,16 +72,58 @@ public class FlatTagEditionModel {
         metadata.put("genre", "");
     }
 
+    /**
+     * Sets a value. A track key for the track after the last one adds it,
+     * along with the tracks held right after it, a track key further away is
+     * held until its track is added.
+     *
+     * @param key   A global key, or a track field followed by a track number.
+     * @param value The value.
+     */
     public void put(String key, String value) {
-        metadata.put(key, value);
+        int field = trackField(key);
+        int track = field >= 0 ? trackNumber(key, field) : -1;
+        if (track < 0) {
+            metadata.put(key, value);
+            return;
+        }
+        if (track > trackCount + 1) {
+            String[] values = pending.computeIfAbsent(track - pendingShift, number -> new String[columns.length]);
+            if (values[field] == null) {
+                pendingCount++;
+            }
+            values[field] = value;
+            return;
+        }
+        if (track > trackCount) {
+            addTrack();
+            // The tracks held right after it are complete now
+            while (!pending.isEmpty() && pending.containsKey(trackCount + 1 - pendingShift)) {
+                addTrack();
+            }
+        }
+        columns[field][order[track - 1]] = value;
     }
 
     public String get(String key) {
-        return metadata.get(key);
+        int field = trackField(key);
+        int track = field >= 0 ? trackNumber(key, field) : -1;
+        if (track < 0) {
+            return metadata.get(key);
+        }
+        if (track > trackCount) {
+            String[] values = pending.get(track - pendingShift);
+            return values != null ? values[field] : null;
+        }
+        return columns[field][order[track - 1]];
     }
 
+    /**
+     * @return A read-only view of all the values by flat key, the global ones
+     *         first and then the tracks in order, following later changes.
+     */
     public Map<String, String> getAll() {
-        return Collections.unmodifiableMap(metadata);
+        return view;
     }
 
     /**
@@ -50,24 +131,259 @@ public class FlatTagEditionModel {
      * Returns the track index that was added.
      */
     public int addTrack() {
-        int trackCount = getTrackCount() + 1;
-        for (String field : TRACK_FIELDS) {
-            metadata.put(field + trackCount, "");
+        return insertTrack(trackCount + 1);
+    }
+
+    /**
+     * Inserts a new empty track, moving the following tracks one number up.
+     * A track added last takes the values held for its number.
+     *
+     * @param track The number of the new track, from 1 to the track count
+     *              plus one.
+     * @return The number of the track.
+     */
+    public int insertTrack(int track) {
+        checkTrack(track, trackCount + 1);
+        int slot = allocateSlot();
+        for (String[] column : columns) {
+            column[slot] = "";
         }
-        return trackCount;
+        if (trackCount == order.length) {
+            order = Arrays.copyOf(order, trackCount * 2);
+        }
+        System.arraycopy(order, track - 1, order, track, trackCount - track + 1);
+        order[track - 1] = slot;
+        trackCount++;
+        if (track < trackCount) {
+            // The tracks not added yet move up too
+            pendingShift++;
+        } else if (!pending.isEmpty()) {
+            String[] values = pending.remove(track - pendingShift);
+            for (int field = 0; values != null && field < columns.length; field++) {
+                if (values[field] != null) {
+                    columns[field][slot] = values[field];
+                    pendingCount--;
+                }
+            }
+        }
+        return track;
     }
 
     /**
-     * Gets the total number of tracks based on the "trackname" entries.
+     * Removes a track, moving the following tracks one number down.
+     *
+     * @param track The number of the track, from 1.
+     */
+    public void removeTrack(int track) {
+        checkTrack(track, trackCount);
+        int slot = order[track - 1];
+        System.arraycopy(order, track, order, track - 1, trackCount - track);
+        trackCount--;
+        pendingShift--;
+        for (String[] column : columns) {
+            column[slot] = null;
+        }
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        }
+        freeSlots[freeCount++] = slot;
+    }
+
+    /**
+     * Moves a track, shifting the tracks in between.
+     *
+     * @param from The number of the track.
+     * @param to   The number it will have.
+     */
+    public void moveTrack(int from, int to) {
+        checkTrack(from, trackCount);
+        checkTrack(to, trackCount);
+        int slot = order[from - 1];
+        if (from < to) {
+            System.arraycopy(order, from, order, from - 1, to - from);
+        } else {
+            System.arraycopy(order, to - 1, order, to, from - to);
+        }
+        order[to - 1] = slot;
+    }
+
+    /**
+     * Removes all the tracks, and the values held for tracks not added yet,
+     * keeping the global fields.
+     */
+    public void clearTracks() {
+        for (String[] column : columns) {
+            Arrays.fill(column, 0, nextSlot, null);
+        }
+        pending.clear();
+        pendingShift = 0;
+        pendingCount = 0;
+        trackCount = 0;
+        freeCount = 0;
+        nextSlot = 0;
+    }
+
+    /**
+     * Gets the total number of tracks.
      */
     public int getTrackCount() {
-        int count = 0;
-        for (String key : metadata.keySet()) {
-            if (key.startsWith("trackname")) {
-                count++;
+        return trackCount;
+    }
+
+    private int allocateSlot() {
+        if (freeCount > 0) {
+            return freeSlots[--freeCount];
+        }
+        if (nextSlot == columns[0].length) {
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = Arrays.copyOf(columns[i], nextSlot * 2);
             }
         }
-        return count;
+        return nextSlot++;
+    }
+
+    private static void checkTrack(int track, int last) {
+        if (track < 1 || track > last) {
+            throw new IndexOutOfBoundsException("Track " + track + " out of 1.." + last);
+        }
+    }
+
+    /**
+     * Gets the track field a key starts with, or -1 if there is none.
+     */
+    private static int trackField(String key) {
+        if (!key.startsWith("track")) {
+            return -1;
+        }
+        for (int i = 0; i < TRACK_FIELDS.size(); i++) {
+            if (key.startsWith(TRACK_FIELDS.get(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the track number after a track field, or -1 if the rest of the
+     * key is not a number from 1, leaving it a global key.
+     */
+    private static int trackNumber(String key, int field) {
+        int start = TRACK_FIELDS.get(field).length();
+        int length = key.length() - start;
+        if (length == 0 || length > 9 || key.charAt(start) == '0') {
+            return -1;
+        }
+        int number = 0;
+        for (int i = start; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            number = number * 10 + c - '0';
+        }
+        return number;
+    }
+
+    /**
+     * The flat map serialisers see, made on the fly from the global map and
+     * the columns.
+     */
+    private final class FlatView extends AbstractMap<String, String> {
+
+        private final Set<Map.Entry<String, String>> entries = new AbstractSet<>() {
+
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                return new FlatIterator();
+            }
+
+            @Override
+            public int size() {
+                return FlatView.this.size();
+            }
+
+        };
+
+        @Override
+        public int size() {
+            return metadata.size() + trackCount * columns.length + pendingCount;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof String && FlatTagEditionModel.this.get((String) key) != null;
+        }
+
+        @Override
+        public String get(Object key) {
+            return key instanceof String ? FlatTagEditionModel.this.get((String) key) : null;
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            return entries;
+        }
+
+    }
+
+    private final class FlatIterator implements Iterator<Map.Entry<String, String>> {
+
+        private final Iterator<Map.Entry<String, String>> globals =
+                Collections.unmodifiableMap(metadata).entrySet().iterator();
+        private final Iterator<Map.Entry<Integer, String[]>> held = pending.entrySet().iterator();
+        private Map.Entry<Integer, String[]> heldTrack;
+        private int track;
+        private int field;
+
+        @Override
+        public boolean hasNext() {
+            return globals.hasNext() || track < trackCount || nextHeld();
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (globals.hasNext()) {
+                return globals.next();
+            }
+            if (track < trackCount) {
+                Map.Entry<String, String> entry = new AbstractMap.SimpleImmutableEntry<>(
+                        TRACK_FIELDS.get(field) + (track + 1), columns[field][order[track]]);
+                if (++field == columns.length) {
+                    field = 0;
+                    track++;
+                }
+                return entry;
+            }
+            if (!nextHeld()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> entry = new AbstractMap.SimpleImmutableEntry<>(
+                    TRACK_FIELDS.get(field) + (heldTrack.getKey() + pendingShift), heldTrack.getValue()[field]);
+            field++;
+            return entry;
+        }
+
+        /**
+         * Moves to the next value held for a track not added yet.
+         */
+        private boolean nextHeld() {
+            while (true) {
+                if (heldTrack != null) {
+                    while (field < columns.length && heldTrack.getValue()[field] == null) {
+                        field++;
+                    }
+                    if (field < columns.length) {
+                        return true;
+                    }
+                }
+                if (!held.hasNext()) {
+                    return false;
+                }
+                heldTrack = held.next();
+                field = 0;
+            }
+        }
+
     }
 
 }
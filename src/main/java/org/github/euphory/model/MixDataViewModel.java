@@ -9,7 +9,10 @@
  */
 package org.github.euphory.model;
 
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javafx.beans.property.ObjectProperty;
@@ -62,6 +65,11 @@ public class MixDataViewModel {
      */
     private ObjectProperty<Image> coverImage = new SimpleObjectProperty<>();
 
+    /**
+     * The cover image bytes property, as stored in the tags.
+     */
+    private ObjectProperty<byte[]> coverData = new SimpleObjectProperty<>();
+
     /**
      * The additional tags.
      */
@@ -138,9 +146,19 @@ public class MixDataViewModel {
     }
 
     /**
-     * Gets the cover image property.
+     * Gets the cover image bytes property, JPEG or PNG, null when the mix has
+     * no cover. The cover image is decoded from it.
      *
-     * @return The cover image property.
+     * @return The cover image bytes property.
+     */
+    public ObjectProperty<byte[]> coverDataProperty() {
+        return coverData;
+    }
+
+    /**
+     * Gets the additional tags.
+     *
+     * @return The additional tags.
      */
     public Map<String, String> getAdditionalTags() {
         return additionalTags;
@@ -172,6 +190,35 @@ public class MixDataViewModel {
         this.mixTracks.add(track);
     }
 
+    /**
+     * Replaces the detected tracks with new candidates, in a single list
+     * update. Other tracks are kept, candidates too close to one of them are
+     * dropped, and the tracks end up sorted by start time.
+     *
+     * @param candidates  The detected tracks, with their confidence.
+     * @param minDistance The closest, in seconds, a candidate can be to a kept track.
+     */
+    public void setDetectedTracks(List<TrackDataViewModel> candidates, int minDistance) {
+        List<TrackDataViewModel> tracks = new ArrayList<>(mixTracks.size() + candidates.size());
+        for (TrackDataViewModel track : mixTracks) {
+            if (!track.isDetected()) {
+                tracks.add(track);
+            }
+        }
+        int kept = tracks.size();
+        for (TrackDataViewModel candidate : candidates) {
+            boolean free = true;
+            for (int i = 0; i < kept && free; i++) {
+                free = Math.abs(tracks.get(i).startTimeProperty().get() - candidate.startTimeProperty().get()) >= minDistance;
+            }
+            if (free) {
+                tracks.add(candidate);
+            }
+        }
+        tracks.sort(Comparator.comparingInt(track -> track.startTimeProperty().get()));
+        mixTracks.setAll(tracks);
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -12,7 +12,9 @@ package org.github.euphory.model;
 import java.util.HashMap;
 import java.util.Map;
 
+import javafx.beans.property.DoubleProperty;
 import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.SimpleDoubleProperty;
 import javafx.beans.property.SimpleIntegerProperty;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
@@ -44,6 +46,19 @@ public class TrackDataViewModel {
      */
     private StringProperty trackTitle = new SimpleStringProperty();
 
+    /**
+     * The confidence property, 1 for tracks entered by hand or read from
+     * tags, lower for start times guessed by the boundary detector.
+     */
+    private DoubleProperty confidence = new SimpleDoubleProperty(1);
+
+    /**
+     * The exact start and end read from a chapter, in milliseconds, -1 when
+     * the track did not come from a chapter.
+     */
+    private long chapterStart = -1;
+    private long chapterEnd = -1;
+
     /**
      * The additional tags property.
      */
@@ -108,6 +123,57 @@ public class TrackDataViewModel {
         return trackTitle;
     }
 
+    /**
+     * Gets the confidence property.
+     *
+     * @return The confidence property.
+     */
+    public DoubleProperty confidenceProperty() {
+        return confidence;
+    }
+
+    /**
+     * Tells whether the start time was guessed by the boundary detector and
+     * not confirmed yet.
+     *
+     * @return True for a detected track.
+     */
+    public boolean isDetected() {
+        return confidence.get() < 1;
+    }
+
+    /**
+     * Sets the times of the chapter the track was read from, kept to be
+     * written back as long as the start time is not moved.
+     *
+     * @param startMillis The start of the chapter in milliseconds.
+     * @param endMillis   The end of the chapter in milliseconds.
+     */
+    public void setChapterTimes(long startMillis, long endMillis) {
+        this.chapterStart = startMillis;
+        this.chapterEnd = endMillis;
+    }
+
+    /**
+     * Gets the start of the chapter the track was read from.
+     *
+     * @return The start in milliseconds, or -1 if the track did not come
+     *         from a chapter or its start time was changed since.
+     */
+    public long getChapterStart() {
+        return chapterStart >= 0 && chapterStart / 1000 == startTime.get() ? chapterStart : -1;
+    }
+
+    /**
+     * Gets the end of the chapter the track was read from.
+     *
+     * @return The end in milliseconds, or -1 if the track did not come from
+     *         a chapter or its start time was changed since.
+     */
+    public long getChapterEnd() {
+        return getChapterStart() >= 0 ? chapterEnd : -1;
+    }
+
     /**
      * Gets the additional tags property.
      *
@@ -170,6 +236,9 @@ public class TrackDataViewModel {
         sb.append("Time: ").append(startTime).append("\n");
         sb.append("Artist: ").append(trackArtist).append("\n");
         sb.append("Title: ").append(trackTitle).append("\n");
+        if (isDetected()) {
+            sb.append("Confidence: ").append(confidence.get()).append("\n");
+        }
         sb.append("Additional Tags:\n");
         for (Map.Entry<String, String> entry : additionalTags.entrySet()) {
             sb.append("  ").append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
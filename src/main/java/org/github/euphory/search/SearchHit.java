@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.search;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * A mix, or a track of a mix, matching a search.
+ */
+public final class SearchHit {
+
+    private final String path;
+    private final int trackIndex;
+    private final int score;
+
+    SearchHit(String path, int trackIndex, int score) {
+        this.path = path;
+        this.trackIndex = trackIndex;
+        this.score = score;
+    }
+
+    /**
+     * @return The path of the mix.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return The index of the track in playing order, -1 if the mix itself matched.
+     */
+    public int getTrackIndex() {
+        return trackIndex;
+    }
+
+    public boolean isTrack() {
+        return trackIndex >= 0;
+    }
+
+    /**
+     * @return How well the hit matches, higher is better.
+     */
+    public int getScore() {
+        return score;
+    }
+
+    @Override
+    public String toString() {
+        return "SearchHit [path=" + path + ", trackIndex=" + trackIndex + ", score=" + score + "]";
+    }
+
+}
@@ -0,0 +1,537 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.search;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.github.euphory.library.LibraryCatalog;
+import org.github.euphory.library.LibraryEntry;
+import org.github.euphory.library.LibraryScanner;
+import org.github.euphory.model.MixDataViewModel;
+import org.github.euphory.model.TrackDataViewModel;
+import org.github.euphory.tags.Chapter;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * An in-memory search index over mixes and their tracks. Every mix is a
+ * document split in units: one per track, holding its artist and title, and
+ * one for the mix itself, holding its name, author, album, episode, year and
+ * file name. A unit is a single int, the document id and the track index,
+ * and every term of the {@link TermDictionary} has a sorted primitive array
+ * of the units it appears in.
+ * <p>
+ * All the words of a query must appear in the same unit. A word matches a
+ * term exactly, as a prefix of it, or with one typo: a letter missing,
+ * added, replaced or two letters swapped, each ranked lower than the one
+ * before. The rarest word is expanded into units first, and the others are
+ * only looked up in the postings of those units.
+ * <p>
+ * Updating a mix gives it a new document id and leaves the old one dead, so
+ * postings stay sorted by only ever appending. The dead units are dropped
+ * when they outnumber the live ones. The index implements the library
+ * scanner listener, to follow the catalog as files are tagged.
+ */
+public final class SearchIndex implements LibraryScanner.Listener {
+
+    /**
+     * The tags indexed in the unit of a mix, besides the file name.
+     */
+    private static final String[] MIX_KEYS = { "title", "artist", "album", "episode", "year" };
+
+    private static final int TRACK_BITS = 10;
+    private static final int MIX_UNIT = (1 << TRACK_BITS) - 1;
+    private static final int MAX_DOCUMENTS = 1 << (31 - TRACK_BITS);
+
+    private static final int EXACT_SCORE = 4;
+    private static final int PREFIX_SCORE = 2;
+    private static final int TYPO_SCORE = 1;
+
+    private static final int MIN_PREFIX_LENGTH = 2;
+    private static final int MIN_TYPO_LENGTH = 4;
+
+    /**
+     * The most terms a word expands to as a prefix, so a one or two letter
+     * prefix does not pull in the whole dictionary.
+     */
+    private static final int MAX_PREFIX_TERMS = 256;
+
+    private static final String TYPO_ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789";
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TermDictionary dictionary = new TermDictionary();
+    private int[][] postings = new int[1024][];
+    private int[] postingCounts = new int[1024];
+
+    private String[] documents = new String[1024];
+    private int documentCount;
+    private final BitSet dead = new BitSet();
+    private int deadCount;
+    private final Map<String, Integer> documentIds = new HashMap<>();
+
+    /**
+     * Builds the index of a whole catalog.
+     *
+     * @param catalog The catalog.
+     * @return The index.
+     */
+    public static SearchIndex of(LibraryCatalog catalog) {
+        SearchIndex index = new SearchIndex();
+        for (LibraryEntry entry : catalog.getEntries()) {
+            index.put(entry);
+        }
+        return index;
+    }
+
+    /**
+     * Indexes a catalogued file, replacing what was indexed of it.
+     *
+     * @param entry The catalog entry.
+     */
+    public void put(LibraryEntry entry) {
+        List<String> mix = mixFields(entry.getTags(), entry.toPath());
+        List<Chapter> chapters = entry.getChapters();
+        List<List<String>> tracks = new ArrayList<>(chapters.size());
+        for (Chapter chapter : chapters) {
+            tracks.add(Arrays.asList(chapter.getArtist(), chapter.getTitle()));
+        }
+        put(entry.getPath(), mix, tracks);
+    }
+
+    /**
+     * Indexes a mix being edited, replacing what was indexed of its file.
+     *
+     * @param path The path of the mix.
+     * @param mix  The mix.
+     */
+    public void put(Path path, MixDataViewModel mix) {
+        List<TrackDataViewModel> sorted = new ArrayList<>(mix.getMixTracks());
+        sorted.sort(Comparator.comparingInt(track -> track.startTimeProperty().get()));
+        List<List<String>> tracks = new ArrayList<>(sorted.size());
+        for (TrackDataViewModel track : sorted) {
+            tracks.add(Arrays.asList(track.trackArtistProperty().get(), track.trackTitleProperty().get()));
+        }
+        Map<String, String> tags = new HashMap<>();
+        if (mix.getAdditionalTags() != null) {
+            tags.putAll(mix.getAdditionalTags());
+        }
+        tags.put("title", mix.mixNameProperty().get());
+        tags.put("artist", mix.mixAuthorProperty().get());
+        tags.put("episode", mix.mixEpisodeProperty().get());
+        tags.put("year", mix.mixDateProperty().get());
+        put(key(path), mixFields(tags, path), tracks);
+    }
+
+    private static List<String> mixFields(Map<String, String> tags, Path path) {
+        List<String> fields = new ArrayList<>(MIX_KEYS.length + 1);
+        for (String key : MIX_KEYS) {
+            fields.add(tags.get(key));
+        }
+        Path fileName = path.getFileName();
+        fields.add(fileName != null ? stripExtension(fileName.toString()) : null);
+        return fields;
+    }
+
+    private void put(String path, List<String> mixFields, List<List<String>> trackFields) {
+        lock.writeLock().lock();
+        try {
+            if (removeDocument(path)) {
+                compactIfMostlyDead();
+            }
+            if (documentCount == MAX_DOCUMENTS) {
+                compact();
+                if (documentCount == MAX_DOCUMENTS) {
+                    throw new IllegalStateException("The search index is full");
+                }
+            }
+            int document = documentCount++;
+            if (document == documents.length) {
+                documents = Arrays.copyOf(documents, document * 2);
+            }
+            documents[document] = path;
+            documentIds.put(path, document);
+            // Units in increasing order, so every posting array stays sorted
+            int tracks = Math.min(trackFields.size(), MIX_UNIT);
+            for (int track = 0; track < tracks; track++) {
+                addUnit(document << TRACK_BITS | track, trackFields.get(track));
+            }
+            addUnit(document << TRACK_BITS | MIX_UNIT, mixFields);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void addUnit(int unit, List<String> fields) {
+        for (String field : fields) {
+            TextNormalizer.tokenize(field, term -> addPosting(dictionary.intern(term), unit));
+        }
+    }
+
+    private void addPosting(int term, int unit) {
+        if (term == postings.length) {
+            postings = Arrays.copyOf(postings, term * 2);
+            postingCounts = Arrays.copyOf(postingCounts, term * 2);
+        }
+        int[] units = postings[term];
+        int count = postingCounts[term];
+        if (units == null) {
+            units = postings[term] = new int[2];
+        } else if (count > 0 && units[count - 1] == unit) {
+            return;
+        } else if (count == units.length) {
+            units = postings[term] = Arrays.copyOf(units, count + (count >> 1) + 1);
+        }
+        units[count] = unit;
+        postingCounts[term] = count + 1;
+    }
+
+    /**
+     * Removes a file, or every file under a folder, from the index.
+     *
+     * @param path The file or folder.
+     */
+    public void remove(Path path) {
+        String key = key(path);
+        lock.writeLock().lock();
+        try {
+            if (!removeDocument(key)) {
+                String folder = key.endsWith(File.separator) ? key : key + File.separator;
+                for (Iterator<Map.Entry<String, Integer>> i = documentIds.entrySet().iterator(); i.hasNext();) {
+                    Map.Entry<String, Integer> document = i.next();
+                    if (document.getKey().startsWith(folder)) {
+                        i.remove();
+                        kill(document.getValue());
+                    }
+                }
+            }
+            compactIfMostlyDead();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean removeDocument(String path) {
+        Integer document = documentIds.remove(path);
+        if (document == null) {
+            return false;
+        }
+        kill(document);
+        return true;
+    }
+
+    private void kill(int document) {
+        dead.set(document);
+        documents[document] = null;
+        deadCount++;
+    }
+
+    /**
+     * Compacts once the dead documents outnumber the live ones, so the
+     * postings never hold much more than twice the live units.
+     */
+    private void compactIfMostlyDead() {
+        if (deadCount > 1024 && deadCount > documentCount - deadCount) {
+            compact();
+        }
+    }
+
+    /**
+     * Drops the dead units, renumbering the live documents in order so the
+     * postings stay sorted.
+     */
+    private void compact() {
+        int[] renumbered = new int[documentCount];
+        int live = 0;
+        for (int document = 0; document < documentCount; document++) {
+            if (dead.get(document)) {
+                renumbered[document] = -1;
+            } else {
+                renumbered[document] = live;
+                documents[live] = documents[document];
+                documentIds.put(documents[live], live);
+                live++;
+            }
+        }
+        Arrays.fill(documents, live, documentCount, null);
+        for (int term = 0; term < dictionary.size(); term++) {
+            int[] units = postings[term];
+            int count = 0;
+            for (int i = 0; i < postingCounts[term]; i++) {
+                int document = renumbered[units[i] >>> TRACK_BITS];
+                if (document >= 0) {
+                    units[count++] = document << TRACK_BITS | (units[i] & MIX_UNIT);
+                }
+            }
+            postingCounts[term] = count;
+            if (count < units.length / 4) {
+                postings[term] = Arrays.copyOf(units, Math.max(2, count));
+            }
+        }
+        documentCount = live;
+        dead.clear();
+        deadCount = 0;
+    }
+
+    /**
+     * Searches mixes and tracks.
+     *
+     * @param query The words to look for, in any order.
+     * @param limit The most hits returned.
+     * @return The hits, best first.
+     */
+    public List<SearchHit> search(String query, int limit) {
+        List<String> words = new ArrayList<>();
+        TextNormalizer.tokenize(query, words::add);
+        if (words.isEmpty() || limit <= 0) {
+            return new ArrayList<>();
+        }
+        lock.readLock().lock();
+        try {
+            Expansion[] expansions = new Expansion[words.size()];
+            for (int i = 0; i < expansions.length; i++) {
+                expansions[i] = expand(words.get(i));
+                if (expansions[i].count == 0) {
+                    return new ArrayList<>();
+                }
+            }
+            Arrays.sort(expansions, Comparator.comparingLong(expansion -> expansion.postingCount));
+
+            // The rarest word gives the candidates, best score per unit
+            Expansion rarest = expansions[0];
+            long[] packed = new long[(int) Math.min(Integer.MAX_VALUE - 8, rarest.postingCount)];
+            int packedCount = 0;
+            for (int i = 0; i < rarest.count; i++) {
+                int term = rarest.terms[i];
+                int[] units = postings[term];
+                for (int j = 0; j < postingCounts[term]; j++) {
+                    if (!dead.get(units[j] >>> TRACK_BITS)) {
+                        packed[packedCount++] = (long) units[j] << 8 | rarest.scores[i];
+                    }
+                }
+            }
+            Arrays.sort(packed, 0, packedCount);
+            int[] candidates = new int[packedCount];
+            int[] scores = new int[packedCount];
+            int candidateCount = 0;
+            for (int i = 0; i < packedCount; i++) {
+                int unit = (int) (packed[i] >>> 8);
+                int score = (int) (packed[i] & 0xff);
+                if (candidateCount > 0 && candidates[candidateCount - 1] == unit) {
+                    scores[candidateCount - 1] = Math.max(scores[candidateCount - 1], score);
+                } else {
+                    candidates[candidateCount] = unit;
+                    scores[candidateCount++] = score;
+                }
+            }
+
+            // The other words only confirm candidates
+            for (int e = 1; e < expansions.length && candidateCount > 0; e++) {
+                Expansion expansion = expansions[e];
+                int kept = 0;
+                for (int c = 0; c < candidateCount; c++) {
+                    int best = 0;
+                    for (int i = 0; i < expansion.count; i++) {
+                        int term = expansion.terms[i];
+                        if (expansion.scores[i] > best && Arrays.binarySearch(postings[term], 0, postingCounts[term], candidates[c]) >= 0) {
+                            best = expansion.scores[i];
+                        }
+                    }
+                    if (best > 0) {
+                        candidates[kept] = candidates[c];
+                        scores[kept++] = scores[c] + best;
+                    }
+                }
+                candidateCount = kept;
+            }
+
+            // Best score first, the most recently indexed first among equals
+            long[] ranked = new long[candidateCount];
+            for (int c = 0; c < candidateCount; c++) {
+                ranked[c] = (long) scores[c] << 32 | candidates[c];
+            }
+            Arrays.sort(ranked);
+            List<SearchHit> hits = new ArrayList<>(Math.min(limit, candidateCount));
+            for (int c = candidateCount - 1; c >= 0 && hits.size() < limit; c--) {
+                int unit = (int) ranked[c];
+                int track = unit & MIX_UNIT;
+                hits.add(new SearchHit(documents[unit >>> TRACK_BITS], track == MIX_UNIT ? -1 : track, (int) (ranked[c] >>> 32)));
+            }
+            return hits;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the terms a word matches, with the score of each.
+     */
+    private Expansion expand(String word) {
+        Expansion expansion = new Expansion();
+        int exact = dictionary.find(word);
+        if (exact >= 0) {
+            expansion.add(exact, EXACT_SCORE);
+        }
+        if (word.length() >= MIN_PREFIX_LENGTH) {
+            int[] prefixed = new int[MAX_PREFIX_TERMS];
+            int count = dictionary.findPrefixed(word, prefixed, MAX_PREFIX_TERMS);
+            for (int i = 0; i < count; i++) {
+                expansion.add(prefixed[i], PREFIX_SCORE);
+            }
+        }
+        if (word.length() >= MIN_TYPO_LENGTH) {
+            addTypos(word, expansion);
+        }
+        expansion.finish(postingCounts);
+        return expansion;
+    }
+
+    /**
+     * Looks up every word one edit away from a word: a letter deleted, two
+     * adjacent letters swapped, a letter replaced or inserted.
+     */
+    private void addTypos(String word, Expansion expansion) {
+        StringBuilder edit = new StringBuilder(word.length() + 1);
+        String alphabet = TYPO_ALPHABET + word;
+        for (int i = 0; i < word.length(); i++) {
+            edit.setLength(0);
+            edit.append(word, 0, i).append(word, i + 1, word.length());
+            addTypo(edit, expansion);
+            if (i + 1 < word.length() && word.charAt(i) != word.charAt(i + 1)) {
+                edit.setLength(0);
+                edit.append(word).setCharAt(i, word.charAt(i + 1));
+                edit.setCharAt(i + 1, word.charAt(i));
+                addTypo(edit, expansion);
+            }
+        }
+        for (int a = 0; a < alphabet.length(); a++) {
+            char c = alphabet.charAt(a);
+            if (alphabet.indexOf(c) != a) {
+                continue;
+            }
+            for (int i = 0; i <= word.length(); i++) {
+                if (i < word.length() && word.charAt(i) != c) {
+                    edit.setLength(0);
+                    edit.append(word).setCharAt(i, c);
+                    addTypo(edit, expansion);
+                }
+                edit.setLength(0);
+                edit.append(word, 0, i).append(c).append(word, i, word.length());
+                addTypo(edit, expansion);
+            }
+        }
+    }
+
+    private void addTypo(CharSequence edit, Expansion expansion) {
+        int term = dictionary.find(edit.toString());
+        if (term >= 0) {
+            expansion.add(term, TYPO_SCORE);
+        }
+    }
+
+    /**
+     * Gets the number of live mixes.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return documentIds.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of distinct terms.
+     */
+    public int getTermCount() {
+        lock.readLock().lock();
+        try {
+            return dictionary.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void entryUpdated(LibraryEntry entry) {
+        put(entry);
+    }
+
+    @Override
+    public void entryRemoved(Path file) {
+        remove(file);
+    }
+
+    private static String key(Path path) {
+        return path.toAbsolutePath().normalize().toString();
+    }
+
+    private static String stripExtension(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot > 0 ? fileName.substring(0, dot) : fileName;
+    }
+
+    /**
+     * The terms a word matches, each with its best score.
+     */
+    private static final class Expansion {
+
+        private int[] terms = new int[16];
+        private int[] scores = new int[16];
+        private int count;
+        private long postingCount;
+
+        private void add(int term, int score) {
+            if (count == terms.length) {
+                terms = Arrays.copyOf(terms, count * 2);
+                scores = Arrays.copyOf(scores, count * 2);
+            }
+            terms[count] = term;
+            scores[count++] = score;
+        }
+
+        /**
+         * Keeps each term once, with its best score.
+         */
+        private void finish(int[] postingCounts) {
+            long[] packed = new long[count];
+            for (int i = 0; i < count; i++) {
+                packed[i] = (long) terms[i] << 8 | scores[i];
+            }
+            Arrays.sort(packed);
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                int term = (int) (packed[i] >>> 8);
+                int score = (int) (packed[i] & 0xff);
+                if (kept > 0 && terms[kept - 1] == term) {
+                    scores[kept - 1] = Math.max(scores[kept - 1], score);
+                } else {
+                    terms[kept] = term;
+                    scores[kept++] = score;
+                    postingCount += postingCounts[term];
+                }
+            }
+            count = kept;
+        }
+
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.search;
+
+import java.util.Arrays;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Interns the terms of a search index, giving each distinct term a dense id.
+ * Ids are found through an open addressing table of ints, and prefixes
+ * through the ids sorted by term. Terms added since the last sort are kept
+ * apart and scanned, they are merged into the sorted ids once they are a
+ * sizeable part of them, so adding terms stays cheap.
+ */
+final class TermDictionary {
+
+    private static final int MIN_TAIL = 1024;
+
+    private String[] terms = new String[1024];
+    private int size;
+    private int[] table = new int[2048];
+
+    private int[] sorted = new int[0];
+
+    TermDictionary() {
+        Arrays.fill(table, -1);
+    }
+
+    int size() {
+        return size;
+    }
+
+    String get(int id) {
+        return terms[id];
+    }
+
+    /**
+     * Gets the id of a term.
+     *
+     * @return The id, or -1 if the term is unknown.
+     */
+    int find(String term) {
+        int mask = table.length - 1;
+        for (int slot = mix(term.hashCode()) & mask;; slot = (slot + 1) & mask) {
+            int id = table[slot];
+            if (id < 0) {
+                return -1;
+            }
+            if (terms[id].equals(term)) {
+                return id;
+            }
+        }
+    }
+
+    /**
+     * Gets the id of a term, adding it if it is unknown.
+     */
+    int intern(String term) {
+        int mask = table.length - 1;
+        int slot = mix(term.hashCode()) & mask;
+        for (;; slot = (slot + 1) & mask) {
+            int id = table[slot];
+            if (id < 0) {
+                break;
+            }
+            if (terms[id].equals(term)) {
+                return id;
+            }
+        }
+        if (size == terms.length) {
+            terms = Arrays.copyOf(terms, size * 2);
+        }
+        int id = size++;
+        terms[id] = term;
+        table[slot] = id;
+        if (size * 2 > table.length) {
+            rehash();
+        }
+        if (size - sorted.length > Math.max(MIN_TAIL, sorted.length / 8)) {
+            mergeTail();
+        }
+        return id;
+    }
+
+    /**
+     * Passes the ids of the terms that start with a prefix, at most a given
+     * number of them.
+     *
+     * @return The number of ids found.
+     */
+    int findPrefixed(String prefix, int[] ids, int max) {
+        int found = 0;
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (terms[sorted[middle]].compareTo(prefix) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        for (int i = low; i < sorted.length && found < max && terms[sorted[i]].startsWith(prefix); i++) {
+            ids[found++] = sorted[i];
+        }
+        for (int id = sorted.length; id < size && found < max; id++) {
+            if (terms[id].startsWith(prefix)) {
+                ids[found++] = id;
+            }
+        }
+        return found;
+    }
+
+    private void mergeTail() {
+        Integer[] tail = new Integer[size - sorted.length];
+        for (int i = 0; i < tail.length; i++) {
+            tail[i] = sorted.length + i;
+        }
+        Arrays.sort(tail, (a, b) -> terms[a].compareTo(terms[b]));
+        int[] merged = new int[size];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < sorted.length && j < tail.length) {
+            merged[k++] = terms[sorted[i]].compareTo(terms[tail[j]]) <= 0 ? sorted[i++] : tail[j++];
+        }
+        while (i < sorted.length) {
+            merged[k++] = sorted[i++];
+        }
+        while (j < tail.length) {
+            merged[k++] = tail[j++];
+        }
+        sorted = merged;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        Arrays.fill(table, -1);
+        int mask = table.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = mix(terms[id].hashCode()) & mask;
+            while (table[slot] >= 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id;
+        }
+    }
+
+    private static int mix(int hash) {
+        int h = hash * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+}
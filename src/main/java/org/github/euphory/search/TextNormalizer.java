@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.search;
+
+import java.text.Normalizer;
+import java.util.function.Consumer;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Splits text into search terms: runs of letters and digits, with accents
+ * removed and case folded, so "Tiësto" and "TIESTO" give the same term. The
+ * letters that do not decompose into a base letter and an accent are folded
+ * by hand.
+ */
+final class TextNormalizer {
+
+    private TextNormalizer() {
+    }
+
+    /**
+     * Normalizes a text and passes every term in it, in order.
+     *
+     * @param text  The text, may be null.
+     * @param terms Receives the terms.
+     */
+    static void tokenize(String text, Consumer<String> terms) {
+        if (text == null || text.isEmpty()) {
+            return;
+        }
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                fold(Character.toLowerCase(c), term);
+            } else if (term.length() > 0) {
+                terms.accept(term.toString());
+                term.setLength(0);
+            }
+        }
+        if (term.length() > 0) {
+            terms.accept(term.toString());
+        }
+    }
+
+    private static void fold(char c, StringBuilder term) {
+        switch (c) {
+            case 'ß':
+                term.append("ss");
+                break;
+            case 'æ':
+                term.append("ae");
+                break;
+            case 'œ':
+                term.append("oe");
+                break;
+            case 'ø':
+                term.append('o');
+                break;
+            case 'đ':
+            case 'ð':
+                term.append('d');
+                break;
+            case 'ł':
+                term.append('l');
+                break;
+            case 'ı':
+                term.append('i');
+                break;
+            case 'þ':
+                term.append("th");
+                break;
+            default:
+                term.append(c);
+        }
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.service;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+import javafx.concurrent.Task;
+
+import org.github.euphory.analysis.Boundary;
+import org.github.euphory.analysis.BoundaryDetector;
+import org.github.euphory.analysis.DecodedPcm;
+import org.github.euphory.model.TrackDataViewModel;
+
+/**
+ * Service class for detecting the track boundaries of a mix off the JavaFX
+ * application thread. The chunks of a mix are analyzed on the common
+ * fork-join pool.
+ *
+ * @author Daniel Toffetti
+ */
+public class BoundaryService {
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "euphory-boundaries");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Starts detecting the track boundaries of a mix.
+     *
+     * @param file            The mix.
+     * @param durationSeconds The mix duration used to report progress, 0 if unknown.
+     * @return The running task, its value holds the boundaries in time order.
+     */
+    public Task<List<Boundary>> detect(File file, double durationSeconds) {
+        BoundaryTask task = new BoundaryTask(file, durationSeconds);
+        EXECUTOR.execute(task);
+        return task;
+    }
+
+    /**
+     * Turns boundaries into detected tracks, numbered from 2 as the first
+     * track starts with the mix.
+     *
+     * @param boundaries The boundaries in time order.
+     * @return The tracks, with the confidence of their boundary.
+     */
+    public static List<TrackDataViewModel> toTracks(List<Boundary> boundaries) {
+        List<TrackDataViewModel> tracks = new ArrayList<>(boundaries.size());
+        for (int i = 0; i < boundaries.size(); i++) {
+            Boundary boundary = boundaries.get(i);
+            TrackDataViewModel track = new TrackDataViewModel(Integer.toString(i + 2),
+                    (int) Math.round(boundary.getSeconds()), "", "");
+            track.confidenceProperty().set(boundary.getConfidence());
+            tracks.add(track);
+        }
+        return tracks;
+    }
+
+    private static final class BoundaryTask extends Task<List<Boundary>> {
+
+        private final File file;
+        private final double durationSeconds;
+        private final BoundaryDetector detector = new BoundaryDetector(ForkJoinPool.commonPool());
+
+        private BoundaryTask(File file, double durationSeconds) {
+            this.file = file;
+            this.durationSeconds = durationSeconds;
+        }
+
+        @Override
+        protected List<Boundary> call() throws Exception {
+            updateMessage("Decoding " + file.getName());
+            try (DecodedPcm samples = WaveformService.openSamplesQuietly(file, BoundaryDetector.SAMPLE_RATE, this::isCancelled)) {
+                if (samples != null) {
+                    detector.setSamples(samples);
+                } else {
+                    detector.setSeekIndex(SeekIndexService.loadQuietly(file));
+                }
+                updateMessage("Detecting tracks in " + file.getName());
+                return detector.detect(file, new BoundaryDetector.Listener() {
+
+                    private int found;
+
+                    @Override
+                    public void boundaryFound(Boundary boundary) {
+                        updateMessage(++found + " boundaries found");
+                    }
+
+                    @Override
+                    public void progressed(double seconds) {
+                        if (durationSeconds > 0) {
+                            updateProgress(Math.min(seconds, durationSeconds), durationSeconds);
+                        }
+                    }
+
+                });
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            detector.cancel();
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+    }
+
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javafx.concurrent.Task;
+import javafx.scene.image.Image;
+
+import org.github.euphory.tags.CoverArt;
+import org.github.euphory.tags.ID3v2TagManager;
+import org.github.euphory.tags.MP4TagManager;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Reads, decodes and writes cover images. Images are found by their offset
+ * in the tag and streamed to the decoder, and they are decoded straight to
+ * the size they are shown at on background threads, so a 3000x3000 JPEG
+ * never reaches the JavaFX application thread. Thumbnails are kept in a
+ * cache for views that show many covers at once.
+ */
+public class CoverService {
+
+    /**
+     * The size of the thumbnails, in pixels on their longest side.
+     */
+    public static final int THUMBNAIL_SIZE = 160;
+
+    /**
+     * The pixel memory kept for thumbnails, about 650 of them.
+     */
+    public static final long THUMBNAIL_CACHE_BYTES = 64L * 1024 * 1024;
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1)), runnable -> {
+                Thread thread = new Thread(runnable, "euphory-cover");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private static final ThumbnailCache THUMBNAILS = new ThumbnailCache(THUMBNAIL_CACHE_BYTES);
+
+    private final ThumbnailCache thumbnails;
+
+    public CoverService() {
+        this(THUMBNAILS);
+    }
+
+    public CoverService(ThumbnailCache thumbnails) {
+        this.thumbnails = thumbnails;
+    }
+
+    /**
+     * Finds the cover of a media file without reading it.
+     *
+     * @param file The media file.
+     * @return The cover, or null if the file has none.
+     * @throws IOException If the tags cannot be read.
+     */
+    public CoverArt findCover(Path file) throws IOException {
+        if (!isMP3(file)) {
+            return MP4TagManager.findCover(file);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return ID3v2TagManager.findCover(channel);
+        }
+    }
+
+    /**
+     * Reads the cover image of a media file, and nothing else of its tag.
+     *
+     * @param file The media file.
+     * @return The image bytes, or null if the file has no cover.
+     * @throws IOException If the file cannot be read.
+     */
+    public byte[] readCover(Path file) throws IOException {
+        CoverArt cover = findCover(file);
+        return cover != null ? cover.readBytes(file) : null;
+    }
+
+    /**
+     * Writes the cover of a media file, reusing the tag padding when the new
+     * image fits.
+     *
+     * @param filePath The media file.
+     * @param image    The image, JPEG or PNG, or null to remove the cover.
+     * @throws IOException If the file cannot be written.
+     */
+    public void writeCover(String filePath, byte[] image) throws IOException {
+        Path file = Paths.get(filePath);
+        if (isMP3(file)) {
+            ID3v2TagManager.writeCover(file, image);
+        } else {
+            MP4TagManager.writeCover(file, image);
+        }
+    }
+
+    /**
+     * Starts decoding an image to fit a box, keeping its ratio.
+     *
+     * @param image  The image bytes.
+     * @param width  The box width.
+     * @param height The box height.
+     * @return The running task, its value is null if the bytes are not an image.
+     */
+    public Task<Image> decode(byte[] image, double width, double height) {
+        Task<Image> task = new Task<>() {
+            @Override
+            protected Image call() throws Exception {
+                return decode(new ByteArrayInputStream(image), width, height);
+            }
+        };
+        EXECUTOR.execute(task);
+        return task;
+    }
+
+    /**
+     * Gets a cached thumbnail.
+     *
+     * @param file The media file.
+     * @return The thumbnail, or null if it is not cached yet.
+     */
+    public Image getThumbnail(Path file) {
+        try {
+            return thumbnails.get(thumbnailKey(file));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts loading the thumbnail of a media file, from the cache or else
+     * streamed from the file.
+     *
+     * @param file The media file.
+     * @return The running task, its value is null if the file has no cover.
+     */
+    public Task<Image> loadThumbnail(Path file) {
+        Task<Image> task = new Task<>() {
+            @Override
+            protected Image call() throws Exception {
+                String key = thumbnailKey(file);
+                Image thumbnail = thumbnails.get(key);
+                if (thumbnail != null || isCancelled()) {
+                    return thumbnail;
+                }
+                CoverArt cover = findCover(file);
+                if (cover == null) {
+                    return null;
+                }
+                try (InputStream in = cover.openStream(file)) {
+                    thumbnail = decode(in, THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+                }
+                if (thumbnail != null) {
+                    thumbnails.put(key, thumbnail);
+                }
+                return thumbnail;
+            }
+        };
+        EXECUTOR.execute(task);
+        return task;
+    }
+
+    /**
+     * Decodes an image scaled down while it is read, so the full size image
+     * is never held.
+     */
+    private static Image decode(InputStream in, double width, double height) {
+        Image image = new Image(in, width, height, true, true);
+        return image.isError() ? null : image;
+    }
+
+    /**
+     * A thumbnail is found again as long as the file is not written.
+     */
+    private static String thumbnailKey(Path file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        return file.toAbsolutePath() + "|" + attributes.size() + "|" + attributes.lastModifiedTime().toMillis();
+    }
+
+    private static boolean isMP3(Path file) {
+        return file.getFileName().toString().toLowerCase().endsWith(".mp3");
+    }
+
+}
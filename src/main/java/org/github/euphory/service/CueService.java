@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.github.euphory.cue.CueParser;
+import org.github.euphory.cue.CueSheet;
+import org.github.euphory.cue.CueTrack;
+import org.github.euphory.cue.CueWriter;
+import org.github.euphory.model.MixDataViewModel;
+import org.github.euphory.model.TrackDataViewModel;
+import org.github.euphory.tags.Chapter;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Imports and exports the tracks of a mix as a CUE sheet. Track start times
+ * are whole seconds, so the exact start read from a sheet is kept in the
+ * additional tags of the track and written back as long as the start time
+ * was not changed.
+ */
+public class CueService {
+
+    /**
+     * The additional tag holding the start of a track as a CUE sheet time.
+     */
+    public static final String CUE_INDEX = "cueindex";
+
+    public CueService() {
+
+    }
+
+    /**
+     * Reads a CUE sheet into a mix. The tracks are replaced in a single list
+     * update, the mix fields are only filled when they are empty.
+     *
+     * @param file The sheet.
+     * @param mix  The mix to fill.
+     * @return The sheet read.
+     * @throws IOException If the sheet cannot be read.
+     */
+    public CueSheet importCue(File file, MixDataViewModel mix) throws IOException {
+        CueSheet sheet = CueParser.parse(file.toPath());
+        setIfEmpty(mix.mixNameProperty().get(), sheet.getTitle(), mix.mixNameProperty()::set);
+        setIfEmpty(mix.mixAuthorProperty().get(), sheet.getPerformer(), mix.mixAuthorProperty()::set);
+        setIfEmpty(mix.mixDateProperty().get(), sheet.getRemark("DATE"), mix.mixDateProperty()::set);
+        mix.getMixTracks().setAll(toTracks(sheet));
+        return sheet;
+    }
+
+    /**
+     * Writes the tracks of a mix as a CUE sheet.
+     *
+     * @param file      The sheet to write.
+     * @param mix       The mix.
+     * @param audioFile The audio file the sheet describes.
+     * @throws IOException If the sheet cannot be written.
+     */
+    public void exportCue(File file, MixDataViewModel mix, File audioFile) throws IOException {
+        CueWriter.write(toSheet(mix, audioFile.getName()), file.toPath());
+    }
+
+    /**
+     * Turns the tracks of a sheet into mix tracks.
+     *
+     * @param sheet The sheet.
+     * @return The tracks, in playing order.
+     */
+    public static List<TrackDataViewModel> toTracks(CueSheet sheet) {
+        List<TrackDataViewModel> tracks = new ArrayList<>(sheet.getTracks().size());
+        for (CueTrack cueTrack : sheet.getTracks()) {
+            TrackDataViewModel track = new TrackDataViewModel(Integer.toString(cueTrack.getNumber()),
+                    (int) (cueTrack.getStartFrames() / CueTrack.FRAMES_PER_SECOND), cueTrack.getPerformer(), cueTrack.getTitle());
+            track.getAdditionalTags().put(CUE_INDEX, CueTrack.formatTime(cueTrack.getStartFrames()));
+            tracks.add(track);
+        }
+        return tracks;
+    }
+
+    /**
+     * Turns the tracks of a mix into a sheet, numbered in playing order.
+     *
+     * @param mix           The mix.
+     * @param audioFileName The name of the audio file.
+     * @return The sheet.
+     */
+    public static CueSheet toSheet(MixDataViewModel mix, String audioFileName) {
+        List<TrackDataViewModel> sorted = new ArrayList<>(mix.getMixTracks());
+        sorted.sort(Comparator.comparingInt(track -> track.startTimeProperty().get()));
+        List<CueTrack> tracks = new ArrayList<>(sorted.size());
+        for (TrackDataViewModel track : sorted) {
+            tracks.add(new CueTrack(tracks.size() + 1, nullToEmpty(track.trackArtistProperty().get()),
+                    nullToEmpty(track.trackTitleProperty().get()), getStartFrames(track)));
+        }
+        Map<String, String> remarks = new LinkedHashMap<>();
+        remarks.put("DATE", nullToEmpty(mix.mixDateProperty().get()));
+        return new CueSheet(nullToEmpty(mix.mixNameProperty().get()), nullToEmpty(mix.mixAuthorProperty().get()),
+                audioFileName, remarks, tracks);
+    }
+
+    /**
+     * Turns the tracks of a sheet into chapters, each one ending where the
+     * next one starts and the last one at the end of the mix.
+     *
+     * @param sheet          The sheet.
+     * @param durationMillis The mix duration in milliseconds, 0 if unknown.
+     * @return The chapters.
+     */
+    public static List<Chapter> toChapters(CueSheet sheet, long durationMillis) {
+        List<CueTrack> tracks = sheet.getTracks();
+        List<Chapter> chapters = new ArrayList<>(tracks.size());
+        for (int i = 0; i < tracks.size(); i++) {
+            CueTrack track = tracks.get(i);
+            long start = track.getStartMillis();
+            long end = i + 1 < tracks.size() ? tracks.get(i + 1).getStartMillis() : Math.max(start, durationMillis);
+            chapters.add(new Chapter(start, end, track.getPerformer(), track.getTitle()));
+        }
+        return chapters;
+    }
+
+    /**
+     * Gets the start of a track in CUE frames, exact if it came from a sheet
+     * or a chapter and was not moved since.
+     */
+    public static long getStartFrames(TrackDataViewModel track) {
+        long seconds = track.startTimeProperty().get();
+        String index = getAdditionalTag(track, CUE_INDEX);
+        if (index != null) {
+            long frames = CueTrack.parseTime(index);
+            if (frames >= 0 && frames / CueTrack.FRAMES_PER_SECOND == seconds) {
+                return frames;
+            }
+        }
+        long millis = track.getChapterStart();
+        if (millis >= 0) {
+            return millis * CueTrack.FRAMES_PER_SECOND / 1000;
+        }
+        return seconds * CueTrack.FRAMES_PER_SECOND;
+    }
+
+    private static String getAdditionalTag(TrackDataViewModel track, String key) {
+        return track.getAdditionalTags() != null ? track.getAdditionalTags().get(key) : null;
+    }
+
+    private static void setIfEmpty(String current, String value, Consumer<String> setter) {
+        if ((current == null || current.isEmpty()) && !value.isEmpty()) {
+            setter.accept(value);
+        }
+    }
+
+    private static String nullToEmpty(String value) {
+        return value != null ? value : "";
+    }
+
+}
@@ -12,10 +12,8 @@ package org.github.euphory.service;
 import java.io.File;
 import java.io.IOException;
 import org.github.euphory.Main;
-import org.github.euphory.model.Model;
 
 import javafx.scene.control.Alert;
-import javafx.scene.media.Media;
 import javafx.stage.FileChooser;
 
 /**
@@ -24,7 +22,13 @@ import javafx.stage.FileChooser;
  */
 public class FileService {
     
-    public static Media openMediaFile() {
+    /**
+     * Asks for a media file to open. Nothing is read from it here, the file
+     * is opened in the background.
+     *
+     * @return The file, or null if none was chosen.
+     */
+    public static File chooseMediaFile() {
         FileChooser fileChooser = new FileChooser();
         fileChooser.setTitle("Open Mp3/M4a File");
         fileChooser.getExtensionFilters().addAll(
@@ -33,10 +37,44 @@ public class FileService {
         File file = fileChooser.showOpenDialog(Main.getStage());
         if (file == null) {
             Main.showAlert(Alert.AlertType.INFORMATION, "Info", "No file was selected", "");
-            return null;
         }
-        Model.setMediaFile(file);
-        return Model.getMedia();
+        return file;
+    }
+
+    /**
+     * Asks for a CUE sheet to import or export, starting next to the media
+     * file, with the name of the media file when exporting.
+     *
+     * @param mediaFile The media file the sheet goes with.
+     * @param save      True to choose where to write a sheet.
+     * @return The sheet, or null if none was chosen.
+     */
+    public static File chooseCueFile(File mediaFile, boolean save) {
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle(save ? "Export CUE Sheet" : "Import CUE Sheet");
+        fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("CUE Sheets", "*.cue"));
+        fileChooser.setInitialDirectory(mediaFile.getAbsoluteFile().getParentFile());
+        if (save) {
+            String name = mediaFile.getName();
+            int dot = name.lastIndexOf('.');
+            fileChooser.setInitialFileName((dot > 0 ? name.substring(0, dot) : name) + ".cue");
+            return fileChooser.showSaveDialog(Main.getStage());
+        }
+        return fileChooser.showOpenDialog(Main.getStage());
+    }
+
+    /**
+     * Asks for a cover image, starting next to the media file.
+     *
+     * @param mediaFile The media file the cover goes with.
+     * @return The image, or null if none was chosen.
+     */
+    public static File chooseCoverFile(File mediaFile) {
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Choose Cover Image");
+        fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Images", "*.jpg", "*.jpeg", "*.png"));
+        fileChooser.setInitialDirectory(mediaFile.getAbsoluteFile().getParentFile());
+        return fileChooser.showOpenDialog(Main.getStage());
     }
 
     public static void saveMediaFile(File file, String content) throws IOException {
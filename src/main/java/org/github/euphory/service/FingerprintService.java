@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.service;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javafx.concurrent.Task;
+
+import org.github.euphory.analysis.DecodedPcm;
+import org.github.euphory.fingerprint.FingerprintIndex;
+import org.github.euphory.fingerprint.LandmarkExtractor;
+import org.github.euphory.fingerprint.Landmarks;
+import org.github.euphory.fingerprint.Match;
+import org.github.euphory.model.TrackDataViewModel;
+
+/**
+ * Service class for identifying the tracks of a mix against the local
+ * fingerprint index, off the JavaFX application thread. A window of every
+ * track, past the transition from the previous one, is looked up.
+ *
+ * @author Daniel Toffetti
+ */
+public class FingerprintService {
+
+    /**
+     * The landmarks that must agree on a track and offset to accept it.
+     */
+    private static final int MIN_VOTES = 8;
+
+    private static final double WINDOW_SECONDS = 15;
+    private static final double MAX_WINDOW_OFFSET = 30;
+    private static final double MIN_WINDOW_SECONDS = 5;
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "euphory-fingerprints");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Checks whether there is an index to identify tracks against.
+     *
+     * @return True if the index file exists.
+     */
+    public boolean isIndexAvailable() {
+        return Files.isRegularFile(FingerprintIndex.getDefaultPath());
+    }
+
+    /**
+     * Starts identifying the tracks of a mix.
+     *
+     * @param file            The mix.
+     * @param startTimes      The start of every track in seconds, in time order.
+     * @param durationSeconds The mix duration, 0 if unknown.
+     * @return The running task, its value holds the match of every track, null where none was found.
+     */
+    public Task<List<Match>> identify(File file, int[] startTimes, double durationSeconds) {
+        FingerprintTask task = new FingerprintTask(FingerprintIndex.getDefaultPath(), file, startTimes, durationSeconds);
+        EXECUTOR.execute(task);
+        return task;
+    }
+
+    /**
+     * Gets the start of every track.
+     *
+     * @param tracks The tracks in time order.
+     * @return The start times in seconds.
+     */
+    public static int[] toStartTimes(List<TrackDataViewModel> tracks) {
+        int[] startTimes = new int[tracks.size()];
+        for (int i = 0; i < startTimes.length; i++) {
+            startTimes[i] = tracks.get(i).startTimeProperty().get();
+        }
+        return startTimes;
+    }
+
+    /**
+     * Fills the artist and title of the tracks that have none from their
+     * matches.
+     *
+     * @param tracks  The tracks the matches were computed for.
+     * @param matches The matches, null where none was found.
+     * @return The number of tracks changed.
+     */
+    public static int applyMatches(List<TrackDataViewModel> tracks, List<Match> matches) {
+        int changed = 0;
+        for (int i = 0; i < Math.min(tracks.size(), matches.size()); i++) {
+            Match match = matches.get(i);
+            if (match == null) {
+                continue;
+            }
+            TrackDataViewModel track = tracks.get(i);
+            boolean edited = false;
+            if (isBlank(track.trackArtistProperty().get()) && !match.getArtist().isEmpty()) {
+                track.trackArtistProperty().set(match.getArtist());
+                edited = true;
+            }
+            if (isBlank(track.trackTitleProperty().get()) && !match.getTitle().isEmpty()) {
+                track.trackTitleProperty().set(match.getTitle());
+                edited = true;
+            }
+            if (edited) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.isBlank();
+    }
+
+    private static final class FingerprintTask extends Task<List<Match>> {
+
+        private final Path indexFile;
+        private final File file;
+        private final int[] startTimes;
+        private final double durationSeconds;
+        private final LandmarkExtractor extractor = new LandmarkExtractor();
+
+        private FingerprintTask(Path indexFile, File file, int[] startTimes, double durationSeconds) {
+            this.indexFile = indexFile;
+            this.file = file;
+            this.startTimes = startTimes;
+            this.durationSeconds = durationSeconds;
+        }
+
+        @Override
+        protected List<Match> call() throws Exception {
+            List<Match> matches = new ArrayList<>(startTimes.length);
+            updateMessage("Decoding " + file.getName());
+            try (FingerprintIndex index = FingerprintIndex.open(indexFile);
+                 DecodedPcm samples = WaveformService.openSamplesQuietly(file, LandmarkExtractor.SAMPLE_RATE, this::isCancelled)) {
+                if (samples != null) {
+                    extractor.setSamples(samples);
+                } else {
+                    extractor.setSeekIndex(SeekIndexService.loadQuietly(file));
+                }
+                Landmarks landmarks = new Landmarks();
+                int found = 0;
+                for (int i = 0; i < startTimes.length; i++) {
+                    if (isCancelled()) {
+                        throw new InterruptedIOException("Identification cancelled");
+                    }
+                    updateMessage("Identifying track " + (i + 1) + " of " + startTimes.length);
+                    updateProgress(i, startTimes.length);
+                    double end = i + 1 < startTimes.length ? startTimes[i + 1]
+                            : durationSeconds > 0 ? durationSeconds : startTimes[i] + MAX_WINDOW_OFFSET + WINDOW_SECONDS;
+                    // Skip the transition, where the previous track still plays
+                    double start = startTimes[i] + Math.min(MAX_WINDOW_OFFSET, (end - startTimes[i]) / 3);
+                    double seconds = Math.min(WINDOW_SECONDS, end - start);
+                    Match match = null;
+                    if (seconds >= MIN_WINDOW_SECONDS) {
+                        landmarks.clear();
+                        extractor.extract(file, start, seconds, landmarks);
+                        match = index.query(landmarks);
+                        if (match != null && match.getVotes() < MIN_VOTES) {
+                            match = null;
+                        }
+                    }
+                    if (match != null) {
+                        found++;
+                    }
+                    matches.add(match);
+                }
+                updateProgress(startTimes.length, startTimes.length);
+                updateMessage(found + " of " + startTimes.length + " tracks identified");
+            }
+            return matches;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            extractor.cancel();
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+    }
+
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javafx.concurrent.Task;
+import javafx.scene.media.Media;
+import javafx.scene.media.MediaPlayer;
+
+import org.github.euphory.model.MixDataViewModel;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Opens media files off the JavaFX application thread, in stages: the file
+ * header is probed, the tags and chapters are read, then the cover, and last
+ * the player is created. The task value is updated on the JavaFX application
+ * thread after every stage, so the mix can be edited while the rest is still
+ * being read from a slow disk.
+ */
+public class OpenService {
+
+    /**
+     * Threads are not reused for a new open while an older one is stuck on a
+     * slow read.
+     */
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "euphory-open");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final int STAGES = OpenedMedia.Stage.values().length;
+
+    private final TagService tagService;
+    private final CoverService coverService;
+
+    public OpenService() {
+        this(new TagService(), new CoverService());
+    }
+
+    public OpenService(TagService tagService, CoverService coverService) {
+        this.tagService = tagService;
+        this.coverService = coverService;
+    }
+
+    /**
+     * Starts opening a media file.
+     *
+     * @param file The file.
+     * @return The running task. Its value is replaced after every stage, and
+     *         a player created by a cancelled task is disposed.
+     */
+    public Task<OpenedMedia> open(File file) {
+        OpenTask task = new OpenTask(file);
+        EXECUTOR.execute(task);
+        return task;
+    }
+
+    /**
+     * Checks that a file starts like an MP3 or MP4 file.
+     *
+     * @param file The file.
+     * @throws IOException If it cannot be read or is neither.
+     */
+    static void probe(File file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(12);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+                // Read up to the header size
+            }
+        }
+        byte[] bytes = header.array();
+        boolean id3 = bytes[0] == 'I' && bytes[1] == 'D' && bytes[2] == '3';
+        boolean mpeg = (bytes[0] & 0xff) == 0xff && (bytes[1] & 0xe0) == 0xe0;
+        boolean mp4 = bytes[4] == 'f' && bytes[5] == 't' && bytes[6] == 'y' && bytes[7] == 'p';
+        if (!id3 && !mpeg && !mp4) {
+            throw new IOException("Not an MP3 or MP4 file: " + file.getName());
+        }
+    }
+
+    private final class OpenTask extends Task<OpenedMedia> {
+
+        private final File file;
+        private MediaPlayer player;
+
+        private OpenTask(File file) {
+            this.file = file;
+        }
+
+        @Override
+        protected OpenedMedia call() throws Exception {
+            updateMessage("Opening " + file.getName());
+            updateProgress(0, STAGES);
+            probe(file);
+            OpenedMedia opened = new OpenedMedia(file, OpenedMedia.Stage.PROBED, null, null, null);
+            publish(opened);
+
+            MixDataViewModel mix = tagService.populateAlbumDataViewModel(file.getPath());
+            if (mix == null) {
+                mix = new MixDataViewModel();
+            }
+            try {
+                tagService.populateChapters(mix, file.getPath());
+            } catch (IOException e) {
+                // The tags are still good without the chapters
+                e.printStackTrace();
+            }
+            opened = opened.withMix(mix);
+            publish(opened);
+
+            byte[] cover = null;
+            try {
+                cover = coverService.readCover(file.toPath());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            opened = opened.withCover(cover);
+            publish(opened);
+
+            updateMessage("Preparing the player");
+            synchronized (this) {
+                if (isCancelled()) {
+                    return null;
+                }
+                player = new MediaPlayer(new Media(file.toURI().toString()));
+            }
+            opened = opened.withPlayer(player);
+            updateProgress(STAGES, STAGES);
+            updateMessage("");
+            return opened;
+        }
+
+        private void publish(OpenedMedia opened) {
+            if (!isCancelled()) {
+                updateValue(opened);
+                updateProgress(opened.getStage().ordinal() + 1, STAGES);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            synchronized (this) {
+                // A player handed over by a finished task is not ours to dispose
+                if (cancelled && player != null) {
+                    player.dispose();
+                    player = null;
+                }
+            }
+            return cancelled;
+        }
+
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.service;
+
+import java.io.File;
+
+import javafx.scene.media.MediaPlayer;
+
+import org.github.euphory.model.MixDataViewModel;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * What is known of a media file being opened, after each stage of the open
+ * pipeline. Every stage publishes a new snapshot holding everything read so
+ * far, so the user interface can show each part as soon as it is there.
+ */
+public final class OpenedMedia {
+
+    /**
+     * The stages of opening a file, in order.
+     */
+    public enum Stage {
+        PROBED, TAGS_READ, COVER_READ, PLAYER_READY
+    }
+
+    private final File file;
+    private final Stage stage;
+    private final MixDataViewModel mix;
+    private final byte[] cover;
+    private final MediaPlayer player;
+
+    OpenedMedia(File file, Stage stage, MixDataViewModel mix, byte[] cover, MediaPlayer player) {
+        this.file = file;
+        this.stage = stage;
+        this.mix = mix;
+        this.cover = cover;
+        this.player = player;
+    }
+
+    OpenedMedia withMix(MixDataViewModel mix) {
+        return new OpenedMedia(file, Stage.TAGS_READ, mix, cover, player);
+    }
+
+    OpenedMedia withCover(byte[] cover) {
+        return new OpenedMedia(file, Stage.COVER_READ, mix, cover, player);
+    }
+
+    OpenedMedia withPlayer(MediaPlayer player) {
+        return new OpenedMedia(file, Stage.PLAYER_READY, mix, cover, player);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public Stage getStage() {
+        return stage;
+    }
+
+    public boolean isReached(Stage stage) {
+        return this.stage.compareTo(stage) >= 0;
+    }
+
+    /**
+     * @return The mix read from the tags and chapters, once they are read.
+     */
+    public MixDataViewModel getMix() {
+        return mix;
+    }
+
+    /**
+     * @return The cover image bytes, null if the file has none or it is not
+     *         read yet.
+     */
+    public byte[] getCover() {
+        return cover;
+    }
+
+    /**
+     * @return The player, once it is created. It still has to get ready.
+     */
+    public MediaPlayer getPlayer() {
+        return player;
+    }
+
+}
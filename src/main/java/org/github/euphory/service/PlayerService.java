@@ -13,8 +13,13 @@ import javafx.scene.media.Media;
 import javafx.scene.media.MediaPlayer;
 import javafx.util.Duration;
 
+import org.github.euphory.analysis.SeekIndex;
+
 /**
- * Service class for managing media playback.
+ * Service class for managing media playback. With the seek index of the
+ * media, seeks land on the frame of the time asked for instead of where the
+ * player estimates it, and the time reported afterwards is corrected by the
+ * same amount.
  *
  * @author Daniel Toffetti
  */
@@ -22,11 +27,44 @@ public class PlayerService {
 
     private MediaPlayer mediaPlayer;
 
+    private SeekIndex seekIndex;
+
+    // How far ahead of the media the player time is since the last seek
+    private double seekError;
+
     public void setMedia(Media media) {
+        setMediaPlayer(new MediaPlayer(media));
+    }
+
+    /**
+     * Replaces the player, disposing the current one.
+     *
+     * @param player A player created elsewhere, or null to close the media.
+     */
+    public void setMediaPlayer(MediaPlayer player) {
         if (mediaPlayer != null) {
             mediaPlayer.dispose();
         }
-        mediaPlayer = new MediaPlayer(media);
+        mediaPlayer = player;
+        seekError = 0;
+    }
+
+    /**
+     * Sets the seek index of the media, kept when the player is replaced.
+     *
+     * @param index The index, or null to seek by the player's estimate.
+     */
+    public void setSeekIndex(SeekIndex index) {
+        seekIndex = index;
+    }
+
+    public SeekIndex getSeekIndex() {
+        return seekIndex;
+    }
+
+    public void close() {
+        setMediaPlayer(null);
+        seekIndex = null;
     }
 
     public MediaPlayer getMediaPlayer() {
@@ -48,20 +86,43 @@ public class PlayerService {
     public void stop() {
         if (mediaPlayer != null) {
             mediaPlayer.stop();
+            seekError = 0;
         }
     }
 
     public void seek(Duration duration) {
+        seek(duration.toSeconds());
+    }
+
+    /**
+     * Seeks to a time of the media.
+     *
+     * @param seconds The time.
+     */
+    public void seek(double seconds) {
         if (mediaPlayer != null) {
-            mediaPlayer.seek(duration);
+            double playerSeconds = seekIndex != null ? seekIndex.toStreamSeconds(seconds) : seconds;
+            mediaPlayer.seek(Duration.seconds(playerSeconds));
+            seekError = playerSeconds - seconds;
         }
     }
 
     public Duration getCurrentTime() {
-        return (mediaPlayer != null) ? mediaPlayer.getCurrentTime() : Duration.ZERO;
+        return (mediaPlayer != null) ? Duration.seconds(getCurrentSeconds()) : Duration.ZERO;
+    }
+
+    /**
+     * @return The time of the media being played, in seconds.
+     */
+    public double getCurrentSeconds() {
+        return (mediaPlayer != null) ? Math.max(0, mediaPlayer.getCurrentTime().toSeconds() - seekError) : 0;
     }
 
     public Duration getTotalDuration() {
+        if (mediaPlayer != null && seekIndex != null && seekIndex.isExact()) {
+            // The player estimates the duration of variable bitrate streams
+            return Duration.seconds(seekIndex.getDurationSeconds());
+        }
         return (mediaPlayer != null) ? mediaPlayer.getTotalDuration() : Duration.ZERO;
     }
     
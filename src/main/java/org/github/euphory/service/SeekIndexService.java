@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javafx.concurrent.Task;
+
+import org.github.euphory.analysis.AnalysisCache;
+import org.github.euphory.analysis.SeekIndex;
+import org.github.euphory.analysis.SeekIndexBuilder;
+
+/**
+ * Service class for loading the seek index of a media file off the JavaFX
+ * application thread, from the analysis cache or by scanning the file.
+ *
+ * @author Daniel Toffetti
+ */
+public class SeekIndexService {
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "euphory-index");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AnalysisCache cache;
+
+    public SeekIndexService() {
+        this(AnalysisCache.getDefault());
+    }
+
+    public SeekIndexService(AnalysisCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Starts loading the seek index of a media file. An MP3 file with a table
+     * of contents gets a coarse index as the task value first, and the exact
+     * one when its frames are scanned.
+     *
+     * @param file The media file.
+     * @return The running task, its value is null if the file has no index.
+     */
+    public Task<SeekIndex> load(File file) {
+        Task<SeekIndex> task = new Task<>() {
+            @Override
+            protected SeekIndex call() throws Exception {
+                SeekIndex index = SeekIndexBuilder.readTableOfContents(file.toPath());
+                if (index != null && index.isExact()) {
+                    return index;
+                }
+                if (index != null) {
+                    updateValue(index);
+                }
+                updateMessage("Indexing " + file.getName());
+                return SeekIndexBuilder.load(file.toPath(), cache);
+            }
+        };
+        EXECUTOR.execute(task);
+        return task;
+    }
+
+    /**
+     * Loads the seek index of a media file on the calling thread, for the
+     * analyses that decode windows of it.
+     *
+     * @param file The media file.
+     * @return The index, or null if there is none or it cannot be read.
+     */
+    static SeekIndex loadQuietly(File file) {
+        try {
+            return SeekIndexBuilder.load(file.toPath(), AnalysisCache.getDefault());
+        } catch (IOException e) {
+            // The windows are then sought by the decoder's estimate
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+}
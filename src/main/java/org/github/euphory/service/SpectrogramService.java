@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.service;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+
+import javafx.concurrent.Task;
+
+import org.github.euphory.analysis.DecodedPcm;
+import org.github.euphory.analysis.PcmCache;
+import org.github.euphory.analysis.Spectrogram;
+
+/**
+ * Service class for computing spectrograms off the JavaFX application
+ * thread. The samples are opened from the PCM cache on one thread, and tiles
+ * are computed on a pool of half the processors so the player and the other
+ * analyses keep running.
+ *
+ * @author Daniel Toffetti
+ */
+public class SpectrogramService {
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "euphory-spectrogram");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final ExecutorService TILE_EXECUTOR = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2), runnable -> {
+                Thread thread = new Thread(runnable, "euphory-spectrogram-tiles");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            });
+
+    private final PcmCache cache;
+
+    public SpectrogramService() {
+        this(PcmCache.getDefault());
+    }
+
+    public SpectrogramService(PcmCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Starts opening the spectrogram of a media file, decoding the file if
+     * its samples are not cached yet.
+     *
+     * @param file The media file.
+     * @return The running task, its value must be closed when no longer shown.
+     */
+    public Task<Spectrogram> open(File file) {
+        Task<Spectrogram> task = new Task<>() {
+            @Override
+            protected Spectrogram call() throws Exception {
+                updateMessage("Decoding " + file.getName());
+                BooleanSupplier cancelled = this::isCancelled;
+                DecodedPcm samples = cache.open(file, Spectrogram.SAMPLE_RATE, new PcmCache.DecodeListener() {
+                    @Override
+                    public boolean isCancelled() {
+                        return cancelled.getAsBoolean();
+                    }
+                });
+                if (isCancelled()) {
+                    // Nobody will take the value to close it
+                    samples.close();
+                    return null;
+                }
+                return new Spectrogram(samples);
+            }
+        };
+        EXECUTOR.execute(task);
+        return task;
+    }
+
+    /**
+     * Starts computing a tile. Tasks cancelled before they start are skipped,
+     * so tiles scrolled out of view cost nothing.
+     *
+     * @param spectrogram The spectrogram.
+     * @param zoom        The samples per column, as a power of two.
+     * @param index       The tile.
+     * @return The running task, its value holds the quantized levels of the tile.
+     */
+    public Task<byte[]> computeTile(Spectrogram spectrogram, int zoom, long index) {
+        Task<byte[]> task = new Task<>() {
+            @Override
+            protected byte[] call() {
+                return spectrogram.computeTile(zoom, index);
+            }
+        };
+        TILE_EXECUTOR.execute(task);
+        return task;
+    }
+
+}
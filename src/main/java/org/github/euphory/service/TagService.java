@@ -9,32 +9,52 @@
  */
 package org.github.euphory.service;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.file.Paths;
+import javafx.concurrent.Task;
+import org.github.euphory.cue.CueTrack;
+import org.github.euphory.tags.Chapter;
+import org.github.euphory.tags.ID3v2TagManager;
 import org.github.euphory.tags.MP4TagManager;
+import org.github.euphory.model.ChangeJournal;
 import org.github.euphory.model.MixDataViewModel;
 import org.github.euphory.model.TrackDataViewModel;
 
 public class TagService {
 
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "euphory-save");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final CoverService coverService = new CoverService();
+
     public TagService() {
         
     }
 
     public MixDataViewModel populateAlbumDataViewModel(String filePath) {
         MixDataViewModel albumDataViewModel = new MixDataViewModel();
-        try (RandomAccessFile file = new RandomAccessFile(filePath, "r")) {
-            Map<String, String> tags = MP4TagManager.readMP4Tag(file);
+        try {
+            Map<String, String> tags = readTags(filePath);
 
             albumDataViewModel.mixNameProperty().set(tags.getOrDefault("title", ""));
             albumDataViewModel.mixAuthorProperty().set(tags.getOrDefault("artist", ""));
             albumDataViewModel.mixEpisodeProperty().set(tags.getOrDefault("episode", ""));
-            albumDataViewModel.mixDateProperty().set(tags.getOrDefault("date", ""));
+            albumDataViewModel.mixDateProperty().set(tags.getOrDefault("year", tags.getOrDefault("date", "")));
 
             // Add additional tags not represented by fields
             tags.remove("title");
             tags.remove("artist");
-            tags.remove("album");
             tags.remove("year");
             tags.remove("date");
 
@@ -47,10 +67,251 @@ public class TagService {
         }
     }
 
-    public TrackDataViewModel populateTrackDataViewModel(String filePath) {
-        TrackDataViewModel trackDataViewModel = new TrackDataViewModel();
+    /**
+     * Reads the tags of a media file, ID3v2 for MP3 files and MP4 otherwise.
+     *
+     * @param filePath The file to read.
+     * @return The tags found, empty if the file has none.
+     * @throws IOException If the tags cannot be read or a file that is not
+     *                     an MP3 file is not an MP4 file either.
+     */
+    public Map<String, String> readTags(String filePath) throws IOException {
         try (RandomAccessFile file = new RandomAccessFile(filePath, "r")) {
+            if (isMP3(filePath)) {
+                return ID3v2TagManager.readID3v2Tag(file);
+            }
             Map<String, String> tags = MP4TagManager.readMP4Tag(file);
+            if (tags == null) {
+                throw new IOException("Not an MP4 file: " + filePath);
+            }
+            return tags;
+        }
+    }
+
+    /**
+     * Writes the tags of a media file, ID3v2 for MP3 files and MP4 otherwise.
+     *
+     * @param filePath The file to write.
+     * @param tags     The tags to write.
+     * @throws IOException If the tags cannot be written.
+     */
+    public void writeTags(String filePath, Map<String, String> tags) throws IOException {
+        if (isMP3(filePath)) {
+            ID3v2TagManager.writeID3v2Tag(Paths.get(filePath), tags);
+        } else {
+            MP4TagManager.writeMP4Tag(Paths.get(filePath), tags);
+        }
+    }
+
+    /**
+     * Reads the chapters of a media file into the mix tracks, replacing them
+     * in a single list update.
+     *
+     * @param mix      The mix to fill.
+     * @param filePath The file to read.
+     * @throws IOException If the chapters cannot be read.
+     */
+    public void populateChapters(MixDataViewModel mix, String filePath) throws IOException {
+        List<Chapter> chapters = readChapters(filePath);
+        List<TrackDataViewModel> tracks = new ArrayList<>(chapters.size());
+        for (int i = 0; i < chapters.size(); i++) {
+            Chapter chapter = chapters.get(i);
+            TrackDataViewModel track = new TrackDataViewModel(Integer.toString(i + 1), (int) (chapter.getStartMillis() / 1000),
+                    nullToEmpty(chapter.getArtist()), nullToEmpty(chapter.getTitle()));
+            track.setChapterTimes(chapter.getStartMillis(), chapter.getEndMillis());
+            tracks.add(track);
+        }
+        mix.getMixTracks().setAll(tracks);
+    }
+
+    /**
+     * Reads the chapters of a media file.
+     *
+     * @param filePath The file to read.
+     * @return The chapters, sorted by start time.
+     * @throws IOException If the chapters cannot be read.
+     */
+    public List<Chapter> readChapters(String filePath) throws IOException {
+        if (!isMP3(filePath)) {
+            return MP4TagManager.readChapters(Paths.get(filePath));
+        }
+        try (RandomAccessFile file = new RandomAccessFile(filePath, "r")) {
+            return ID3v2TagManager.readChapters(file);
+        }
+    }
+
+    /**
+     * Writes the mix tracks as chapters. Each chapter ends where the next one
+     * starts, the last one at the end of the mix, unless it keeps the times
+     * it was read with.
+     *
+     * @param filePath       The file to write.
+     * @param mix            The mix holding the tracks.
+     * @param durationMillis The mix duration in milliseconds, 0 if unknown.
+     * @throws IOException If the chapters cannot be written.
+     */
+    public void writeChapters(String filePath, MixDataViewModel mix, long durationMillis) throws IOException {
+        writeChapters(filePath, toChapters(mix, durationMillis));
+    }
+
+    /**
+     * Makes the chapters of the mix tracks, see
+     * {@link #writeChapters(String, MixDataViewModel, long)}.
+     */
+    private static List<Chapter> toChapters(MixDataViewModel mix, long durationMillis) {
+        List<TrackDataViewModel> tracks = new ArrayList<>(mix.getMixTracks());
+        tracks.sort(Comparator.comparingInt(track -> track.startTimeProperty().get()));
+        List<Chapter> chapters = new ArrayList<>(tracks.size());
+        for (int i = 0; i < tracks.size(); i++) {
+            TrackDataViewModel track = tracks.get(i);
+            long start = getStartMillis(track);
+            long end = i + 1 < tracks.size() ? getStartMillis(tracks.get(i + 1)) : Math.max(start, durationMillis);
+            long readEnd = track.getChapterEnd();
+            if (readEnd >= start && (i + 1 == tracks.size() || readEnd <= end)) {
+                end = readEnd;
+            }
+            chapters.add(new Chapter(start, end, track.trackArtistProperty().get(), track.trackTitleProperty().get()));
+        }
+        return chapters;
+    }
+
+    /**
+     * Gets the start of a track in milliseconds, exact if it came from a
+     * chapter or a CUE sheet and was not moved since.
+     */
+    private static long getStartMillis(TrackDataViewModel track) {
+        long millis = track.getChapterStart();
+        if (millis >= 0) {
+            return millis;
+        }
+        return CueService.getStartFrames(track) * 1000 / CueTrack.FRAMES_PER_SECOND;
+    }
+
+    /**
+     * Writes chapters, replacing the existing ones.
+     *
+     * @param filePath The file to write.
+     * @param chapters The chapters, in playing order.
+     * @throws IOException If the chapters cannot be written.
+     */
+    public void writeChapters(String filePath, List<Chapter> chapters) throws IOException {
+        if (isMP3(filePath)) {
+            ID3v2TagManager.writeChapters(Paths.get(filePath), chapters);
+        } else {
+            MP4TagManager.writeChapters(Paths.get(filePath), chapters);
+        }
+    }
+
+    /**
+     * Writes the fields of a mix that changed, and nothing else: the tags
+     * that were not edited keep the value in the file, and the chapters are
+     * only written when the tracks changed, the cover when it was replaced.
+     * Both writers patch the tag in place when its padding allows it. The
+     * episode is not stored in tags yet.
+     *
+     * @param filePath       The file to write.
+     * @param mix            The mix.
+     * @param fields         The fields that changed.
+     * @param durationMillis The mix duration in milliseconds, 0 if unknown.
+     * @throws IOException If the file cannot be written.
+     */
+    public void saveChanges(String filePath, MixDataViewModel mix, Set<ChangeJournal.Field> fields, long durationMillis)
+            throws IOException {
+        new Changes(mix, fields, durationMillis).write(filePath);
+    }
+
+    /**
+     * Starts writing the fields of a mix that changed, as
+     * {@link #saveChanges(String, MixDataViewModel, Set, long)} does. The
+     * values are taken from the mix before the task starts, so the mix can
+     * be edited while the file is written.
+     *
+     * @param filePath       The file to write.
+     * @param mix            The mix.
+     * @param fields         The fields that changed.
+     * @param durationMillis The mix duration in milliseconds, 0 if unknown.
+     * @return The running task.
+     */
+    public Task<Void> save(String filePath, MixDataViewModel mix, Set<ChangeJournal.Field> fields,
+            long durationMillis) {
+        Changes changes = new Changes(mix, fields, durationMillis);
+        Task<Void> task = new Task<>() {
+            @Override
+            protected Void call() throws Exception {
+                changes.write(filePath);
+                return null;
+            }
+        };
+        EXECUTOR.execute(task);
+        return task;
+    }
+
+    private static void putOrRemove(Map<String, String> tags, String key, String value) {
+        if (value == null || value.isEmpty()) {
+            tags.remove(key);
+        } else {
+            tags.put(key, value);
+        }
+    }
+
+    /**
+     * The values of the fields of a mix that changed, taken at once.
+     */
+    private final class Changes {
+
+        private final Set<ChangeJournal.Field> fields;
+        private final String name;
+        private final String author;
+        private final String date;
+        private final byte[] cover;
+        private final List<Chapter> chapters;
+
+        private Changes(MixDataViewModel mix, Set<ChangeJournal.Field> fields, long durationMillis) {
+            this.fields = Set.copyOf(fields);
+            name = mix.mixNameProperty().get();
+            author = mix.mixAuthorProperty().get();
+            date = mix.mixDateProperty().get();
+            cover = mix.coverDataProperty().get();
+            chapters = fields.contains(ChangeJournal.Field.TRACKS) ? toChapters(mix, durationMillis) : null;
+        }
+
+        private void write(String filePath) throws IOException {
+            if (fields.contains(ChangeJournal.Field.NAME) || fields.contains(ChangeJournal.Field.AUTHOR)
+                    || fields.contains(ChangeJournal.Field.DATE)) {
+                Map<String, String> tags = readTags(filePath);
+                if (fields.contains(ChangeJournal.Field.NAME)) {
+                    putOrRemove(tags, "title", name);
+                }
+                if (fields.contains(ChangeJournal.Field.AUTHOR)) {
+                    putOrRemove(tags, "artist", author);
+                }
+                if (fields.contains(ChangeJournal.Field.DATE)) {
+                    putOrRemove(tags, "year", date);
+                }
+                writeTags(filePath, tags);
+            }
+            if (fields.contains(ChangeJournal.Field.COVER)) {
+                coverService.writeCover(filePath, cover);
+            }
+            if (chapters != null) {
+                writeChapters(filePath, chapters);
+            }
+        }
+
+    }
+
+    private static String nullToEmpty(String value) {
+        return value != null ? value : "";
+    }
+
+    private static boolean isMP3(String filePath) {
+        return filePath.toLowerCase().endsWith(".mp3");
+    }
+
+    public TrackDataViewModel populateTrackDataViewModel(String filePath) {
+        TrackDataViewModel trackDataViewModel = new TrackDataViewModel();
+        try {
+            Map<String, String> tags = readTags(filePath);
 
             trackDataViewModel.trackTitleProperty().set(tags.getOrDefault("title", ""));
             trackDataViewModel.trackArtistProperty().set(tags.getOrDefault("artist", ""));
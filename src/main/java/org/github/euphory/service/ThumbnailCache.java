@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.service;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javafx.scene.image.Image;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Keeps decoded thumbnails, least recently used first out, within a budget of
+ * pixel memory rather than a number of images, since thumbnails of different
+ * shapes cost different amounts. Safe to use from any thread.
+ */
+public final class ThumbnailCache {
+
+    private final long maxBytes;
+    private long bytes;
+    private final LinkedHashMap<String, Image> images = new LinkedHashMap<>(64, 0.75f, true);
+
+    /**
+     * Constructs a new ThumbnailCache.
+     *
+     * @param maxBytes The most pixel memory kept, at 4 bytes per pixel.
+     */
+    public ThumbnailCache(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param key The key of the thumbnail.
+     * @return The thumbnail, or null if it is not cached.
+     */
+    public synchronized Image get(String key) {
+        return images.get(key);
+    }
+
+    /**
+     * Adds a thumbnail, dropping the least recently used ones to make room.
+     *
+     * @param key   The key of the thumbnail.
+     * @param image The thumbnail.
+     */
+    public synchronized void put(String key, Image image) {
+        long size = sizeOf(image);
+        if (size > maxBytes) {
+            return;
+        }
+        Image old = images.put(key, image);
+        if (old != null) {
+            bytes -= sizeOf(old);
+        }
+        bytes += size;
+        Iterator<Map.Entry<String, Image>> eldest = images.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Image> entry = eldest.next();
+            bytes -= sizeOf(entry.getValue());
+            eldest.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        images.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size() {
+        return images.size();
+    }
+
+    /**
+     * @return The pixel memory held, in bytes.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    private static long sizeOf(Image image) {
+        return 4L * (long) Math.ceil(image.getWidth()) * (long) Math.ceil(image.getHeight());
+    }
+
+}
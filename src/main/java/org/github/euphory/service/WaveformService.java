@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+
+import javafx.concurrent.Task;
+
+import org.github.euphory.analysis.AnalysisCache;
+import org.github.euphory.analysis.CacheKey;
+import org.github.euphory.analysis.DecodedPcm;
+import org.github.euphory.analysis.PcmCache;
+import org.github.euphory.analysis.WaveformAnalyzer;
+import org.github.euphory.analysis.WaveformPyramid;
+
+/**
+ * Service class for computing waveforms off the JavaFX application thread.
+ *
+ * @author Daniel Toffetti
+ */
+public class WaveformService {
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "euphory-waveform");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AnalysisCache cache;
+
+    public WaveformService() {
+        this(AnalysisCache.getDefault());
+    }
+
+    public WaveformService(AnalysisCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Starts analyzing a media file, or loading its waveform from the
+     * analysis cache. The task value is updated on the JavaFX application
+     * thread with every new snapshot, so a listener on it can draw the
+     * waveform while it grows.
+     *
+     * @param file            The file to analyze.
+     * @param durationSeconds The media duration used to report progress, 0 if unknown.
+     * @return The running task, its final value must be closed when no longer shown.
+     */
+    public Task<WaveformPyramid> analyze(File file, double durationSeconds) {
+        WaveformTask task = new WaveformTask(file, durationSeconds, cache);
+        EXECUTOR.execute(task);
+        return task;
+    }
+
+    /**
+     * Starts loading the cached waveform of a media file, never analyzing it.
+     *
+     * @param file The media file.
+     * @return The running task, its value is null if nothing is cached.
+     */
+    public Task<WaveformPyramid> loadCached(File file) {
+        Task<WaveformPyramid> task = new Task<>() {
+            @Override
+            protected WaveformPyramid call() throws Exception {
+                return cache.loadWaveform(CacheKey.of(file.toPath()));
+            }
+        };
+        EXECUTOR.execute(task);
+        return task;
+    }
+
+    /**
+     * Opens the decoded samples of a media file on the calling thread, for
+     * the analyses that read them instead of decoding windows of the file.
+     *
+     * @param file       The media file.
+     * @param sampleRate The sample rate of the samples.
+     * @param cancelled  Tells whether the analysis waiting for them was cancelled.
+     * @return The samples, to be closed by the caller, or null if they cannot be decoded or stored.
+     * @throws InterruptedIOException If the analysis was cancelled while they were decoded.
+     */
+    static DecodedPcm openSamplesQuietly(File file, int sampleRate, BooleanSupplier cancelled) throws InterruptedIOException {
+        try {
+            return PcmCache.getDefault().open(file, sampleRate, new PcmCache.DecodeListener() {
+                @Override
+                public boolean isCancelled() {
+                    return cancelled.getAsBoolean();
+                }
+            });
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            // The analysis then decodes the windows it needs itself
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static final class WaveformTask extends Task<WaveformPyramid> {
+
+        private final File file;
+        private final double durationSeconds;
+        private final AnalysisCache cache;
+        private final WaveformAnalyzer analyzer = new WaveformAnalyzer();
+
+        private WaveformTask(File file, double durationSeconds, AnalysisCache cache) {
+            this.file = file;
+            this.durationSeconds = durationSeconds;
+            this.cache = cache;
+        }
+
+        @Override
+        protected WaveformPyramid call() throws Exception {
+            CacheKey key = CacheKey.of(file.toPath());
+            WaveformPyramid cached = cache.loadWaveform(key);
+            if (cached != null) {
+                return cached;
+            }
+            updateMessage("Analyzing " + file.getName());
+            WaveformPyramid pyramid = analyzer.analyze(file, snapshot -> {
+                updateValue(snapshot);
+                if (durationSeconds > 0) {
+                    updateProgress(Math.min(snapshot.getSampleCount(), durationSeconds * snapshot.getSampleRate()),
+                            durationSeconds * snapshot.getSampleRate());
+                }
+            });
+            try {
+                cache.storeWaveform(key, pyramid);
+            } catch (IOException e) {
+                // The waveform is still good, it will just be computed again next time
+                e.printStackTrace();
+            }
+            return pyramid;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            analyzer.cancel();
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+    }
+
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.tags;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * A chapter as stored in a media file, independent of the tag format.
+ */
+public final class Chapter {
+
+    private final long startMillis;
+    private final long endMillis;
+    private final String artist;
+    private final String title;
+
+    /**
+     * Constructs a new Chapter.
+     *
+     * @param startMillis The start time in milliseconds.
+     * @param endMillis   The end time in milliseconds.
+     * @param artist      The artist, may be null.
+     * @param title       The title, may be null.
+     */
+    public Chapter(long startMillis, long endMillis, String artist, String title) {
+        this.startMillis = startMillis;
+        this.endMillis = endMillis;
+        this.artist = artist;
+        this.title = title;
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public long getEndMillis() {
+        return endMillis;
+    }
+
+    public String getArtist() {
+        return artist;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    @Override
+    public String toString() {
+        return startMillis + "-" + endMillis + " " + artist + " - " + title;
+    }
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.tags;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Where the cover image of a media file is. The image bytes are usually
+ * located by their offset in the file, so they can be streamed to a decoder
+ * without reading the tag around them. Covers stored in a form that has to
+ * be decoded first, like an unsynchronised ID3v2.3 tag, are held in memory.
+ */
+public final class CoverArt {
+
+    public static final String JPEG = "image/jpeg";
+    public static final String PNG = "image/png";
+
+    private final String mimeType;
+    private final long offset;
+    private final int length;
+    private final byte[] data;
+
+    /**
+     * Constructs a new CoverArt for an image stored as is in a file.
+     *
+     * @param mimeType The image type.
+     * @param offset   The offset of the image in the file.
+     * @param length   The image size.
+     */
+    public CoverArt(String mimeType, long offset, int length) {
+        this.mimeType = mimeType;
+        this.offset = offset;
+        this.length = length;
+        this.data = null;
+    }
+
+    /**
+     * Constructs a new CoverArt for an image held in memory.
+     *
+     * @param mimeType The image type.
+     * @param data     The image.
+     */
+    public CoverArt(String mimeType, byte[] data) {
+        this.mimeType = mimeType;
+        this.offset = -1;
+        this.length = data.length;
+        this.data = data;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * @return The offset of the image in the file, or -1 if it is in memory.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Opens the image for reading, straight from the file.
+     *
+     * @param file The media file the cover was found in.
+     * @return The stream, to be closed.
+     * @throws IOException If the file cannot be opened.
+     */
+    public InputStream openStream(Path file) throws IOException {
+        if (data != null) {
+            return new ByteArrayInputStream(data);
+        }
+        return new RegionInputStream(FileChannel.open(file, StandardOpenOption.READ), offset, length);
+    }
+
+    /**
+     * Reads the image.
+     *
+     * @param file The media file the cover was found in.
+     * @return The image bytes.
+     * @throws IOException If the file cannot be read.
+     */
+    public byte[] readBytes(Path file) throws IOException {
+        if (data != null) {
+            return data.clone();
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return TagFiles.readFully(channel, offset, length).array();
+        }
+    }
+
+    /**
+     * Tells the type of an image from its first bytes.
+     *
+     * @param image The image, or its first bytes.
+     * @return The type, JPEG if it is not a PNG.
+     */
+    public static String getMimeType(byte[] image) {
+        if (image.length >= 4 && (image[0] & 0xff) == 0x89 && image[1] == 'P' && image[2] == 'N' && image[3] == 'G') {
+            return PNG;
+        }
+        return JPEG;
+    }
+
+    @Override
+    public String toString() {
+        return "CoverArt [" + mimeType + ", " + length + " bytes" + (data == null ? " at " + offset : "") + "]";
+    }
+
+    /**
+     * A region of a file, read with positional reads.
+     */
+    private static final class RegionInputStream extends InputStream {
+
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        private RegionInputStream(FileChannel channel, long offset, int length) {
+            this.channel = channel;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int read = channel.read(ByteBuffer.wrap(bytes, offset, (int) Math.min(length, end - position)), position);
+            if (read < 0) {
+                return -1;
+            }
+            position += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.tags;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Converts chapters to and from ID3v2 'CHAP' frames and a top level 'CTOC'
+ * frame. A 'CTOC' lists at most 255 entries, so longer mixes get nested
+ * tables of 255 chapters each under the top level one. Chapter frames are
+ * kept at the end of the tag, the tables last, so editing a chapter leaves
+ * every frame before it untouched on disk.
+ */
+public final class ID3v2Chapters {
+
+    public static final String CHAP = "CHAP";
+    public static final String CTOC = "CTOC";
+
+    private static final String TOC_ELEMENT_ID = "toc";
+    private static final String CHAPTER_ELEMENT_ID = "chp";
+    private static final int CTOC_TOP_LEVEL = 0x02;
+    private static final int CTOC_ORDERED = 0x01;
+    private static final int MAX_CTOC_ENTRIES = 255;
+    private static final int NO_OFFSET = 0xffffffff;
+
+    private ID3v2Chapters() {
+    }
+
+    /**
+     * Reads the chapters of a tag, sorted by start time.
+     *
+     * @param tag The tag.
+     * @return The chapters, empty if there are none.
+     */
+    public static List<Chapter> getChapters(ID3v2Tag tag) {
+        List<Chapter> chapters = new ArrayList<>();
+        for (ID3v2Frame frame : tag.getFrames()) {
+            if (CHAP.equals(frame.getId())) {
+                Chapter chapter = decodeChapter(frame.getData(), tag.getVersion());
+                if (chapter != null) {
+                    chapters.add(chapter);
+                }
+            }
+        }
+        chapters.sort(Comparator.comparingLong(Chapter::getStartMillis));
+        return chapters;
+    }
+
+    /**
+     * Replaces the chapters of a tag. Frames for unchanged chapters come out
+     * byte for byte the same, so the writer can skip them.
+     *
+     * @param tag      The tag.
+     * @param chapters The chapters, in playing order.
+     */
+    public static void setChapters(ID3v2Tag tag, List<Chapter> chapters) {
+        tag.removeFrames(CHAP);
+        tag.removeFrames(CTOC);
+        if (chapters.isEmpty()) {
+            return;
+        }
+        List<String> elementIds = new ArrayList<>();
+        for (int i = 0; i < chapters.size(); i++) {
+            String elementId = CHAPTER_ELEMENT_ID + i;
+            elementIds.add(elementId);
+            tag.getFrames().add(new ID3v2Frame(CHAP, 0, encodeChapter(elementId, chapters.get(i), tag.getVersion())));
+        }
+        // Group the entries under nested tables until the top one can hold them
+        for (int depth = 0; elementIds.size() > MAX_CTOC_ENTRIES; depth++) {
+            List<String> tableIds = new ArrayList<>();
+            for (int from = 0; from < elementIds.size(); from += MAX_CTOC_ENTRIES) {
+                String tableId = TOC_ELEMENT_ID + depth + "_" + tableIds.size();
+                List<String> entries = elementIds.subList(from, Math.min(from + MAX_CTOC_ENTRIES, elementIds.size()));
+                tag.getFrames().add(new ID3v2Frame(CTOC, 0, encodeTableOfContents(tableId, CTOC_ORDERED, entries)));
+                tableIds.add(tableId);
+            }
+            elementIds = tableIds;
+        }
+        tag.getFrames().add(new ID3v2Frame(CTOC, 0,
+                encodeTableOfContents(TOC_ELEMENT_ID, CTOC_TOP_LEVEL | CTOC_ORDERED, elementIds)));
+    }
+
+    private static byte[] encodeChapter(String elementId, Chapter chapter, int version) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        writeTerminated(bos, elementId);
+        writeInt(bos, (int) chapter.getStartMillis());
+        writeInt(bos, (int) chapter.getEndMillis());
+        writeInt(bos, NO_OFFSET);
+        writeInt(bos, NO_OFFSET);
+        if (chapter.getTitle() != null && !chapter.getTitle().isEmpty()) {
+            byte[] frame = ID3v2Tag.toBytes(ID3v2Frame.text("TIT2", chapter.getTitle(), version), version);
+            bos.write(frame, 0, frame.length);
+        }
+        if (chapter.getArtist() != null && !chapter.getArtist().isEmpty()) {
+            byte[] frame = ID3v2Tag.toBytes(ID3v2Frame.text("TPE1", chapter.getArtist(), version), version);
+            bos.write(frame, 0, frame.length);
+        }
+        return bos.toByteArray();
+    }
+
+    private static byte[] encodeTableOfContents(String tableId, int flags, List<String> elementIds) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        writeTerminated(bos, tableId);
+        bos.write(flags);
+        bos.write(elementIds.size());
+        for (String elementId : elementIds) {
+            writeTerminated(bos, elementId);
+        }
+        return bos.toByteArray();
+    }
+
+    private static Chapter decodeChapter(byte[] data, int version) {
+        int position = 0;
+        while (position < data.length && data[position] != 0) {
+            position++;
+        }
+        position++;
+        if (data.length - position < 16) {
+            return null;
+        }
+        long start = ID3v2Tag.getInt(data, position) & 0xffffffffL;
+        long end = ID3v2Tag.getInt(data, position + 4) & 0xffffffffL;
+        position += 16;
+
+        String title = null;
+        String artist = null;
+        while (data.length - position >= ID3v2Tag.FRAME_HEADER_SIZE) {
+            String id = new String(data, position, 4, StandardCharsets.ISO_8859_1);
+            int size = version >= 4 ? ID3v2Tag.getSyncsafe(data, position + 4) : ID3v2Tag.getInt(data, position + 4);
+            int dataOffset = position + ID3v2Tag.FRAME_HEADER_SIZE;
+            if (size < 0 || size > data.length - dataOffset) {
+                break;
+            }
+            byte[] subData = new byte[size];
+            System.arraycopy(data, dataOffset, subData, 0, size);
+            String text = new ID3v2Frame(id, 0, subData).getText();
+            if ("TIT2".equals(id)) {
+                title = text;
+            } else if ("TPE1".equals(id)) {
+                artist = text;
+            }
+            position = dataOffset + size;
+        }
+        return new Chapter(start, end, artist, title);
+    }
+
+    private static void writeTerminated(ByteArrayOutputStream bos, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+        bos.write(bytes, 0, bytes.length);
+        bos.write(0);
+    }
+
+    private static void writeInt(ByteArrayOutputStream bos, int value) {
+        bos.write(value >>> 24);
+        bos.write(value >>> 16);
+        bos.write(value >>> 8);
+        bos.write(value);
+    }
+
+}
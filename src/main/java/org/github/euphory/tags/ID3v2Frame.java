@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.tags;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * A single ID3v2 frame. The data is kept decoded, without unsynchronisation
+ * or compression, so it can be written back with either tag version.
+ */
+public final class ID3v2Frame {
+
+    public static final int ENCODING_ISO_8859_1 = 0;
+    public static final int ENCODING_UTF_16 = 1;
+    public static final int ENCODING_UTF_16BE = 2;
+    public static final int ENCODING_UTF_8 = 3;
+
+    private final String id;
+    private final int flags;
+    private final byte[] data;
+
+    /**
+     * Constructs a new ID3v2Frame.
+     *
+     * @param id    The four character frame id.
+     * @param flags The frame flags. Format flags are only kept for frames that
+     *              could not be decoded, like encrypted ones.
+     * @param data  The frame data.
+     */
+    public ID3v2Frame(String id, int flags, byte[] data) {
+        this.id = id;
+        this.flags = flags;
+        this.data = data;
+    }
+
+    /**
+     * Creates a text frame, using UTF-8 for ID3v2.4 and ISO-8859-1 or UTF-16
+     * for ID3v2.3, which has no UTF-8.
+     *
+     * @param id      The frame id.
+     * @param value   The text.
+     * @param version The tag major version.
+     * @return The frame.
+     */
+    public static ID3v2Frame text(String id, String value, int version) {
+        int encoding;
+        if (version >= 4) {
+            encoding = ENCODING_UTF_8;
+        } else if (StandardCharsets.ISO_8859_1.newEncoder().canEncode(value)) {
+            encoding = ENCODING_ISO_8859_1;
+        } else {
+            encoding = ENCODING_UTF_16;
+        }
+        byte[] text = value.getBytes(getCharset(encoding));
+        byte[] data = new byte[text.length + 1];
+        data[0] = (byte) encoding;
+        System.arraycopy(text, 0, data, 1, text.length);
+        return new ID3v2Frame(id, 0, data);
+    }
+
+    /**
+     * Creates a front cover picture frame, without description.
+     *
+     * @param mimeType The image type.
+     * @param image    The image.
+     * @return The frame.
+     */
+    public static ID3v2Frame picture(String mimeType, byte[] image) {
+        byte[] mime = mimeType.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] data = new byte[mime.length + 4 + image.length];
+        data[0] = (byte) ENCODING_ISO_8859_1;
+        System.arraycopy(mime, 0, data, 1, mime.length);
+        data[mime.length + 2] = 3; // front cover, the description is empty
+        System.arraycopy(image, 0, data, mime.length + 4, image.length);
+        return new ID3v2Frame("APIC", 0, data);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Checks whether this is a text information frame, 'T' followed by three
+     * characters except user defined 'TXXX'.
+     *
+     * @return True for text frames.
+     */
+    public boolean isText() {
+        return id.charAt(0) == 'T' && !"TXXX".equals(id);
+    }
+
+    /**
+     * Decodes a text frame. Multiple values, separated by null characters in
+     * ID3v2.4, are joined with a slash as ID3v2.3 does.
+     *
+     * @return The text, or null if this is not a text frame.
+     */
+    public String getText() {
+        if (!isText() || data.length == 0) {
+            return null;
+        }
+        String text = decodeString(data, 1, data.length - 1, data[0]);
+        int end = text.length();
+        while (end > 0 && text.charAt(end - 1) == 0) {
+            end--;
+        }
+        return text.substring(0, end).replace('\u0000', '/');
+    }
+
+    /**
+     * Decodes a string in one of the ID3v2 text encodings.
+     *
+     * @param bytes    The bytes.
+     * @param offset   The first byte.
+     * @param length   The number of bytes.
+     * @param encoding The encoding byte.
+     * @return The string.
+     */
+    public static String decodeString(byte[] bytes, int offset, int length, int encoding) {
+        return new String(bytes, offset, length, getCharset(encoding));
+    }
+
+    /**
+     * Gets the charset for an ID3v2 text encoding byte.
+     *
+     * @param encoding The encoding byte.
+     * @return The charset, ISO-8859-1 for unknown values.
+     */
+    public static Charset getCharset(int encoding) {
+        switch (encoding) {
+            case ENCODING_UTF_16: return StandardCharsets.UTF_16;
+            case ENCODING_UTF_16BE: return StandardCharsets.UTF_16BE;
+            case ENCODING_UTF_8: return StandardCharsets.UTF_8;
+            default: return StandardCharsets.ISO_8859_1;
+        }
+    }
+
+    @Override
+    public String toString() {
+        String text = getText();
+        return id + (text != null ? ": " + text : "[" + data.length + "]");
+    }
+
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.tags;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * An ID3v2.3 or ID3v2.4 tag, its frames and where it sits in the file. The
+ * frames can be written back in either version, the tag keeps the version it
+ * was read with.
+ */
+public final class ID3v2Tag {
+
+    public static final int HEADER_SIZE = 10;
+    public static final int FRAME_HEADER_SIZE = 10;
+
+    private static final String[] KEYS = { "title", "artist", "album", "genre", "year", "track" };
+
+    private final int version;
+    private final long tagSize;
+    private long framesEnd;
+    private byte[] fileFrames;
+    private final List<ID3v2Frame> frames = new ArrayList<>();
+
+    /**
+     * Constructs a new ID3v2Tag.
+     *
+     * @param version The major version, 3 or 4.
+     * @param tagSize The size of the tag found in the file including header
+     *                and footer, or 0 if the file has no tag yet.
+     */
+    public ID3v2Tag(int version, long tagSize) {
+        if (version != 3 && version != 4) {
+            throw new IllegalArgumentException("Unsupported ID3v2 version: " + version);
+        }
+        this.version = version;
+        this.tagSize = tagSize;
+        this.framesEnd = tagSize;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Gets the size of the tag in the file, which is also where the audio
+     * starts.
+     *
+     * @return The tag size including header and footer, 0 if there is no tag.
+     */
+    public long getTagSize() {
+        return tagSize;
+    }
+
+    /**
+     * Gets the file offset where the frames read from the file end and the
+     * padding starts.
+     *
+     * @return The end of the frames.
+     */
+    public long getFramesEnd() {
+        return framesEnd;
+    }
+
+    void setFramesEnd(long framesEnd) {
+        this.framesEnd = framesEnd;
+    }
+
+    /**
+     * Gets the frames exactly as they are stored in the file, right after the
+     * header. Only known for tags without flags, where frames can be
+     * compared with the file and rewritten one by one.
+     *
+     * @return The stored frame bytes, or null if unknown.
+     */
+    byte[] getFileFrames() {
+        return fileFrames;
+    }
+
+    void setFileFrames(byte[] fileFrames) {
+        this.fileFrames = fileFrames;
+    }
+
+    public List<ID3v2Frame> getFrames() {
+        return frames;
+    }
+
+    /**
+     * Gets the first frame with the given id.
+     *
+     * @param id The frame id.
+     * @return The frame, or null if there is none.
+     */
+    public ID3v2Frame getFrame(String id) {
+        for (ID3v2Frame frame : frames) {
+            if (frame.getId().equals(id)) {
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the text of the first frame with the given id.
+     *
+     * @param id The frame id.
+     * @return The text, or null if there is no such text frame.
+     */
+    public String getText(String id) {
+        ID3v2Frame frame = getFrame(id);
+        return frame != null ? frame.getText() : null;
+    }
+
+    /**
+     * Replaces every frame with the given id by a single text frame, at the
+     * place of the first one so the frame order stays stable.
+     *
+     * @param id    The frame id.
+     * @param value The text, null or empty to remove the frames.
+     */
+    public void setText(String id, String value) {
+        int index = removeFrames(id);
+        if (value != null && !value.isEmpty()) {
+            frames.add(index, ID3v2Frame.text(id, value, version));
+        }
+    }
+
+    /**
+     * Removes every frame with the given id.
+     *
+     * @param id The frame id.
+     * @return The index of the first removed frame, or the frame count if none was found.
+     */
+    public int removeFrames(String id) {
+        int index = -1;
+        for (int i = frames.size() - 1; i >= 0; i--) {
+            if (frames.get(i).getId().equals(id)) {
+                frames.remove(i);
+                index = i;
+            }
+        }
+        return index >= 0 ? index : frames.size();
+    }
+
+    /**
+     * Gets the tags with a known frame, keyed by the names MP4Tag uses.
+     *
+     * @return The tags.
+     */
+    public Map<String, String> getTags() {
+        Map<String, String> tags = new HashMap<>();
+        for (String key : KEYS) {
+            String value = getText(getFrameId(key, version));
+            if (value == null && "year".equals(key)) {
+                value = getText(version >= 4 ? "TYER" : "TDRC");
+            }
+            if (value != null) {
+                tags.put(key, value);
+            }
+        }
+        return tags;
+    }
+
+    /**
+     * Sets the tags with a known frame. Known tags missing from the map are
+     * removed, frames without a key are kept.
+     *
+     * @param tags The tags.
+     */
+    public void setTags(Map<String, String> tags) {
+        for (String key : KEYS) {
+            if ("year".equals(key)) {
+                removeFrames(version >= 4 ? "TYER" : "TDRC");
+            }
+            setText(getFrameId(key, version), tags.get(key));
+        }
+    }
+
+    /**
+     * Gets the frame id for a tag name.
+     *
+     * @param key     The tag name.
+     * @param version The tag major version.
+     * @return The frame id, or null for unknown names.
+     */
+    public static String getFrameId(String key, int version) {
+        switch (key) {
+            case "title": return "TIT2";
+            case "artist": return "TPE1";
+            case "album": return "TALB";
+            case "genre": return "TCON";
+            case "year": return version >= 4 ? "TDRC" : "TYER";
+            case "track": return "TRCK";
+            default: return null;
+        }
+    }
+
+    /**
+     * Serializes the frames, without header or padding and without any
+     * unsynchronisation.
+     *
+     * @return The frame bytes.
+     */
+    public byte[] toBytes() {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        for (ID3v2Frame frame : frames) {
+            byte[] frameBytes = toBytes(frame, version);
+            bos.write(frameBytes, 0, frameBytes.length);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Serializes a single frame with its header.
+     *
+     * @param frame   The frame.
+     * @param version The tag major version.
+     * @return The frame bytes.
+     */
+    public static byte[] toBytes(ID3v2Frame frame, int version) {
+        byte[] data = frame.getData();
+        byte[] bytes = new byte[FRAME_HEADER_SIZE + data.length];
+        byte[] id = frame.getId().getBytes(StandardCharsets.ISO_8859_1);
+        System.arraycopy(id, 0, bytes, 0, 4);
+        if (version >= 4) {
+            putSyncsafe(bytes, 4, data.length);
+        } else {
+            putInt(bytes, 4, data.length);
+        }
+        bytes[8] = (byte) (frame.getFlags() >> 8);
+        bytes[9] = (byte) frame.getFlags();
+        System.arraycopy(data, 0, bytes, FRAME_HEADER_SIZE, data.length);
+        return bytes;
+    }
+
+    /**
+     * Builds a tag header without flags.
+     *
+     * @param size The tag size excluding the header.
+     * @return The header bytes.
+     */
+    byte[] toHeaderBytes(int size) {
+        byte[] header = { 'I', 'D', '3', (byte) version, 0, 0, 0, 0, 0, 0 };
+        putSyncsafe(header, 6, size);
+        return header;
+    }
+
+    static int getSyncsafe(byte[] bytes, int offset) {
+        return (bytes[offset] & 0x7f) << 21 | (bytes[offset + 1] & 0x7f) << 14
+                | (bytes[offset + 2] & 0x7f) << 7 | (bytes[offset + 3] & 0x7f);
+    }
+
+    static void putSyncsafe(byte[] bytes, int offset, int value) {
+        if (value >= 1 << 28) {
+            throw new IllegalArgumentException("Value too big for a syncsafe integer: " + value);
+        }
+        bytes[offset] = (byte) ((value >> 21) & 0x7f);
+        bytes[offset + 1] = (byte) ((value >> 14) & 0x7f);
+        bytes[offset + 2] = (byte) ((value >> 7) & 0x7f);
+        bytes[offset + 3] = (byte) (value & 0x7f);
+    }
+
+    static int getInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16
+                | (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+    }
+
+    static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >> 24);
+        bytes[offset + 1] = (byte) (value >> 16);
+        bytes[offset + 2] = (byte) (value >> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("ID3v2.").append(version).append(" (").append(tagSize).append(" bytes)\n");
+        for (ID3v2Frame frame : frames) {
+            sb.append("  ").append(frame).append("\n");
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,491 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.tags;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Reads ID3v2.3 and ID3v2.4 tags. Only the tag header and the declared tag
+ * size are read, the audio frames after it are never touched.
+ */
+public final class ID3v2TagManager {
+
+    private static final int FLAG_UNSYNCHRONISATION = 0x80;
+    private static final int FLAG_EXTENDED_HEADER = 0x40;
+    private static final int FLAG_FOOTER = 0x10;
+    private static final int FOOTER_SIZE = 10;
+
+    // ID3v2.4 frame format flags
+    private static final int V4_GROUPING = 0x40;
+    private static final int V4_COMPRESSION = 0x08;
+    private static final int V4_ENCRYPTION = 0x04;
+    private static final int V4_UNSYNCHRONISATION = 0x02;
+    private static final int V4_DATA_LENGTH = 0x01;
+
+    // ID3v2.3 frame format flags
+    private static final int V3_COMPRESSION = 0x80;
+    private static final int V3_ENCRYPTION = 0x40;
+    private static final int V3_GROUPING = 0x20;
+
+    private static final String PICTURE = "APIC";
+    private static final int FRONT_COVER = 3;
+
+    /**
+     * The most bytes read ahead of a picture to get past its type and
+     * description.
+     */
+    private static final int MAX_PICTURE_HEADER = 1024;
+
+    private ID3v2TagManager() {
+    }
+
+    /**
+     * Reads the known tags of an MP3 file.
+     *
+     * @param file The file to read.
+     * @return The tags found, empty if the file has no ID3v2 tag.
+     * @throws IOException If the tag cannot be read.
+     */
+    public static Map<String, String> readID3v2Tag(RandomAccessFile file) throws IOException {
+        ID3v2Tag tag = readTag(file.getChannel());
+        return tag != null ? tag.getTags() : new HashMap<>();
+    }
+
+    /**
+     * Writes the known tags to an MP3 file, reusing the tag padding when the
+     * new frames fit.
+     *
+     * @param file The file to write.
+     * @param tags The tags to write.
+     * @throws IOException If the file cannot be written.
+     * @see ID3v2TagWriter
+     */
+    public static void writeID3v2Tag(Path file, Map<String, String> tags) throws IOException {
+        new ID3v2TagWriter().write(file, tags);
+    }
+
+    /**
+     * Reads the chapters of an MP3 file.
+     *
+     * @param file The file to read.
+     * @return The chapters, sorted by start time.
+     * @throws IOException If the tag cannot be read.
+     */
+    public static List<Chapter> readChapters(RandomAccessFile file) throws IOException {
+        ID3v2Tag tag = readTag(file.getChannel());
+        return tag != null ? ID3v2Chapters.getChapters(tag) : new ArrayList<>();
+    }
+
+    /**
+     * Writes the chapters of an MP3 file. Only the chapter frames that
+     * changed are written when the tag padding allows it.
+     *
+     * @param file     The file to write.
+     * @param chapters The chapters, in playing order.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void writeChapters(Path file, List<Chapter> chapters) throws IOException {
+        new ID3v2TagWriter().writeChapters(file, chapters);
+    }
+
+    /**
+     * Finds the cover of an MP3 file, the front cover if it has several
+     * pictures. Only the frame headers are read, the image is located by its
+     * offset. Pictures that are compressed or unsynchronised are decoded from
+     * the whole tag instead.
+     *
+     * @param channel The channel to read from, its position is never changed.
+     * @return The cover, or null if the file has none.
+     * @throws IOException If the tag cannot be read.
+     */
+    public static CoverArt findCover(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < ID3v2Tag.HEADER_SIZE) {
+            return null;
+        }
+        byte[] header = TagFiles.readFully(channel, 0, ID3v2Tag.HEADER_SIZE).array();
+        if (header[0] != 'I' || header[1] != 'D' || header[2] != '3') {
+            return null;
+        }
+        int version = header[3];
+        int flags = header[5] & 0xff;
+        if (version != 3 && version != 4) {
+            return null;
+        }
+        if ((flags & FLAG_UNSYNCHRONISATION) != 0) {
+            return findDecodedCover(channel);
+        }
+        long end = Math.min(ID3v2Tag.HEADER_SIZE + (long) ID3v2Tag.getSyncsafe(header, 6), fileSize);
+        long position = ID3v2Tag.HEADER_SIZE;
+        if ((flags & FLAG_EXTENDED_HEADER) != 0 && end - position >= 4) {
+            byte[] extended = TagFiles.readFully(channel, position, 4).array();
+            position += version == 3 ? 4 + ID3v2Tag.getInt(extended, 0) : ID3v2Tag.getSyncsafe(extended, 0);
+        }
+
+        CoverArt cover = null;
+        while (end - position >= ID3v2Tag.FRAME_HEADER_SIZE) {
+            byte[] frameHeader = TagFiles.readFully(channel, position, ID3v2Tag.FRAME_HEADER_SIZE).array();
+            if (!isFrameId(frameHeader, 0)) {
+                break;
+            }
+            int frameSize = version == 3 ? ID3v2Tag.getInt(frameHeader, 4) : getFrameSize(channel, frameHeader, position, end);
+            long dataOffset = position + ID3v2Tag.FRAME_HEADER_SIZE;
+            if (frameSize < 0 || frameSize > end - dataOffset) {
+                break;
+            }
+            if (PICTURE.equals(new String(frameHeader, 0, 4, StandardCharsets.ISO_8859_1))) {
+                int format = frameHeader[9] & 0xff;
+                int skip;
+                if (version >= 4) {
+                    if ((format & (V4_COMPRESSION | V4_ENCRYPTION | V4_UNSYNCHRONISATION)) != 0) {
+                        return findDecodedCover(channel);
+                    }
+                    skip = ((format & V4_GROUPING) != 0 ? 1 : 0) + ((format & V4_DATA_LENGTH) != 0 ? 4 : 0);
+                } else {
+                    if ((format & (V3_COMPRESSION | V3_ENCRYPTION)) != 0) {
+                        return findDecodedCover(channel);
+                    }
+                    skip = (format & V3_GROUPING) != 0 ? 1 : 0;
+                }
+                int length = frameSize - skip;
+                byte[] data = length > 0 ? TagFiles.readFully(channel, dataOffset + skip, Math.min(length, MAX_PICTURE_HEADER)).array()
+                        : new byte[0];
+                int start = getPictureStart(data);
+                if (start < 0 && length > data.length) {
+                    // A description longer than expected
+                    return findDecodedCover(channel);
+                }
+                if (start >= 0 && start < length) {
+                    CoverArt picture = new CoverArt(getPictureMimeType(data), dataOffset + skip + start, length - start);
+                    if (getPictureType(data) == FRONT_COVER) {
+                        return picture;
+                    }
+                    if (cover == null) {
+                        cover = picture;
+                    }
+                }
+            }
+            position = dataOffset + frameSize;
+        }
+        return cover;
+    }
+
+    /**
+     * Finds the cover in the decoded frames of the whole tag.
+     */
+    private static CoverArt findDecodedCover(FileChannel channel) throws IOException {
+        ID3v2Tag tag = readTag(channel);
+        int index = tag != null ? getCoverIndex(tag.getFrames()) : -1;
+        if (index < 0) {
+            return null;
+        }
+        byte[] data = tag.getFrames().get(index).getData();
+        int start = getPictureStart(data);
+        return new CoverArt(getPictureMimeType(data), Arrays.copyOfRange(data, start, data.length));
+    }
+
+    /**
+     * Gets the index of the cover among the frames of a tag: the front cover,
+     * or else the first readable picture.
+     *
+     * @return The index, or -1 if there is no picture.
+     */
+    static int getCoverIndex(List<ID3v2Frame> frames) {
+        int first = -1;
+        for (int i = 0; i < frames.size(); i++) {
+            ID3v2Frame frame = frames.get(i);
+            if (!PICTURE.equals(frame.getId()) || (frame.getFlags() & 0xff) != 0 || getPictureStart(frame.getData()) < 0) {
+                continue;
+            }
+            if (getPictureType(frame.getData()) == FRONT_COVER) {
+                return i;
+            }
+            if (first < 0) {
+                first = i;
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Gets where the image starts in a picture frame: after the text
+     * encoding, the MIME type, the picture type and the description.
+     *
+     * @param data The frame data, or its first bytes.
+     * @return The offset of the image, or -1 if it is not in the bytes given.
+     */
+    private static int getPictureStart(byte[] data) {
+        int mimeEnd = indexOfZero(data, 1, 1);
+        if (data.length == 0 || mimeEnd < 0 || mimeEnd + 2 > data.length) {
+            return -1;
+        }
+        // UTF-16 descriptions end with two zero bytes
+        int width = data[0] == ID3v2Frame.ENCODING_UTF_16 || data[0] == ID3v2Frame.ENCODING_UTF_16BE ? 2 : 1;
+        int descriptionEnd = indexOfZero(data, mimeEnd + 2, width);
+        return descriptionEnd < 0 ? -1 : descriptionEnd + width;
+    }
+
+    private static int getPictureType(byte[] data) {
+        int mimeEnd = indexOfZero(data, 1, 1);
+        return mimeEnd >= 0 && mimeEnd + 1 < data.length ? data[mimeEnd + 1] & 0xff : -1;
+    }
+
+    private static String getPictureMimeType(byte[] data) {
+        int mimeEnd = indexOfZero(data, 1, 1);
+        String mimeType = new String(data, 1, mimeEnd - 1, StandardCharsets.ISO_8859_1).toLowerCase(Locale.ROOT);
+        return mimeType.endsWith("png") ? CoverArt.PNG : CoverArt.JPEG;
+    }
+
+    private static int indexOfZero(byte[] data, int from, int width) {
+        for (int i = from; i + width <= data.length; i += width) {
+            if (data[i] == 0 && (width == 1 || data[i + 1] == 0)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writes the cover of an MP3 file, replacing the picture
+     * {@link #findCover} finds, in place when the tag padding allows it.
+     *
+     * @param file  The file to write.
+     * @param image The image, JPEG or PNG, or null to remove the cover.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void writeCover(Path file, byte[] image) throws IOException {
+        new ID3v2TagWriter().writeCover(file, image);
+    }
+
+    /**
+     * Reads the ID3v2 tag at the start of a file. Tags with an older or newer
+     * major version are reported with their size but without frames, so a
+     * write replaces them.
+     *
+     * @param channel The channel to read from, its position is never changed.
+     * @return The tag, or null if the file has no ID3v2 tag.
+     * @throws IOException If the tag is truncated or cannot be read.
+     */
+    public static ID3v2Tag readTag(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < ID3v2Tag.HEADER_SIZE) {
+            return null;
+        }
+        byte[] header = TagFiles.readFully(channel, 0, ID3v2Tag.HEADER_SIZE).array();
+        if (header[0] != 'I' || header[1] != 'D' || header[2] != '3') {
+            return null;
+        }
+        int version = header[3];
+        int flags = header[5] & 0xff;
+        int size = ID3v2Tag.getSyncsafe(header, 6);
+        boolean footer = version >= 4 && (flags & FLAG_FOOTER) != 0;
+        if (ID3v2Tag.HEADER_SIZE + (long) size > fileSize) {
+            throw new EOFException("Truncated ID3v2 tag, " + size + " bytes declared");
+        }
+        long tagSize = ID3v2Tag.HEADER_SIZE + size + (footer ? FOOTER_SIZE : 0);
+        if (version != 3 && version != 4) {
+            return new ID3v2Tag(4, tagSize);
+        }
+        ID3v2Tag tag = new ID3v2Tag(version, tagSize);
+
+        byte[] body = TagFiles.readFully(channel, ID3v2Tag.HEADER_SIZE, size).array();
+        boolean unsynchronised = (flags & FLAG_UNSYNCHRONISATION) != 0;
+        int length = size;
+        if (unsynchronised && version == 3) {
+            // ID3v2.3 unsynchronises the whole tag, ID3v2.4 each frame
+            length = removeUnsynchronisation(body, 0, size);
+        }
+
+        int position = 0;
+        if ((flags & FLAG_EXTENDED_HEADER) != 0 && length >= 4) {
+            position = version == 3 ? 4 + ID3v2Tag.getInt(body, 0) : ID3v2Tag.getSyncsafe(body, 0);
+        }
+        while (position >= 0 && length - position >= ID3v2Tag.FRAME_HEADER_SIZE && isFrameId(body, position)) {
+            String id = new String(body, position, 4, StandardCharsets.ISO_8859_1);
+            int frameSize = version == 3 ? ID3v2Tag.getInt(body, position + 4) : getFrameSize(body, position, length);
+            int frameFlags = (body[position + 8] & 0xff) << 8 | (body[position + 9] & 0xff);
+            int dataOffset = position + ID3v2Tag.FRAME_HEADER_SIZE;
+            if (frameSize < 0 || frameSize > length - dataOffset) {
+                break;
+            }
+            tag.getFrames().add(decodeFrame(id, frameFlags, body, dataOffset, frameSize, version, unsynchronised));
+            position = dataOffset + frameSize;
+        }
+
+        // After a whole tag unsynchronisation file offsets are lost, so all of it counts as frames
+        boolean exact = !(unsynchronised && version == 3) && !footer;
+        tag.setFramesEnd(exact ? ID3v2Tag.HEADER_SIZE + Math.max(position, 0) : tagSize);
+        if (flags == 0 && position > 0) {
+            tag.setFileFrames(Arrays.copyOf(body, position));
+        }
+        return tag;
+    }
+
+    /**
+     * Decodes the frame data, removing unsynchronisation and compression.
+     * Encrypted frames and frames that fail to decompress are kept as they
+     * are, with their format flags.
+     */
+    private static ID3v2Frame decodeFrame(String id, int flags, byte[] body, int offset, int size,
+                                          int version, boolean unsynchronised) {
+        int format = flags & 0xff;
+        int start = offset;
+        int end = offset + size;
+        boolean compressed;
+        if (version >= 4) {
+            if ((format & V4_ENCRYPTION) != 0) {
+                return new ID3v2Frame(id, flags, Arrays.copyOfRange(body, start, end));
+            }
+            start += (format & V4_GROUPING) != 0 ? 1 : 0;
+            start += (format & V4_DATA_LENGTH) != 0 ? 4 : 0;
+            compressed = (format & V4_COMPRESSION) != 0;
+        } else {
+            if ((format & V3_ENCRYPTION) != 0) {
+                return new ID3v2Frame(id, flags, Arrays.copyOfRange(body, start, end));
+            }
+            start += (format & V3_COMPRESSION) != 0 ? 4 : 0;
+            start += (format & V3_GROUPING) != 0 ? 1 : 0;
+            compressed = (format & V3_COMPRESSION) != 0;
+        }
+        if (start > end) {
+            return new ID3v2Frame(id, flags, Arrays.copyOfRange(body, offset, end));
+        }
+        byte[] data = Arrays.copyOfRange(body, start, end);
+        if (version >= 4 && (unsynchronised || (format & V4_UNSYNCHRONISATION) != 0)) {
+            data = Arrays.copyOf(data, removeUnsynchronisation(data, 0, data.length));
+        }
+        if (compressed) {
+            try {
+                data = inflate(data);
+            } catch (DataFormatException e) {
+                return new ID3v2Frame(id, flags, Arrays.copyOfRange(body, offset, end));
+            }
+        }
+        return new ID3v2Frame(id, flags & 0xff00, data);
+    }
+
+    /**
+     * Reads an ID3v2.4 frame size. iTunes used to write plain integers
+     * instead of syncsafe ones, which is detected by checking which of the two
+     * sizes leads to another frame or to the padding.
+     */
+    private static int getFrameSize(byte[] body, int position, int length) {
+        int plain = ID3v2Tag.getInt(body, position + 4);
+        if ((plain & 0x80808080) != 0) {
+            return plain;
+        }
+        int syncsafe = ID3v2Tag.getSyncsafe(body, position + 4);
+        if (plain == syncsafe || isFrameEnd(body, position + ID3v2Tag.FRAME_HEADER_SIZE + syncsafe, length)) {
+            return syncsafe;
+        }
+        return isFrameEnd(body, position + ID3v2Tag.FRAME_HEADER_SIZE + plain, length) ? plain : syncsafe;
+    }
+
+    /**
+     * Reads an ID3v2.4 frame size like {@link #getFrameSize(byte[], int, int)},
+     * looking at what follows the frame in the file.
+     */
+    private static int getFrameSize(FileChannel channel, byte[] frameHeader, long position, long end) throws IOException {
+        int plain = ID3v2Tag.getInt(frameHeader, 4);
+        if ((plain & 0x80808080) != 0) {
+            return plain;
+        }
+        int syncsafe = ID3v2Tag.getSyncsafe(frameHeader, 4);
+        if (plain == syncsafe || isFrameEnd(channel, position + ID3v2Tag.FRAME_HEADER_SIZE + syncsafe, end)) {
+            return syncsafe;
+        }
+        return isFrameEnd(channel, position + ID3v2Tag.FRAME_HEADER_SIZE + plain, end) ? plain : syncsafe;
+    }
+
+    private static boolean isFrameEnd(FileChannel channel, long position, long end) throws IOException {
+        if (position == end) {
+            return true;
+        }
+        if (position > end) {
+            return false;
+        }
+        byte[] next = TagFiles.readFully(channel, position, (int) Math.min(4, end - position)).array();
+        return next[0] == 0 || (next.length == 4 && isFrameId(next, 0));
+    }
+
+    private static boolean isFrameEnd(byte[] body, int position, int length) {
+        return position == length || (position < length && (body[position] == 0 ||
+                (length - position >= 4 && isFrameId(body, position))));
+    }
+
+    private static boolean isFrameId(byte[] body, int position) {
+        for (int i = position; i < position + 4; i++) {
+            byte b = body[i];
+            if (!((b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes unsynchronisation in place, every 0xff 0x00 pair becomes 0xff.
+     *
+     * @return The new length.
+     */
+    static int removeUnsynchronisation(byte[] bytes, int offset, int length) {
+        int out = offset;
+        int end = offset + length;
+        for (int in = offset; in < end; in++) {
+            bytes[out++] = bytes[in];
+            if (bytes[in] == (byte) 0xff && in + 1 < end && bytes[in + 1] == 0) {
+                in++;
+            }
+        }
+        return out - offset;
+    }
+
+    private static byte[] inflate(byte[] data) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteBuffer out = ByteBuffer.allocate(Math.max(64, data.length * 4));
+            byte[] chunk = new byte[4096];
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(chunk);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated compressed frame");
+                }
+                if (out.remaining() < inflated) {
+                    ByteBuffer bigger = ByteBuffer.allocate(out.capacity() * 2 + inflated);
+                    out.flip();
+                    bigger.put(out);
+                    out = bigger;
+                }
+                out.put(chunk, 0, inflated);
+            }
+            return Arrays.copyOf(out.array(), out.position());
+        } finally {
+            inflater.end();
+        }
+    }
+
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.tags;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Writes ID3v2 tags. When the new frames fit in the space of the old tag they
+ * are written in place and the rest becomes padding, otherwise the file is
+ * copied once behind a bigger tag with fresh padding.
+ */
+public final class ID3v2TagWriter {
+
+    /**
+     * The padding reserved when the tag has to grow.
+     */
+    public static final int DEFAULT_PADDING = 4096;
+
+    private final int padding;
+
+    /**
+     * Constructs a new ID3v2TagWriter reserving the default padding.
+     */
+    public ID3v2TagWriter() {
+        this(DEFAULT_PADDING);
+    }
+
+    /**
+     * Constructs a new ID3v2TagWriter.
+     *
+     * @param padding The padding to reserve when the tag has to grow.
+     */
+    public ID3v2TagWriter(int padding) {
+        if (padding < 0) {
+            throw new IllegalArgumentException("Padding must not be negative: " + padding);
+        }
+        this.padding = padding;
+    }
+
+    public int getPadding() {
+        return padding;
+    }
+
+    /**
+     * Writes the known tags, keeping every other frame of the existing tag.
+     *
+     * @param path The file to write.
+     * @param tags The tags to write.
+     * @throws IOException If the file cannot be written.
+     */
+    public void write(Path path, Map<String, String> tags) throws IOException {
+        ID3v2Tag tag = readOrCreate(path);
+        tag.setTags(tags);
+        write(path, tag);
+    }
+
+    /**
+     * Writes the chapters, keeping every other frame of the existing tag.
+     *
+     * @param path     The file to write.
+     * @param chapters The chapters, in playing order.
+     * @throws IOException If the file cannot be written.
+     */
+    public void writeChapters(Path path, List<Chapter> chapters) throws IOException {
+        ID3v2Tag tag = readOrCreate(path);
+        ID3v2Chapters.setChapters(tag, chapters);
+        write(path, tag);
+    }
+
+    /**
+     * Writes the cover, replacing the front cover or else the first picture,
+     * keeping every other frame of the existing tag.
+     *
+     * @param path  The file to write.
+     * @param image The image, or null to remove the cover.
+     * @throws IOException If the file cannot be written.
+     */
+    public void writeCover(Path path, byte[] image) throws IOException {
+        ID3v2Tag tag = readOrCreate(path);
+        List<ID3v2Frame> frames = tag.getFrames();
+        int index = ID3v2TagManager.getCoverIndex(frames);
+        if (index >= 0) {
+            frames.remove(index);
+        } else {
+            index = frames.size();
+        }
+        if (image != null) {
+            frames.add(index, ID3v2Frame.picture(CoverArt.getMimeType(image), image));
+        }
+        write(path, tag);
+    }
+
+    private static ID3v2Tag readOrCreate(Path path) throws IOException {
+        ID3v2Tag tag;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            tag = ID3v2TagManager.readTag(channel);
+        }
+        return tag != null ? tag : new ID3v2Tag(4, 0);
+    }
+
+    /**
+     * Writes a tag in place of the one it was read from.
+     *
+     * @param path The file to write.
+     * @param tag  The tag to write.
+     * @throws IOException If the file cannot be written.
+     */
+    public void write(Path path, ID3v2Tag tag) throws IOException {
+        byte[] frames = tag.toBytes();
+        Path copy;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long tagSize = tag.getTagSize();
+            if (tagSize > 0 && ID3v2Tag.HEADER_SIZE + frames.length <= tagSize && tag.getFileFrames() != null) {
+                writeChangedFrames(channel, tag);
+                return;
+            }
+            if (tagSize > 0 && ID3v2Tag.HEADER_SIZE + frames.length <= tagSize) {
+                // Old padding is already zeroed, only the old frames have to be cleared
+                long clearEnd = Math.max(tag.getFramesEnd(), ID3v2Tag.HEADER_SIZE + frames.length);
+                ByteBuffer buffer = ByteBuffer.allocate((int) clearEnd);
+                buffer.put(tag.toHeaderBytes((int) (tagSize - ID3v2Tag.HEADER_SIZE)));
+                buffer.put(frames);
+                buffer.position(0);
+                TagFiles.writeFully(channel, buffer, 0);
+                return;
+            }
+
+            copy = TagFiles.createCopy(path);
+            try (FileChannel out = TagFiles.openCopy(copy)) {
+                ByteBuffer buffer = ByteBuffer.allocate(ID3v2Tag.HEADER_SIZE + frames.length + padding);
+                buffer.put(tag.toHeaderBytes(frames.length + padding));
+                buffer.put(frames);
+                buffer.position(0);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                TagFiles.transfer(channel, tagSize, channel.size() - tagSize, out);
+                out.force(true);
+            } catch (IOException e) {
+                Files.deleteIfExists(copy);
+                throw e;
+            }
+        }
+        TagFiles.replaceFile(copy, path);
+    }
+
+    /**
+     * Writes only the frames that differ from what is stored at their
+     * position, then clears what is left of the old frames. Neighbouring
+     * changed frames are written together.
+     */
+    private static void writeChangedFrames(FileChannel channel, ID3v2Tag tag) throws IOException {
+        byte[] stored = tag.getFileFrames();
+        ByteArrayOutputStream run = new ByteArrayOutputStream();
+        int runStart = 0;
+        int position = 0;
+        for (ID3v2Frame frame : tag.getFrames()) {
+            byte[] bytes = ID3v2Tag.toBytes(frame, tag.getVersion());
+            if (isStored(stored, position, bytes)) {
+                flush(channel, run, runStart);
+            } else {
+                if (run.size() == 0) {
+                    runStart = position;
+                }
+                run.write(bytes, 0, bytes.length);
+            }
+            position += bytes.length;
+        }
+        if (position < stored.length) {
+            if (run.size() == 0) {
+                runStart = position;
+            }
+            run.write(new byte[stored.length - position], 0, stored.length - position);
+        }
+        flush(channel, run, runStart);
+    }
+
+    private static boolean isStored(byte[] stored, int position, byte[] bytes) {
+        if (position + bytes.length > stored.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (stored[position + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void flush(FileChannel channel, ByteArrayOutputStream run, int runStart) throws IOException {
+        if (run.size() > 0) {
+            TagFiles.writeFully(channel, ByteBuffer.wrap(run.toByteArray()), ID3v2Tag.HEADER_SIZE + runStart);
+            run.reset();
+        }
+    }
+
+}
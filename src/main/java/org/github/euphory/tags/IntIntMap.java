@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.tags;
+
+import java.util.Arrays;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * An open addressing map from any int, like a fourcc, to a non-negative int,
+ * like an offset. Clearing keeps the arrays, so a map reused for every file
+ * stops allocating once it has grown to the biggest tag.
+ */
+final class IntIntMap {
+
+    private int[] keys = new int[32];
+    private int[] values = new int[32];
+    private int size;
+
+    IntIntMap() {
+        Arrays.fill(values, -1);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return The value of the key, or -1 if there is none.
+     */
+    int get(int key) {
+        int mask = keys.length - 1;
+        for (int slot = mix(key) & mask;; slot = (slot + 1) & mask) {
+            if (values[slot] < 0 || keys[slot] == key) {
+                return values[slot];
+            }
+        }
+    }
+
+    /**
+     * Sets the value of a key, replacing the one it had.
+     *
+     * @param value The value, not negative.
+     */
+    void put(int key, int value) {
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (values[slot] >= 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        if (values[slot] < 0) {
+            size++;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (size * 2 > keys.length) {
+            grow();
+        }
+    }
+
+    void clear() {
+        if (size > 0) {
+            Arrays.fill(values, -1);
+            size = 0;
+        }
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        Arrays.fill(values, -1);
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] >= 0) {
+                int slot = mix(oldKeys[i]) & mask;
+                while (values[slot] >= 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+}
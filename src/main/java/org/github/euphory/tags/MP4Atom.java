@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.tags;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Position and size of a single atom (box) inside an MP4 file. Atoms are only
+ * described by their offsets, the payload stays on disk until it is read.
+ */
+public final class MP4Atom {
+
+    private final int type;
+    private final long offset;
+    private final int headerSize;
+    private final long size;
+
+    /**
+     * Constructs a new MP4Atom.
+     *
+     * @param type       The atom type (fourcc).
+     * @param offset     The absolute file offset of the atom header.
+     * @param headerSize The header size, 8 or 16 bytes when a 64-bit size is used.
+     * @param size       The total atom size including the header.
+     */
+    public MP4Atom(int type, long offset, int headerSize, long size) {
+        this.type = type;
+        this.offset = offset;
+        this.headerSize = headerSize;
+        this.size = size;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getHeaderSize() {
+        return headerSize;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the absolute offset of the first payload byte.
+     *
+     * @return The payload offset.
+     */
+    public long getDataOffset() {
+        return offset + headerSize;
+    }
+
+    /**
+     * Gets the payload size, excluding the header.
+     *
+     * @return The payload size.
+     */
+    public long getDataSize() {
+        return size - headerSize;
+    }
+
+    /**
+     * Gets the absolute offset of the first byte after this atom.
+     *
+     * @return The end offset.
+     */
+    public long getEnd() {
+        return offset + size;
+    }
+
+    /**
+     * Converts a fourcc into its four character name.
+     *
+     * @param type The fourcc.
+     * @return The atom name.
+     */
+    public static String typeName(int type) {
+        char[] name = new char[4];
+        for (int i = 0; i < 4; i++) {
+            name[i] = (char) ((type >>> (24 - 8 * i)) & 0xff);
+        }
+        return new String(name);
+    }
+
+    @Override
+    public String toString() {
+        return typeName(type) + "@" + offset + "[" + size + "]";
+    }
+
+}
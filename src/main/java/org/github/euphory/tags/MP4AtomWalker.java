@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.tags;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Walks the atom tree of an MP4 file through positional reads on a
+ * FileChannel. Only atom headers are read while walking, so large atoms like
+ * 'mdat' are skipped by offset and never touched.
+ */
+public final class MP4AtomWalker {
+
+    public static final int FTYP = 0x66747970; // 'ftyp'
+    public static final int MOOV = 0x6d6f6f76; // 'moov'
+    public static final int MDAT = 0x6d646174; // 'mdat'
+    public static final int FREE = 0x66726565; // 'free'
+    public static final int SKIP = 0x736b6970; // 'skip'
+    public static final int UDTA = 0x75647461; // 'udta'
+    public static final int META = 0x6d657461; // 'meta'
+    public static final int HDLR = 0x68646c72; // 'hdlr'
+    public static final int ILST = 0x696c7374; // 'ilst'
+    public static final int DATA = 0x64617461; // 'data'
+
+    private static final int HEADER_SIZE = 8;
+    private static final int LARGE_HEADER_SIZE = 16;
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private final ByteBuffer header = ByteBuffer.allocate(LARGE_HEADER_SIZE);
+
+    /**
+     * Constructs a new MP4AtomWalker.
+     *
+     * @param channel The channel to read from, its position is never changed.
+     * @throws IOException If the file size cannot be read.
+     */
+    public MP4AtomWalker(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.fileSize = channel.size();
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Checks whether the file starts with an 'ftyp' atom.
+     *
+     * @return True if the file looks like an MP4 file.
+     * @throws IOException If the header cannot be read.
+     */
+    public boolean isMP4() throws IOException {
+        if (fileSize < HEADER_SIZE) {
+            return false;
+        }
+        // Only the type is checked, other files have anything as a size
+        return readFully(0, HEADER_SIZE).getInt(4) == FTYP;
+    }
+
+    /**
+     * Reads the atom header at the given offset. A size of 1 means a 64-bit
+     * size follows the type, a size of 0 means the atom extends to the end of
+     * its parent.
+     *
+     * @param offset The absolute offset of the atom header.
+     * @param limit  The end offset of the parent, or the file size for top level atoms.
+     * @return The atom.
+     * @throws IOException If the header is truncated or the size is invalid.
+     */
+    public MP4Atom readAtom(long offset, long limit) throws IOException {
+        if (limit - offset < HEADER_SIZE) {
+            throw new EOFException("Truncated atom header at offset " + offset);
+        }
+        int headerLength = (int) Math.min(LARGE_HEADER_SIZE, limit - offset);
+        ByteBuffer buffer = readFully(offset, headerLength);
+        long size = buffer.getInt(0) & 0xffffffffL;
+        int type = buffer.getInt(4);
+        int headerSize = HEADER_SIZE;
+        if (size == 1) {
+            if (headerLength < LARGE_HEADER_SIZE) {
+                throw new EOFException("Truncated 64-bit atom header at offset " + offset);
+            }
+            size = buffer.getLong(8);
+            headerSize = LARGE_HEADER_SIZE;
+        } else if (size == 0) {
+            size = limit - offset;
+        }
+        if (size < headerSize || offset + size > limit) {
+            throw new IOException("Invalid size " + size + " for atom '" + MP4Atom.typeName(type) + "' at offset " + offset);
+        }
+        return new MP4Atom(type, offset, headerSize, size);
+    }
+
+    /**
+     * Gets the offset of the first child of a container atom. 'meta' is a full
+     * atom with 4 bytes of version and flags before its children, except in
+     * some QuickTime files that omit them.
+     *
+     * @param parent The container atom.
+     * @return The offset of the first child.
+     * @throws IOException If the atom cannot be read.
+     */
+    public long getChildrenOffset(MP4Atom parent) throws IOException {
+        long start = parent.getDataOffset();
+        if (parent.getType() == META && parent.getDataSize() >= 12) {
+            ByteBuffer buffer = readFully(start, 12);
+            if (buffer.getInt(4) != HDLR) {
+                return start + 4;
+            }
+        }
+        return start;
+    }
+
+    /**
+     * Lists the children of a container atom, or the top level atoms when the
+     * parent is null.
+     *
+     * @param parent The container atom, or null for the top level.
+     * @return The children.
+     * @throws IOException If an atom cannot be read.
+     */
+    public List<MP4Atom> getChildren(MP4Atom parent) throws IOException {
+        List<MP4Atom> children = new ArrayList<>();
+        long offset = parent == null ? 0 : getChildrenOffset(parent);
+        long limit = parent == null ? fileSize : parent.getEnd();
+        while (limit - offset >= HEADER_SIZE) {
+            MP4Atom atom = readAtom(offset, limit);
+            children.add(atom);
+            offset = atom.getEnd();
+        }
+        return children;
+    }
+
+    /**
+     * Finds the first child of the given type without listing its siblings.
+     *
+     * @param parent The container atom, or null for the top level.
+     * @param type   The atom type.
+     * @return The child atom, or null if there is none.
+     * @throws IOException If an atom cannot be read.
+     */
+    public MP4Atom findChild(MP4Atom parent, int type) throws IOException {
+        long offset = parent == null ? 0 : getChildrenOffset(parent);
+        long limit = parent == null ? fileSize : parent.getEnd();
+        while (limit - offset >= HEADER_SIZE) {
+            MP4Atom atom = readAtom(offset, limit);
+            if (atom.getType() == type) {
+                return atom;
+            }
+            offset = atom.getEnd();
+        }
+        return null;
+    }
+
+    /**
+     * Descends from the top level following the given path, for example
+     * moov/udta/meta/ilst. Only the atoms along the path are visited.
+     *
+     * @param path The atom types to descend through.
+     * @return The atoms along the path, or null if any of them is missing.
+     * @throws IOException If an atom cannot be read.
+     */
+    public MP4Atom[] findPath(int... path) throws IOException {
+        MP4Atom[] atoms = new MP4Atom[path.length];
+        MP4Atom parent = null;
+        for (int i = 0; i < path.length; i++) {
+            parent = findChild(parent, path[i]);
+            if (parent == null) {
+                return null;
+            }
+            atoms[i] = parent;
+        }
+        return atoms;
+    }
+
+    /**
+     * Reads the payload of an atom.
+     *
+     * @param atom The atom.
+     * @return A buffer holding the payload.
+     * @throws IOException If the payload cannot be read or is too big.
+     */
+    public ByteBuffer readData(MP4Atom atom) throws IOException {
+        if (atom.getDataSize() > Integer.MAX_VALUE) {
+            throw new IOException("Atom '" + MP4Atom.typeName(atom.getType()) + "' is too big to be read");
+        }
+        return readFully(atom.getDataOffset(), (int) atom.getDataSize());
+    }
+
+    /**
+     * Reads a range of bytes. The small header buffer is reused when possible.
+     *
+     * @param offset The absolute offset.
+     * @param length The number of bytes.
+     * @return A buffer holding the bytes, positioned at 0.
+     * @throws IOException If the range cannot be read.
+     */
+    public ByteBuffer readFully(long offset, int length) throws IOException {
+        ByteBuffer buffer;
+        if (length <= header.capacity()) {
+            buffer = header;
+            buffer.clear().limit(length);
+        } else {
+            buffer = ByteBuffer.allocate(length);
+        }
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of file at offset " + position);
+            }
+            position += read;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+}
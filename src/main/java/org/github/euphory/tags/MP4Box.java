@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.tags;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * In-memory atom tree, used to edit the 'moov' atom when a change cannot be
+ * written in place. Containers hold their children, every other atom keeps
+ * its payload as raw bytes.
+ */
+final class MP4Box {
+
+    static final int TRAK = 0x7472616b; // 'trak'
+    static final int MDIA = 0x6d646961; // 'mdia'
+    static final int MINF = 0x6d696e66; // 'minf'
+    static final int STBL = 0x7374626c; // 'stbl'
+    static final int EDTS = 0x65647473; // 'edts'
+    static final int DINF = 0x64696e66; // 'dinf'
+    static final int TREF = 0x74726566; // 'tref'
+    static final int STCO = 0x7374636f; // 'stco'
+    static final int CO64 = 0x636f3634; // 'co64'
+
+    private static final byte[] NO_PREFIX = new byte[0];
+
+    private final int type;
+    private final byte[] prefix;
+    private byte[] payload;
+    private final List<MP4Box> children;
+
+    private MP4Box(int type, byte[] prefix, byte[] payload, List<MP4Box> children) {
+        this.type = type;
+        this.prefix = prefix;
+        this.payload = payload;
+        this.children = children;
+    }
+
+    /**
+     * Creates an atom holding raw bytes.
+     *
+     * @param type    The atom type.
+     * @param payload The payload, excluding the header.
+     * @return The atom.
+     */
+    static MP4Box leaf(int type, byte[] payload) {
+        return new MP4Box(type, NO_PREFIX, payload, null);
+    }
+
+    /**
+     * Creates an empty container atom.
+     *
+     * @param type The atom type.
+     * @return The atom.
+     */
+    static MP4Box container(int type) {
+        byte[] prefix = type == MP4AtomWalker.META ? new byte[4] : NO_PREFIX;
+        return new MP4Box(type, prefix, null, new ArrayList<>());
+    }
+
+    /**
+     * Parses an atom payload into a tree.
+     *
+     * @param type    The atom type.
+     * @param payload The payload, excluding the header.
+     * @return The atom.
+     * @throws IOException If a child atom has an invalid size.
+     */
+    static MP4Box parse(int type, ByteBuffer payload) throws IOException {
+        if (!isContainer(type)) {
+            byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            return leaf(type, bytes);
+        }
+        byte[] prefix = NO_PREFIX;
+        if (type == MP4AtomWalker.META && payload.remaining() >= 12
+                && payload.getInt(payload.position() + 4) != MP4AtomWalker.HDLR) {
+            prefix = new byte[4];
+            payload.get(prefix);
+        }
+        List<MP4Box> children = new ArrayList<>();
+        while (payload.remaining() >= 8) {
+            int start = payload.position();
+            long size = payload.getInt() & 0xffffffffL;
+            int childType = payload.getInt();
+            int headerSize = 8;
+            if (size == 1) {
+                size = payload.getLong();
+                headerSize = 16;
+            } else if (size == 0) {
+                size = payload.limit() - start;
+            }
+            if (size < headerSize || size > payload.limit() - start) {
+                throw new IOException("Invalid size " + size + " for atom '" + MP4Atom.typeName(childType) + "'");
+            }
+            ByteBuffer childPayload = payload.duplicate();
+            childPayload.limit(start + (int) size);
+            children.add(parse(childType, childPayload));
+            payload.position(start + (int) size);
+        }
+        return new MP4Box(type, prefix, null, children);
+    }
+
+    static boolean isContainer(int type) {
+        switch (type) {
+            case MP4AtomWalker.MOOV:
+            case MP4AtomWalker.UDTA:
+            case MP4AtomWalker.META:
+            case TRAK:
+            case MDIA:
+            case MINF:
+            case STBL:
+            case EDTS:
+            case DINF:
+            case TREF:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    int getType() {
+        return type;
+    }
+
+    byte[] getPayload() {
+        return payload;
+    }
+
+    void setPayload(byte[] payload) {
+        this.payload = payload;
+    }
+
+    List<MP4Box> getChildren() {
+        return children;
+    }
+
+    /**
+     * Gets the first child of the given type.
+     *
+     * @param childType The child type.
+     * @return The child, or null if there is none.
+     */
+    MP4Box getChild(int childType) {
+        for (MP4Box child : children) {
+            if (child.type == childType) {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the first child of the given type, appending a new one if missing.
+     *
+     * @param childType The child type.
+     * @return The child.
+     */
+    MP4Box getOrAddChild(int childType) {
+        MP4Box child = getChild(childType);
+        if (child == null) {
+            child = isContainer(childType) ? container(childType) : leaf(childType, new byte[0]);
+            children.add(child);
+        }
+        return child;
+    }
+
+    /**
+     * Collects every atom of the given type in this subtree.
+     *
+     * @param boxType The atom type.
+     * @param found   The list to add the atoms to.
+     */
+    void findAll(int boxType, List<MP4Box> found) {
+        if (type == boxType) {
+            found.add(this);
+        }
+        if (children != null) {
+            for (MP4Box child : children) {
+                child.findAll(boxType, found);
+            }
+        }
+    }
+
+    /**
+     * Gets the serialized size of this atom, including its header.
+     *
+     * @return The size in bytes.
+     */
+    long getSize() {
+        long size = 8 + prefix.length;
+        if (children == null) {
+            size += payload.length;
+        } else {
+            for (MP4Box child : children) {
+                size += child.getSize();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Serializes this atom.
+     *
+     * @param out The buffer to write to.
+     */
+    void writeTo(ByteBuffer out) {
+        long size = getSize();
+        if (size > 0xffffffffL) {
+            throw new IllegalStateException("Atom '" + MP4Atom.typeName(type) + "' is too big");
+        }
+        out.putInt((int) size);
+        out.putInt(type);
+        out.put(prefix);
+        if (children == null) {
+            out.put(payload);
+        } else {
+            for (MP4Box child : children) {
+                child.writeTo(out);
+            }
+        }
+    }
+
+    /**
+     * Turns the 'stco' tables below this atom that would overflow once
+     * shifted into 'co64' tables, four bytes longer per chunk.
+     *
+     * @param from  The first file offset that moves.
+     * @param delta The number of bytes they move by.
+     * @return True if a table was widened.
+     */
+    boolean widenChunkOffsets(long from, long delta) {
+        if (children == null) {
+            return false;
+        }
+        boolean widened = false;
+        for (int i = 0; i < children.size(); i++) {
+            MP4Box child = children.get(i);
+            if (child.type == STCO && child.overflows(from, delta)) {
+                children.set(i, leaf(CO64, widen(child.payload)));
+                widened = true;
+            } else {
+                widened |= child.widenChunkOffsets(from, delta);
+            }
+        }
+        return widened;
+    }
+
+    private boolean overflows(long from, long delta) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        int count = buffer.getInt(4);
+        for (int i = 0; i < count; i++) {
+            long offset = buffer.getInt(8 + i * 4) & 0xffffffffL;
+            if (offset >= from && offset + delta > 0xffffffffL) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] widen(byte[] stco) {
+        ByteBuffer in = ByteBuffer.wrap(stco);
+        int count = in.getInt(4);
+        ByteBuffer out = ByteBuffer.allocate(8 + count * 8);
+        // Version, flags and entry count stay the same
+        out.putLong(in.getLong(0));
+        for (int i = 0; i < count; i++) {
+            out.putLong(in.getInt(8 + i * 4) & 0xffffffffL);
+        }
+        return out.array();
+    }
+
+    /**
+     * Shifts every chunk offset at or after the given file offset, used when
+     * the bytes behind an edited atom move.
+     *
+     * @param from  The first file offset that moves.
+     * @param delta The number of bytes they move by.
+     * @throws IOException If a 32-bit chunk offset would overflow.
+     */
+    void shiftChunkOffsets(long from, long delta) throws IOException {
+        List<MP4Box> tables = new ArrayList<>();
+        findAll(STCO, tables);
+        findAll(CO64, tables);
+        for (MP4Box table : tables) {
+            ByteBuffer buffer = ByteBuffer.wrap(table.payload);
+            int count = buffer.getInt(4);
+            boolean wide = table.type == CO64;
+            for (int i = 0; i < count; i++) {
+                int position = 8 + i * (wide ? 8 : 4);
+                long offset = wide ? buffer.getLong(position) : buffer.getInt(position) & 0xffffffffL;
+                if (offset >= from) {
+                    offset += delta;
+                    if (wide) {
+                        buffer.putLong(position, offset);
+                    } else if (offset > 0xffffffffL) {
+                        throw new IOException("Chunk offset overflows 'stco', the file needs 'co64'");
+                    } else {
+                        buffer.putInt(position, (int) offset);
+                    }
+                }
+            }
+        }
+    }
+
+}
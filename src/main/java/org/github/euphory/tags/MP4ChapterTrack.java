@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.tags;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Decodes the chapters of a QuickTime chapter text track from its sample
+ * tables: start times are summed up from 'stts' in one pass, and titles are
+ * read one chunk at a time.
+ */
+final class MP4ChapterTrack {
+
+    private MP4ChapterTrack() {
+    }
+
+    /**
+     * Reads the chapters of a text track.
+     *
+     * @param channel        The file, open for reading.
+     * @param timescale      The timescale of the track.
+     * @param durationMillis The duration of the movie, where the last
+     *                       chapter ends.
+     * @param stts           The 'stts' payload.
+     * @param stsc           The 'stsc' payload.
+     * @param stsz           The 'stsz' payload.
+     * @param chunkOffsets   The 'stco' or 'co64' payload.
+     * @param wideOffsets    True for 'co64'.
+     * @return The chapters, in sample order.
+     * @throws IOException If a table is shorter than its entry count or a
+     *                     chunk cannot be read.
+     */
+    static List<Chapter> read(FileChannel channel, long timescale, long durationMillis, ByteBuffer stts,
+            ByteBuffer stsc, ByteBuffer stsz, ByteBuffer chunkOffsets, boolean wideOffsets) throws IOException {
+        checkTable(stts, 8, 8, "stts");
+        checkTable(stsc, 8, 12, "stsc");
+        checkTable(chunkOffsets, 8, wideOffsets ? 8 : 4, wideOffsets ? "co64" : "stco");
+        if (stsz.limit() < 12 || timescale <= 0) {
+            throw new IOException("Invalid chapter track");
+        }
+        int sampleSize = stsz.getInt(4);
+        int sampleCount = stsz.getInt(8);
+        if (sampleCount < 0 || (sampleSize == 0 && stsz.limit() < 12 + 4L * sampleCount)) {
+            throw new IOException("Truncated 'stsz' table");
+        }
+
+        long[] startTimes = new long[sampleCount];
+        int entries = stts.getInt(4);
+        int sample = 0;
+        long time = 0;
+        for (int entry = 0; entry < entries && sample < sampleCount; entry++) {
+            int count = stts.getInt(8 + entry * 8);
+            long delta = stts.getInt(12 + entry * 8) & 0xffffffffL;
+            for (int i = 0; i < count && sample < sampleCount; i++) {
+                startTimes[sample++] = time;
+                time += delta;
+            }
+        }
+        // Samples past the table start where the last one ended
+        while (sample < sampleCount) {
+            startTimes[sample++] = time;
+        }
+
+        String[] names = new String[sampleCount];
+        entries = stsc.getInt(4);
+        int chunkCount = chunkOffsets.getInt(4);
+        int firstSample = 0;
+        for (int entry = 0; entry < entries && firstSample < sampleCount; entry++) {
+            int firstChunk = stsc.getInt(8 + entry * 12) - 1;
+            int lastChunk = entry + 1 < entries ? stsc.getInt(8 + (entry + 1) * 12) - 1 : chunkCount;
+            int samples = stsc.getInt(12 + entry * 12);
+            for (int chunk = Math.max(firstChunk, 0); chunk < lastChunk && chunk < chunkCount
+                    && firstSample < sampleCount; chunk++) {
+                long offset = wideOffsets ? chunkOffsets.getLong(8 + chunk * 8)
+                        : chunkOffsets.getInt(8 + chunk * 4) & 0xffffffffL;
+                int count = Math.min(samples, sampleCount - firstSample);
+                decodeChunk(channel, offset, stsz, sampleSize, firstSample, count, names);
+                firstSample += count;
+            }
+        }
+        if (firstSample < sampleCount) {
+            throw new IOException("No chunk holds chapter sample " + firstSample);
+        }
+
+        List<Chapter> chapters = new ArrayList<>(sampleCount);
+        for (int i = 0; i < sampleCount; i++) {
+            long start = startTimes[i] * 1000 / timescale;
+            long end = i + 1 < sampleCount ? startTimes[i + 1] * 1000 / timescale : Math.max(start, durationMillis);
+            chapters.add(MP4Chapters.toChapter(start, end, names[i]));
+        }
+        return chapters;
+    }
+
+    private static void checkTable(ByteBuffer table, int headerSize, int entrySize, String name) throws IOException {
+        if (table.limit() < headerSize || table.limit() < headerSize + (table.getInt(4) & 0xffffffffL) * entrySize) {
+            throw new IOException("Truncated '" + name + "' table");
+        }
+    }
+
+    /**
+     * Reads a whole chunk and decodes all its samples.
+     */
+    private static void decodeChunk(FileChannel channel, long offset, ByteBuffer stsz, int sampleSize,
+            int firstSample, int samples, String[] names) throws IOException {
+        long length = 0;
+        for (int i = 0; i < samples; i++) {
+            length += getSampleSize(stsz, sampleSize, firstSample + i) & 0xffffffffL;
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Invalid chapter chunk of " + length + " bytes");
+        }
+        ByteBuffer buffer = TagFiles.readFully(channel, offset, (int) length);
+        int position = 0;
+        for (int i = 0; i < samples; i++) {
+            int size = getSampleSize(stsz, sampleSize, firstSample + i);
+            names[firstSample + i] = decodeText(buffer, position, size);
+            position += size;
+        }
+    }
+
+    private static int getSampleSize(ByteBuffer stsz, int sampleSize, int sample) {
+        return sampleSize != 0 ? sampleSize : stsz.getInt(12 + sample * 4);
+    }
+
+    /**
+     * Decodes a text sample, a 16-bit length followed by UTF-8 text, or UTF-16
+     * when it starts with a byte order mark.
+     */
+    private static String decodeText(ByteBuffer buffer, int position, int size) {
+        if (size < 2) {
+            return "";
+        }
+        int length = Math.min(buffer.getShort(position) & 0xffff, size - 2);
+        byte[] text = new byte[length];
+        buffer.position(position + 2);
+        buffer.get(text);
+        if (length >= 2 && (text[0] & 0xff) == 0xfe && (text[1] & 0xff) == 0xff) {
+            return new String(text, StandardCharsets.UTF_16);
+        }
+        return new String(text, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,632 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.tags;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Reads and writes MP4 chapters, both as a QuickTime chapter text track
+ * referenced by 'tref/chap' and as a Nero 'chpl' atom under 'udta'. The text
+ * track is preferred when reading, it is decoded from its sample tables.
+ * Its samples are written in their own 'mdat' atom at the end of the file, so
+ * rewriting the chapters replaces them instead of piling up.
+ */
+public final class MP4Chapters {
+
+    static final int MVHD = 0x6d766864; // 'mvhd'
+    static final int TKHD = 0x746b6864; // 'tkhd'
+    static final int MDHD = 0x6d646864; // 'mdhd'
+    static final int CHAP = 0x63686170; // 'chap'
+    static final int CHPL = 0x6368706c; // 'chpl'
+    static final int STSD = 0x73747364; // 'stsd'
+    static final int STTS = 0x73747473; // 'stts'
+    static final int STSC = 0x73747363; // 'stsc'
+    static final int STSZ = 0x7374737a; // 'stsz'
+    static final int GMHD = 0x676d6864; // 'gmhd'
+    static final int GMIN = 0x676d696e; // 'gmin'
+    static final int DREF = 0x64726566; // 'dref'
+    static final int URL = 0x75726c20;  // 'url '
+    static final int ENCD = 0x656e6364; // 'encd'
+    static final int TEXT = 0x74657874; // 'text'
+    static final int SOUN = 0x736f756e; // 'soun'
+
+    /**
+     * Chapter titles longer than this are cut in 'chpl', which stores their
+     * length in a single byte.
+     */
+    private static final int MAX_CHPL_TITLE = 255;
+
+    private static final int TEXT_TIMESCALE = 1000;
+    private static final int LANGUAGE_UNDETERMINED = 0x55c4;
+    private static final String SEPARATOR = " - ";
+
+    private MP4Chapters() {
+    }
+
+    /**
+     * Reads the chapters of an MP4 file. Only the atom headers, the sample
+     * tables of the chapter track and its text samples are read.
+     *
+     * @param path The file to read.
+     * @return The chapters, sorted by start time, empty if there are none.
+     * @throws IOException If the atom tree cannot be read.
+     */
+    public static List<Chapter> readChapters(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MP4AtomWalker walker = new MP4AtomWalker(channel);
+            MP4Atom moov = walker.isMP4() ? walker.findChild(null, MP4AtomWalker.MOOV) : null;
+            if (moov == null) {
+                return new ArrayList<>();
+            }
+            MP4Atom mvhd = walker.findChild(moov, MVHD);
+            long durationMillis = mvhd != null ? getDurationMillis(walker.readData(mvhd)) : 0;
+            List<Chapter> chapters = readChapterTrack(channel, walker, moov, durationMillis);
+            if (chapters != null && !chapters.isEmpty()) {
+                return chapters;
+            }
+            MP4Atom udta = walker.findChild(moov, MP4AtomWalker.UDTA);
+            MP4Atom chpl = udta != null ? walker.findChild(udta, CHPL) : null;
+            return chpl != null ? decodeChapterList(walker.readData(chpl), durationMillis) : new ArrayList<>();
+        }
+    }
+
+    private static List<Chapter> readChapterTrack(FileChannel channel, MP4AtomWalker walker, MP4Atom moov, long durationMillis) throws IOException {
+        List<MP4Atom> traks = new ArrayList<>();
+        int chapterTrackId = 0;
+        for (MP4Atom atom : walker.getChildren(moov)) {
+            if (atom.getType() != MP4Box.TRAK) {
+                continue;
+            }
+            traks.add(atom);
+            MP4Atom tref = walker.findChild(atom, MP4Box.TREF);
+            MP4Atom chap = tref != null ? walker.findChild(tref, CHAP) : null;
+            if (chapterTrackId == 0 && chap != null && chap.getDataSize() >= 4) {
+                chapterTrackId = walker.readData(chap).getInt(0);
+            }
+        }
+        if (chapterTrackId == 0) {
+            return null;
+        }
+        for (MP4Atom trak : traks) {
+            MP4Atom tkhd = walker.findChild(trak, TKHD);
+            if (tkhd == null || getTrackId(walker.readData(tkhd)) != chapterTrackId) {
+                continue;
+            }
+            MP4Atom mdia = walker.findChild(trak, MP4Box.MDIA);
+            MP4Atom mdhd = mdia != null ? walker.findChild(mdia, MDHD) : null;
+            MP4Atom minf = mdia != null ? walker.findChild(mdia, MP4Box.MINF) : null;
+            MP4Atom stbl = minf != null ? walker.findChild(minf, MP4Box.STBL) : null;
+            if (mdhd == null || stbl == null) {
+                return null;
+            }
+            MP4Atom stts = walker.findChild(stbl, STTS);
+            MP4Atom stsc = walker.findChild(stbl, STSC);
+            MP4Atom stsz = walker.findChild(stbl, STSZ);
+            MP4Atom stco = walker.findChild(stbl, MP4Box.STCO);
+            MP4Atom co64 = stco == null ? walker.findChild(stbl, MP4Box.CO64) : null;
+            if (stts == null || stsc == null || stsz == null || (stco == null && co64 == null)) {
+                return null;
+            }
+            return MP4ChapterTrack.read(channel, getTimescale(walker.readData(mdhd)), durationMillis, readTable(walker, stts),
+                    readTable(walker, stsc), readTable(walker, stsz), readTable(walker, stco != null ? stco : co64), co64 != null);
+        }
+        return null;
+    }
+
+    /**
+     * Reads a sample table into a buffer of its own, as the walker reuses
+     * its header buffer for small payloads and the tables are all read
+     * before the chapters are decoded.
+     */
+    private static ByteBuffer readTable(MP4AtomWalker walker, MP4Atom table) throws IOException {
+        ByteBuffer data = walker.readData(table);
+        return ByteBuffer.allocate(data.remaining()).put(data).flip();
+    }
+
+    /**
+     * Decodes a 'chpl' payload: version, flags, a reserved byte and the
+     * chapter count, then a 64-bit start time in 100 ns units and a title
+     * prefixed by its length for each chapter. Version 0 has an 8-bit count
+     * and no reserved byte.
+     */
+    private static List<Chapter> decodeChapterList(ByteBuffer data, long durationMillis) {
+        List<Chapter> chapters = new ArrayList<>();
+        if (data.remaining() < 5) {
+            return chapters;
+        }
+        int version = data.get(0);
+        long count;
+        int position;
+        if (version == 0) {
+            count = data.get(4) & 0xff;
+            position = 5;
+        } else if (data.remaining() >= 9) {
+            count = data.getInt(5) & 0xffffffffL;
+            position = 9;
+        } else {
+            return chapters;
+        }
+        long[] starts = new long[(int) Math.min(count, data.remaining() / 9)];
+        String[] names = new String[starts.length];
+        int found = 0;
+        while (found < starts.length && data.limit() - position >= 9) {
+            int length = data.get(position + 8) & 0xff;
+            if (data.limit() - position - 9 < length) {
+                break;
+            }
+            starts[found] = data.getLong(position) / 10000;
+            names[found] = new String(data.array(), data.arrayOffset() + position + 9, length, StandardCharsets.UTF_8);
+            position += 9 + length;
+            found++;
+        }
+        for (int i = 0; i < found; i++) {
+            long end = i + 1 < found ? starts[i + 1] : Math.max(starts[i], durationMillis);
+            chapters.add(toChapter(starts[i], end, names[i]));
+        }
+        return chapters;
+    }
+
+    /**
+     * Writes the chapters of an MP4 file as a chapter text track and a 'chpl'
+     * atom, replacing the ones written before. An empty list removes them.
+     *
+     * @param path     The file to write.
+     * @param chapters The chapters, in playing order.
+     * @throws IOException If the file is not an MP4 file or cannot be written.
+     */
+    public static void writeChapters(Path path, List<Chapter> chapters) throws IOException {
+        byte[] samples = encodeSamples(chapters);
+        Path copy;
+        long samplesOffset;
+        long deadOffset = -1;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MP4AtomWalker walker = new MP4AtomWalker(channel);
+            if (!walker.isMP4()) {
+                throw new IOException("Not an MP4 file: " + path);
+            }
+            MP4Atom moov = walker.findChild(null, MP4AtomWalker.MOOV);
+            if (moov == null) {
+                throw new IOException("No 'moov' atom in " + path);
+            }
+            MP4Box moovBox = MP4Box.parse(MP4AtomWalker.MOOV, walker.readData(moov));
+            MP4Box mvhd = moovBox.getChild(MVHD);
+            if (mvhd == null) {
+                throw new IOException("No 'mvhd' atom in " + path);
+            }
+
+            // Drop the old chapter track. Its samples are dropped too when they are the last atom of
+            // the file, but only once the new 'moov' is written, so a failed write leaves them in place
+            MP4Box oldTrack = removeChapterTrack(moovBox);
+            MP4Atom last = null;
+            for (MP4Atom atom : walker.getChildren(null)) {
+                last = atom;
+            }
+            if (oldTrack != null && last != null && last.getType() == MP4AtomWalker.MDAT
+                    && last.getOffset() >= moov.getEnd() && holdsOnlySamples(oldTrack, last)) {
+                deadOffset = last.getOffset();
+            }
+            long fileEnd = deadOffset >= 0 ? deadOffset : walker.getFileSize();
+
+            setChapterList(moovBox, chapters);
+            MP4Box chapterTrack = null;
+            if (!chapters.isEmpty()) {
+                int trackId = oldTrack != null ? getTrackId(ByteBuffer.wrap(oldTrack.getChild(TKHD).getPayload())) : nextTrackId(moovBox, mvhd);
+                MP4Box audioTrack = findAudioTrack(moovBox);
+                if (audioTrack == null) {
+                    throw new IOException("No audio track in " + path);
+                }
+                audioTrack.getOrAddChild(MP4Box.TREF).getChildren().add(MP4Box.leaf(CHAP, ByteBuffer.allocate(4).putInt(0, trackId).array()));
+                boolean wide = fileEnd + moovBox.getSize() + samples.length > 0xffffffffL;
+                chapterTrack = createChapterTrack(trackId, chapters, mvhd, samples.length, wide);
+                int index = 0;
+                for (int i = 0; i < moovBox.getChildren().size(); i++) {
+                    if (moovBox.getChildren().get(i).getType() == MP4Box.TRAK) {
+                        index = i;
+                    }
+                }
+                moovBox.getChildren().add(index + 1, chapterTrack);
+
+                // The samples go to a new 'mdat' at the end of the file, chunk offsets behind 'moov' move with it
+                boolean moovLast = moov.getEnd() == fileEnd;
+                long mdatOffset = moovLast ? moov.getOffset() + moovBox.getSize() : fileEnd;
+                setChunkOffset(chapterTrack, mdatOffset + 8);
+            }
+
+            copy = MP4TagWriter.replaceMoov(path, channel, walker, moov, moovBox, fileEnd);
+            samplesOffset = chapterTrack != null ? getChunkOffset(chapterTrack) : -1;
+            if (deadOffset >= 0 && (copy != null || moov.getEnd() == fileEnd)) {
+                // Unless a 'free' atom took the change in size, what follows 'moov' moved with it
+                deadOffset += moovBox.getSize() - moov.getSize();
+            }
+            if (copy == null) {
+                writeMediaData(channel, samples, samplesOffset, deadOffset);
+            }
+        }
+        if (copy != null) {
+            try (FileChannel out = TagFiles.openCopy(copy)) {
+                writeMediaData(out, samples, samplesOffset, deadOffset);
+                out.force(true);
+            } catch (IOException e) {
+                Files.deleteIfExists(copy);
+                throw e;
+            }
+            TagFiles.replaceFile(copy, path);
+        }
+    }
+
+    /**
+     * Drops the samples of the old chapter track and writes the new ones,
+     * once the 'moov' pointing to them is written.
+     *
+     * @param samplesOffset The offset of the new samples, -1 if there are none.
+     * @param deadOffset    The offset of the old samples ending the file, -1 if they stay.
+     */
+    private static void writeMediaData(FileChannel channel, byte[] samples, long samplesOffset, long deadOffset)
+            throws IOException {
+        if (deadOffset >= 0) {
+            channel.truncate(deadOffset);
+        }
+        if (samplesOffset >= 0) {
+            TagFiles.writeFully(channel, toMediaData(samples), samplesOffset - 8);
+        }
+    }
+
+    /**
+     * Removes every 'tref/chap' reference and the text tracks they point to.
+     *
+     * @return The removed chapter track, or null if there was none.
+     */
+    private static MP4Box removeChapterTrack(MP4Box moov) {
+        List<Integer> chapterTrackIds = new ArrayList<>();
+        for (MP4Box trak : moov.getChildren()) {
+            MP4Box tref = trak.getType() == MP4Box.TRAK ? trak.getChild(MP4Box.TREF) : null;
+            if (tref == null) {
+                continue;
+            }
+            tref.getChildren().removeIf(reference -> {
+                if (reference.getType() != CHAP) {
+                    return false;
+                }
+                ByteBuffer ids = ByteBuffer.wrap(reference.getPayload());
+                while (ids.remaining() >= 4) {
+                    chapterTrackIds.add(ids.getInt());
+                }
+                return true;
+            });
+            if (tref.getChildren().isEmpty()) {
+                trak.getChildren().remove(tref);
+            }
+        }
+        MP4Box removed = null;
+        for (MP4Box trak : new ArrayList<>(moov.getChildren())) {
+            MP4Box tkhd = trak.getType() == MP4Box.TRAK ? trak.getChild(TKHD) : null;
+            if (tkhd != null && chapterTrackIds.contains(getTrackId(ByteBuffer.wrap(tkhd.getPayload())))
+                    && getHandlerType(trak) == TEXT) {
+                moov.getChildren().remove(trak);
+                removed = trak;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Checks whether an atom holds exactly the samples of a track, stored as
+     * a single chunk.
+     */
+    private static boolean holdsOnlySamples(MP4Box trak, MP4Atom mdat) {
+        MP4Box stbl = getSampleTable(trak);
+        MP4Box stsz = stbl != null ? stbl.getChild(STSZ) : null;
+        if (stsz == null || (stbl.getChild(MP4Box.STCO) == null && stbl.getChild(MP4Box.CO64) == null)) {
+            return false;
+        }
+        ByteBuffer sizes = ByteBuffer.wrap(stsz.getPayload());
+        int sampleSize = sizes.getInt(4);
+        int count = sizes.getInt(8);
+        long total = (long) sampleSize * count;
+        for (int i = 0; sampleSize == 0 && i < count && 16 + i * 4 <= sizes.limit(); i++) {
+            total += sizes.getInt(12 + i * 4);
+        }
+        return getChunkCount(trak) == 1 && getChunkOffset(trak) == mdat.getDataOffset() && total == mdat.getDataSize();
+    }
+
+    /**
+     * Replaces the 'chpl' atom under 'udta'.
+     */
+    private static void setChapterList(MP4Box moov, List<Chapter> chapters) {
+        MP4Box udta = moov.getChild(MP4AtomWalker.UDTA);
+        if (udta != null) {
+            udta.getChildren().removeIf(child -> child.getType() == CHPL);
+        }
+        if (chapters.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        writeInt(bos, 0x01000000);
+        bos.write(0);
+        writeInt(bos, chapters.size());
+        for (Chapter chapter : chapters) {
+            long start = chapter.getStartMillis() * 10000;
+            writeInt(bos, (int) (start >>> 32));
+            writeInt(bos, (int) start);
+            byte[] title = truncate(toName(chapter).getBytes(StandardCharsets.UTF_8), MAX_CHPL_TITLE);
+            bos.write(title.length);
+            bos.write(title, 0, title.length);
+        }
+        moov.getOrAddChild(MP4AtomWalker.UDTA).getChildren().add(0, MP4Box.leaf(CHPL, bos.toByteArray()));
+    }
+
+    /**
+     * Builds a disabled text track with one sample per chapter, all in a
+     * single chunk. The first sample starts at zero, so a first chapter
+     * starting later is stretched back to the start of the file.
+     */
+    private static MP4Box createChapterTrack(int trackId, List<Chapter> chapters, MP4Box mvhd, int samplesSize, boolean wide) {
+        ByteBuffer movieHeader = ByteBuffer.wrap(mvhd.getPayload());
+        long movieTimescale = getTimescale(movieHeader);
+        long lastEnd = chapters.get(chapters.size() - 1).getEndMillis();
+        long durationMillis = Math.max(lastEnd, getDurationMillis(movieHeader));
+
+        ByteBuffer tkhd = ByteBuffer.allocate(84);
+        tkhd.putInt(12, trackId);
+        tkhd.putInt(20, (int) (durationMillis * movieTimescale / 1000));
+        tkhd.putInt(40, 0x00010000).putInt(56, 0x00010000).putInt(72, 0x40000000);
+
+        ByteBuffer mdhd = ByteBuffer.allocate(24);
+        mdhd.putInt(12, TEXT_TIMESCALE);
+        mdhd.putInt(16, (int) durationMillis);
+        mdhd.putShort(20, (short) LANGUAGE_UNDETERMINED);
+
+        ByteBuffer hdlr = ByteBuffer.allocate(25);
+        hdlr.putInt(8, TEXT);
+
+        ByteBuffer gmhd = ByteBuffer.allocate(24);
+        gmhd.putInt(24).putInt(GMIN).putInt(0).putShort((short) 0x0040);
+        gmhd.putShort((short) 0x8000).putShort((short) 0x8000).putShort((short) 0x8000);
+
+        ByteBuffer dref = ByteBuffer.allocate(20);
+        dref.putInt(4, 1).putInt(8, 12).putInt(12, URL).putInt(16, 1);
+
+        // QuickTime text sample description, all defaults
+        ByteBuffer stsd = ByteBuffer.allocate(68);
+        stsd.putInt(4, 1).putInt(8, 60).putInt(12, TEXT).putShort(22, (short) 1);
+
+        ByteArrayOutputStream stts = new ByteArrayOutputStream();
+        int runs = 0;
+        long runDelta = -1;
+        int runCount = 0;
+        ByteArrayOutputStream sizes = new ByteArrayOutputStream();
+        for (int i = 0; i < chapters.size(); i++) {
+            long start = i == 0 ? 0 : chapters.get(i).getStartMillis();
+            long end = i + 1 < chapters.size() ? chapters.get(i + 1).getStartMillis() : durationMillis;
+            long delta = Math.max(0, end - start);
+            if (delta != runDelta && runCount > 0) {
+                writeInt(stts, runCount);
+                writeInt(stts, (int) runDelta);
+                runs++;
+                runCount = 0;
+            }
+            runDelta = delta;
+            runCount++;
+            writeInt(sizes, getSampleSize(chapters.get(i)));
+        }
+        writeInt(stts, runCount);
+        writeInt(stts, (int) runDelta);
+        runs++;
+
+        ByteBuffer sttsPayload = ByteBuffer.allocate(8 + stts.size());
+        sttsPayload.putInt(4, runs).position(8);
+        sttsPayload.put(stts.toByteArray());
+        ByteBuffer stsc = ByteBuffer.allocate(20);
+        stsc.putInt(4, 1).putInt(8, 1).putInt(12, chapters.size()).putInt(16, 1);
+        ByteBuffer stszPayload = ByteBuffer.allocate(12 + sizes.size());
+        stszPayload.putInt(8, chapters.size()).position(12);
+        stszPayload.put(sizes.toByteArray());
+        ByteBuffer chunkOffsets = ByteBuffer.allocate(wide ? 16 : 12);
+        chunkOffsets.putInt(4, 1);
+
+        MP4Box stbl = MP4Box.container(MP4Box.STBL);
+        stbl.getChildren().add(MP4Box.leaf(STSD, stsd.array()));
+        stbl.getChildren().add(MP4Box.leaf(STTS, sttsPayload.array()));
+        stbl.getChildren().add(MP4Box.leaf(STSC, stsc.array()));
+        stbl.getChildren().add(MP4Box.leaf(STSZ, stszPayload.array()));
+        stbl.getChildren().add(MP4Box.leaf(wide ? MP4Box.CO64 : MP4Box.STCO, chunkOffsets.array()));
+        MP4Box dinf = MP4Box.container(MP4Box.DINF);
+        dinf.getChildren().add(MP4Box.leaf(DREF, dref.array()));
+        MP4Box minf = MP4Box.container(MP4Box.MINF);
+        minf.getChildren().add(MP4Box.leaf(GMHD, gmhd.array()));
+        minf.getChildren().add(dinf);
+        minf.getChildren().add(stbl);
+        MP4Box mdia = MP4Box.container(MP4Box.MDIA);
+        mdia.getChildren().add(MP4Box.leaf(MDHD, mdhd.array()));
+        mdia.getChildren().add(MP4Box.leaf(MP4AtomWalker.HDLR, hdlr.array()));
+        mdia.getChildren().add(minf);
+        MP4Box trak = MP4Box.container(MP4Box.TRAK);
+        trak.getChildren().add(MP4Box.leaf(TKHD, tkhd.array()));
+        trak.getChildren().add(mdia);
+        return trak;
+    }
+
+    /**
+     * Encodes the chapter names as text samples: a 16-bit length, the UTF-8
+     * text and an 'encd' atom declaring UTF-8.
+     */
+    private static byte[] encodeSamples(List<Chapter> chapters) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        for (Chapter chapter : chapters) {
+            byte[] text = truncate(toName(chapter).getBytes(StandardCharsets.UTF_8), 0xffff);
+            bos.write(text.length >>> 8);
+            bos.write(text.length);
+            bos.write(text, 0, text.length);
+            writeInt(bos, 12);
+            writeInt(bos, ENCD);
+            writeInt(bos, 0x00000100);
+        }
+        return bos.toByteArray();
+    }
+
+    private static int getSampleSize(Chapter chapter) {
+        return 2 + truncate(toName(chapter).getBytes(StandardCharsets.UTF_8), 0xffff).length + 12;
+    }
+
+    private static ByteBuffer toMediaData(byte[] samples) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + samples.length);
+        buffer.putInt(8 + samples.length).putInt(MP4AtomWalker.MDAT).put(samples);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static MP4Box findAudioTrack(MP4Box moov) {
+        MP4Box first = null;
+        for (MP4Box trak : moov.getChildren()) {
+            if (trak.getType() != MP4Box.TRAK) {
+                continue;
+            }
+            if (getHandlerType(trak) == SOUN) {
+                return trak;
+            }
+            first = first != null ? first : trak;
+        }
+        return first;
+    }
+
+    private static int getHandlerType(MP4Box trak) {
+        MP4Box mdia = trak.getChild(MP4Box.MDIA);
+        MP4Box hdlr = mdia != null ? mdia.getChild(MP4AtomWalker.HDLR) : null;
+        return hdlr != null && hdlr.getPayload().length >= 12 ? ByteBuffer.wrap(hdlr.getPayload()).getInt(8) : 0;
+    }
+
+    private static MP4Box getSampleTable(MP4Box trak) {
+        MP4Box mdia = trak.getChild(MP4Box.MDIA);
+        MP4Box minf = mdia != null ? mdia.getChild(MP4Box.MINF) : null;
+        return minf != null ? minf.getChild(MP4Box.STBL) : null;
+    }
+
+    private static MP4Box getChunkOffsetTable(MP4Box trak) {
+        MP4Box stbl = getSampleTable(trak);
+        MP4Box stco = stbl.getChild(MP4Box.STCO);
+        return stco != null ? stco : stbl.getChild(MP4Box.CO64);
+    }
+
+    private static int getChunkCount(MP4Box trak) {
+        return ByteBuffer.wrap(getChunkOffsetTable(trak).getPayload()).getInt(4);
+    }
+
+    private static long getChunkOffset(MP4Box trak) {
+        MP4Box table = getChunkOffsetTable(trak);
+        ByteBuffer buffer = ByteBuffer.wrap(table.getPayload());
+        return table.getType() == MP4Box.CO64 ? buffer.getLong(8) : buffer.getInt(8) & 0xffffffffL;
+    }
+
+    private static void setChunkOffset(MP4Box trak, long offset) {
+        MP4Box table = getChunkOffsetTable(trak);
+        ByteBuffer buffer = ByteBuffer.wrap(table.getPayload());
+        if (table.getType() == MP4Box.CO64) {
+            buffer.putLong(8, offset);
+        } else {
+            buffer.putInt(8, (int) offset);
+        }
+    }
+
+    /**
+     * Takes the next free track ID from 'mvhd' and bumps it. A next ID that
+     * is already taken is not trusted.
+     */
+    private static int nextTrackId(MP4Box moov, MP4Box mvhd) {
+        ByteBuffer buffer = ByteBuffer.wrap(mvhd.getPayload());
+        int position = buffer.get(0) == 1 ? 108 : 96;
+        int trackId = buffer.getInt(position);
+        for (MP4Box trak : moov.getChildren()) {
+            MP4Box tkhd = trak.getType() == MP4Box.TRAK ? trak.getChild(TKHD) : null;
+            if (tkhd != null && getTrackId(ByteBuffer.wrap(tkhd.getPayload())) >= trackId) {
+                trackId = getTrackId(ByteBuffer.wrap(tkhd.getPayload())) + 1;
+            }
+        }
+        trackId = Math.max(trackId, 1);
+        buffer.putInt(position, trackId + 1);
+        return trackId;
+    }
+
+    private static int getTrackId(ByteBuffer tkhd) {
+        return tkhd.getInt(tkhd.get(0) == 1 ? 20 : 12);
+    }
+
+    /**
+     * Gets the timescale of an 'mvhd' or 'mdhd' payload, both have it at the
+     * same place.
+     */
+    private static long getTimescale(ByteBuffer header) {
+        return header.getInt(header.get(0) == 1 ? 20 : 12) & 0xffffffffL;
+    }
+
+    private static long getDurationMillis(ByteBuffer mvhd) {
+        long timescale = getTimescale(mvhd);
+        long duration = mvhd.get(0) == 1 ? mvhd.getLong(24) : mvhd.getInt(16) & 0xffffffffL;
+        return timescale > 0 ? duration * 1000 / timescale : 0;
+    }
+
+    /**
+     * Splits a chapter name written by {@link #toName(Chapter)} back into
+     * artist and title.
+     */
+    static Chapter toChapter(long startMillis, long endMillis, String name) {
+        int separator = name.indexOf(SEPARATOR);
+        if (separator < 0) {
+            return new Chapter(startMillis, endMillis, null, name);
+        }
+        return new Chapter(startMillis, endMillis, name.substring(0, separator), name.substring(separator + SEPARATOR.length()));
+    }
+
+    /**
+     * MP4 chapters have a single name, "artist - title" when both are known.
+     */
+    static String toName(Chapter chapter) {
+        String artist = chapter.getArtist() != null ? chapter.getArtist() : "";
+        String title = chapter.getTitle() != null ? chapter.getTitle() : "";
+        if (artist.isEmpty()) {
+            return title;
+        }
+        return title.isEmpty() ? artist : artist + SEPARATOR + title;
+    }
+
+    /**
+     * Cuts UTF-8 bytes to a maximum length without splitting a character.
+     */
+    private static byte[] truncate(byte[] utf8, int maxLength) {
+        if (utf8.length <= maxLength) {
+            return utf8;
+        }
+        int length = maxLength;
+        while (length > 0 && (utf8[length] & 0xc0) == 0x80) {
+            length--;
+        }
+        byte[] truncated = new byte[length];
+        System.arraycopy(utf8, 0, truncated, 0, length);
+        return truncated;
+    }
+
+    private static void writeInt(ByteArrayOutputStream bos, int value) {
+        bos.write(value >>> 24);
+        bos.write(value >>> 16);
+        bos.write(value >>> 8);
+        bos.write(value);
+    }
+
+}
@@ -12,87 +12,161 @@ package org.github.euphory.tags;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 
 public final class MP4Tag {
 
+    public static final int TITLE = 0xa96e616d;  // '©nam'
+    public static final int ARTIST = 0xa9415254; // '©ART'
+    public static final int ALBUM = 0xa9616c62;  // '©alb'
+    public static final int GENRE = 0xa967656e;  // '©gen'
+    public static final int YEAR = 0xa9646179;   // '©day'
+    public static final int TRACK = 0x74726b6e;  // 'trkn'
+    public static final int COVER = 0x636f7672;  // 'covr'
+
+    private static final int DATA_TYPE_IMPLICIT = 0;
+    private static final int DATA_TYPE_UTF8 = 1;
+    private static final int DATA_TYPE_UTF16 = 2;
+
+    /**
+     * Parses the payload of an 'ilst' atom into a map of tag names and values.
+     *
+     * @param tagData The 'ilst' payload, a sequence of item atoms.
+     * @return The tags found.
+     */
     public static Map<String, String> parseTagData(byte[] tagData) {
-        Map<String, String> tags = new HashMap<>();
-        int tagSize = tagData.length;
-        int offset = 0;
-        while (offset < tagSize) {
-            int atomSize = getInt(tagData, offset);
-            int atomType = getInt(tagData, offset + 4);
-            String atomName = getAtomName(atomType);
-
-            if (atomName != null) {
-                String value = getString(tagData, offset + 8, atomSize - 8);
-                tags.put(atomName, value);
-            }
+        return new MP4TagView().wrap(ByteBuffer.wrap(tagData)).toMap(new HashMap<>());
+    }
 
-            offset += atomSize;
+    /**
+     * Decodes the value of an 'ilst' item from its 'data' child atom.
+     *
+     * @param buffer   The buffer holding the item payload.
+     * @param offset   The offset of the item payload.
+     * @param length   The length of the item payload.
+     * @param atomType The item type, needed for binary items like 'trkn'.
+     * @return The decoded value, or null if the item holds no usable data.
+     */
+    public static String getItemValue(ByteBuffer buffer, int offset, int length, int atomType) {
+        if (length < 16 || buffer.getInt(offset + 4) != MP4AtomWalker.DATA) {
+            return null;
+        }
+        int dataSize = Math.min(buffer.getInt(offset), length);
+        int dataType = buffer.getInt(offset + 8) & 0xffffff;
+        int valueOffset = offset + 16;
+        int valueLength = dataSize - 16;
+        if (valueLength < 0) {
+            return null;
+        }
+        switch (dataType) {
+            case DATA_TYPE_UTF8: return getString(buffer, valueOffset, valueLength, StandardCharsets.UTF_8);
+            case DATA_TYPE_UTF16: return getString(buffer, valueOffset, valueLength, StandardCharsets.UTF_16BE);
+            case DATA_TYPE_IMPLICIT:
+                if (atomType == TRACK && valueLength >= 4) {
+                    return Integer.toString(buffer.getShort(valueOffset + 2) & 0xffff);
+                }
+                return null;
+            default: return null;
         }
-        return tags;
     }
 
     public static String getAtomName(int atomType) {
         switch (atomType) {
-            case 0x7469646c: return "title";
-            case 0x61727473: return "artist";
-            case 0x616c6274: return "album";
-            case 0x67656e72: return "genre";
-            case 0x79656172: return "year";
-            case 0x7472616b: return "track";
+            case TITLE: return "title";
+            case ARTIST: return "artist";
+            case ALBUM: return "album";
+            case GENRE: return "genre";
+            case YEAR: return "year";
+            case TRACK: return "track";
             default: return null;
         }
     }
 
+    /**
+     * Serializes the tags as 'ilst' items, each one holding a 'data' atom.
+     * Tags without a known item type and empty values are left out.
+     *
+     * @param tags The tags to serialize.
+     * @return The 'ilst' payload.
+     */
     public static byte[] toBytes(Map<String, String> tags) {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         DataOutputStream dos = new DataOutputStream(bos);
 
         try {
-            dos.writeInt(tags.size() * 16); // Assuming each tag is 16 bytes for simplicity
-            dos.writeInt(0x66747970); // 'ftyp'
-
             for (Map.Entry<String, String> entry : tags.entrySet()) {
                 String key = entry.getKey();
                 String value = entry.getValue();
                 int atomType = getAtomType(key);
-                if (atomType != 0) {
-                    dos.writeInt(value.length() + 8);
-                    dos.writeInt(atomType);
-                    dos.writeBytes(value);
+                if (atomType == 0 || value == null || value.isEmpty()) {
+                    continue;
                 }
+                byte[] valueBytes;
+                int dataType;
+                if (atomType == TRACK) {
+                    Integer track = parseTrackNumber(value);
+                    if (track == null) {
+                        continue;
+                    }
+                    valueBytes = new byte[] { 0, 0, (byte) (track >> 8), (byte) (int) track, 0, 0, 0, 0 };
+                    dataType = DATA_TYPE_IMPLICIT;
+                } else {
+                    valueBytes = value.getBytes(StandardCharsets.UTF_8);
+                    dataType = DATA_TYPE_UTF8;
+                }
+                dos.writeInt(valueBytes.length + 24);
+                dos.writeInt(atomType);
+                dos.writeInt(valueBytes.length + 16);
+                dos.writeInt(MP4AtomWalker.DATA);
+                dos.writeInt(dataType);
+                dos.writeInt(0); // locale
+                dos.write(valueBytes);
             }
-            dos.writeInt(0x6d646174); // 'mdat'
         } catch (IOException e) {
             e.printStackTrace();
         }
         return bos.toByteArray();
     }
 
+    private static Integer parseTrackNumber(String value) {
+        int end = 0;
+        while (end < value.length() && Character.isDigit(value.charAt(end))) {
+            end++;
+        }
+        if (end == 0 || end > 5) {
+            return null;
+        }
+        int track = Integer.parseInt(value.substring(0, end));
+        return track <= 0xffff ? track : null;
+    }
+
     public static int getAtomType(String key) {
         switch (key) {
-            case "title": return 0x7469646c;
-            case "artist": return 0x61727473;
-            case "album": return 0x616c6274;
-            case "genre": return 0x67656e72;
-            case "year": return 0x79656172;
-            case "track": return 0x7472616b;
+            case "title": return TITLE;
+            case "artist": return ARTIST;
+            case "album": return ALBUM;
+            case "genre": return GENRE;
+            case "year": return YEAR;
+            case "track": return TRACK;
             default: return 0;
         }
     }
 
-    private static int getInt(byte[] data, int offset) {
-        return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16 | (data[offset + 2] & 0xff) << 8 | (data[offset + 3] & 0xff);
+    public static String getString(byte[] data, int offset, int length) {
+        return new String(data, offset, length, StandardCharsets.UTF_8);
     }
 
-    public static String getString(byte[] data, int offset, int length) {
+    private static String getString(ByteBuffer buffer, int offset, int length, Charset charset) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + offset, length, charset);
+        }
         byte[] bytes = new byte[length];
-        System.arraycopy(data, offset, bytes, 0, length);
-        return new String(bytes);
+        buffer.duplicate().position(offset).get(bytes);
+        return new String(bytes, charset);
     }
 
     public static String getTag(Map<String, String> tags, String key) {
@@ -9,88 +9,126 @@
  */
 package org.github.euphory.tags;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public final class MP4TagManager {
-    
-    private static final int MP4_TAG_HEADER_SIZE = 8;
 
+    /**
+     * One reader per thread, so its buffer is reused from file to file.
+     */
+    private static final ThreadLocal<MP4TagReader> READERS = ThreadLocal.withInitial(MP4TagReader::new);
+
+    /**
+     * Reads the tags from the moov/udta/meta/ilst atom. Only atom headers are
+     * read on the way down and 'mdat' is skipped by offset, wherever it sits.
+     * The items go through the reader of the calling thread, only the map
+     * returned is made per file, sized to the items so a caller can keep it.
+     *
+     * @param file The file to read.
+     * @return The tags found, or null if the file is not an MP4 file.
+     * @throws IOException If the atom tree cannot be read.
+     */
     public static Map<String, String> readMP4Tag(RandomAccessFile file) throws IOException {
-        // Seek to the beginning of the file
-        file.seek(0);
-
-        // Read the MP4 tag header
-        byte[] header = new byte[MP4_TAG_HEADER_SIZE];
-        file.read(header);
-
-        // Check if the file has an MP4 tag
-        if (header[0] != 'f' || header[1] != 't' || header[2] != 'y' || header[3] != 'p') {
+        MP4TagView view = READERS.get().read(file.getChannel());
+        if (view == null) {
             return null;
         }
-
-        // Read the MP4 tag data
-        int tagSize = getInt(header, 4);
-        byte[] tagData = new byte[tagSize];
-        file.read(tagData);
-
-        // Create an MP4Tag object
-       Map<String, String> tags = MP4Tag.parseTagData(tagData);
-
-        // Parse the tag data and set tags
-        int offset = 0;
-        while (offset < tagSize) {
-            int atomSize = getInt(tagData, offset);
-            int atomType = getInt(tagData, offset + 4);
-            String atomName = MP4Tag.getAtomName(atomType);
-
-            if (atomName != null) {
-                String value = MP4Tag.getString(tagData, offset + 8, atomSize - 8);
-                MP4Tag.setTag(tags, atomName, value);
-            }
-
-            offset += atomSize;
-        }
-
-        return tags;
+        return view.toMap(new HashMap<>(view.size() * 2));
     }
 
-    public static void writeMP4Tag(RandomAccessFile file, Map<String, String> tags) throws IOException {
-        // Seek to the beginning of the file
-        file.seek(0);
-
-        // Create a ByteArrayOutputStream to write the tag data
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(bos);
-
-        // Write the MP4 tag header
-        dos.writeInt(MP4Tag.toBytes(tags).length);
-        dos.writeInt(0x66747970); // 'ftyp'
+    /**
+     * Writes the tags to an MP4 file, reusing the padding around 'ilst' so
+     * that usually only the tag bytes are written.
+     *
+     * @param file The file to write.
+     * @param tags The tags to write.
+     * @throws IOException If the file is not an MP4 file or cannot be written.
+     * @see MP4TagWriter
+     */
+    public static void writeMP4Tag(Path file, Map<String, String> tags) throws IOException {
+        new MP4TagWriter().write(file, tags);
+    }
 
-        // Write the tag data
-        for (Map.Entry<String, String> entry : tags.entrySet()) {
-            String key = entry.getKey();
-            String value = entry.getValue();
-            int atomType = MP4Tag.getAtomType(key);
-            if (atomType != 0) {
-                dos.writeInt(value.length() + 8);
-                dos.writeInt(atomType);
-                dos.writeBytes(value);
+    /**
+     * Finds the cover of an MP4 file, the first image of its 'covr' item.
+     * Only atom headers are read, the image is located by its offset.
+     *
+     * @param file The file to read.
+     * @return The cover, or null if the file has none or is not an MP4 file.
+     * @throws IOException If the atom tree cannot be read.
+     */
+    public static CoverArt findCover(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MP4AtomWalker walker = new MP4AtomWalker(channel);
+            if (!walker.isMP4()) {
+                return null;
+            }
+            MP4Atom[] path = walker.findPath(MP4AtomWalker.MOOV, MP4AtomWalker.UDTA, MP4AtomWalker.META, MP4AtomWalker.ILST);
+            MP4Atom covr = path != null ? walker.findChild(path[path.length - 1], MP4Tag.COVER) : null;
+            MP4Atom data = covr != null ? walker.findChild(covr, MP4AtomWalker.DATA) : null;
+            if (data == null || data.getDataSize() <= 8 || data.getDataSize() - 8 > Integer.MAX_VALUE) {
+                return null;
             }
+            // Type 13 is JPEG and 14 PNG, anything else is told by the image itself
+            int dataType = walker.readFully(data.getDataOffset(), 4).getInt(0) & 0xffffff;
+            int length = (int) (data.getDataSize() - 8);
+            String mimeType;
+            if (dataType == 13 || dataType == 14) {
+                mimeType = dataType == 14 ? CoverArt.PNG : CoverArt.JPEG;
+            } else {
+                ByteBuffer magic = walker.readFully(data.getDataOffset() + 8, Math.min(4, length));
+                byte[] bytes = new byte[magic.remaining()];
+                magic.get(bytes);
+                mimeType = CoverArt.getMimeType(bytes);
+            }
+            return new CoverArt(mimeType, data.getDataOffset() + 8, length);
         }
+    }
 
-        // Write the MP4 tag footer
-        dos.writeInt(0x6d646174); // 'mdat'
+    /**
+     * Writes the cover of an MP4 file, replacing its 'covr' item. The padding
+     * around 'ilst' is reused as for the other tags.
+     *
+     * @param file  The file to write.
+     * @param image The image, JPEG or PNG, or null to remove the cover.
+     * @throws IOException If the file is not an MP4 file or cannot be written.
+     * @see MP4TagWriter
+     */
+    public static void writeCover(Path file, byte[] image) throws IOException {
+        new MP4TagWriter().writeCover(file, image);
+    }
 
-        // Write the tag data to the file
-        file.write(bos.toByteArray());
+    /**
+     * Reads the chapters of an MP4 file, from its chapter text track or else
+     * from its 'chpl' atom. Chapter titles are only read when asked for.
+     *
+     * @param file The file to read.
+     * @return The chapters, sorted by start time.
+     * @throws IOException If the atom tree cannot be read.
+     * @see MP4Chapters
+     */
+    public static List<Chapter> readChapters(Path file) throws IOException {
+        return MP4Chapters.readChapters(file);
     }
 
-private static int getInt(byte[] data, int offset) {
-        return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16 | (data[offset + 2] & 0xff) << 8 | (data[offset + 3] & 0xff);
+    /**
+     * Writes the chapters of an MP4 file, both as a chapter text track and
+     * as a 'chpl' atom.
+     *
+     * @param file     The file to write.
+     * @param chapters The chapters, in playing order.
+     * @throws IOException If the file is not an MP4 file or cannot be written.
+     */
+    public static void writeChapters(Path file, List<Chapter> chapters) throws IOException {
+        MP4Chapters.writeChapters(file, chapters);
     }
-    
+
 }
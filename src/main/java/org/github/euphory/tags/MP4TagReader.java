@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.tags;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Reads the 'ilst' items of MP4 files into a buffer and a view that are
+ * reused from one file to the next, so reading the tags of many files makes
+ * almost no garbage: the buffer grows to the biggest tag seen and stays.
+ * Items too big to be text, like cover art, are left on disk. A reader is
+ * meant to be used by one thread at a time.
+ */
+public final class MP4TagReader {
+
+    /**
+     * Items bigger than this are not text, for example cover art, and are
+     * skipped without being read.
+     */
+    public static final int MAX_ITEM_SIZE = 64 * 1024;
+
+    private static final int HEADER_SIZE = 8;
+
+    private ByteBuffer buffer = ByteBuffer.allocate(4096);
+    private final MP4TagView view = new MP4TagView();
+
+    /**
+     * Reads the items of the moov/udta/meta/ilst atom.
+     *
+     * @param channel The file, its position is never changed.
+     * @return The view of the items, valid until the next read, or null if
+     *         the file is not an MP4 file.
+     * @throws IOException If the atom tree cannot be read.
+     */
+    public MP4TagView read(FileChannel channel) throws IOException {
+        MP4AtomWalker walker = new MP4AtomWalker(channel);
+        if (!walker.isMP4()) {
+            return null;
+        }
+        buffer.clear();
+        MP4Atom[] path = walker.findPath(MP4AtomWalker.MOOV, MP4AtomWalker.UDTA, MP4AtomWalker.META, MP4AtomWalker.ILST);
+        if (path != null) {
+            MP4Atom ilst = path[path.length - 1];
+            if (ilst.getDataSize() <= MAX_ITEM_SIZE) {
+                // Only text in there, one read gets all of it
+                read(channel, ilst.getDataOffset(), (int) ilst.getDataSize());
+            } else {
+                readItems(channel, walker, ilst);
+            }
+        }
+        buffer.flip();
+        return view.wrap(buffer);
+    }
+
+    /**
+     * Reads the small items one at a time, walking over the big ones.
+     */
+    private void readItems(FileChannel channel, MP4AtomWalker walker, MP4Atom ilst) throws IOException {
+        long offset = ilst.getDataOffset();
+        long limit = ilst.getEnd();
+        while (limit - offset >= HEADER_SIZE) {
+            ByteBuffer header = walker.readFully(offset, HEADER_SIZE);
+            long size = header.getInt(0) & 0xffffffffL;
+            if (size == 1 && limit - offset >= 16) {
+                // A 64-bit size is never used for text, the item is only skipped
+                size = walker.readFully(offset, 16).getLong(8);
+                if (size < 16 || size > limit - offset) {
+                    return;
+                }
+            } else if (size == 0) {
+                size = limit - offset;
+            } else if (size < HEADER_SIZE || size > limit - offset) {
+                return;
+            } else if (size <= MAX_ITEM_SIZE) {
+                read(channel, offset, (int) size);
+            }
+            offset += size;
+        }
+    }
+
+    /**
+     * Appends a range of the file to the buffer, growing it when needed.
+     */
+    private void read(FileChannel channel, long offset, int length) throws IOException {
+        if (buffer.remaining() < length) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+        int end = buffer.position() + length;
+        buffer.limit(end);
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of file at offset " + position);
+            }
+            position += read;
+        }
+        buffer.limit(buffer.capacity());
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.tags;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * A view of the items of an 'ilst' atom, over a buffer holding them back to
+ * back. Wrapping a buffer only indexes the item offsets by fourcc, values
+ * are decoded when asked for, so items nobody looks at cost nothing. The
+ * view and its index are reused by every wrap: a view is only valid until
+ * its buffer or the view itself is reused.
+ */
+public final class MP4TagView {
+
+    private static final int HEADER_SIZE = 8;
+
+    private ByteBuffer buffer;
+    private final IntIntMap offsets = new IntIntMap();
+    private int[] types = new int[16];
+    private int count;
+
+    /**
+     * Indexes the items from the position to the limit of a buffer, the
+     * buffer itself is not changed. A later item replaces an earlier one of
+     * the same type, the index stops at the first item with an invalid size.
+     *
+     * @param buffer The items.
+     * @return This view.
+     */
+    public MP4TagView wrap(ByteBuffer buffer) {
+        this.buffer = buffer;
+        offsets.clear();
+        count = 0;
+        int offset = buffer.position();
+        int limit = buffer.limit();
+        while (limit - offset >= HEADER_SIZE) {
+            int size = buffer.getInt(offset);
+            int type = buffer.getInt(offset + 4);
+            if (size < HEADER_SIZE || size > limit - offset) {
+                break;
+            }
+            if (offsets.get(type) < 0) {
+                if (count == types.length) {
+                    types = Arrays.copyOf(types, count * 2);
+                }
+                types[count++] = type;
+            }
+            offsets.put(type, offset);
+            offset += size;
+        }
+        return this;
+    }
+
+    /**
+     * @return The number of distinct item types.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @param index The index of the item type, in the order first found.
+     * @return The fourcc of the item type.
+     */
+    public int getType(int index) {
+        if (index >= count) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + count);
+        }
+        return types[index];
+    }
+
+    public boolean contains(int type) {
+        return offsets.get(type) >= 0;
+    }
+
+    /**
+     * Decodes the value of an item, UTF-8 or UTF-16 text, or the number of a
+     * 'trkn' item.
+     *
+     * @param type The fourcc of the item.
+     * @return The value, or null if there is no such item or it holds no text.
+     */
+    public String getString(int type) {
+        int offset = offsets.get(type);
+        if (offset < 0) {
+            return null;
+        }
+        int size = buffer.getInt(offset);
+        return MP4Tag.getItemValue(buffer, offset + HEADER_SIZE, size - HEADER_SIZE, type);
+    }
+
+    /**
+     * Gets the number of the 'trkn' item without making a string of it.
+     *
+     * @return The track number, or -1 if there is none.
+     */
+    public int getTrackNumber() {
+        int offset = offsets.get(MP4Tag.TRACK);
+        if (offset < 0 || buffer.getInt(offset) < HEADER_SIZE + 20 || buffer.getInt(offset + HEADER_SIZE + 4) != MP4AtomWalker.DATA) {
+            return -1;
+        }
+        return buffer.getShort(offset + HEADER_SIZE + 18) & 0xffff;
+    }
+
+    /**
+     * Puts the items with a known tag name into a map.
+     *
+     * @param tags The map to fill.
+     * @return The map.
+     */
+    public Map<String, String> toMap(Map<String, String> tags) {
+        for (int i = 0; i < count; i++) {
+            String name = MP4Tag.getAtomName(types[i]);
+            if (name != null) {
+                String value = getString(types[i]);
+                if (value != null) {
+                    tags.put(name, value);
+                }
+            }
+        }
+        return tags;
+    }
+
+}
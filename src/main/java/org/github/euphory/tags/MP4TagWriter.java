@@ -0,0 +1,365 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.tags;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * Writes MP4 tags with as little I/O as possible. The new 'ilst' is first
+ * fitted into a 'free' or 'skip' atom next to it or next to one of its
+ * parents, so only the tag bytes are written. When the padding runs out the
+ * 'moov' atom is rebuilt with fresh padding, and only when 'moov' cannot grow
+ * in place the file is copied with its chunk offset tables fixed.
+ */
+public final class MP4TagWriter {
+
+    /**
+     * The padding reserved after 'ilst' when the 'moov' atom is rebuilt.
+     */
+    public static final int DEFAULT_PADDING = 4096;
+
+    /**
+     * Bytes between 'ilst' and the padding have to be moved along with it,
+     * padding further away than this is not worth it.
+     */
+    private static final int MAX_MOVED_BYTES = 64 * 1024;
+
+    private static final byte[] ITUNES_HANDLER = {
+        0, 0, 0, 0,             // version and flags
+        0, 0, 0, 0,             // pre-defined
+        'm', 'd', 'i', 'r',     // handler type
+        'a', 'p', 'p', 'l',     // reserved
+        0, 0, 0, 0, 0, 0, 0, 0, // reserved
+        0                       // empty name
+    };
+
+    private final int padding;
+
+    /**
+     * Constructs a new MP4TagWriter reserving the default padding.
+     */
+    public MP4TagWriter() {
+        this(DEFAULT_PADDING);
+    }
+
+    /**
+     * Constructs a new MP4TagWriter.
+     *
+     * @param padding The padding to reserve when the 'moov' atom is rebuilt.
+     */
+    public MP4TagWriter(int padding) {
+        if (padding < 0) {
+            throw new IllegalArgumentException("Padding must not be negative: " + padding);
+        }
+        this.padding = padding;
+    }
+
+    public int getPadding() {
+        return padding;
+    }
+
+    /**
+     * Writes the tags to the file. The tags replace every item with a known
+     * type, other items like cover art are kept.
+     *
+     * @param path The file to write.
+     * @param tags The tags to write.
+     * @throws IOException If the file is not an MP4 file or cannot be written.
+     */
+    public void write(Path path, Map<String, String> tags) throws IOException {
+        writeItems(path, MP4Tag.toBytes(tags), MP4TagWriter::isManaged);
+    }
+
+    /**
+     * Writes the cover, replacing the 'covr' item and keeping every other
+     * item.
+     *
+     * @param path  The file to write.
+     * @param image The image, JPEG or PNG, or null to remove the cover.
+     * @throws IOException If the file is not an MP4 file or cannot be written.
+     */
+    public void writeCover(Path path, byte[] image) throws IOException {
+        byte[] items = new byte[0];
+        if (image != null) {
+            ByteBuffer covr = ByteBuffer.allocate(image.length + 24);
+            covr.putInt(image.length + 24);
+            covr.putInt(MP4Tag.COVER);
+            covr.putInt(image.length + 16);
+            covr.putInt(MP4AtomWalker.DATA);
+            covr.putInt(CoverArt.PNG.equals(CoverArt.getMimeType(image)) ? 14 : 13);
+            covr.putInt(0); // locale
+            covr.put(image);
+            items = covr.array();
+        }
+        writeItems(path, items, type -> type == MP4Tag.COVER);
+    }
+
+    /**
+     * Writes new 'ilst' items in place of the old items of the replaced
+     * types.
+     */
+    private void writeItems(Path path, byte[] items, IntPredicate replaced) throws IOException {
+        Path copy;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MP4AtomWalker walker = new MP4AtomWalker(channel);
+            if (!walker.isMP4()) {
+                throw new IOException("Not an MP4 file: " + path);
+            }
+            MP4Atom[] ilstPath = walker.findPath(MP4AtomWalker.MOOV, MP4AtomWalker.UDTA, MP4AtomWalker.META, MP4AtomWalker.ILST);
+            if (ilstPath != null && writeInPlace(channel, walker, ilstPath, items, replaced)) {
+                return;
+            }
+
+            // No padding left, rebuild 'moov' with fresh padding after 'ilst'
+            MP4Atom moov = walker.findChild(null, MP4AtomWalker.MOOV);
+            if (moov == null) {
+                throw new IOException("No 'moov' atom in " + path);
+            }
+            MP4Box moovBox = MP4Box.parse(MP4AtomWalker.MOOV, walker.readData(moov));
+            MP4Box meta = getOrCreateMeta(moovBox);
+            MP4Box ilst = meta.getOrAddChild(MP4AtomWalker.ILST);
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            ByteBuffer oldItems = ByteBuffer.wrap(ilst.getPayload());
+            while (oldItems.remaining() >= 8) {
+                int size = oldItems.getInt(oldItems.position());
+                if (size < 8 || size > oldItems.remaining()) {
+                    break;
+                }
+                if (!replaced.test(oldItems.getInt(oldItems.position() + 4))) {
+                    payload.write(ilst.getPayload(), oldItems.position(), size);
+                }
+                oldItems.position(oldItems.position() + size);
+            }
+            payload.write(items);
+            ilst.setPayload(payload.toByteArray());
+            setPadding(meta, ilst, padding);
+            copy = replaceMoov(path, channel, walker, moov, moovBox);
+        }
+        if (copy != null) {
+            TagFiles.replaceFile(copy, path);
+        }
+    }
+
+    /**
+     * Tries to write the new items over the old ones, growing or shrinking the
+     * padding next to 'ilst' or next to one of its parents.
+     */
+    private boolean writeInPlace(FileChannel channel, MP4AtomWalker walker, MP4Atom[] path, byte[] items,
+                                 IntPredicate replaced) throws IOException {
+        MP4Atom ilst = path[path.length - 1];
+        List<MP4Atom> oldItems = walker.getChildren(ilst);
+
+        // Leading items that are not replaced stay where they are and are not rewritten
+        long tailOffset = ilst.getDataOffset();
+        int index = 0;
+        while (index < oldItems.size() && !replaced.test(oldItems.get(index).getType())) {
+            tailOffset = oldItems.get(index).getEnd();
+            index++;
+        }
+        ByteArrayOutputStream tail = new ByteArrayOutputStream();
+        for (; index < oldItems.size(); index++) {
+            MP4Atom item = oldItems.get(index);
+            if (!replaced.test(item.getType())) {
+                if (item.getSize() > MAX_MOVED_BYTES) {
+                    return false;
+                }
+                tail.write(readBytes(walker, item.getOffset(), (int) item.getSize()));
+            }
+        }
+        tail.write(items);
+        byte[] tailBytes = tail.toByteArray();
+        long delta = tailOffset + tailBytes.length - ilst.getEnd();
+
+        for (int level = path.length - 1; level >= 0; level--) {
+            long paddingOffset = path[level].getEnd();
+            long parentEnd = level == 0 ? walker.getFileSize() : path[level - 1].getEnd();
+            long paddingSize = 0;
+            if (parentEnd - paddingOffset >= 8) {
+                MP4Atom next = walker.readAtom(paddingOffset, parentEnd);
+                if (isPadding(next.getType())) {
+                    paddingSize = next.getSize();
+                }
+            }
+            // Without padding, only a shrinking 'ilst' can leave a new 'free' atom behind
+            if (paddingSize == 0 && level != path.length - 1) {
+                continue;
+            }
+            long newPaddingSize = paddingSize - delta;
+            long movedSize = paddingOffset - ilst.getEnd();
+            if ((newPaddingSize != 0 && newPaddingSize < 8) || newPaddingSize > 0xffffffffL || movedSize > MAX_MOVED_BYTES) {
+                continue;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(tailBytes.length + (int) movedSize + (newPaddingSize > 0 ? 8 : 0));
+            buffer.put(tailBytes);
+            buffer.put(readBytes(walker, ilst.getEnd(), (int) movedSize));
+            if (newPaddingSize > 0) {
+                buffer.putInt((int) newPaddingSize);
+                buffer.putInt(MP4AtomWalker.FREE);
+            }
+            buffer.flip();
+            TagFiles.writeFully(channel, buffer, tailOffset);
+            for (int i = level; i < path.length; i++) {
+                writeSize(channel, path[i], path[i].getSize() + delta);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes a rebuilt 'moov' atom. The size change is absorbed by a 'free'
+     * atom right after it when possible, a trailing 'moov' is simply
+     * rewritten, otherwise the file is copied with its chunk offsets shifted,
+     * turning the 'stco' tables pushed past 4 GiB into 'co64'.
+     *
+     * @return The copy that has to replace the file, or null if it was written in place.
+     */
+    static Path replaceMoov(Path path, FileChannel channel, MP4AtomWalker walker, MP4Atom moov, MP4Box newMoov) throws IOException {
+        return replaceMoov(path, channel, walker, moov, newMoov, walker.getFileSize());
+    }
+
+    /**
+     * Writes a rebuilt 'moov' atom as if the file ended at the given offset.
+     * The atoms past it are left in the file written in place, for the caller
+     * to drop once it is done, and are not copied.
+     *
+     * @return The copy that has to replace the file, or null if it was written in place.
+     */
+    static Path replaceMoov(Path path, FileChannel channel, MP4AtomWalker walker, MP4Atom moov, MP4Box newMoov,
+            long fileSize) throws IOException {
+        long newSize = newMoov.getSize();
+        long delta = newSize - moov.getSize();
+
+        long paddingSize = 0;
+        if (fileSize - moov.getEnd() >= 8) {
+            MP4Atom next = walker.readAtom(moov.getEnd(), fileSize);
+            if (isPadding(next.getType())) {
+                paddingSize = next.getSize();
+            }
+        }
+        long newPaddingSize = paddingSize - delta;
+        if (moov.getEnd() < fileSize && (newPaddingSize == 0 || (newPaddingSize >= 8 && newPaddingSize <= 0xffffffffL))) {
+            TagFiles.writeFully(channel, toBuffer(newMoov, newPaddingSize), moov.getOffset());
+            return null;
+        }
+
+        // Nothing follows 'moov', so no chunk moves
+        if (moov.getEnd() == fileSize) {
+            TagFiles.writeFully(channel, toBuffer(newMoov, 0), moov.getOffset());
+            if (delta < 0 && fileSize == walker.getFileSize()) {
+                channel.truncate(moov.getOffset() + newSize);
+            }
+            return null;
+        }
+
+        // A widened table grows 'moov' and moves the chunks further, so check again
+        do {
+            delta = newMoov.getSize() - moov.getSize();
+        } while (newMoov.widenChunkOffsets(moov.getEnd(), delta));
+        newMoov.shiftChunkOffsets(moov.getEnd(), delta);
+        Path copy = TagFiles.createCopy(path);
+        try (FileChannel out = TagFiles.openCopy(copy)) {
+            TagFiles.transfer(channel, 0, moov.getOffset(), out);
+            ByteBuffer buffer = toBuffer(newMoov, 0);
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            TagFiles.transfer(channel, moov.getEnd(), fileSize - moov.getEnd(), out);
+            out.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(copy);
+            throw e;
+        }
+        return copy;
+    }
+
+    /**
+     * Gets the 'meta' atom under moov/udta, creating it with an iTunes
+     * handler if missing.
+     */
+    static MP4Box getOrCreateMeta(MP4Box moov) {
+        MP4Box udta = moov.getOrAddChild(MP4AtomWalker.UDTA);
+        MP4Box meta = udta.getChild(MP4AtomWalker.META);
+        if (meta == null) {
+            meta = MP4Box.container(MP4AtomWalker.META);
+            meta.getChildren().add(MP4Box.leaf(MP4AtomWalker.HDLR, ITUNES_HANDLER.clone()));
+            udta.getChildren().add(meta);
+        }
+        return meta;
+    }
+
+    /**
+     * Replaces the padding right after an atom with a single 'free' atom.
+     */
+    static void setPadding(MP4Box parent, MP4Box atom, int padding) {
+        List<MP4Box> children = parent.getChildren();
+        int index = children.indexOf(atom) + 1;
+        while (index < children.size() && isPadding(children.get(index).getType())) {
+            children.remove(index);
+        }
+        if (padding >= 8) {
+            children.add(index, MP4Box.leaf(MP4AtomWalker.FREE, new byte[padding - 8]));
+        }
+    }
+
+    private static boolean isManaged(int atomType) {
+        return MP4Tag.getAtomName(atomType) != null;
+    }
+
+    private static boolean isPadding(int atomType) {
+        return atomType == MP4AtomWalker.FREE || atomType == MP4AtomWalker.SKIP;
+    }
+
+    private static ByteBuffer toBuffer(MP4Box box, long paddingSize) {
+        ByteBuffer buffer = ByteBuffer.allocate((int) box.getSize() + (paddingSize > 0 ? 8 : 0));
+        box.writeTo(buffer);
+        if (paddingSize > 0) {
+            buffer.putInt((int) paddingSize);
+            buffer.putInt(MP4AtomWalker.FREE);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static byte[] readBytes(MP4AtomWalker walker, long offset, int length) throws IOException {
+        ByteBuffer buffer = walker.readFully(offset, length);
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static void writeSize(FileChannel channel, MP4Atom atom, long size) throws IOException {
+        ByteBuffer buffer;
+        long position;
+        if (atom.getHeaderSize() == 16) {
+            buffer = ByteBuffer.allocate(8).putLong(0, size);
+            position = atom.getOffset() + 8;
+        } else if (size <= 0xffffffffL) {
+            buffer = ByteBuffer.allocate(4).putInt(0, (int) size);
+            position = atom.getOffset();
+        } else {
+            throw new IOException("Atom '" + MP4Atom.typeName(atom.getType()) + "' outgrows its 32-bit size");
+        }
+        TagFiles.writeFully(channel, buffer, position);
+    }
+
+}
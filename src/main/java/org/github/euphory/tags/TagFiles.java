@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2024 Daniel Toffetti
+ *
+ * This file is licensed under the MIT License.
+ * You may obtain a copy of the license at:
+ * https://opensource.org/licenses/MIT
+ *
+ * Alternatively, see the LICENSE file included with this source code for the full license text.
+ */
+package org.github.euphory.tags;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+
+/**
+ * @author Daniel Toffetti
+ *
+ * File helpers shared by the tag writers.
+ */
+final class TagFiles {
+
+    private static final int COPY_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    private TagFiles() {
+    }
+
+    /**
+     * Reads a range of bytes into a new buffer.
+     *
+     * @param channel  The channel to read from.
+     * @param position The absolute offset.
+     * @param length   The number of bytes.
+     * @return The buffer, positioned at 0.
+     * @throws IOException If the range cannot be read.
+     */
+    static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new EOFException("Unexpected end of file at offset " + (position + buffer.position()));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Writes a buffer at the given offset without moving the channel position.
+     *
+     * @param channel  The channel to write to.
+     * @param buffer   The bytes to write.
+     * @param position The absolute offset.
+     * @throws IOException If the bytes cannot be written.
+     */
+    static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Creates a sibling file that is written first and then moved over the
+     * original, so a failed write never leaves a half written file behind.
+     *
+     * @param path The file that will be replaced.
+     * @return The new empty file.
+     * @throws IOException If the file cannot be created.
+     */
+    static Path createCopy(Path path) throws IOException {
+        return Files.createTempFile(path.toAbsolutePath().getParent(), ".euphory", ".tmp");
+    }
+
+    /**
+     * Streams a range of one channel to the current position of another.
+     *
+     * @param in       The channel to copy from.
+     * @param position The first byte to copy.
+     * @param count    The number of bytes to copy.
+     * @param out      The channel to copy to.
+     * @throws IOException If the copy fails.
+     */
+    static void transfer(FileChannel in, long position, long count, FileChannel out) throws IOException {
+        long end = position + count;
+        while (position < end) {
+            long transferred = in.transferTo(position, Math.min(COPY_CHUNK_SIZE, end - position), out);
+            if (transferred <= 0) {
+                throw new EOFException("Unexpected end of file at offset " + position);
+            }
+            position += transferred;
+        }
+    }
+
+    /**
+     * Opens a copy for writing from its start.
+     *
+     * @param copy The copy created by {@link #createCopy(Path)}.
+     * @return The channel.
+     * @throws IOException If the copy cannot be opened.
+     */
+    static FileChannel openCopy(Path copy) throws IOException {
+        return FileChannel.open(copy, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Replaces a file with its rewritten copy. The copy first takes the
+     * permissions, owner and group of the file, as a temporary file is only
+     * readable by its creator.
+     *
+     * @param copy The rewritten copy.
+     * @param path The file to replace.
+     * @throws IOException If the file cannot be replaced.
+     */
+    static void replaceFile(Path copy, Path path) throws IOException {
+        copyAttributes(path, copy);
+        try {
+            Files.move(copy, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(copy, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void copyAttributes(Path path, Path copy) throws IOException {
+        PosixFileAttributeView source = Files.getFileAttributeView(path, PosixFileAttributeView.class);
+        PosixFileAttributeView target = Files.getFileAttributeView(copy, PosixFileAttributeView.class);
+        if (source == null || target == null) {
+            File file = path.toFile();
+            File copyFile = copy.toFile();
+            copyFile.setReadable(file.canRead(), false);
+            copyFile.setWritable(file.canWrite());
+            return;
+        }
+        PosixFileAttributes attributes = source.readAttributes();
+        // Changing the owner is only allowed to a privileged user, the group
+        // to a member of it; otherwise the copy keeps those of whoever wrote it
+        try {
+            if (!attributes.owner().equals(target.getOwner())) {
+                target.setOwner(attributes.owner());
+            }
+        } catch (IOException e) {
+            // Kept
+        }
+        try {
+            target.setGroup(attributes.group());
+        } catch (IOException e) {
+            // Kept
+        }
+        target.setPermissions(attributes.permissions());
+    }
+
+}